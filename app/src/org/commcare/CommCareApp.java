@@ -9,6 +9,7 @@ import net.sqlcipher.database.SQLiteDatabase;
 import org.commcare.android.database.global.models.ApplicationRecord;
 import org.commcare.dalvik.BuildConfig;
 import org.commcare.engine.references.JavaFileRoot;
+import org.commcare.engine.resource.MediaBlobStore;
 import org.commcare.interfaces.AppFilePathBuilder;
 import org.commcare.models.database.AndroidDbHelper;
 import org.commcare.models.database.HybridFileBackedSqlHelpers;
@@ -98,7 +99,8 @@ public class CommCareApp implements AppFilePathBuilder {
                 GlobalConstants.FILE_CC_UPGRADE, GlobalConstants.FILE_CC_CACHE,
                 GlobalConstants.FILE_CC_FORMS, GlobalConstants.FILE_CC_MEDIA,
                 GlobalConstants.FILE_CC_LOGS, GlobalConstants.FILE_CC_ATTACHMENTS,
-                GlobalConstants.FILE_CC_DB};
+                GlobalConstants.FILE_CC_DB, GlobalConstants.FILE_CC_DOWNLOADS,
+                GlobalConstants.FILE_CC_MEDIA_STORE};
 
         for (String path : paths) {
             File f = new File(fsPath(path));
@@ -220,6 +222,7 @@ public class CommCareApp implements AppFilePathBuilder {
         if (global.getTableReadiness() == ResourceTable.RESOURCE_TABLE_UNSTAGED) {
             // If so, repair the global table. (Always takes priority over maintaining the update)
             global.repairTable(upgrade, platform);
+            MediaBlobStore.collectGarbage(this);
         }
 
         Resource profile = global.getResourceWithId(CommCarePlatform.APP_PROFILE_RESOURCE_ID);
@@ -46,15 +46,18 @@ import org.commcare.core.network.ModernHttpRequester;
 import org.commcare.core.services.CommCarePreferenceManagerFactory;
 import org.commcare.dalvik.BuildConfig;
 import org.commcare.dalvik.R;
+import org.commcare.engine.cases.CaseIdMapping;
 import org.commcare.engine.references.ArchiveFileRoot;
 import org.commcare.engine.references.AssetFileRoot;
 import org.commcare.engine.references.JavaHttpRoot;
 import org.commcare.engine.resource.ResourceInstallUtils;
 import org.commcare.heartbeat.HeartbeatRequester;
 import org.commcare.logging.AndroidLogger;
+import org.commcare.logic.FormDefCache;
 import org.commcare.logging.DataChangeLog;
 import org.commcare.logging.DataChangeLogger;
 import org.commcare.logging.PreInitLogger;
+import org.commcare.logging.StartupTrace;
 import org.commcare.logging.XPathErrorEntry;
 import org.commcare.logging.XPathErrorLogger;
 import org.commcare.logging.analytics.TimedStatsTracker;
@@ -69,6 +72,7 @@ import org.commcare.models.database.SqlStorage;
 import org.commcare.models.database.app.DatabaseAppOpenHelper;
 import org.commcare.models.database.global.DatabaseGlobalOpenHelper;
 import org.commcare.models.database.user.DatabaseUserOpenHelper;
+import org.commcare.models.database.user.models.CaseIndexQueryCache;
 import org.commcare.models.database.user.models.EntityStorageCache;
 import org.commcare.models.legacy.LegacyInstallUtils;
 import org.commcare.modern.database.Table;
@@ -117,6 +121,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nullable;
 import javax.crypto.SecretKey;
@@ -173,6 +181,9 @@ public class CommCareApplication extends MultiDexApplication {
     private boolean invalidateCacheOnRestore;
     private CommCareNoficationManager noficationManager;
 
+    private StartupTrace startupTrace;
+    private ExecutorService startupExecutor;
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -187,13 +198,16 @@ public class CommCareApplication extends MultiDexApplication {
         }
 
         CommCareApplication.app = this;
-        CrashUtil.init(this);
-        DataChangeLogger.init(this);
-        logFirstCommCareRun();
-        CommCarePreferenceManagerFactory.init(new AndroidPreferenceManager());
-
-        configureCommCareEngineConstantsAndStaticRegistrations();
-        initNotifications();
+        startupTrace = new StartupTrace();
+        startupTrace.runPhase("engine_setup", () -> {
+            CrashUtil.init(this);
+            DataChangeLogger.init(this);
+            logFirstCommCareRun();
+            CommCarePreferenceManagerFactory.init(new AndroidPreferenceManager());
+
+            configureCommCareEngineConstantsAndStaticRegistrations();
+            initNotifications();
+        });
 
         //TODO: Make this robust
         PreInitLogger pil = new PreInitLogger();
@@ -205,30 +219,69 @@ public class CommCareApplication extends MultiDexApplication {
 
         Thread.setDefaultUncaughtExceptionHandler(new CommCareExceptionHandler(Thread.getDefaultUncaughtExceptionHandler(), this));
 
-        SQLiteDatabase.loadLibs(this);
+        startupTrace.runPhase("load_sqlcipher", () -> SQLiteDatabase.loadLibs(this));
 
-        setRoots();
+        startupTrace.runPhase("set_roots", this::setRoots);
 
-        prepareTemporaryStorage();
+        // Any component can be started once onCreate returns, so temp storage has to be reset
+        // before then rather than alongside the rest of startup
+        startupTrace.runPhase("temp_storage", this::prepareTemporaryStorage);
 
-        if (LegacyInstallUtils.checkForLegacyInstall(this)) {
-            dbState = STATE_LEGACY_DETECTED;
-        } else {
-            // Init global storage (Just application records, logs, etc)
-            dbState = initGlobalDb();
-        }
+        // Doesn't depend on the databases, so get it going while those are opened
+        startupExecutor = Executors.newSingleThreadExecutor();
+        Future<?> localizerInit = startupExecutor.submit(() ->
+                startupTrace.runPhase("default_localizations", this::initializeDefaultLocalizerData));
 
-        setupLoggerStorage(false);
-        pil.dumpToNewLogger();
+        startupTrace.runPhase("global_db", () -> {
+            if (LegacyInstallUtils.checkForLegacyInstall(this)) {
+                dbState = STATE_LEGACY_DETECTED;
+            } else {
+                // Init global storage (Just application records, logs, etc)
+                dbState = initGlobalDb();
+            }
+        });
 
-        initializeDefaultLocalizerData();
+        startupTrace.runPhase("logger_storage", () -> {
+            setupLoggerStorage(false);
+            pil.dumpToNewLogger();
+        });
+
+        // App initialization registers the app's own locale files, and every component
+        // started after onCreate may look up localized strings
+        startupTrace.runPhase("await_localizations", () -> awaitStartupTask(localizerInit));
 
         if (dbState != STATE_MIGRATION_FAILED && dbState != STATE_MIGRATION_QUESTIONABLE) {
-            AppUtils.checkForIncompletelyUninstalledApps();
-            initializeAnAppOnStartup();
+            startupTrace.runPhase("app_init", () -> {
+                AppUtils.checkForIncompletelyUninstalledApps();
+                initializeAnAppOnStartup();
+            });
         }
 
         LocalePreferences.saveDeviceLocale(Locale.getDefault());
+
+        startupTrace.markMainThreadDone();
+        startupExecutor.execute(startupTrace::report);
+        startupExecutor.shutdown();
+    }
+
+    private static void awaitStartupTask(Future<?> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    task.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Application startup failed", e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     @Override
@@ -318,8 +371,16 @@ public class CommCareApplication extends MultiDexApplication {
             // Cancel any running tasks before closing down the user database.
             ManagedAsyncTask.cancelTasks();
 
+            // Write out buffered logs, and stop buffering new ones, while the user database
+            // is still available
+            AndroidLogger.haltAsyncLogger();
+
             releaseUserResourcesAndServices();
 
+            FormDefCache.clear();
+            CaseIdMapping.clear();
+            CaseIndexQueryCache.clearAll();
+
             // Switch loggers back over to using global storage, now that we don't have a session
             setupLoggerStorage(false);
         }
@@ -533,6 +594,10 @@ public class CommCareApplication extends MultiDexApplication {
         return this.getSession().getUserDbHandle();
     }
 
+    public SQLiteDatabase getUserDbReadHandle() {
+        return this.getSession().getUserDbReadHandle();
+    }
+
     public <T extends Persistable> SqlStorage<T> getGlobalStorage(Class<T> c) {
         return getGlobalStorage(c.getAnnotation(Table.class).value(), c);
     }
@@ -590,6 +655,15 @@ public class CommCareApplication extends MultiDexApplication {
                 }
                 return database;
             }
+
+            @Override
+            public SQLiteDatabase getReadHandle() {
+                SQLiteDatabase database = getUserDbReadHandle();
+                if (database == null) {
+                    throw new SessionUnavailableException("The user database has been closed!");
+                }
+                return database;
+            }
         };
     }
 
@@ -980,7 +1054,7 @@ public class CommCareApplication extends MultiDexApplication {
         if (userStorageAvailable) {
             if (loggingEnabled) {
                 Logger.registerLogger(new AndroidLogger(app.getUserStorage(AndroidLogEntry.STORAGE_KEY,
-                        AndroidLogEntry.class)));
+                        AndroidLogEntry.class), DeveloperPreferences.useAsyncLogging()));
             } else {
                 Logger.detachLogger();
             }
@@ -991,7 +1065,8 @@ public class CommCareApplication extends MultiDexApplication {
         } else {
             if (loggingEnabled) {
                 Logger.registerLogger(new AndroidLogger(
-                        app.getGlobalStorage(AndroidLogEntry.STORAGE_KEY, AndroidLogEntry.class)));
+                        app.getGlobalStorage(AndroidLogEntry.STORAGE_KEY, AndroidLogEntry.class),
+                        DeveloperPreferences.useAsyncLogging()));
             } else {
                 Logger.detachLogger();
             }
@@ -40,13 +40,11 @@ import org.commcare.models.database.SqlStorage;
 import org.commcare.preferences.AdvancedActionsPreferences;
 import org.commcare.preferences.ServerUrls;
 import org.commcare.services.WiFiDirectBroadcastReceiver;
-import org.commcare.tasks.FormRecordToFileTask;
 import org.commcare.tasks.FormTransferTask;
 import org.commcare.tasks.SendTask;
 import org.commcare.tasks.UnZipTaskListener;
 import org.commcare.tasks.UnzipTask;
 import org.commcare.tasks.WipeTask;
-import org.commcare.tasks.ZipTask;
 import org.commcare.tasks.templates.CommCareTask;
 import org.commcare.tasks.templates.CommCareTaskConnector;
 import org.commcare.util.LogTypes;
@@ -59,9 +57,6 @@ import org.javarosa.core.services.Logger;
 import org.javarosa.core.services.locale.Localization;
 
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.Vector;
 
 /**
@@ -89,10 +84,8 @@ public class CommCareWiFiDirectActivity
     private WiFiDirectUIController uiController;
 
     private static String baseDirectory;
-    private static String toBeTransferredDirectory;
-    private static String zipFilePath;
     private static String receiveDirectory;
-    private static String receiveZipDirectory;
+    private static String pendingReceiveDirectory;
     private static String toBeSubmittedDirectory;
 
     private TextView myStatusText;
@@ -120,13 +113,12 @@ public class CommCareWiFiDirectActivity
         String baseDir = this.getFilesDir().getAbsolutePath();
 
         baseDirectory = baseDir + "/" + Localization.get("wifi.direct.base.folder");
-        // these are the two folders where form record folders can live.
-        toBeTransferredDirectory = baseDirectory + "/transfer";
+        // this is where received form record folders live until they're submitted
         toBeSubmittedDirectory = baseDirectory + "/submit";
-        // these are temporary paths for storing received and unzipped forms
-        zipFilePath = baseDirectory + "/formRecordZip.zip";
+        // forms being received are written here until they're complete
+        pendingReceiveDirectory = baseDirectory + "/pending";
+        // zipped forms received from older versions are unzipped from here
         receiveDirectory = baseDirectory + "/receive";
-        receiveZipDirectory = receiveDirectory + "/zipDest";
 
         mManager = (WifiP2pManager)getSystemService(Context.WIFI_P2P_SERVICE);
         mChannel = mManager.initialize(this, getMainLooper(), null);
@@ -186,7 +178,7 @@ public class CommCareWiFiDirectActivity
 
         final FileServerFragment fsFragment = (FileServerFragment)getSupportFragmentManager()
                 .findFragmentById(R.id.file_server_fragment);
-        fsFragment.startServer(receiveZipDirectory);
+        fsFragment.startServer(toBeSubmittedDirectory, pendingReceiveDirectory, receiveDirectory);
 
         WiFiDirectManagementFragment fragment = (WiFiDirectManagementFragment)getSupportFragmentManager()
                 .findFragmentById(R.id.wifi_manager_fragment);
@@ -330,7 +322,7 @@ public class CommCareWiFiDirectActivity
 
     private void cleanPostSend() {
 
-        Logger.log(TAG, "cleaning forms after successful Wi-fi direct transfer");
+        Logger.log(TAG, "cleaning forms after Wi-fi direct transfer");
 
         // remove Forms from CC
 
@@ -357,11 +349,6 @@ public class CommCareWiFiDirectActivity
         mWipeTask.connect(CommCareWiFiDirectActivity.this);
         mWipeTask.execute();
 
-        FileUtil.deleteFileOrDir(new File(toBeTransferredDirectory));
-        FileUtil.deleteFileOrDir(new File(zipFilePath));
-
-        Logger.log(TAG, "Deleting dirs " + toBeTransferredDirectory + " and " + zipFilePath);
-
         this.cachedRecords = null;
 
     }
@@ -577,18 +564,9 @@ public class CommCareWiFiDirectActivity
         });
     }
 
-    private static void deleteIfExists(String filePath) {
-        File toDelete = new File(filePath);
-        if (toDelete.exists()) {
-            toDelete.delete();
-        }
-    }
-
     public void prepareFileTransfer() {
         Logger.log(TAG, "Preparing File Transfer");
 
-        CommCareWiFiDirectActivity.deleteIfExists(zipFilePath);
-
         final WiFiDirectManagementFragment fragment = (WiFiDirectManagementFragment)getSupportFragmentManager()
                 .findFragmentById(R.id.wifi_manager_fragment);
 
@@ -596,126 +574,9 @@ public class CommCareWiFiDirectActivity
             myStatusText.setText(localize("wifi.direct.no.group"));
             return;
         }
-        moveFormRecordsToFiles();
-    }
-
-    private void moveReceivedFiles() {
-        File receiveFolder = new File(toBeSubmittedDirectory);
-        if (!receiveFolder.isDirectory() || !receiveFolder.exists()) {
-            // we haven't received any transfers, just return.
-            return;
-        }
-        // We've received transferred forms. Move them into the to be zipped directory.
-        File[] originFiles = receiveFolder.listFiles();
-        File[] destinationFiles = new File[originFiles.length];
-        for (int i = 0; i < originFiles.length; i++) {
-            destinationFiles[i] = new File(toBeTransferredDirectory, originFiles[i].getName());
-        }
-        try {
-            Log.d(TAG, "We have " + originFiles.length + " toBeSubmitted files to transfer");
-            for (int i = 0; i < originFiles.length; i++) {
-                FileUtil.copyFileDeep(originFiles[i], destinationFiles[i]);
-                Log.d(TAG, "Transferred " + originFiles[i] + " to " + destinationFiles[i]);
-            }
-        } catch (IOException e) {
-            // if we catch an error, delete all the new files we've copied over
-            for (File destinationFile : destinationFiles) {
-                if (destinationFile.exists()) {
-                    FileUtil.deleteFileOrDir(destinationFile);
-                }
-            }
-        }
-        // Delete all the to be submitted files, we have them copied for transfer.
-        for (File originFile : originFiles) {
-            if (originFile.exists()) {
-                FileUtil.deleteFileOrDir(originFile);
-            }
-        }
-    }
-
-    private void onZipSuccesful() {
-        myStatusText.setText(localize("wifi.direct.zip.successful"));
-        updateStatusText();
         sendFiles();
     }
 
-    private void onZipError() {
-        FileUtil.deleteFileOrDir(new File(toBeTransferredDirectory));
-        Log.d(CommCareWiFiDirectActivity.TAG, "Zip unsuccessful");
-    }
-
-
-    private void onRecordPullCompleted(Pair<FormUploadResult, FormRecord[]> result, CommCareWiFiDirectActivity receiver) {
-        myStatusText.setText(localize("wifi.direct.pull.successful"));
-        if (result != null) {
-            if (result.first != FormUploadResult.FULL_SUCCESS) {
-                // if we had files but they failed, we should error and block
-                receiver.myStatusText.setText(localize("wifi.direct.pull.unsuccessful",
-                        "Problem transferring forms to file system"));
-                receiver.transplantStyle(receiver.myStatusText,
-                        R.layout.template_text_notification_problem);
-                return;
-            }
-            this.cachedRecords = result.second;
-        }
-        updateStatusText();
-        moveReceivedFiles();
-        zipFiles();
-    }
-
-    private void moveFormRecordsToFiles() {
-        Logger.log(TAG, "Getting records from storage");
-        FormRecordToFileTask formRecordToFileTask = new FormRecordToFileTask(this, toBeTransferredDirectory) {
-            @Override
-            protected void deliverResult(CommCareWiFiDirectActivity receiver, Pair<FormUploadResult, FormRecord[]> result) {
-                receiver.onRecordPullCompleted(result, receiver);
-            }
-
-            @Override
-            protected void deliverUpdate(CommCareWiFiDirectActivity receiver, String... update) {
-                receiver.updateProgress(update[0], taskId);
-                receiver.myStatusText.setText(update[0]);
-            }
-
-            @Override
-            protected void deliverError(CommCareWiFiDirectActivity receiver, Exception e) {
-                receiver.myStatusText.setText(localize("wifi.direct.pull.unsuccessful", e.getMessage()));
-                receiver.transplantStyle(receiver.myStatusText, R.layout.template_text_notification_problem);
-            }
-        };
-        formRecordToFileTask.connect(this);
-        formRecordToFileTask.execute();
-    }
-
-    private void zipFiles() {
-        Logger.log(TAG, "Zipping Files");
-        ZipTask mZipTask = new ZipTask(toBeTransferredDirectory, zipFilePath) {
-            @Override
-            protected void deliverUpdate(CommCareWiFiDirectActivity receiver, String... update) {
-                receiver.updateProgress(update[0], taskId);
-                receiver.myStatusText.setText(update[0]);
-            }
-
-            @Override
-            protected void deliverError(CommCareWiFiDirectActivity receiver, Exception e) {
-                receiver.myStatusText.setText(localize("wifi.direct.zip.unsuccessful", e.getMessage()));
-                receiver.transplantStyle(receiver.myStatusText, R.layout.template_text_notification_problem);
-            }
-
-            @Override
-            protected void deliverResult(CommCareWiFiDirectActivity receiver, ZipTaskResult result) {
-                if (result == ZipTaskResult.Success) {
-                    receiver.onZipSuccesful();
-                } else {
-                    receiver.onZipError();
-                    receiver.transplantStyle(receiver.myStatusText, R.layout.template_text_notification_problem);
-                }
-            }
-        };
-        mZipTask.connect(CommCareWiFiDirectActivity.this);
-        mZipTask.execute();
-    }
-
     private void sendFiles() {
         Logger.log(TAG, "Sending Files via Wi-fi Direct");
         TextView statusText = myStatusText;
@@ -727,12 +588,19 @@ public class CommCareWiFiDirectActivity
 
         String address = fragment.getHostAddress();
 
-        FormTransferTask mTransferTask = new FormTransferTask(address, zipFilePath, 8988) {
+        SharedPreferences settings = CommCareApplication.instance().getCurrentApp().getAppPreferences();
+        String postUrl = settings.getString(ServerUrls.PREFS_SUBMISSION_URL_KEY,
+                getString(R.string.PostURL));
+
+        FormTransferTask mTransferTask = new FormTransferTask(address, 8988,
+                new File(toBeSubmittedDirectory), postUrl) {
 
             @Override
             protected void deliverResult(CommCareWiFiDirectActivity receiver,
-                                         Boolean result) {
-                if (result == Boolean.TRUE) {
+                                         Pair<FormUploadResult, FormRecord[]> result) {
+                // Whatever the peer acknowledged is safe to remove, even if the rest failed
+                receiver.cachedRecords = result.second;
+                if (result.first == FormUploadResult.FULL_SUCCESS) {
                     receiver.onSendSuccessful();
                 } else {
                     receiver.onSendFail();
@@ -775,6 +643,7 @@ public class CommCareWiFiDirectActivity
 
     private void onSendFail() {
         Logger.log(TAG, "Error Sending Files");
+        this.cleanPostSend();
     }
 
     private void updateStatusText() {
@@ -808,25 +677,11 @@ public class CommCareWiFiDirectActivity
         }
     }
 
-    public static void copyFile(InputStream inputStream, OutputStream out) throws IOException {
-        Logger.log(TAG, "File server copying file");
-        if (inputStream == null) {
-            Logger.log(TAG, "Input stream null");
-            throw new IOException("Got null input stream");
-        }
-        byte buf[] = new byte[1024];
-        int len;
-        try {
-            while ((len = inputStream.read(buf)) != -1) {
-                out.write(buf, 0, len);
-            }
-            out.close();
-            inputStream.close();
-        } catch (IOException e) {
-            Logger.exception("Copy in File Server failed with exception " + e, e);
-            throw e;
-        }
-        Logger.log(TAG, "Copy in File Server successful");
+    @Override
+    public void onFormsReceived(int formCount) {
+        Logger.log(TAG, "Received " + formCount + " forms via Wi-fi direct");
+        myStatusText.setText(localize("wifi.direct.receive.successful", String.valueOf(formCount)));
+        updateStatusText();
     }
 
     @Override
@@ -861,10 +716,6 @@ public class CommCareWiFiDirectActivity
     public CustomProgressDialog generateProgressDialog(int taskId) {
         String title, message;
         switch (taskId) {
-            case ZipTask.ZIP_TASK_ID:
-                title = localize("wifi.direct.zip.task.title").toString();
-                message = localize("wifi.direct.zip.task.message").toString();
-                break;
             case UnzipTask.UNZIP_TASK_ID:
                 title = localize("wifi.direct.unzip.task.title").toString();
                 message = localize("wifi.direct.unzip.task.message").toString();
@@ -885,10 +736,6 @@ public class CommCareWiFiDirectActivity
                 title = localize("wifi.direct.wipe.task.title").toString();
                 message = localize("wifi.direct.wipe.task.message").toString();
                 break;
-            case FormRecordToFileTask.PULL_TASK_ID:
-                title = localize("wifi.direct.pull.task.title").toString();
-                message = localize("wifi.direct.pull.task.message").toString();
-                break;
             default:
                 Log.w(TAG, "taskId passed to generateProgressDialog does not match "
                         + "any valid possibilities in CommCareWifiDirectActivity");
@@ -58,6 +58,7 @@ import org.commcare.logging.analytics.TimedStatsTracker;
 import org.commcare.logic.AndroidFormController;
 import org.commcare.models.ODKStorage;
 import org.commcare.models.database.SqlStorage;
+import org.commcare.preferences.DeveloperPreferences;
 import org.commcare.tasks.FormLoaderTask;
 import org.commcare.tasks.SaveToDiskTask;
 import org.commcare.util.LogTypes;
@@ -222,6 +223,7 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
 
     @Override
     public void formSaveCallback() {
+        finishFormRelevanciesEvaluation();
         // note that we have started saving the form
         savingFormOnKeySessionExpiration = true;
 
@@ -255,6 +257,7 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
+        finishFormRelevanciesEvaluation();
         instanceState.saveState(outState);
 
         outState.putBoolean(KEY_FORM_LOAD_HAS_TRIGGERED, hasFormLoadBeenTriggered);
@@ -285,6 +288,7 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
 
     @Override
     public void onActivityResultSessionSafe(int requestCode, int resultCode, Intent intent) {
+        finishFormRelevanciesEvaluation();
         if (requestCode == FormEntryConstants.FORM_PREFERENCES_KEY) {
             uiController.refreshCurrentView(false);
             return;
@@ -348,6 +352,7 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
     }
 
     public void saveImageWidgetAnswer(ContentValues values) {
+        finishFormRelevanciesEvaluation();
         Uri imageURI =
                 getContentResolver().insert(Images.Media.EXTERNAL_CONTENT_URI, values);
         Log.i(TAG, "Inserting image returned uri = " + imageURI);
@@ -445,6 +450,7 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
+        finishFormRelevanciesEvaluation();
         if (CommCareApplication.instance().isConsumerApp()) {
             // Do not show options menu at all if this is a consumer app
             return super.onPrepareOptionsMenu(menu);
@@ -476,6 +482,7 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
+        finishFormRelevanciesEvaluation();
         Map<Integer, String> menuIdToAnalyticsParam = createMenuItemToAnalyticsParamMapping();
 
         FirebaseAnalyticsUtil.reportOptionsMenuItemClick(this.getClass(),
@@ -548,6 +555,8 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
     private boolean saveAnswersForCurrentScreen(boolean evaluateConstraints,
                                                 boolean failOnRequired,
                                                 boolean headless) {
+        finishFormRelevanciesEvaluation();
+
         // only try to save if the current event is a question or a field-list
         // group
         boolean success = true;
@@ -585,6 +594,17 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
         return success;
     }
 
+    /**
+     * Every entry point that uses the form from the UI thread first waits on any relevancy
+     * evaluation that is using it in the background, and applies it, since the form isn't
+     * thread safe
+     */
+    private void finishFormRelevanciesEvaluation() {
+        if (uiController != null) {
+            uiController.finishFormRelevanciesEvaluation();
+        }
+    }
+
     private boolean isEventQuestionOrListGroup() {
         return (mFormController.getEvent() == FormEntryController.EVENT_QUESTION) ||
                 (mFormController.getEvent() == FormEntryController.EVENT_GROUP
@@ -595,6 +615,7 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
      * Clears the answer on the screen.
      */
     public void clearAnswer(QuestionWidget qw) {
+        finishFormRelevanciesEvaluation();
         qw.clearAnswer();
     }
 
@@ -607,6 +628,7 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
 
     @Override
     public boolean onContextItemSelected(MenuItem item) {
+        finishFormRelevanciesEvaluation();
         // We don't have the right view here, so we store the View's ID as the
         // item ID and loop through the possible views to find the one the user
         // clicked on.
@@ -624,6 +646,7 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
      */
     @Override
     public Object onRetainCustomNonConfigurationInstance() {
+        finishFormRelevanciesEvaluation();
         // if a form is loading, pass the loader task
         if (mFormLoaderTask != null && mFormLoaderTask.getStatus() != AsyncTask.Status.FINISHED)
             return mFormLoaderTask;
@@ -706,6 +729,7 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
      *                        violate constraints be saved.
      */
     private void saveDataToDisk(boolean exit, boolean complete, String updatedSaveName, boolean headless) {
+        finishFormRelevanciesEvaluation();
         if (!formHasLoaded()) {
             if (exit) {
                 showSaveErrorAndExit();
@@ -749,6 +773,7 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
     }
 
     public void setFormLanguage(String[] languages, int index) {
+        finishFormRelevanciesEvaluation();
         mFormController.setLanguage(languages[index]);
         dismissAlertDialog();
         if (currentPromptIsQuestion()) {
@@ -786,6 +811,8 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
     @Override
     protected void onPause() {
         super.onPause();
+        // Don't leave an update to start in the background once the activity is paused
+        uiController.settleFormRelevancies();
 
         if (!isFinishing() && uiController.questionsView != null && currentPromptIsQuestion()) {
             saveAnswersForCurrentScreen(FormEntryConstants.DO_NOT_EVALUATE_CONSTRAINTS);
@@ -981,6 +1008,7 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
      * Call when the user provides input that they want to quit the form
      */
     protected void triggerUserQuitInput() {
+        finishFormRelevanciesEvaluation();
         if (!formHasLoaded()) {
             finish();
         } else if (mFormController.isFormReadOnly()) {
@@ -999,6 +1027,7 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
      * Call when the user is ready to save and return the current form as complete
      */
     protected void triggerUserFormComplete() {
+        finishFormRelevanciesEvaluation();
 
         if (mFormController.isFormReadOnly()) {
             finishReturnInstance(false);
@@ -1233,6 +1262,12 @@ public class FormEntryActivity extends SaveSessionCommCareActivity<FormEntryActi
 
     @Override
     public void widgetEntryChanged(QuestionWidget changedWidget) {
+        if (DeveloperPreferences.evaluateFormRelevanciesInBackground()) {
+            uiController.recordLastChangedWidgetIndex(changedWidget);
+            // Navigation cues are updated once the relevancies have been applied
+            uiController.queueFormRelevanciesUpdate();
+            return;
+        }
         try {
             uiController.recordLastChangedWidgetIndex(changedWidget);
             uiController.updateFormRelevancies();
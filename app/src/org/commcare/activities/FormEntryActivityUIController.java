@@ -2,7 +2,9 @@ package org.commcare.activities;
 
 import android.content.pm.ActivityInfo;
 import android.graphics.Rect;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.text.SpannableStringBuilder;
 import android.util.Log;
 import android.view.ContextThemeWrapper;
@@ -30,6 +32,7 @@ import org.commcare.interfaces.CommCareActivityUIController;
 import org.commcare.preferences.LocalePreferences;
 import org.commcare.utils.BlockingActionsManager;
 import org.commcare.utils.CompoundIntentList;
+import org.commcare.utils.DelayedBlockingAction;
 import org.commcare.utils.StringUtils;
 import org.commcare.views.QuestionsView;
 import org.commcare.views.UserfacingErrorHandling;
@@ -42,6 +45,7 @@ import org.commcare.views.widgets.QuestionWidget;
 import org.javarosa.core.model.Constants;
 import org.javarosa.core.model.FormIndex;
 import org.javarosa.core.model.SelectChoice;
+import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.data.InvalidData;
 import org.javarosa.core.services.Logger;
 import org.javarosa.core.services.locale.Localization;
@@ -52,9 +56,13 @@ import org.javarosa.xpath.XPathTypeMismatchException;
 import org.javarosa.xpath.XPathUnhandledException;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
 
 public class FormEntryActivityUIController implements CommCareActivityUIController,
         Animation.AnimationListener {
@@ -77,6 +85,12 @@ public class FormEntryActivityUIController implements CommCareActivityUIControll
 
     private boolean formRelevanciesUpdateInProgress = false;
 
+    // How long answers need to stay unchanged before relevancies are updated in the background
+    private static final int FORM_RELEVANCIES_UPDATE_DELAY = 250;
+    private DelayedBlockingAction pendingFormRelevanciesUpdate;
+    private FormRelevanciesEvaluationTask formRelevanciesEvaluationTask;
+    private boolean formRelevanciesUpdateRequested = false;
+
     private static final String KEY_LAST_CHANGED_WIDGET = "index-of-last-changed-widget";
 
     enum AnimationType {
@@ -168,6 +182,7 @@ public class FormEntryActivityUIController implements CommCareActivityUIControll
         if (FormEntryActivity.mFormController == null) {
             throw new RuntimeException("Form state is lost! Cannot refresh current view. This shouldn't happen, please submit a bug report.");
         }
+        finishFormRelevanciesEvaluation();
         int event = FormEntryActivity.mFormController.getEvent();
 
         // When we refresh, repeat dialog state isn't maintained, so step back to the previous
@@ -278,6 +293,7 @@ public class FormEntryActivityUIController implements CommCareActivityUIControll
      * appropriate view. Also saves answers to the data model without checking constraints.
      */
     protected void showPreviousView(boolean showSwipeAnimation) {
+        settleFormRelevancies();
         if (shouldIgnoreNavigationAction()) {
             return;
         }
@@ -385,6 +401,7 @@ public class FormEntryActivityUIController implements CommCareActivityUIControll
 
     private void showNextView(boolean resuming) {
         AudioController.INSTANCE.releaseCurrentMediaEntity();
+        settleFormRelevancies();
         if (shouldIgnoreNavigationAction()) {
             isAnimatingSwipe = false;
             return;
@@ -718,6 +735,15 @@ public class FormEntryActivityUIController implements CommCareActivityUIControll
             UserfacingErrorHandling.logErrorAndShowDialog(activity, e, FormEntryConstants.EXIT);
             return;
         }
+        updateWidgetsForPrompts(oldWidgets, oldSelectChoices, oldQuestionTexts, newValidPrompts);
+
+        formRelevanciesUpdateInProgress = false;
+    }
+
+    private void updateWidgetsForPrompts(ArrayList<QuestionWidget> oldWidgets,
+                                         ArrayList<Vector<SelectChoice>> oldSelectChoices,
+                                         ArrayList<String> oldQuestionTexts,
+                                         FormEntryPrompt[] newValidPrompts) {
         Set<FormEntryPrompt> promptsLeftInView = new HashSet<>();
 
         ArrayList<Integer> shouldRemoveFromView = new ArrayList<>();
@@ -760,7 +786,174 @@ public class FormEntryActivityUIController implements CommCareActivityUIControll
             }
         }
         updateCompoundIntentButtonVisibility();
+    }
+
+    /**
+     * Update form relevancies once the answers on the screen stop changing, evaluating the form
+     * on a background thread. This keeps rapid changes, like typing, from stalling the UI on
+     * screens with many questions or long chains of calculations. Navigation is held off until
+     * the update has been applied.
+     */
+    protected void queueFormRelevanciesUpdate() {
+        if (formRelevanciesUpdateInProgress) {
+            // Widgets being added to the view can report changes of their own
+            return;
+        }
+        pendingFormRelevanciesUpdate = new DelayedBlockingAction(this, FORM_RELEVANCIES_UPDATE_DELAY) {
+            @Override
+            protected void runAction() {
+                startFormRelevanciesEvaluation();
+            }
+        };
+        blockingActionsManager.queue(pendingFormRelevanciesUpdate);
+    }
+
+    /**
+     * Bring the screen up to date with the answers on it before navigating, applying any update
+     * that is still waiting for answers to settle or running in the background, so that the
+     * navigation goes ahead rather than being ignored.
+     */
+    protected void settleFormRelevancies() {
+        boolean updatePending = pendingFormRelevanciesUpdate != null
+                && pendingFormRelevanciesUpdate.invalidate();
+        pendingFormRelevanciesUpdate = null;
+        finishFormRelevanciesEvaluation();
+        if (updatePending) {
+            updateFormRelevancies();
+        }
+    }
+
+    private void startFormRelevanciesEvaluation() {
+        if (questionsView == null || formRelevanciesUpdateInProgress) {
+            return;
+        }
+        if (formRelevanciesEvaluationTask != null) {
+            // Pick up these changes once the evaluation that is underway has been applied
+            formRelevanciesUpdateRequested = true;
+            return;
+        }
+
+        // The widgets' answers and the state they were built from have to be read before the
+        // form is changed underneath them
+        ArrayList<QuestionWidget> oldWidgets = new ArrayList<>(questionsView.getWidgets());
+        formRelevanciesEvaluationTask = new FormRelevanciesEvaluationTask(this, questionsView,
+                questionsView.getAnswers(), oldWidgets,
+                FormRelevancyUpdating.getOldSelectChoicesForEachWidget(oldWidgets),
+                FormRelevancyUpdating.getOldQuestionTextsForEachWidget(oldWidgets));
+        formRelevanciesEvaluationTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Wait for any relevancy evaluation running in the background and apply it, so that the
+     * form can be used from the UI thread again
+     */
+    protected void finishFormRelevanciesEvaluation() {
+        FormRelevanciesEvaluationTask task = formRelevanciesEvaluationTask;
+        if (task == null) {
+            return;
+        }
+        try {
+            task.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Logger.exception("Error waiting on form relevancy evaluation", e);
+        }
+        applyFormRelevanciesEvaluation(task, false);
+    }
 
+    private void applyFormRelevanciesEvaluation(FormRelevanciesEvaluationTask task,
+                                                boolean evaluateRequestedUpdateInBackground) {
+        if (task != formRelevanciesEvaluationTask) {
+            // Already applied while the UI thread was waiting on it
+            return;
+        }
+        formRelevanciesEvaluationTask = null;
+
+        if (task.error instanceof XPathException) {
+            UserfacingErrorHandling.logErrorAndShowDialog(activity, (XPathException)task.error,
+                    FormEntryConstants.EXIT);
+            return;
+        } else if (task.error != null) {
+            // Fail the same way an update on the UI thread would have
+            throw task.error;
+        }
+        if (task.newValidPrompts == null || task.questionsView != questionsView) {
+            return;
+        }
+
+        long applyStart = SystemClock.elapsedRealtime();
+        formRelevanciesUpdateInProgress = true;
+        updateWidgetsForPrompts(task.oldWidgets, task.oldSelectChoices, task.oldQuestionTexts,
+                task.newValidPrompts);
         formRelevanciesUpdateInProgress = false;
+        FormNavigationUI.updateNavigationCues(activity, FormEntryActivity.mFormController, questionsView);
+        Log.i(TAG, "Form relevancies took " + task.evaluationTime + "ms to evaluate for " +
+                task.newValidPrompts.length + " questions and " +
+                (SystemClock.elapsedRealtime() - applyStart) + "ms to apply");
+
+        if (formRelevanciesUpdateRequested) {
+            formRelevanciesUpdateRequested = false;
+            if (evaluateRequestedUpdateInBackground) {
+                startFormRelevanciesEvaluation();
+            } else {
+                updateFormRelevancies();
+            }
+        }
+    }
+
+    /**
+     * Saves the answers from a screen to the form and determines which questions should now be
+     * shown, off of the UI thread. The UI thread leaves the form alone until this has been
+     * applied or waited on.
+     */
+    private static class FormRelevanciesEvaluationTask extends AsyncTask<Void, Void, Void> {
+        private final FormEntryActivityUIController controller;
+        private final QuestionsView questionsView;
+        private final HashMap<FormIndex, IAnswerData> answers;
+        private final ArrayList<QuestionWidget> oldWidgets;
+        private final ArrayList<Vector<SelectChoice>> oldSelectChoices;
+        private final ArrayList<String> oldQuestionTexts;
+
+        private FormEntryPrompt[] newValidPrompts;
+        private RuntimeException error;
+        private long evaluationTime;
+
+        FormRelevanciesEvaluationTask(FormEntryActivityUIController controller,
+                                      QuestionsView questionsView,
+                                      HashMap<FormIndex, IAnswerData> answers,
+                                      ArrayList<QuestionWidget> oldWidgets,
+                                      ArrayList<Vector<SelectChoice>> oldSelectChoices,
+                                      ArrayList<String> oldQuestionTexts) {
+            this.controller = controller;
+            this.questionsView = questionsView;
+            this.answers = answers;
+            this.oldWidgets = oldWidgets;
+            this.oldSelectChoices = oldSelectChoices;
+            this.oldQuestionTexts = oldQuestionTexts;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                List<FormIndex> indexKeys = new ArrayList<>(answers.keySet());
+                Collections.sort(indexKeys, FormIndex::compareTo);
+                for (FormIndex index : indexKeys) {
+                    // Within a group, you can only save for question events
+                    if (FormEntryActivity.mFormController.getEvent(index) == FormEntryController.EVENT_QUESTION) {
+                        FormEntryActivity.mFormController.saveAnswer(index, answers.get(index));
+                    }
+                }
+                newValidPrompts = FormEntryActivity.mFormController.getQuestionPrompts();
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            evaluationTime = SystemClock.elapsedRealtime() - start;
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            controller.applyFormRelevanciesEvaluation(this, true);
+        }
     }
 }
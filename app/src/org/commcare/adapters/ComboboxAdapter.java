@@ -14,26 +14,32 @@ import org.javarosa.core.model.FuzzyMatchFilterRule;
 import org.javarosa.core.model.MultiWordFilterRule;
 import org.javarosa.core.model.StandardFilterRule;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * A custom adapter for use by a Combobox view. The filtering behavior of this adapter is determined
  * by the implementation of choiceShouldBeShown() in its ComboboxFilterRule, which defines whether
  * a given answer choice should be considered a match for the text entered by the user.
  *
+ * For the rules that match the entered words against the starts of a choice's words, the choices
+ * are first narrowed down with a ComboboxChoiceIndex, so that lists with many thousands of choices
+ * don't have to be scanned in full on every keystroke.
+ *
  * @author Aliza Stone
  */
 public class ComboboxAdapter extends ArrayAdapter<String> {
 
     private float customTextSize;
     protected final String[] allChoices;
-    protected String[] currentChoices;
+    // Positions in allChoices of the choices currently shown, or null if all of them are
+    private int[] currentChoices;
     protected ComboboxFilterRule filterRule;
+    private ComboboxChoiceIndex choiceIndex;
 
     public ComboboxAdapter(final Context context, final String[] objects,
                            ComboboxFilterRule filterRule) {
         super(context, R.layout.custom_spinner_item, objects);
-        allChoices = currentChoices = objects;
+        allChoices = objects;
         this.customTextSize = -1;
         this.filterRule = filterRule;
     }
@@ -44,14 +50,72 @@ public class ComboboxAdapter extends ArrayAdapter<String> {
      * there being at least 1 answer option in the dropdown list when this string is entered.
      */
     public boolean isValidUserEntry(String enteredText) {
-        for (String choice : allChoices) {
-            if (filterRule.choiceShouldBeShown(choice, enteredText)) {
-                return true;
+        int[] candidates = getCandidateChoices(enteredText);
+        if (candidates == null) {
+            for (String choice : allChoices) {
+                if (filterRule.choiceShouldBeShown(choice, enteredText)) {
+                    return true;
+                }
+            }
+        } else {
+            for (int candidate : candidates) {
+                if (filterRule.choiceShouldBeShown(allChoices[candidate], enteredText)) {
+                    return true;
+                }
             }
         }
         return false;
     }
 
+    /**
+     * @return Positions of the only choices that could match the entered text, or null if every
+     * choice needs to be checked against the filter rule
+     */
+    private int[] getCandidateChoices(CharSequence enteredText) {
+        if (enteredText == null || !isIndexableFilterRule()) {
+            return null;
+        }
+        return getChoiceIndex().getCandidates(enteredText);
+    }
+
+    /**
+     * Fuzzy matching can show choices that share no words with the entered text, so only the
+     * rules that strictly match the starts of words can be narrowed down by the index
+     */
+    private boolean isIndexableFilterRule() {
+        return filterRule.getClass() == StandardFilterRule.class ||
+                filterRule.getClass() == MultiWordFilterRule.class;
+    }
+
+    /**
+     * Built the first time it is needed, which may be on the filtering thread
+     */
+    private synchronized ComboboxChoiceIndex getChoiceIndex() {
+        if (choiceIndex == null) {
+            choiceIndex = new ComboboxChoiceIndex(allChoices);
+        }
+        return choiceIndex;
+    }
+
+    /**
+     * @return Positions, in ascending order, of the choices the filter rule shows for the
+     * entered text. Only positions are collected, the rows themselves are made as the list
+     * scrolls.
+     */
+    int[] getMatchingChoices(CharSequence enteredText) {
+        int[] candidates = getCandidateChoices(enteredText);
+        int candidateCount = candidates == null ? allChoices.length : candidates.length;
+        int[] matched = new int[candidateCount];
+        int matchCount = 0;
+        for (int i = 0; i < candidateCount; i++) {
+            int position = candidates == null ? i : candidates[i];
+            if (filterRule.choiceShouldBeShown(allChoices[position], enteredText)) {
+                matched[matchCount++] = position;
+            }
+        }
+        return Arrays.copyOf(matched, matchCount);
+    }
+
     public boolean shouldRestrictTyping() {
         return filterRule.shouldRestrictTyping();
     }
@@ -73,12 +137,12 @@ public class ComboboxAdapter extends ArrayAdapter<String> {
 
     @Override
     public int getCount() {
-        return currentChoices.length;
+        return currentChoices == null ? allChoices.length : currentChoices.length;
     }
 
     @Override
     public String getItem(int position) {
-        return currentChoices[position];
+        return currentChoices == null ? allChoices[position] : allChoices[currentChoices[position]];
     }
 
     @Override
@@ -86,22 +150,22 @@ public class ComboboxAdapter extends ArrayAdapter<String> {
         return new Filter() {
             @Override
             protected FilterResults performFiltering(CharSequence constraint) {
-                ArrayList<String> matched = new ArrayList<>();
-                for (String choice : allChoices) {
-                    if (constraint == null || filterRule.choiceShouldBeShown(choice, constraint)) {
-                        matched.add(choice);
-                    }
+                FilterResults results = new FilterResults();
+                if (constraint == null) {
+                    results.values = null;
+                    results.count = allChoices.length;
+                    return results;
                 }
 
-                FilterResults results = new FilterResults();
-                results.values = matched.toArray(new String[]{});
-                results.count = matched.size();
+                int[] matched = getMatchingChoices(constraint);
+                results.values = matched;
+                results.count = matched.length;
                 return results;
             }
 
             @Override
             protected void publishResults(CharSequence constraint, FilterResults results) {
-                currentChoices = (String[]) results.values;
+                currentChoices = (int[]) results.values;
                 if (results.count > 0) {
                     notifyDataSetChanged();
                 } else {
@@ -0,0 +1,122 @@
+package org.commcare.adapters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Index over the text of a combobox's answer choices, used to narrow down which choices can
+ * match the text entered by the user without checking every choice against the filter rule.
+ *
+ * Each choice is lower-cased and split into words, and the words of all choices are kept in a
+ * single sorted array, so the choices with a word starting with some text are found with a
+ * binary search. For filter rules that match entered words against the starts of a choice's
+ * words, a choice can only be shown if every entered word starts one of its words, so only
+ * those choices need to be checked against the rule.
+ */
+public class ComboboxChoiceIndex {
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final int choiceCount;
+    // Every word of every choice in sorted order, alongside the choice each word came from
+    private final String[] words;
+    private final int[] wordChoices;
+
+    public ComboboxChoiceIndex(String[] choices) {
+        choiceCount = choices.length;
+
+        List<IndexedWord> indexedWords = new ArrayList<>();
+        for (int i = 0; i < choices.length; i++) {
+            for (String word : splitWords(choices[i])) {
+                indexedWords.add(new IndexedWord(word, i));
+            }
+        }
+        IndexedWord[] sortedWords = indexedWords.toArray(new IndexedWord[0]);
+        Arrays.sort(sortedWords, (a, b) -> a.word.compareTo(b.word));
+
+        words = new String[sortedWords.length];
+        wordChoices = new int[sortedWords.length];
+        for (int i = 0; i < sortedWords.length; i++) {
+            words[i] = sortedWords[i].word;
+            wordChoices[i] = sortedWords[i].choice;
+        }
+    }
+
+    /**
+     * @param enteredText The text entered by the user
+     * @return The positions, in ascending order, of the choices in which every word of the
+     * entered text starts some word, or null if the entered text has no words to go by
+     */
+    public int[] getCandidates(CharSequence enteredText) {
+        String[] enteredWords = splitWords(enteredText.toString());
+        if (enteredWords.length == 0) {
+            return null;
+        }
+
+        BitSet candidates = null;
+        for (String enteredWord : enteredWords) {
+            BitSet choicesWithWord = getChoicesWithWordStartingWith(enteredWord);
+            if (candidates == null) {
+                candidates = choicesWithWord;
+            } else {
+                candidates.and(choicesWithWord);
+            }
+            if (candidates.isEmpty()) {
+                break;
+            }
+        }
+
+        int[] candidatePositions = new int[candidates.cardinality()];
+        int count = 0;
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            candidatePositions[count++] = i;
+        }
+        return candidatePositions;
+    }
+
+    private BitSet getChoicesWithWordStartingWith(String prefix) {
+        BitSet choices = new BitSet(choiceCount);
+        for (int i = getFirstWordNotBefore(prefix); i < words.length && words[i].startsWith(prefix); i++) {
+            choices.set(wordChoices[i]);
+        }
+        return choices;
+    }
+
+    /**
+     * @return The position of the first word in the sorted words that isn't ordered before the
+     * given text, which is where any words starting with that text begin
+     */
+    private int getFirstWordNotBefore(String text) {
+        int low = 0;
+        int high = words.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (words[mid].compareTo(text) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static String[] splitWords(String text) {
+        String trimmed = text.toLowerCase().trim();
+        if (trimmed.isEmpty()) {
+            return new String[0];
+        }
+        return WHITESPACE.split(trimmed);
+    }
+
+    private static class IndexedWord {
+        final String word;
+        final int choice;
+
+        IndexedWord(String word, int choice) {
+            this.word = word;
+            this.choice = choice;
+        }
+    }
+}
@@ -67,7 +67,7 @@ public class EntityStringFilterer extends EntityFiltererBase {
     }
 
     private Entity<TreeReference> getEntityAtIndex(SQLiteDatabase db, int index) {
-        if (index % 500 == 0) {
+        if (db != null && index % 500 == 0) {
             db.yieldIfContendedSafely();
         }
         Entity<TreeReference> e = fullEntityList.get(index);
@@ -79,27 +79,41 @@ public class EntityStringFilterer extends EntityFiltererBase {
 
     private void buildMatchList() {
         Locale currentLocale = Locale.getDefault();
-        //It's a bit sketchy here, because this DB lock will prevent
-        //anything else from processing
         SQLiteDatabase db;
+        boolean hasReadPool;
         try {
             db = CommCareApplication.instance().getUserDbHandle();
+            hasReadPool = CommCareApplication.instance().getSession().hasUserDbReadPool();
         } catch (SessionUnavailableException e) {
             this.cancelSearch();
             return;
         }
+
+        if (hasReadPool) {
+            // Reads are served by pooled read-only connections, so there's no need to hold
+            // the main handle (and block any sync writing to it) while sorting
+            sortEntities(currentLocale, index -> getEntityAtIndex(null, index));
+            return;
+        }
+
+        //It's a bit sketchy here, because this DB lock will prevent
+        //anything else from processing
         db.beginTransaction();
         try {
-            EntitySortUtil.sortEntities(fullEntityList,
-                    searchTerms,
-                    currentLocale,
-                    isFuzzySearchEnabled,
-                    matchScores,
-                    matchList,
-                    index -> getEntityAtIndex(db, index));
+            sortEntities(currentLocale, index -> getEntityAtIndex(db, index));
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
     }
+
+    private void sortEntities(Locale currentLocale, EntityProvider entityProvider) {
+        EntitySortUtil.sortEntities(fullEntityList,
+                searchTerms,
+                currentLocale,
+                isFuzzySearchEnabled,
+                matchScores,
+                matchList,
+                entityProvider);
+    }
 }
@@ -32,6 +32,9 @@ public class FormDefRecord extends Persisted {
     public static final String META_MODEL_VERSION = "modelVersion";
     public static final String META_UI_VERSION = "uiVersion";
 
+    // md5 of the form's xml, used to look up the serialized form without re-reading the xml
+    public static final String META_FORM_HASH = "formHash";
+
     @Persisting(1)
     @MetaField(META_DISPLAY_NAME)
     private String mDisplayName;
@@ -56,6 +59,10 @@ public class FormDefRecord extends Persisted {
     @MetaField(META_UI_VERSION)
     private int mUiVersion = -1;
 
+    @Persisting(value = 7, nullable = true)
+    @MetaField(META_FORM_HASH)
+    private String mFormHash;
+
     //    Serialization Only!
     public FormDefRecord() {
     }
@@ -78,6 +85,19 @@ public class FormDefRecord extends Persisted {
         mFormFilePath = cursor.getString(cursor.getColumnIndex(FormsProviderAPI.FormsColumns.FORM_FILE_PATH));
     }
 
+    public static FormDefRecord fromOldVersion(FormDefRecordV12 oldRecord) {
+        FormDefRecord newRecord = new FormDefRecord(
+                oldRecord.getDisplayname(),
+                oldRecord.getJrFormId(),
+                oldRecord.getFilePath(),
+                oldRecord.getMediaPath());
+        newRecord.mModelVersion = oldRecord.getModelVersion();
+        newRecord.mUiVersion = oldRecord.getUiVersion();
+        newRecord.computeFormHash();
+        newRecord.setID(oldRecord.getID());
+        return newRecord;
+    }
+
     public static Vector<Integer> getFormDefIdsByJrFormId(SqlStorage<FormDefRecord> formDefRecordStorage, String jrFormId) {
         return formDefRecordStorage.getIDsForValue(META_JR_FORM_ID, jrFormId);
     }
@@ -103,6 +123,7 @@ public class FormDefRecord extends Persisted {
             mFormMediaPath = getMediaPath(mFormFilePath);
         }
 
+        computeFormHash();
         formDefRecordStorage.write(this);
 
         if (recordId == -1) {
@@ -140,6 +161,37 @@ public class FormDefRecord extends Persisted {
         // Set new values now
         mFormFilePath = newFilePath;
         mFormMediaPath = getMediaPath(newFilePath);
+        computeFormHash();
+        formDefRecordStorage.write(this);
+    }
+
+    private void computeFormHash() {
+        File formFile = new File(mFormFilePath);
+        mFormHash = formFile.exists() ? FileUtil.getMd5Hash(formFile) : null;
+    }
+
+    /**
+     * @return The md5 hash of the form's xml file. For records that predate hashes being
+     * recorded at install time, the hash is computed from the file but not stored; see
+     * recordFormHash.
+     */
+    public String getFormHash() {
+        if (mFormHash != null) {
+            return mFormHash;
+        }
+        File formFile = new File(mFormFilePath);
+        return formFile.exists() ? FileUtil.getMd5Hash(formFile) : null;
+    }
+
+    public boolean isFormHashRecorded() {
+        return mFormHash != null;
+    }
+
+    /**
+     * Store a hash computed by getFormHash, so that it doesn't need to be computed again
+     */
+    public void recordFormHash(SqlStorage<FormDefRecord> formDefRecordStorage, String formHash) {
+        mFormHash = formHash;
         formDefRecordStorage.write(this);
     }
 
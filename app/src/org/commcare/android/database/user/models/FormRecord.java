@@ -321,18 +321,27 @@ public class FormRecord extends Persisted implements EncryptedModel {
 
     public void updateStatus(SqlStorage<FormRecord> formRecordStorage,
                              @FormRecordStatus String status) {
+        updateStatus(formRecordStorage, status, null);
+    }
+
+    /**
+     * @param instanceXml The plain contents of the full form instance, if already at hand,
+     *                    to read and process instead of decrypting the record's file
+     */
+    public void updateStatus(SqlStorage<FormRecord> formRecordStorage,
+                             @FormRecordStatus String status, byte[] instanceXml) {
         if (!this.status.equals(FormRecord.STATUS_COMPLETE) && status.equals(FormRecord.STATUS_COMPLETE)) {
             setFormNumberForSubmissionOrdering(StorageUtils.getNextFormSubmissionNumber());
         }
         this.status = status;
         lastModified = new Date();
         formRecordStorage.update(getID(), this);
-        finalizeRecord();
+        finalizeRecord(instanceXml);
     }
 
-    private void finalizeRecord() {
+    private void finalizeRecord(byte[] instanceXml) {
         try {
-            updateAndProcessRecord();
+            updateAndProcessRecord(instanceXml);
         } catch (IllegalStateException e) {
             throw e;
         } catch (Exception e) {
@@ -345,10 +354,10 @@ public class FormRecord extends Persisted implements EncryptedModel {
     /**
      * Register an instance with the session's form record.
      */
-    private void updateAndProcessRecord() {
+    private void updateAndProcessRecord(byte[] instanceXml) {
         FormRecord current;
         try {
-            current = updateAndWriteRecord();
+            current = updateAndWriteRecord(instanceXml);
         } catch (Exception e) {
             // Something went wrong with all of the connections which should exist.
             logPendingDeletion(TAG, "something went wrong trying to update the record for the current session");
@@ -378,7 +387,7 @@ public class FormRecord extends Persisted implements EncryptedModel {
                 SQLiteDatabase userDb = CommCareApplication.instance().getUserDbHandle();
                 userDb.beginTransaction();
                 try {
-                    new FormRecordProcessor(CommCareApplication.instance()).process(current);
+                    new FormRecordProcessor(CommCareApplication.instance()).process(current, instanceXml);
                     userDb.setTransactionSuccessful();
                 } catch (InvalidStructureException e) {
                     // Record will be wiped when form entry is exited
@@ -404,11 +413,11 @@ public class FormRecord extends Persisted implements EncryptedModel {
      *
      * @return The updated form record, which has been written to storage.
      */
-    private FormRecord updateAndWriteRecord()
+    private FormRecord updateAndWriteRecord(byte[] instanceXml)
             throws InvalidStateException {
         try {
             return FormRecordCleanupTask.updateAndWriteRecord(CommCareApplication.instance(),
-                    this, CommCareApplication.instance().getUserStorage(FormRecord.class));
+                    this, CommCareApplication.instance().getUserStorage(FormRecord.class), instanceXml);
         } catch (InvalidStructureException e1) {
             e1.printStackTrace();
             throw new InvalidStateException("Invalid data structure found while parsing form. There's something wrong with the application structure, please contact your supervisor.");
@@ -5,6 +5,10 @@ import android.support.v4.util.Pair;
 import org.commcare.CommCareApp;
 import org.commcare.CommCareApplication;
 import org.commcare.dalvik.R;
+import org.commcare.engine.references.JavaHttpReference;
+import org.commcare.engine.resource.AndroidResourceTable;
+import org.commcare.engine.resource.MediaBlobStore;
+import org.commcare.engine.resource.ResourceDownloadScheduler;
 import org.commcare.engine.resource.installers.LocalStorageUnavailableException;
 import org.commcare.resources.model.MissingMediaException;
 import org.commcare.resources.model.Resource;
@@ -86,24 +90,34 @@ abstract class FileSystemInstaller implements ResourceInstaller<AndroidCommCareP
                            AndroidCommCarePlatform platform, boolean upgrade, boolean recovery)
             throws UnresolvedResourceException, UnfullfilledRequirementsException {
         try {
-            InputStream inputFileStream;
+            InputStream inputFileStream = null;
+            File downloadedFile = null;
+            ResourceDownloadScheduler downloadScheduler = getDownloadScheduler(ref, table, platform);
             try {
-                inputFileStream = ref.getStream();
+                if (downloadScheduler != null) {
+                    ResourceTable master = table == platform.getGlobalResourceTable() ? null : platform.getGlobalResourceTable();
+                    downloadScheduler.prefetchSiblings(r, table, master);
+                    downloadedFile = downloadScheduler.fetch((JavaHttpReference)ref, isSharedMedia());
+                } else {
+                    inputFileStream = ref.getStream();
+                }
             } catch (FileNotFoundException e) {
                 // Means the reference wasn't valid so let it keep iterating through options.
                 throw new UnresolvedResourceException(r,
                         StringUtils.getStringRobust(CommCareApplication.instance(), R.string.install_error_file_not_found, r.getDescriptor()), true);
             }
 
-            File tempFile = new File(CommCareApplication.instance().getTempFilePath());
+            File tempFile = downloadedFile != null ? downloadedFile : new File(CommCareApplication.instance().getTempFilePath());
             Reference localReference;
-            OutputStream outputFileStream;
+            OutputStream outputFileStream = null;
             try {
                 Pair<String, String> fileNameAndExt = getResourceName(r, location);
                 String referenceRoot = upgrade ? upgradeDestination : localDestination;
                 localReference = getEmptyLocalReference(referenceRoot, fileNameAndExt.first, fileNameAndExt.second);
 
-                outputFileStream = new FileOutputStream(tempFile);
+                if (inputFileStream != null) {
+                    outputFileStream = new FileOutputStream(tempFile);
+                }
 
                 //Get the actual local file we'll be putting the data into
                 localLocation = localReference.getURI();
@@ -113,9 +127,20 @@ abstract class FileSystemInstaller implements ResourceInstaller<AndroidCommCareP
                 throw new LocalStorageUnavailableException("Couldn't write to local reference " + localLocation + " for file system installation", localLocation);
             }
 
-            StreamsUtil.writeFromInputToOutputNew(inputFileStream, outputFileStream);
+            if (inputFileStream != null) {
+                StreamsUtil.writeFromInputToOutputNew(inputFileStream, outputFileStream);
+                if (isSharedMedia() && platform.getApp() != null) {
+                    MediaBlobStore blobStore = MediaBlobStore.getStore(platform.getApp());
+                    if (blobStore != null) {
+                        blobStore.addBlob(tempFile);
+                    }
+                }
+            }
 
             renameFile(localReference.getLocalURI(), tempFile);
+            if (downloadedFile != null) {
+                downloadScheduler.release((JavaHttpReference)ref);
+            }
 
             //TODO: Sketch - if this fails, we'll still have the file at that location.
             int status = customInstall(r, localReference, upgrade, platform);
@@ -148,6 +173,19 @@ abstract class FileSystemInstaller implements ResourceInstaller<AndroidCommCareP
         }
     }
 
+    /**
+     * @return The scheduler to fetch the resource's file through, if it is coming from the
+     * network, or null if it should be read straight from its reference
+     */
+    private static ResourceDownloadScheduler getDownloadScheduler(Reference ref, ResourceTable table,
+                                                                  AndroidCommCarePlatform platform) {
+        if (ref instanceof JavaHttpReference && table instanceof AndroidResourceTable &&
+                platform.getApp() != null) {
+            return ((AndroidResourceTable)table).getDownloadScheduler(platform.getApp());
+        }
+        return null;
+    }
+
     private void renameFile(String newFilename, File currentFile) throws LocalStorageUnavailableException {
         File destination = new File(newFilename);
         FileUtil.ensureFilePathExists(destination);
@@ -167,6 +205,14 @@ abstract class FileSystemInstaller implements ResourceInstaller<AndroidCommCareP
         return r;
     }
 
+    /**
+     * @return Whether identical copies of this resource's file across app versions should share
+     * storage through the app's media store
+     */
+    protected boolean isSharedMedia() {
+        return false;
+    }
+
     /**
      * Perform any custom installation actions required for this resource.
      */
@@ -53,6 +53,11 @@ public class MediaFileAndroidInstaller extends FileSystemInstaller {
         return upgrade ? Resource.RESOURCE_STATUS_UPGRADE : Resource.RESOURCE_STATUS_INSTALLED;
     }
 
+    @Override
+    protected boolean isSharedMedia() {
+        return true;
+    }
+
     @Override
     public boolean requiresRuntimeInitialization() {
         return false;
@@ -2,6 +2,7 @@ package org.commcare.android.resource.installers;
 
 import android.util.Log;
 
+import org.commcare.logic.SuiteCache;
 import org.commcare.resources.model.InvalidResourceException;
 import org.commcare.resources.model.MissingMediaException;
 import org.commcare.resources.model.Resource;
@@ -30,6 +31,7 @@ import org.javarosa.xpath.XPathException;
 import org.jsoup.helper.StringUtil;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Enumeration;
@@ -61,6 +63,15 @@ public class SuiteAndroidInstaller extends FileSystemInstaller {
                 throw new RuntimeException("Error initializing the suite, its file location is null!");
             }
             Reference local = ReferenceManager.instance().DeriveReference(localLocation);
+            File suiteFile = new File(local.getLocalURI());
+            if (!isUpgrade) {
+                // Skip the xml parse if we've already got this exact suite on hand
+                Suite cachedSuite = SuiteCache.loadSuite(platform.getApp(), suiteFile);
+                if (cachedSuite != null) {
+                    platform.registerSuite(cachedSuite);
+                    return true;
+                }
+            }
             inputStream = local.getStream();
             SuiteParser parser;
             if (isUpgrade) {
@@ -70,6 +81,9 @@ public class SuiteAndroidInstaller extends FileSystemInstaller {
             }
             Suite s = parser.parse();
             platform.registerSuite(s);
+            if (!isUpgrade) {
+                SuiteCache.storeSuite(platform.getApp(), s, suiteFile);
+            }
             return true;
         } finally {
             try {
@@ -92,7 +106,10 @@ public class SuiteAndroidInstaller extends FileSystemInstaller {
         try {
             Reference local = ReferenceManager.instance().DeriveReference(localLocation);
             inputStream = local.getStream();
-            AndroidSuiteParser.buildInstallParser(inputStream, table, r.getRecordGuid(), platform.getFixtureStorage()).parse();
+            Suite suite = AndroidSuiteParser.buildInstallParser(inputStream, table, r.getRecordGuid(), platform.getFixtureStorage()).parse();
+
+            // We already paid for parsing the suite, so save app startup from having to do the same
+            SuiteCache.storeSuite(platform.getApp(), suite, new File(local.getLocalURI()));
 
             table.commitCompoundResource(r, upgrade ? Resource.RESOURCE_STATUS_UPGRADE : Resource.RESOURCE_STATUS_INSTALLED);
             return true;
@@ -119,6 +136,17 @@ public class SuiteAndroidInstaller extends FileSystemInstaller {
         return Resource.RESOURCE_STATUS_LOCAL;
     }
 
+    @Override
+    public boolean uninstall(Resource r, AndroidCommCarePlatform platform) throws UnresolvedResourceException {
+        try {
+            Reference local = ReferenceManager.instance().DeriveReference(localLocation);
+            SuiteCache.removeSuite(platform.getApp(), new File(local.getLocalURI()));
+        } catch (InvalidReferenceException e) {
+            // the superclass reports this
+        }
+        return super.uninstall(r, platform);
+    }
+
     @Override
     public boolean requiresRuntimeInitialization() {
         return true;
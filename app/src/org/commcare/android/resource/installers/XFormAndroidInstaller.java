@@ -8,6 +8,7 @@ import org.commcare.android.javarosa.PollSensorAction;
 import org.commcare.engine.extensions.IntentExtensionParser;
 import org.commcare.engine.extensions.PollSensorExtensionParser;
 import org.commcare.engine.extensions.XFormExtensionUtils;
+import org.commcare.logic.FormDefCache;
 import org.commcare.resources.model.MissingMediaException;
 import org.commcare.resources.model.Resource;
 import org.commcare.resources.model.ResourceTable;
@@ -110,6 +111,9 @@ public class XFormAndroidInstaller extends FileSystemInstaller {
             formDefId = formDefRecord.save(platform.getFormDefStorage());
         }
 
+        // We already paid for parsing the form, so save opening it from having to do the same
+        FormDefCache.precompile(formDef, new File(local.getLocalURI()));
+
         return upgrade ? Resource.RESOURCE_STATUS_UPGRADE : Resource.RESOURCE_STATUS_INSTALLED;
     }
 
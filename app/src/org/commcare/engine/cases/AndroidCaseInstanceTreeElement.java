@@ -3,6 +3,7 @@ package org.commcare.engine.cases;
 import android.util.Log;
 
 import org.commcare.android.database.user.models.ACase;
+import org.commcare.cases.instance.CaseChildElement;
 import org.commcare.cases.instance.CaseInstanceTreeElement;
 import org.commcare.cases.model.Case;
 import org.commcare.cases.query.IndexedSetMemberLookup;
@@ -14,6 +15,7 @@ import org.commcare.cases.query.handlers.ModelQueryLookupHandler;
 import org.commcare.cases.query.queryset.CaseModelQuerySetMatcher;
 import org.commcare.models.database.SqlStorage;
 import org.commcare.models.database.user.models.AndroidCaseIndexTable;
+import org.commcare.models.database.user.models.AndroidCasePropertyTable;
 import org.commcare.modern.engine.cases.RecordSetResultCache;
 import org.commcare.modern.engine.cases.CaseIndexQuerySetTransform;
 import org.commcare.modern.engine.cases.RecordObjectCache;
@@ -24,13 +26,20 @@ import org.javarosa.core.model.instance.AbstractTreeElement;
 import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.trace.EvaluationTrace;
 import org.javarosa.core.model.utils.CacheHost;
-import org.javarosa.core.services.storage.IStorageIterator;
 import org.javarosa.core.services.storage.IStorageUtilityIndexed;
-import org.javarosa.core.util.DataUtil;
 
+import java.util.AbstractList;
+import java.util.AbstractMap;
 import java.util.Collection;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
 /**
@@ -40,20 +49,31 @@ public class AndroidCaseInstanceTreeElement extends CaseInstanceTreeElement impl
     private static final String TAG = AndroidCaseInstanceTreeElement.class.getSimpleName();
 
     private final AndroidCaseIndexTable mCaseIndexTable;
+    private final AndroidCasePropertyTable mCasePropertyTable;
 
-    private final Hashtable<Integer, Integer> multiplicityIdMapping = new Hashtable<>();
-
-    private Hashtable<String, LinkedHashSet<Integer>> mIndexCache = new Hashtable<>();
+    private CaseIdMapping caseIdMapping;
+    private final Map<Integer, Integer> multiplicityIdMapping = new MultiplicityIdMap();
 
 
     public AndroidCaseInstanceTreeElement(AbstractTreeElement instanceRoot, SqlStorage<ACase> storage) {
-        this(instanceRoot, storage, new AndroidCaseIndexTable());
+        this(instanceRoot, storage, new AndroidCaseIndexTable(), new AndroidCasePropertyTable());
     }
 
     public AndroidCaseInstanceTreeElement(AbstractTreeElement instanceRoot, SqlStorage<ACase> storage,
                                           AndroidCaseIndexTable caseIndexTable) {
+        this(instanceRoot, storage, caseIndexTable, null);
+    }
+
+    /**
+     * @param casePropertyTable Used to answer predicates on projected case properties. May be
+     *                          null, in which case those predicates are evaluated case by case.
+     */
+    public AndroidCaseInstanceTreeElement(AbstractTreeElement instanceRoot, SqlStorage<ACase> storage,
+                                          AndroidCaseIndexTable caseIndexTable,
+                                          AndroidCasePropertyTable casePropertyTable) {
         super(instanceRoot, storage);
         mCaseIndexTable = caseIndexTable;
+        mCasePropertyTable = casePropertyTable;
     }
 
     @Override
@@ -63,6 +83,9 @@ public class AndroidCaseInstanceTreeElement extends CaseInstanceTreeElement impl
         CaseModelQuerySetMatcher matcher = new CaseModelQuerySetMatcher(multiplicityIdMapping);
         matcher.addQuerySetTransform(new CaseIndexQuerySetTransform(mCaseIndexTable));
         queryPlanner.addQueryHandler(new ModelQueryLookupHandler(matcher));
+        if (mCasePropertyTable != null) {
+            queryPlanner.addQueryHandler(new CasePropertyQueryHandler(mCasePropertyTable, getStorageIndexMap()));
+        }
     }
 
 
@@ -75,21 +98,39 @@ public class AndroidCaseInstanceTreeElement extends CaseInstanceTreeElement impl
         //Note: This behavior is now replicated in the core storage instance tree element.
         //We still need all of our private accessors to bootstrap optimizations, though,
         //so "internalizing" this is a piece of technical debt that'll take a bit of caution/care
-        elements = new Vector<>();
+        //
+        //The id mapping is shared with other casedb instances for as long as storage doesn't
+        //change, and child elements are only built once something asks for them.
         Log.d(TAG, "Getting Cases!");
         long timeInMillis = System.currentTimeMillis();
 
-        int mult = 0;
+        caseIdMapping = CaseIdMapping.getMapping((SqlStorage<ACase>)storage);
+        elements = new LazyCaseChildElements(caseIdMapping.size());
 
-        for (IStorageIterator i = ((SqlStorage<ACase>)storage).iterate(false); i.hasMore(); ) {
-            int id = i.nextID();
-            elements.add(buildElement(this, id, null, mult));
-            objectIdMapping.put(DataUtil.integer(id), DataUtil.integer(mult));
-            multiplicityIdMapping.put(DataUtil.integer(mult), DataUtil.integer(id));
-            mult++;
-        }
         long value = System.currentTimeMillis() - timeInMillis;
-        Log.d(TAG, "Case iterate took: " + value + "ms");
+        Log.d(TAG, "Case id mapping took: " + value + "ms");
+    }
+
+    /**
+     * Resolves the record ids a batch fetch matched straight through the case id mapping, so
+     * the core's boxed record id -> multiplicity table is never built for cases.
+     */
+    @Override
+    protected Collection<TreeReference> buildReferencesFromFetchResults(Collection<Integer> selectedElements) {
+        loadElements();
+        TreeReference base = this.getRef();
+        Vector<TreeReference> filtered = new Vector<>();
+        for (Integer recordId : selectedElements) {
+            int mult = caseIdMapping.getMultiplicity(recordId);
+            if (mult == -1) {
+                // Written after this instance's mapping was taken, so it isn't one of its children
+                continue;
+            }
+            TreeReference ref = base.clone();
+            ref.add("case", mult);
+            filtered.addElement(ref);
+        }
+        return filtered;
     }
 
     @Override
@@ -123,9 +164,9 @@ public class AndroidCaseInstanceTreeElement extends CaseInstanceTreeElement impl
 
 
     private LinkedHashSet<Integer> performCaseIndexQuery(String firstKey, Vector<PredicateProfile> optimizations) {
-        //CTS - March 9, 2015 - Introduced a small cache for child index queries here because they
-        //are a frequent target of bulk operations like graphing which do multiple requests across the
-        //same query.
+        //Child index queries are a frequent target of bulk operations like graphing which do
+        //multiple requests across the same query, so their results are cached by the index
+        //table for the rest of the session.
 
         PredicateProfile op = optimizations.elementAt(0);
 
@@ -133,28 +174,11 @@ public class AndroidCaseInstanceTreeElement extends CaseInstanceTreeElement impl
         //returns
         String indexName = firstKey.substring(Case.INDEX_CASE_INDEX_PRE.length());
 
-        String indexCacheKey = null;
-
         LinkedHashSet<Integer> matchingCases = null;
 
         if (op instanceof IndexedValueLookup) {
-
             IndexedValueLookup iop = (IndexedValueLookup)op;
-
-            String value = (String)iop.value;
-
-            //TODO: Evaluate whether our indices could contain "|" but I don't imagine how they could.
-            indexCacheKey = indexName + "|" + value;
-
-            //Check whether we've got a cache of this index.
-            if (mIndexCache.containsKey(indexCacheKey)) {
-                //remove the match from the inputs
-                optimizations.removeElementAt(0);
-                ;
-                return mIndexCache.get(indexCacheKey);
-            }
-
-            matchingCases = mCaseIndexTable.getCasesMatchingIndex(indexName, value);
+            matchingCases = mCaseIndexTable.getCasesMatchingIndex(indexName, (String)iop.value);
         }
         if (op instanceof IndexedSetMemberLookup) {
             IndexedSetMemberLookup sop = (IndexedSetMemberLookup)op;
@@ -168,20 +192,6 @@ public class AndroidCaseInstanceTreeElement extends CaseInstanceTreeElement impl
         //remove the match from the inputs
         optimizations.removeElementAt(0);
 
-        if (indexCacheKey != null) {
-            //For now we're only going to run this on very small data sets because we don't
-            //want to manage this too explicitly until we generalize. Almost all results here
-            //will be very very small either way (~O(10's of cases)), so given that this only
-            //exists across one session that won't get out of hand
-            if (matchingCases.size() < 50) {
-                //Should never hit this, but don't wanna have any runaway memory if we do.
-                if (mIndexCache.size() > 100) {
-                    mIndexCache.clear();
-                }
-
-                mIndexCache.put(indexCacheKey, matchingCases);
-            }
-        }
         return matchingCases;
     }
 
@@ -194,13 +204,8 @@ public class AndroidCaseInstanceTreeElement extends CaseInstanceTreeElement impl
 
         //Testing - Don't bother actually seeing whether this fits
         int i = ref.getMultiplicity(1);
-        if (i != -1) {
-            Integer val = this.multiplicityIdMapping.get(DataUtil.integer(i));
-            if (val == null) {
-                return null;
-            } else {
-                return val.toString();
-            }
+        if (i >= 0 && i < caseIdMapping.size()) {
+            return String.valueOf(caseIdMapping.getRecordId(i));
         }
         return null;
     }
@@ -236,4 +241,144 @@ public class AndroidCaseInstanceTreeElement extends CaseInstanceTreeElement impl
     public String[][] getCachePrimeGuess() {
         return mMostRecentBatchFetch;
     }
+
+    /**
+     * Child elements for the cases in storage, each of which is only built the first time
+     * it's accessed.
+     *
+     * The core tree element holds its children in a Vector, so this has to be one. A lighter
+     * view isn't possible without changing that field's type in the core, so instead only the
+     * read accessors are served, from the lazily filled array and an AbstractList view of it.
+     * Nothing modifies the children once they're loaded (the core replaces the whole list
+     * when it reloads), so Vector's mutators and its rarer storage-specific accessors are left
+     * as they are and act on the vector's own, always empty, storage.
+     */
+    private class LazyCaseChildElements extends Vector<CaseChildElement> {
+        private final CaseChildElement[] children;
+        private final List<CaseChildElement> view = new AbstractList<CaseChildElement>() {
+            @Override
+            public CaseChildElement get(int index) {
+                return elementAt(index);
+            }
+
+            @Override
+            public int size() {
+                return children.length;
+            }
+        };
+
+        LazyCaseChildElements(int size) {
+            super(0);
+            children = new CaseChildElement[size];
+        }
+
+        @Override
+        public synchronized int size() {
+            return children.length;
+        }
+
+        @Override
+        public synchronized boolean isEmpty() {
+            return children.length == 0;
+        }
+
+        @Override
+        public synchronized CaseChildElement elementAt(int index) {
+            if (children[index] == null) {
+                children[index] = buildElement(AndroidCaseInstanceTreeElement.this,
+                        caseIdMapping.getRecordId(index), null, index);
+            }
+            return children[index];
+        }
+
+        @Override
+        public CaseChildElement get(int index) {
+            return elementAt(index);
+        }
+
+        @Override
+        public Enumeration<CaseChildElement> elements() {
+            return Collections.enumeration(view);
+        }
+
+        @Override
+        public Iterator<CaseChildElement> iterator() {
+            return view.iterator();
+        }
+
+        @Override
+        public ListIterator<CaseChildElement> listIterator() {
+            return view.listIterator();
+        }
+
+        @Override
+        public ListIterator<CaseChildElement> listIterator(int index) {
+            return view.listIterator(index);
+        }
+
+        @Override
+        public List<CaseChildElement> subList(int fromIndex, int toIndex) {
+            return view.subList(fromIndex, toIndex);
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return view.contains(o);
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            return view.indexOf(o);
+        }
+
+        @Override
+        public Object[] toArray() {
+            return view.toArray();
+        }
+
+        @Override
+        public <T> T[] toArray(T[] a) {
+            return view.toArray(a);
+        }
+    }
+
+    /**
+     * Read-only multiplicity -> record id view over the case id mapping, for the handlers
+     * which need to find the record behind a case reference
+     */
+    private class MultiplicityIdMap extends AbstractMap<Integer, Integer> {
+        @Override
+        public Integer get(Object key) {
+            if (!(key instanceof Integer)) {
+                return null;
+            }
+            loadElements();
+            int mult = (Integer)key;
+            if (mult < 0 || mult >= caseIdMapping.size()) {
+                return null;
+            }
+            return caseIdMapping.getRecordId(mult);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public int size() {
+            loadElements();
+            return caseIdMapping.size();
+        }
+
+        @Override
+        public Set<Entry<Integer, Integer>> entrySet() {
+            loadElements();
+            Set<Entry<Integer, Integer>> entries = new HashSet<>();
+            for (int mult = 0; mult < caseIdMapping.size(); mult++) {
+                entries.add(new SimpleImmutableEntry<>(mult, caseIdMapping.getRecordId(mult)));
+            }
+            return entries;
+        }
+    }
 }
@@ -0,0 +1,78 @@
+package org.commcare.engine.cases;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntIntHashMap;
+
+import org.commcare.android.database.user.models.ACase;
+import org.commcare.models.database.SqlStorage;
+import org.javarosa.core.services.storage.IStorageIterator;
+
+/**
+ * Maps between the multiplicity of each case in the casedb instance and its storage record id,
+ * using primitive collections rather than boxed hashtables.
+ *
+ * Building the mapping means walking every case id, so the most recent mapping is kept around
+ * and handed to every casedb instance opened during the session for as long as the set of case
+ * ids in storage stays the same.
+ */
+public class CaseIdMapping {
+    private static String cachedDbPath;
+    private static CaseIdMapping cachedMapping;
+
+    private final String idSetFingerprint;
+    private final int[] recordIds;
+    private final IntIntHashMap multiplicities;
+
+    private CaseIdMapping(String idSetFingerprint, int[] recordIds) {
+        this.idSetFingerprint = idSetFingerprint;
+        this.recordIds = recordIds;
+        this.multiplicities = new IntIntHashMap(recordIds.length);
+        for (int mult = 0; mult < recordIds.length; mult++) {
+            multiplicities.put(recordIds[mult], mult);
+        }
+    }
+
+    /**
+     * @return The mapping for the cases currently in storage, reusing the cached mapping if
+     * no cases have been added or removed since it was built
+     */
+    public static synchronized CaseIdMapping getMapping(SqlStorage<ACase> storage) {
+        String dbPath = storage.getAccessLock().getPath();
+        String fingerprint = storage.getIdSetFingerprint();
+        if (cachedMapping != null && cachedDbPath.equals(dbPath) &&
+                cachedMapping.idSetFingerprint.equals(fingerprint)) {
+            return cachedMapping;
+        }
+
+        IntArrayList ids = new IntArrayList();
+        for (IStorageIterator i = storage.iterate(false); i.hasMore(); ) {
+            ids.add(i.nextID());
+        }
+        cachedMapping = new CaseIdMapping(fingerprint, ids.toArray());
+        cachedDbPath = dbPath;
+        return cachedMapping;
+    }
+
+    /**
+     * Drop the cached mapping, e.g. when the user session that owns the case storage ends
+     */
+    public static synchronized void clear() {
+        cachedMapping = null;
+        cachedDbPath = null;
+    }
+
+    public int size() {
+        return recordIds.length;
+    }
+
+    public int getRecordId(int multiplicity) {
+        return recordIds[multiplicity];
+    }
+
+    /**
+     * @return The multiplicity of the case with the given record id, or -1 if there isn't one
+     */
+    public int getMultiplicity(int recordId) {
+        return multiplicities.getOrDefault(recordId, -1);
+    }
+}
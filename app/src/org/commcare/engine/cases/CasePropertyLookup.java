@@ -0,0 +1,26 @@
+package org.commcare.engine.cases;
+
+import org.commcare.cases.query.PredicateProfile;
+import org.commcare.models.database.user.models.AndroidCasePropertyTable.CasePropertyCondition;
+
+/**
+ * A predicate on a case property that is projected into the case property table
+ */
+public class CasePropertyLookup implements PredicateProfile {
+    private static final String KEY_PREFIX = "case-property-";
+
+    private final CasePropertyCondition condition;
+
+    public CasePropertyLookup(CasePropertyCondition condition) {
+        this.condition = condition;
+    }
+
+    public CasePropertyCondition getCondition() {
+        return condition;
+    }
+
+    @Override
+    public String getKey() {
+        return KEY_PREFIX + condition.getPropertyName();
+    }
+}
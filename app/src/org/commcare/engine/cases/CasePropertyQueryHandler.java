@@ -0,0 +1,258 @@
+package org.commcare.engine.cases;
+
+import org.commcare.cases.model.Case;
+import org.commcare.cases.query.IndexedValueLookup;
+import org.commcare.cases.query.PredicateProfile;
+import org.commcare.cases.query.QueryContext;
+import org.commcare.cases.query.QueryHandler;
+import org.commcare.models.database.user.models.AndroidCasePropertyTable;
+import org.commcare.models.database.user.models.AndroidCasePropertyTable.CasePropertyCondition;
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.xpath.XPathException;
+import org.javarosa.xpath.expr.FunctionUtils;
+import org.javarosa.xpath.expr.XPathArithExpr;
+import org.javarosa.xpath.expr.XPathBinaryOpExpr;
+import org.javarosa.xpath.expr.XPathCmpExpr;
+import org.javarosa.xpath.expr.XPathEqExpr;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.javarosa.xpath.expr.XPathNumericLiteral;
+import org.javarosa.xpath.expr.XPathPathExpr;
+import org.javarosa.xpath.expr.XPathStep;
+import org.javarosa.xpath.expr.XPathStringLiteral;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Answers equality and range predicates on projected case properties, like
+ * [dob > today()], with a query over the case property table.
+ *
+ * Predicates are only claimed from a leading run that contains at least one projected
+ * property lookup. Plain equality matches on the case's own metadata indices in that run are
+ * passed along as regular indexed lookups so they're still answered by the case table.
+ */
+public class CasePropertyQueryHandler implements QueryHandler<List<CasePropertyLookup>> {
+
+    private final AndroidCasePropertyTable casePropertyTable;
+    private final Hashtable<XPathPathExpr, String> storageIndexMap;
+
+    /**
+     * @param storageIndexMap Maps the expressions for case metadata to their storage indices
+     */
+    public CasePropertyQueryHandler(AndroidCasePropertyTable casePropertyTable,
+                                    Hashtable<XPathPathExpr, String> storageIndexMap) {
+        this.casePropertyTable = casePropertyTable;
+        this.storageIndexMap = storageIndexMap;
+    }
+
+    @Override
+    public int getExpectedRuntime() {
+        return 10;
+    }
+
+    @Override
+    public List<CasePropertyLookup> profileHandledQuerySet(Vector<PredicateProfile> profiles) {
+        List<CasePropertyLookup> lookups = new ArrayList<>();
+        for (PredicateProfile profile : profiles) {
+            if (!(profile instanceof CasePropertyLookup)) {
+                break;
+            }
+            lookups.add((CasePropertyLookup)profile);
+        }
+        return lookups.isEmpty() ? null : lookups;
+    }
+
+    @Override
+    public List<Integer> loadProfileMatches(List<CasePropertyLookup> querySet, QueryContext queryContext) {
+        List<CasePropertyCondition> conditions = new ArrayList<>();
+        for (CasePropertyLookup lookup : querySet) {
+            conditions.add(lookup.getCondition());
+        }
+        return new ArrayList<>(casePropertyTable.getCasesMatching(conditions));
+    }
+
+    @Override
+    public void updateProfiles(List<CasePropertyLookup> querySet, Vector<PredicateProfile> profiles) {
+        profiles.removeAll(querySet);
+    }
+
+    @Override
+    public Collection<PredicateProfile> collectPredicateProfiles(Vector<XPathExpression> predicates,
+                                                                 QueryContext context,
+                                                                 EvaluationContext evaluationContext) {
+        if (predicates == null || casePropertyTable.getIndexedProperties().isEmpty()) {
+            return null;
+        }
+        Vector<PredicateProfile> profiles = new Vector<>();
+        boolean hasPropertyLookup = false;
+        for (XPathExpression predicate : predicates) {
+            PredicateProfile profile = getPropertyLookup(predicate, evaluationContext);
+            if (profile != null) {
+                hasPropertyLookup = true;
+            } else {
+                profile = getMetadataLookup(predicate, evaluationContext);
+            }
+            if (profile == null) {
+                break;
+            }
+            profiles.add(profile);
+        }
+        return hasPropertyLookup ? profiles : null;
+    }
+
+    private CasePropertyLookup getPropertyLookup(XPathExpression predicate, EvaluationContext ec) {
+        if (!(predicate instanceof XPathEqExpr || predicate instanceof XPathCmpExpr)) {
+            return null;
+        }
+        XPathBinaryOpExpr expr = (XPathBinaryOpExpr)predicate;
+        boolean propertyOnLeft = true;
+        String property = getProjectedPropertyName(expr.a);
+        XPathExpression valueExpr = expr.b;
+        if (property == null) {
+            propertyOnLeft = false;
+            property = getProjectedPropertyName(expr.b);
+            valueExpr = expr.a;
+        }
+        if (property == null || !isContextFree(valueExpr)) {
+            return null;
+        }
+        Object value = evaluate(valueExpr, ec);
+        if (value == null) {
+            return null;
+        }
+
+        if (predicate instanceof XPathEqExpr) {
+            if (expr.op != XPathEqExpr.EQ) {
+                return null;
+            }
+            if (value instanceof String) {
+                return new CasePropertyLookup(CasePropertyCondition.stringEquals(property, (String)value));
+            } else if (value instanceof Double) {
+                return new CasePropertyLookup(CasePropertyCondition.numericCompare(property, "=", (Double)value));
+            }
+            // Boolean and date equality follow coercion rules we don't reproduce in SQL
+            return null;
+        }
+
+        String operator = getComparisonOperator(expr.op, propertyOnLeft);
+        if (operator == null) {
+            return null;
+        }
+        return new CasePropertyLookup(CasePropertyCondition.numericCompare(property, operator,
+                FunctionUtils.toNumeric(value)));
+    }
+
+    private IndexedValueLookup getMetadataLookup(XPathExpression predicate, EvaluationContext ec) {
+        if (!(predicate instanceof XPathEqExpr) || ((XPathEqExpr)predicate).op != XPathEqExpr.EQ) {
+            return null;
+        }
+        XPathEqExpr expr = (XPathEqExpr)predicate;
+        if (!(expr.a instanceof XPathPathExpr)) {
+            return null;
+        }
+        String indexName = storageIndexMap.get(expr.a);
+        if (indexName == null || indexName.startsWith(Case.INDEX_CASE_INDEX_PRE) ||
+                !isContextFree(expr.b)) {
+            return null;
+        }
+        Object value = evaluate(expr.b, ec);
+        if (value == null) {
+            return null;
+        }
+        return new IndexedValueLookup(indexName, FunctionUtils.toString(value));
+    }
+
+    private String getProjectedPropertyName(XPathExpression expr) {
+        if (!(expr instanceof XPathPathExpr)) {
+            return null;
+        }
+        XPathPathExpr path = (XPathPathExpr)expr;
+        if (path.init_context != XPathPathExpr.INIT_CONTEXT_RELATIVE || path.steps.length != 1) {
+            return null;
+        }
+        XPathStep step = path.steps[0];
+        if (step.axis != XPathStep.AXIS_CHILD || step.test != XPathStep.TEST_NAME ||
+                step.predicates.length != 0) {
+            return null;
+        }
+        String name = step.name.toString();
+        if (AndroidCasePropertyTable.isReservedCaseField(name)) {
+            return null;
+        }
+        return casePropertyTable.getIndexedProperties().contains(name) ? name : null;
+    }
+
+    private static String getComparisonOperator(int op, boolean propertyOnLeft) {
+        switch (op) {
+            case XPathCmpExpr.LT:
+                return propertyOnLeft ? "<" : ">";
+            case XPathCmpExpr.GT:
+                return propertyOnLeft ? ">" : "<";
+            case XPathCmpExpr.LTE:
+                return propertyOnLeft ? "<=" : ">=";
+            case XPathCmpExpr.GTE:
+                return propertyOnLeft ? ">=" : "<=";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return Whether the expression evaluates to the same value for every case, so that it
+     * can be evaluated once up front
+     */
+    private static boolean isContextFree(XPathExpression expr) {
+        if (expr instanceof XPathStringLiteral || expr instanceof XPathNumericLiteral) {
+            return true;
+        } else if (expr instanceof XPathArithExpr) {
+            return isContextFree(((XPathArithExpr)expr).a) && isContextFree(((XPathArithExpr)expr).b);
+        } else if (expr instanceof XPathFuncExpr) {
+            XPathFuncExpr func = (XPathFuncExpr)expr;
+            String name = func.id.toString();
+            if ("position".equals(name) || "random".equals(name) || "uuid".equals(name)) {
+                return false;
+            }
+            for (XPathExpression arg : func.args) {
+                if (!isContextFree(arg)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (expr instanceof XPathPathExpr) {
+            XPathPathExpr path = (XPathPathExpr)expr;
+            if (path.init_context == XPathPathExpr.INIT_CONTEXT_RELATIVE) {
+                return false;
+            }
+            if (path.init_context == XPathPathExpr.INIT_CONTEXT_EXPR) {
+                // Only instance(...) and current() rooted paths
+                if (!(path.filtExpr.x instanceof XPathFuncExpr) || path.filtExpr.predicates.length != 0) {
+                    return false;
+                }
+                String root = ((XPathFuncExpr)path.filtExpr.x).id.toString();
+                if (!"instance".equals(root) && !"current".equals(root)) {
+                    return false;
+                }
+            }
+            for (XPathStep step : path.steps) {
+                if (step.predicates.length != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static Object evaluate(XPathExpression expr, EvaluationContext ec) {
+        try {
+            return FunctionUtils.unpack(expr.eval(ec));
+        } catch (XPathException e) {
+            // Leave it to the normal evaluation path to report
+            return null;
+        }
+    }
+}
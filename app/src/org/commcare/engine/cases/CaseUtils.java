@@ -12,6 +12,7 @@ import org.commcare.cases.util.CasePurgeFilter;
 import org.commcare.models.database.SqlStorage;
 import org.commcare.models.database.SqlStorageIterator;
 import org.commcare.models.database.user.models.AndroidCaseIndexTable;
+import org.commcare.models.database.user.models.AndroidCasePropertyTable;
 import org.commcare.modern.engine.cases.CaseIndexTable;
 import org.commcare.modern.util.Pair;
 import org.commcare.util.LogTypes;
@@ -27,7 +28,11 @@ import org.javarosa.core.services.storage.IStorageUtilityIndexed;
 import org.javarosa.core.util.DAG;
 import org.javarosa.model.xform.XPathReference;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.Vector;
 
 /**
@@ -36,50 +41,48 @@ import java.util.Vector;
  * Created by ctsims on 2/25/2016.
  */
 public class CaseUtils {
+    private static final String[] CASE_GRAPH_METADATA =
+            new String[]{Case.INDEX_OWNER_ID, Case.INDEX_CASE_STATUS, Case.INDEX_CASE_ID};
+
     /**
      * Perform a case purge against the logged in user with the logged in app in local storage.
      *
      * Will fail if the app is not ready for DB operations at the user level.
      */
     public static void purgeCases() {
-        long start = System.currentTimeMillis();
-        //We need to determine if we're using ownership for purging. For right now, only in sync mode
-        Vector<String> owners = new Vector<>();
-        Vector<String> users = new Vector<>();
-        for (IStorageIterator<User> userIterator = CommCareApplication.instance()
-                .getUserStorage(User.STORAGE_KEY, User.class).iterate(); userIterator.hasMore(); ) {
-            String id = userIterator.nextRecord().getUniqueId();
-            owners.addElement(id);
-            users.addElement(id);
-        }
+        purgeCases(null);
+    }
 
-        //Now add all of the relevant groups
-        //TODO: Wow. This is.... kind of megasketch
-        for (String userId : users) {
-            DataInstance instance = CommCareUtil.loadFixture("user-groups", userId);
-            if (instance == null) {
-                continue;
-            }
-            EvaluationContext ec = new EvaluationContext(instance);
-            for (TreeReference ref : ec.expandReference(XPathReference.getPathExpr("/groups/group/@id").getReference())) {
-                AbstractTreeElement<AbstractTreeElement> idelement = ec.resolveReference(ref);
-                if (idelement.getValue() != null) {
-                    owners.addElement(idelement.getValue().uncast().getString());
-                }
-            }
-        }
+    /**
+     * Perform a case purge which only considers the cases linked through indices, directly or
+     * not, to the provided cases. Whether a case should be purged never depends on cases outside
+     * of that part of the case graph, so after a change to a few cases only the cases around
+     * them have to be read back, rather than the full graph of every case on the device.
+     *
+     * @param affectedCaseIds The ids of the cases whose changes prompted the purge, along with
+     *                        any cases they stopped indexing, or null to purge against all cases
+     */
+    public static void purgeCases(Collection<String> affectedCaseIds) {
+        long start = System.currentTimeMillis();
+        Vector<String> owners = getOwners();
 
         SQLiteDatabase db;
         db = CommCareApplication.instance().getUserDbHandle();
 
         db.beginTransaction();
         int removedCaseCount;
-        int removedLedgers;
+        int removedLedgers = 0;
         try {
             SqlStorage<ACase> storage = CommCareApplication.instance().getUserStorage(ACase.STORAGE_KEY, ACase.class);
-            DAG<String, int[], String> fullCaseGraph = getFullCaseGraph(storage, new AndroidCaseIndexTable(), owners);
+            AndroidCaseIndexTable indexTable = new AndroidCaseIndexTable(db);
+            DAG<String, int[], String> caseGraph;
+            if (affectedCaseIds == null) {
+                caseGraph = getFullCaseGraph(storage, indexTable, owners);
+            } else {
+                caseGraph = getCaseSubgraph(storage, indexTable, owners, affectedCaseIds);
+            }
 
-            CasePurgeFilter filter = new CasePurgeFilter(fullCaseGraph);
+            CasePurgeFilter filter = new CasePurgeFilter(caseGraph);
             if (filter.invalidEdgesWereRemoved()) {
                 Logger.log(LogTypes.SOFT_ASSERT, "An invalid edge was created in the internal " +
                         "case DAG of a case purge filter, meaning that at least 1 case on the " +
@@ -93,15 +96,17 @@ public class CaseUtils {
             Vector<Integer> casesRemoved = storage.removeAll(filter.getCasesToRemove());
             removedCaseCount = casesRemoved.size();
 
-            AndroidCaseIndexTable indexTable = new AndroidCaseIndexTable(db);
             for (int recordId : casesRemoved) {
                 indexTable.clearCaseIndices(recordId);
             }
+            new AndroidCasePropertyTable(db).clearCaseProperties(casesRemoved);
 
-
-            SqlStorage<Ledger> stockStorage = CommCareApplication.instance().getUserStorage(Ledger.STORAGE_KEY, Ledger.class);
-            LedgerPurgeFilter stockFilter = new LedgerPurgeFilter(stockStorage, storage);
-            removedLedgers = stockStorage.removeAll(stockFilter).size();
+            // Only the ledgers of removed cases can be left behind by a partial purge
+            if (affectedCaseIds == null || removedCaseCount > 0) {
+                SqlStorage<Ledger> stockStorage = CommCareApplication.instance().getUserStorage(Ledger.STORAGE_KEY, Ledger.class);
+                LedgerPurgeFilter stockFilter = new LedgerPurgeFilter(stockStorage, storage);
+                removedLedgers = stockStorage.removeAll(stockFilter).size();
+            }
             db.setTransactionSuccessful();
 
         } finally {
@@ -116,78 +121,160 @@ public class CaseUtils {
 
     }
 
+    private static Vector<String> getOwners() {
+        //We need to determine if we're using ownership for purging. For right now, only in sync mode
+        Vector<String> owners = new Vector<>();
+        Vector<String> users = new Vector<>();
+        for (IStorageIterator<User> userIterator = CommCareApplication.instance()
+                .getUserStorage(User.STORAGE_KEY, User.class).iterate(); userIterator.hasMore(); ) {
+            String id = userIterator.nextRecord().getUniqueId();
+            owners.addElement(id);
+            users.addElement(id);
+        }
+
+        //Now add all of the relevant groups
+        //TODO: Wow. This is.... kind of megasketch
+        for (String userId : users) {
+            DataInstance instance = CommCareUtil.loadFixture("user-groups", userId);
+            if (instance == null) {
+                continue;
+            }
+            EvaluationContext ec = new EvaluationContext(instance);
+            for (TreeReference ref : ec.expandReference(XPathReference.getPathExpr("/groups/group/@id").getReference())) {
+                AbstractTreeElement<AbstractTreeElement> idelement = ec.resolveReference(ref);
+                if (idelement.getValue() != null) {
+                    owners.addElement(idelement.getValue().uncast().getString());
+                }
+            }
+        }
+        return owners;
+    }
+
     public static DAG<String, int[], String> getFullCaseGraph(SqlStorage<ACase> caseStorage,
                                                               AndroidCaseIndexTable indexTable,
                                                               Vector<String> owners) {
         DAG<String, int[], String> caseGraph = new DAG<>();
-        Vector<Pair<String, String>> indexHolder = new Vector<>();
 
         HashMap<Integer, Vector<Pair<String, String>>> caseIndexMap = indexTable.getCaseIndexMap();
 
         // Pass 1: Create a DAG which contains all of the cases on the phone as nodes, and has a
         // directed edge for each index (from the 'child' case pointing to the 'parent' case) with
         // the appropriate relationship tagged
-        for (SqlStorageIterator<ACase> i = caseStorage.iterate(false, new String[]{
-                Case.INDEX_OWNER_ID, Case.INDEX_CASE_STATUS, Case.INDEX_CASE_ID}); i.hasMore(); ) {
+        for (SqlStorageIterator<ACase> i = caseStorage.iterate(false, CASE_GRAPH_METADATA); i.hasMore(); ) {
 
             String ownerId = i.peekIncludedMetadata(Case.INDEX_OWNER_ID);
-            boolean closed = i.peekIncludedMetadata(Case.INDEX_CASE_STATUS).equals("closed");
+            String status = i.peekIncludedMetadata(Case.INDEX_CASE_STATUS);
             String caseID = i.peekIncludedMetadata(Case.INDEX_CASE_ID);
             int caseRecordId = i.nextID();
 
+            addCaseToGraph(caseGraph, owners, caseRecordId, caseID, ownerId, status,
+                    caseIndexMap.get(caseRecordId));
+        }
 
-            boolean owned = true;
-            if (owners != null) {
-                owned = owners.contains(ownerId);
-            }
+        return caseGraph;
+    }
+
+    /**
+     * Builds the part of the case graph made up of the provided cases and every case linked to
+     * them through indices, in either direction. Each case in it is added exactly as it would
+     * be to the full case graph.
+     */
+    public static DAG<String, int[], String> getCaseSubgraph(SqlStorage<ACase> caseStorage,
+                                                             AndroidCaseIndexTable indexTable,
+                                                             Vector<String> owners,
+                                                             Collection<String> caseIds) {
+        DAG<String, int[], String> caseGraph = new DAG<>();
+        HashSet<String> visitedCaseIds = new HashSet<>(caseIds);
+        HashSet<Integer> visitedRecordIds = new HashSet<>();
 
-            Vector<Pair<String, String>> indices = caseIndexMap.get(caseRecordId);
-
-            if (indices != null) {
-                // In order to deal with multiple indices pointing to the same case with different
-                // relationships, we'll need to traverse once to eliminate any ambiguity
-                for (Pair<String, String> index : indices) {
-                    Pair<String, String> toReplace = null;
-                    boolean skip = false;
-                    for (Pair<String, String> existing : indexHolder) {
-                        if (existing.first.equals(index.first)) {
-                            if (existing.second.equals(CaseIndex.RELATIONSHIP_EXTENSION) && !index.second.equals(CaseIndex.RELATIONSHIP_EXTENSION)) {
-                                toReplace = existing;
-                            } else {
-                                skip = true;
+        Set<String> caseIdsToExpand = new HashSet<>(caseIds);
+        while (!caseIdsToExpand.isEmpty()) {
+            // Read in the cases being expanded along with every case that indexes them
+            LinkedHashSet<Integer> recordIds = caseStorage.getBulkIdsForIndex(Case.INDEX_CASE_ID, caseIdsToExpand);
+            recordIds.addAll(indexTable.getCasesIndexing(caseIdsToExpand));
+            recordIds.removeAll(visitedRecordIds);
+            visitedRecordIds.addAll(recordIds);
+
+            final Set<String> nextCaseIds = new HashSet<>();
+            if (!recordIds.isEmpty()) {
+                final HashMap<Integer, Vector<Pair<String, String>>> caseIndexMap =
+                        indexTable.getCaseIndexMap(recordIds);
+                caseStorage.streamBulkReadMetadata(recordIds, CASE_GRAPH_METADATA, (caseRecordId, metaData) -> {
+                    String caseID = metaData[2];
+                    Vector<Pair<String, String>> indices = caseIndexMap.get(caseRecordId);
+                    addCaseToGraph(caseGraph, owners, caseRecordId, caseID, metaData[0], metaData[1], indices);
+
+                    // Then expand out to the cases this one indexes, and the ones indexing it
+                    if (visitedCaseIds.add(caseID)) {
+                        nextCaseIds.add(caseID);
+                    }
+                    if (indices != null) {
+                        for (Pair<String, String> index : indices) {
+                            if (visitedCaseIds.add(index.first)) {
+                                nextCaseIds.add(index.first);
                             }
-                            break;
                         }
                     }
-                    if (toReplace != null) {
-                        indexHolder.removeElement(toReplace);
-                    }
-                    if (!skip) {
-                        indexHolder.addElement(index);
-                    }
-                }
-            }
-            int nodeStatus = 0;
-            if (owned) {
-                nodeStatus |= CasePurgeFilter.STATUS_OWNED;
+                });
             }
+            caseIdsToExpand = nextCaseIds;
+        }
 
-            if (!closed) {
-                nodeStatus |= CasePurgeFilter.STATUS_OPEN;
-            }
+        return caseGraph;
+    }
 
-            if (owned && !closed) {
-                nodeStatus |= CasePurgeFilter.STATUS_RELEVANT;
-            }
+    private static void addCaseToGraph(DAG<String, int[], String> caseGraph, Vector<String> owners,
+                                       int caseRecordId, String caseID, String ownerId,
+                                       String status, Vector<Pair<String, String>> indices) {
+        boolean closed = status.equals("closed");
 
-            caseGraph.addNode(caseID, new int[]{nodeStatus, caseRecordId});
+        boolean owned = true;
+        if (owners != null) {
+            owned = owners.contains(ownerId);
+        }
 
-            for (Pair<String, String> index : indexHolder) {
-                caseGraph.setEdge(caseID, index.first, index.second);
+        Vector<Pair<String, String>> indexHolder = new Vector<>();
+        if (indices != null) {
+            // In order to deal with multiple indices pointing to the same case with different
+            // relationships, we'll need to traverse once to eliminate any ambiguity
+            for (Pair<String, String> index : indices) {
+                Pair<String, String> toReplace = null;
+                boolean skip = false;
+                for (Pair<String, String> existing : indexHolder) {
+                    if (existing.first.equals(index.first)) {
+                        if (existing.second.equals(CaseIndex.RELATIONSHIP_EXTENSION) && !index.second.equals(CaseIndex.RELATIONSHIP_EXTENSION)) {
+                            toReplace = existing;
+                        } else {
+                            skip = true;
+                        }
+                        break;
+                    }
+                }
+                if (toReplace != null) {
+                    indexHolder.removeElement(toReplace);
+                }
+                if (!skip) {
+                    indexHolder.addElement(index);
+                }
             }
-            indexHolder.removeAllElements();
+        }
+        int nodeStatus = 0;
+        if (owned) {
+            nodeStatus |= CasePurgeFilter.STATUS_OWNED;
         }
 
-        return caseGraph;
+        if (!closed) {
+            nodeStatus |= CasePurgeFilter.STATUS_OPEN;
+        }
+
+        if (owned && !closed) {
+            nodeStatus |= CasePurgeFilter.STATUS_RELEVANT;
+        }
+
+        caseGraph.addNode(caseID, new int[]{nodeStatus, caseRecordId});
+
+        for (Pair<String, String> index : indexHolder) {
+            caseGraph.setEdge(caseID, index.first, index.second);
+        }
     }
 }
@@ -9,6 +9,10 @@ import org.javarosa.core.services.locale.Localization;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
 
 import okhttp3.ResponseBody;
 import retrofit2.Response;
@@ -44,11 +48,49 @@ public class JavaHttpReference implements Reference {
         if (response.isSuccessful()) {
             return response.body().byteStream();
         } else {
-            if (response.code() == 406) {
-                throw new IOException(HttpUtils.parseUserVisibleError(response));
+            throw buildResponseException(response);
+        }
+    }
+
+    /**
+     * Request the referenced file starting from the given byte offset
+     *
+     * @param validator ETag or Last-Modified value from an earlier response for the file. The
+     *                  server only honors the range if the file still matches it, and otherwise
+     *                  responds with the whole file.
+     */
+    public Response<ResponseBody> getRangeResponse(long offset, @Nullable String validator) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        if (offset > 0) {
+            headers.put("Range", "bytes=" + offset + "-");
+            if (validator != null) {
+                headers.put("If-Range", validator);
             }
-            throw new IOException(Localization.get("install.fail.error", Integer.toString(response.code())));
         }
+        return generator.simpleGet(uri, new HashMap<String, String>(), headers);
+    }
+
+    /**
+     * Request the referenced file unless it still matches the provided validator, in which
+     * case the server responds with 304 Not Modified and no body
+     *
+     * @param validator ETag or Last-Modified value from an earlier response for the file
+     */
+    public Response<ResponseBody> getConditionalResponse(String validator) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        if (validator.startsWith("\"")) {
+            headers.put("If-None-Match", validator);
+        } else {
+            headers.put("If-Modified-Since", validator);
+        }
+        return generator.simpleGet(uri, new HashMap<String, String>(), headers);
+    }
+
+    public static IOException buildResponseException(Response<ResponseBody> response) {
+        if (response.code() == 406) {
+            return new IOException(HttpUtils.parseUserVisibleError(response));
+        }
+        return new IOException(Localization.get("install.fail.error", Integer.toString(response.code())));
     }
 
     @Override
@@ -79,7 +79,7 @@ public class AndroidResourceManager extends ResourceManager {
 
                 if (updateNotNewer(getMasterProfile())) {
                     Logger.log(LogTypes.TYPE_RESOURCES, "App Resources up to Date");
-                    upgradeTable.clearUpgrade(platform);
+                    clearUpgradeTable();
                     return AppInstallStatus.UpToDate;
                 }
 
@@ -163,6 +163,14 @@ public class AndroidResourceManager extends ResourceManager {
         tempUpgradeTable.setInstallCancellationChecker(cancelCheckker);
     }
 
+    /**
+     * Clear out the upgrade table, along with any stored media that only it was using
+     */
+    private void clearUpgradeTable() {
+        upgradeTable.clearUpgrade(platform);
+        MediaBlobStore.collectGarbage(app);
+    }
+
     /**
      * Save upgrade stats if the upgrade was cancelled and wasn't complete at
      * that time.
@@ -205,7 +213,7 @@ public class AndroidResourceManager extends ResourceManager {
         updateStats.registerUpdateException(new Exception(result.toString()));
 
         if (!result.canReusePartialUpdateTable()) {
-            upgradeTable.clearUpgrade(platform);
+            clearUpgradeTable();
         }
 
         retryUpdateOrGiveUp(ctx, isAutoUpdate);
@@ -222,7 +230,7 @@ public class AndroidResourceManager extends ResourceManager {
                 ResourceInstallUtils.recordAutoUpdateCompletion(app);
             }
 
-            upgradeTable.clearUpgrade(platform);
+            clearUpgradeTable();
         } else {
             Logger.log(LogTypes.TYPE_RESOURCES, "Retrying auto-update");
             UpdateStats.saveStatsPersistently(app, updateStats);
@@ -1,13 +1,15 @@
 package org.commcare.engine.resource;
 
+import org.commcare.CommCareApp;
 import org.commcare.models.database.SqlStorage;
+import org.commcare.resources.model.InstallCancelled;
 import org.commcare.resources.model.InstallerFactory;
 import org.commcare.resources.model.Resource;
 import org.commcare.resources.model.ResourceTable;
-import org.javarosa.core.services.storage.IStorageIterator;
-import org.javarosa.core.services.storage.IStorageUtilityIndexed;
+import org.commcare.utils.GlobalConstants;
 
-import java.util.HashSet;
+import java.io.File;
+import java.util.Set;
 import java.util.Vector;
 
 /**
@@ -17,53 +19,78 @@ import java.util.Vector;
  */
 public class AndroidResourceTable extends ResourceTable {
     private final SqlStorage<Resource> sqlStorage;
-    // An in-memory represesntation of resources in the table. Used to avoid
-    // hitting storage to check resource existence.
-    // Only resource IDs are stored in the set.
-    private HashSet<String> resourcesInTable;
+    private final ResourceIdIndex idIndex;
+    private ResourceDownloadScheduler downloadScheduler;
+    private InstallCancelled cancellationChecker;
 
     public AndroidResourceTable(SqlStorage<Resource> storage, InstallerFactory factory) {
         super(storage, factory);
         this.sqlStorage = storage;
+        this.idIndex = new ResourceIdIndex(storage);
     }
 
     @Override
     public Vector<Resource> getResourcesForParent(String parent) {
         // avoids intermediate ID lookup of default implementation
-        return sqlStorage.getRecordsForValue(Resource.META_INDEX_PARENT_GUID, parent);
+        Set<Integer> childRecords = idIndex.getChildRecordIds(parent);
+        Vector<Resource> children = new Vector<>(childRecords.size());
+        for (int recordId : childRecords) {
+            children.add(sqlStorage.read(recordId));
+        }
+        return children;
+    }
+
+    @Override
+    public Resource getResourceWithId(String id) {
+        int recordId = idIndex.getRecordId(id);
+        if (recordId == -1) {
+            return null;
+        }
+        return sqlStorage.read(recordId);
     }
 
     @Override
     protected boolean resourceDoesntExist(Resource resource) {
-        initResourcesInTable();
-        // check in-memory cache instead of hitting storage
-        return !resourcesInTable.contains(resource.getResourceId());
+        // check in-memory index instead of hitting storage
+        return !idIndex.containsResource(resource.getResourceId());
     }
 
-    /**
-     * Load IDs for resources present in table's storage into memory.
-     */
-    private void initResourcesInTable() {
-        if (resourcesInTable == null) {
-            resourcesInTable = new HashSet<>();
-            for (IStorageIterator it = sqlStorage.iterate(); it.hasMore(); ) {
-                Resource r = (Resource)it.nextRecord();
-                resourcesInTable.add(r.getResourceId());
-            }
-        }
+    @Override
+    public boolean isEmpty() {
+        return idIndex.isEmpty();
     }
 
     @Override
-    protected void cleanup() {
-        super.cleanup();
-        initResourcesInTable();
-        resourcesInTable.clear();
+    public int getTableReadiness() {
+        // Only non-empty tables need their resources' statuses inspected
+        if (idIndex.isEmpty()) {
+            return RESOURCE_TABLE_EMPTY;
+        }
+        return super.getTableReadiness();
     }
 
     @Override
-    public void commit(Resource r) {
-        super.commit(r);
-        initResourcesInTable();
-        resourcesInTable.add(r.getResourceId());
+    public void setInstallCancellationChecker(InstallCancelled cancellationChecker) {
+        super.setInstallCancellationChecker(cancellationChecker);
+        synchronized (this) {
+            this.cancellationChecker = cancellationChecker;
+            if (downloadScheduler != null) {
+                downloadScheduler.setCancellationChecker(cancellationChecker);
+            }
+        }
+    }
+
+    /**
+     * @return The scheduler that fetches remote files for resources being installed into
+     * this table
+     */
+    public synchronized ResourceDownloadScheduler getDownloadScheduler(CommCareApp app) {
+        if (downloadScheduler == null) {
+            downloadScheduler = new ResourceDownloadScheduler(
+                    new File(app.fsPath(GlobalConstants.FILE_CC_DOWNLOADS)),
+                    MediaBlobStore.getStore(app));
+            downloadScheduler.setCancellationChecker(cancellationChecker);
+        }
+        return downloadScheduler;
     }
 }
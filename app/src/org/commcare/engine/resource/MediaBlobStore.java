@@ -0,0 +1,367 @@
+package org.commcare.engine.resource;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import org.commcare.CommCareApp;
+import org.commcare.utils.GlobalConstants;
+import org.javarosa.core.io.StreamsUtil;
+import org.javarosa.core.util.externalizable.ExtUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content addressed store for app media, which lets identical files across app versions share
+ * a single copy on disk.
+ *
+ * Every media file that gets installed is hard linked into the store under the hash of its
+ * contents. If the store already holds a file with the same contents, the newly installed file
+ * is replaced with a link to the stored one instead, so an upgrade that carries over unchanged
+ * media doesn't leave a second copy behind. A blob that is no longer linked from anywhere
+ * outside the store belonged only to resources that have since been removed, and is deleted by
+ * {@link #collectGarbage}.
+ *
+ * The store also remembers which blob each media url last served, along with the server's
+ * validator for it, so that a later download of the same url can be answered with a
+ * 304 Not Modified and reuse the stored file rather than fetching it again.
+ *
+ * Since a stored blob and every installed file linked to it are the same file on disk, a file
+ * that is in the store must only ever be replaced, never written to in place; see
+ * {@link #isStored}.
+ *
+ * Hard links need API 21; on older devices the store does nothing and media is installed as
+ * plain copies.
+ */
+public class MediaBlobStore {
+    private static final String TAG = MediaBlobStore.class.getSimpleName();
+
+    private static final String BLOB_DIR = "blobs";
+    private static final String URL_INDEX_DIR = "urls";
+    private static final String TEMP_EXT = ".tmp";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static FileLinker fileLinker;
+    private static Boolean linksSupported;
+    private static MediaBlobStore instance;
+
+    private final File blobDir;
+    private final File urlIndexDir;
+    private final FileLinker linker;
+
+    MediaBlobStore(File storeRoot, FileLinker linker) {
+        this.blobDir = new File(storeRoot, BLOB_DIR);
+        this.urlIndexDir = new File(storeRoot, URL_INDEX_DIR);
+        this.linker = linker;
+        blobDir.mkdirs();
+        urlIndexDir.mkdirs();
+    }
+
+    /**
+     * @return The media store for the app, or null if the device can't support one
+     */
+    public static synchronized MediaBlobStore getStore(CommCareApp app) {
+        File storeRoot = new File(app.fsPath(GlobalConstants.FILE_CC_MEDIA_STORE));
+        if (fileLinker == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            fileLinker = new OsFileLinker();
+        }
+        if (fileLinker == null) {
+            return null;
+        }
+        if (instance == null || !instance.blobDir.getParentFile().equals(storeRoot)) {
+            instance = new MediaBlobStore(storeRoot, fileLinker);
+        }
+        if (linksSupported == null) {
+            linksSupported = instance.probeLinks();
+        }
+        return linksSupported ? instance : null;
+    }
+
+    /**
+     * Replace how the app's store makes and counts links, for environments that don't have
+     * android.system.Os, like unit tests
+     */
+    public static synchronized void setFileLinker(FileLinker linker) {
+        fileLinker = linker;
+        linksSupported = null;
+        instance = null;
+    }
+
+    boolean probeLinks() {
+        File probe = new File(blobDir, "probe" + TEMP_EXT);
+        File probeLink = new File(blobDir, "probe-link" + TEMP_EXT);
+        try {
+            probe.createNewFile();
+            return link(probe, probeLink) && linker.getLinkCount(probe) == 2;
+        } catch (Throwable e) {
+            // Some platforms, like the unit test environment, can't make links at all
+            Log.i(TAG, "Hard links unavailable, media won't be shared between app versions");
+            return false;
+        } finally {
+            probe.delete();
+            probeLink.delete();
+        }
+    }
+
+    /**
+     * Add a file that has just been written to the store. If the store already holds a file
+     * with the same contents, the provided file is replaced with a link to it.
+     *
+     * @return The hash of the file's contents, or null if it couldn't be stored. The file is
+     * left in place, with its contents unchanged, either way.
+     */
+    public String addBlob(File file) {
+        try {
+            String hash = hashFile(file);
+            File blob = getBlob(hash);
+            synchronized (this) {
+                if (blob.exists()) {
+                    // swap the file for a link to the stored copy, without ever leaving
+                    // nothing at the file's path
+                    File replacement = new File(file.getAbsolutePath() + TEMP_EXT);
+                    replacement.delete();
+                    if (link(blob, replacement) && replacement.renameTo(file)) {
+                        return hash;
+                    }
+                    replacement.delete();
+                    return null;
+                }
+                return link(file, blob) ? hash : null;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to add " + file.getAbsolutePath() + " to the media store", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether the file shares its contents with a blob in the store, in which case
+     * writing to it would change every other file linked to that blob. Such a file has to be
+     * replaced, by deleting it or renaming another file over it, instead.
+     */
+    public boolean isStored(File file) {
+        if (!file.exists()) {
+            return false;
+        }
+        try {
+            return linker.getLinkCount(file) > 1;
+        } catch (IOException e) {
+            // Err on the side of not writing to it
+            return true;
+        }
+    }
+
+    /**
+     * Link the stored file with the given hash to the destination path
+     *
+     * @return Whether there was a stored file to link
+     */
+    public synchronized boolean linkBlob(String hash, File destination) {
+        File blob = getBlob(hash);
+        if (!blob.exists()) {
+            return false;
+        }
+        destination.delete();
+        return link(blob, destination);
+    }
+
+    /**
+     * Remember that the given url served the blob with the given hash
+     *
+     * @param validator The ETag or Last-Modified value the server sent with the file
+     */
+    public void recordUrl(String url, String validator, String hash) {
+        File record = getUrlRecordFile(url);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(record)));
+            ExtUtil.writeString(out, url);
+            ExtUtil.writeString(out, validator);
+            ExtUtil.writeString(out, hash);
+        } catch (IOException e) {
+            record.delete();
+        } finally {
+            StreamsUtil.closeStream(out);
+        }
+    }
+
+    /**
+     * @return What the store knows about the file last served from the url, or null if it
+     * doesn't have that file anymore
+     */
+    public UrlRecord getUrlRecord(String url) {
+        File record = getUrlRecordFile(url);
+        if (!record.exists()) {
+            return null;
+        }
+        UrlRecord urlRecord = readUrlRecord(record);
+        if (urlRecord != null && urlRecord.url.equals(url) && getBlob(urlRecord.hash).exists()) {
+            return urlRecord;
+        }
+        record.delete();
+        return null;
+    }
+
+    /**
+     * Delete all blobs that aren't linked from outside the store, i.e. that no installed or
+     * staged resource uses anymore, along with the url records pointing at them.
+     */
+    public static void collectGarbage(CommCareApp app) {
+        MediaBlobStore store = getStore(app);
+        if (store != null) {
+            store.collectGarbage();
+        }
+    }
+
+    synchronized void collectGarbage() {
+        File[] blobs = blobDir.listFiles();
+        if (blobs == null) {
+            return;
+        }
+        int removed = 0;
+        for (File blob : blobs) {
+            try {
+                if (blob.getName().endsWith(TEMP_EXT) || linker.getLinkCount(blob) <= 1) {
+                    blob.delete();
+                    removed++;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to check links to " + blob.getName(), e);
+            }
+        }
+        if (removed > 0) {
+            File[] urlRecords = urlIndexDir.listFiles();
+            if (urlRecords != null) {
+                for (File record : urlRecords) {
+                    UrlRecord urlRecord = readUrlRecord(record);
+                    if (urlRecord == null || !getBlob(urlRecord.hash).exists()) {
+                        record.delete();
+                    }
+                }
+            }
+        }
+        Log.d(TAG, "Removed " + removed + " orphaned media blobs");
+    }
+
+    private static UrlRecord readUrlRecord(File record) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(record)));
+            return new UrlRecord(ExtUtil.readString(in), ExtUtil.readString(in), ExtUtil.readString(in));
+        } catch (Exception e) {
+            // a damaged record just means the url is treated as unknown
+            return null;
+        } finally {
+            StreamsUtil.closeStream(in);
+        }
+    }
+
+    private File getBlob(String hash) {
+        return new File(blobDir, hash);
+    }
+
+    private File getUrlRecordFile(String url) {
+        return new File(urlIndexDir, hashString(url));
+    }
+
+    private boolean link(File existing, File newLink) {
+        try {
+            linker.link(existing, newLink);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to link " + newLink.getAbsolutePath(), e);
+            return false;
+        }
+    }
+
+    private static String hashFile(File file) throws IOException {
+        MessageDigest md = getDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                md.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(md.digest());
+    }
+
+    static String hashString(String value) {
+        try {
+            return toHex(getDigest().digest(value.getBytes("UTF-8")));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static MessageDigest getDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        return String.format("%040x", new BigInteger(1, digest));
+    }
+
+    /**
+     * Makes and counts hard links to files
+     */
+    public interface FileLinker {
+        void link(File existing, File newLink) throws IOException;
+
+        long getLinkCount(File file) throws IOException;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static class OsFileLinker implements FileLinker {
+        @Override
+        public void link(File existing, File newLink) throws IOException {
+            try {
+                Os.link(existing.getAbsolutePath(), newLink.getAbsolutePath());
+            } catch (ErrnoException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public long getLinkCount(File file) throws IOException {
+            try {
+                return Os.stat(file.getAbsolutePath()).st_nlink;
+            } catch (ErrnoException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+    }
+
+    public static class UrlRecord {
+        public final String url;
+        public final String validator;
+        public final String hash;
+
+        UrlRecord(String url, String validator, String hash) {
+            this.url = url;
+            this.validator = validator;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package org.commcare.engine.resource;
+
+import android.util.Log;
+
+import org.commcare.android.resource.installers.MediaFileAndroidInstaller;
+import org.commcare.engine.references.JavaHttpReference;
+import org.commcare.resources.model.InstallCancelled;
+import org.commcare.resources.model.Resource;
+import org.commcare.resources.model.ResourceLocation;
+import org.commcare.resources.model.ResourceTable;
+import org.javarosa.core.io.StreamsUtil;
+import org.javarosa.core.reference.InvalidReferenceException;
+import org.javarosa.core.reference.Reference;
+import org.javarosa.core.reference.ReferenceManager;
+import org.javarosa.core.util.externalizable.ExtUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ResponseBody;
+import retrofit2.Response;
+
+/**
+ * Downloads remote app resources ahead of the resource table's install loop, so that the files
+ * for independent resources are fetched concurrently while the table still installs and commits
+ * them one at a time, in its usual order.
+ *
+ * Downloads are written to a per-app directory alongside a small index file recording the url,
+ * the server's validator for the file, and its expected length. If a download is interrupted,
+ * by a dropped connection or by the app being killed, the next attempt picks up where it left
+ * off with an HTTP range request, provided the server reports that the file hasn't changed.
+ *
+ * Media downloads also go through the app's {@link MediaBlobStore}: a url whose file is already
+ * in the store is only re-requested conditionally, and the stored copy is reused if the server
+ * reports it unchanged.
+ */
+public class ResourceDownloadScheduler {
+    private static final String TAG = ResourceDownloadScheduler.class.getSimpleName();
+
+    private static final int MAX_CONCURRENT_DOWNLOADS = 4;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Partial downloads that haven't been touched in this long belong to updates that were
+     * abandoned, so they are cleared out
+     */
+    private static final long STALE_DOWNLOAD_AGE_MS = TimeUnit.DAYS.toMillis(7);
+
+    private static final String PARTIAL_FILE_EXT = ".part";
+    private static final String INDEX_FILE_EXT = ".index";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File downloadDir;
+    private final MediaBlobStore blobStore;
+    private final ThreadPoolExecutor workers;
+    private final HashMap<String, FutureTask<File>> downloads = new HashMap<>();
+    private final HashSet<String> prefetchedParents = new HashSet<>();
+    private volatile InstallCancelled cancellationChecker;
+
+    public ResourceDownloadScheduler(File downloadDir) {
+        this(downloadDir, null);
+    }
+
+    /**
+     * @param blobStore Store to share media files through, or null if there isn't one
+     */
+    public ResourceDownloadScheduler(File downloadDir, MediaBlobStore blobStore) {
+        this.downloadDir = downloadDir;
+        this.blobStore = blobStore;
+        this.workers = new ThreadPoolExecutor(MAX_CONCURRENT_DOWNLOADS, MAX_CONCURRENT_DOWNLOADS,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        // let the pool wind itself down once the install stops asking for files
+        this.workers.allowCoreThreadTimeOut(true);
+        downloadDir.mkdirs();
+        clearStaleDownloads();
+    }
+
+    public void setCancellationChecker(InstallCancelled cancellationChecker) {
+        this.cancellationChecker = cancellationChecker;
+    }
+
+    /**
+     * Queue up downloads for the other media resources that share a parent with the provided
+     * resource, and which will need to be fetched from the network. Only the first call for
+     * a given parent does anything.
+     *
+     * @param table  The table that the resources are being installed into
+     * @param master The table holding the currently installed app, if this is an upgrade.
+     *               Resources that are no newer than their installed copy get carried over
+     *               rather than downloaded, so they are skipped.
+     */
+    public void prefetchSiblings(Resource resource, ResourceTable table, ResourceTable master) {
+        synchronized (this) {
+            if (wasCancelled() || !prefetchedParents.add(resource.getParentId())) {
+                return;
+            }
+        }
+        Vector<Resource> siblings = table.getResourcesForParent(resource.getParentId());
+        for (Resource sibling : siblings) {
+            if (sibling.getStatus() != Resource.RESOURCE_STATUS_UNINITIALIZED ||
+                    !(sibling.getInstaller() instanceof MediaFileAndroidInstaller) ||
+                    sibling.getResourceId().equals(resource.getResourceId())) {
+                continue;
+            }
+            if (master != null) {
+                Resource installed = master.getResourceWithId(sibling.getResourceId());
+                if (installed != null && !sibling.isNewer(installed)) {
+                    continue;
+                }
+            }
+            JavaHttpReference remote = getRemoteReference(sibling);
+            if (remote != null) {
+                schedule(remote, true);
+            }
+        }
+    }
+
+    /**
+     * @return The reference the install loop will pull the resource from, if it is going to
+     * come from the network
+     */
+    private static JavaHttpReference getRemoteReference(Resource resource) {
+        JavaHttpReference remote = null;
+        for (ResourceLocation location : resource.getLocations()) {
+            if (location.isRelative()) {
+                // resolving these depends on the context the install loop tracks, so leave
+                // them to be fetched when they come up
+                continue;
+            }
+            try {
+                Reference ref = ReferenceManager.instance().DeriveReference(location.getLocation());
+                if (location.getAuthority() != Resource.RESOURCE_AUTHORITY_REMOTE) {
+                    if (ref.doesBinaryExist()) {
+                        // will be installed from local storage instead
+                        return null;
+                    }
+                } else if (remote == null && ref instanceof JavaHttpReference) {
+                    remote = (JavaHttpReference)ref;
+                }
+            } catch (InvalidReferenceException | IOException e) {
+                // not a location the install loop will be able to use either
+            }
+        }
+        return remote;
+    }
+
+    private synchronized FutureTask<File> schedule(final JavaHttpReference ref, final boolean isMedia) {
+        FutureTask<File> download = downloads.get(ref.getURI());
+        if (download == null) {
+            download = new FutureTask<>(() -> download(ref, isMedia && blobStore != null));
+            downloads.put(ref.getURI(), download);
+            workers.execute(download);
+        }
+        return download;
+    }
+
+    /**
+     * Get the fully downloaded file for the provided reference, waiting on a download that is
+     * already in flight. A download that is still queued behind others is run right away on
+     * the calling thread, since the install loop can't make progress without it.
+     *
+     * The caller should move the file out of the download directory, and then call
+     * {@link #release} once it has done so.
+     *
+     * @param isMedia Whether the file is app media, and so can be shared through the media store
+     */
+    public File fetch(JavaHttpReference ref, boolean isMedia) throws IOException {
+        FutureTask<File> download = schedule(ref, isMedia);
+        // no-op if a worker has already picked the download up
+        download.run();
+        try {
+            return download.get();
+        } catch (InterruptedException e) {
+            download.cancel(true);
+            throw new InterruptedIOException("Interrupted while downloading " + ref.getURI());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            synchronized (this) {
+                // failed downloads should get a fresh attempt if they come up again
+                if (!download.isDone() || isFailed(download)) {
+                    downloads.remove(ref.getURI());
+                }
+            }
+        }
+    }
+
+    private static boolean isFailed(FutureTask<File> download) {
+        try {
+            download.get();
+            return false;
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    /**
+     * Forget about a download whose file has been moved into place by the installer
+     */
+    public synchronized void release(JavaHttpReference ref) {
+        downloads.remove(ref.getURI());
+        String key = getDownloadKey(ref.getURI());
+        new File(downloadDir, key + PARTIAL_FILE_EXT).delete();
+        new File(downloadDir, key + INDEX_FILE_EXT).delete();
+    }
+
+    private File download(JavaHttpReference ref, boolean useBlobStore) throws IOException {
+        String key = getDownloadKey(ref.getURI());
+        File partialFile = new File(downloadDir, key + PARTIAL_FILE_EXT);
+        File indexFile = new File(downloadDir, key + INDEX_FILE_EXT);
+
+        if (wasCancelled()) {
+            throw new InterruptedIOException("Install cancelled before " + ref.getURI() + " was downloaded");
+        }
+
+        DownloadIndex index = DownloadIndex.read(indexFile);
+        if (index == null || !index.url.equals(ref.getURI()) || index.validator == null) {
+            // without a validator there's no way to tell if the server's copy changed
+            index = null;
+            partialFile.delete();
+        }
+
+        if (blobStore != null && blobStore.isStored(partialFile)) {
+            // Only complete files are linked into the store, and this one must not be written to
+            return partialFile;
+        }
+        long offset = partialFile.exists() ? partialFile.length() : 0;
+        if (index != null && index.expectedLength >= 0 && offset == index.expectedLength) {
+            return partialFile;
+        }
+
+        Response<ResponseBody> response = null;
+        if (offset == 0 && useBlobStore) {
+            MediaBlobStore.UrlRecord stored = blobStore.getUrlRecord(ref.getURI());
+            if (stored != null) {
+                // only pull the file down again if it changed since it was stored
+                response = ref.getConditionalResponse(stored.validator);
+                if (response.code() == 304) {
+                    if (response.errorBody() != null) {
+                        response.errorBody().close();
+                    }
+                    if (blobStore.linkBlob(stored.hash, partialFile)) {
+                        Log.d(TAG, "Reusing stored media for " + ref.getURI());
+                        return partialFile;
+                    }
+                    response = null;
+                }
+            }
+        }
+        if (response == null) {
+            response = ref.getRangeResponse(offset, index == null ? null : index.validator);
+        }
+        boolean resuming = offset > 0 && response.code() == 206 && rangeStartsAt(response, offset);
+        if (!resuming) {
+            if (response.code() == 206 || response.code() == 416) {
+                // the server didn't give us the range we asked for; start over
+                partialFile.delete();
+                indexFile.delete();
+                response.body().close();
+                response = ref.getRangeResponse(0, null);
+            }
+            if (!response.isSuccessful()) {
+                throw JavaHttpReference.buildResponseException(response);
+            }
+            offset = 0;
+            // Start from a new file rather than truncating the old one in place
+            partialFile.delete();
+            long contentLength = response.body().contentLength();
+            index = new DownloadIndex(ref.getURI(), getValidator(response), contentLength);
+            index.write(indexFile);
+        } else {
+            Log.d(TAG, "Resuming download of " + ref.getURI() + " at byte " + offset);
+        }
+
+        InputStream in = response.body().byteStream();
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(partialFile, resuming));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                if (wasCancelled()) {
+                    throw new InterruptedIOException("Install cancelled while downloading " + ref.getURI());
+                }
+                out.write(buffer, 0, count);
+            }
+            out.flush();
+        } finally {
+            StreamsUtil.closeStream(out);
+            StreamsUtil.closeStream(in);
+        }
+
+        if (index.expectedLength >= 0 && partialFile.length() != index.expectedLength) {
+            throw new IOException("Download of " + ref.getURI() + " ended after " +
+                    partialFile.length() + " of " + index.expectedLength + " bytes");
+        }
+
+        if (useBlobStore) {
+            String hash = blobStore.addBlob(partialFile);
+            if (hash != null && index.validator != null) {
+                blobStore.recordUrl(ref.getURI(), index.validator, hash);
+            }
+        }
+        return partialFile;
+    }
+
+    private boolean wasCancelled() {
+        InstallCancelled checker = cancellationChecker;
+        return (checker != null && checker.wasInstallCancelled()) || Thread.currentThread().isInterrupted();
+    }
+
+    private static boolean rangeStartsAt(Response<ResponseBody> response, long offset) {
+        String contentRange = response.headers().get("Content-Range");
+        return contentRange != null && contentRange.startsWith("bytes " + offset + "-");
+    }
+
+    /**
+     * @return A value to send back in If-Range so that the server only honors a range request
+     * if its copy of the file is unchanged, or null if there isn't a usable one
+     */
+    private static String getValidator(Response<ResponseBody> response) {
+        String etag = response.headers().get("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            // If-Range requires a strong validator
+            return etag;
+        }
+        return response.headers().get("Last-Modified");
+    }
+
+    private void clearStaleDownloads() {
+        File[] files = downloadDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - STALE_DOWNLOAD_AGE_MS;
+        for (File file : files) {
+            if (file.lastModified() < cutoff) {
+                file.delete();
+            }
+        }
+    }
+
+    private static String getDownloadKey(String url) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            return new BigInteger(1, md.digest(url.getBytes("UTF-8"))).toString(16);
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The persisted record of an in-progress download
+     */
+    private static class DownloadIndex {
+        final String url;
+        final String validator;
+        final long expectedLength;
+
+        DownloadIndex(String url, String validator, long expectedLength) {
+            this.url = url;
+            this.validator = validator;
+            this.expectedLength = expectedLength;
+        }
+
+        static DownloadIndex read(File indexFile) {
+            if (!indexFile.exists()) {
+                return null;
+            }
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+                return new DownloadIndex(ExtUtil.readString(in),
+                        ExtUtil.nullIfEmpty(ExtUtil.readString(in)),
+                        ExtUtil.readNumeric(in));
+            } catch (Exception e) {
+                // A damaged index just means starting the file over
+                return null;
+            } finally {
+                StreamsUtil.closeStream(in);
+            }
+        }
+
+        void write(File indexFile) throws IOException {
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+                ExtUtil.writeString(out, url);
+                ExtUtil.writeString(out, ExtUtil.emptyIfNull(validator));
+                ExtUtil.writeNumeric(out, expectedLength);
+            } finally {
+                StreamsUtil.closeStream(out);
+            }
+        }
+    }
+}
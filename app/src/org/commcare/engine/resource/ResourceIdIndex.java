@@ -0,0 +1,165 @@
+package org.commcare.engine.resource;
+
+import org.commcare.models.database.SqlStorage;
+import org.commcare.models.database.SqlStorageIterator;
+import org.commcare.resources.model.Resource;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * In-memory index of the resources in a resource table, built only from the id and parent
+ * columns of the table, so that existence and parent lookups never need to deserialize full
+ * resource records.
+ *
+ * Each resource table keeps its own index over its storage object, and lookups only go back to
+ * the table when records have been inserted or removed through that storage object since the
+ * index was last brought up to date. Records written since then are read in without rebuilding
+ * the index, and any other change to the table, like a record being removed, rebuilds it from
+ * scratch. Records that are only updated in place keep their resource id and parent, so they
+ * never make the index stale. Changes made through other storage objects on the same table
+ * aren't seen, so the table's storage has to be its only writer.
+ */
+class ResourceIdIndex {
+    private static final String[] INDEXED_METADATA =
+            new String[]{Resource.META_INDEX_RESOURCE_ID, Resource.META_INDEX_PARENT_GUID};
+
+    private final SqlStorage<Resource> storage;
+    private final HashMap<String, Integer> recordsByResourceId = new HashMap<>();
+    private final HashMap<String, Set<Integer>> recordsByParent = new HashMap<>();
+
+    // mirror the parts of SqlStorage.getIdSetFingerprint for the indexed records
+    private long recordCount = 0;
+    private int maxRecordId = 0;
+    private double recordIdTotal = 0;
+    private String maxRecordResourceId;
+
+    /**
+     * The storage's record set change count as of the last sync, or null before the first one
+     */
+    private Integer syncedChangeCount;
+
+    ResourceIdIndex(SqlStorage<Resource> storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Brings the index up to date with the inserts and removals made through its storage since
+     * the last call, which only needs to query the table when there have been any
+     */
+    private void sync() {
+        int changeCount = storage.getRecordSetChangeCount();
+        if (syncedChangeCount == null || syncedChangeCount != changeCount) {
+            readChanges();
+            syncedChangeCount = changeCount;
+        }
+    }
+
+    private void readChanges() {
+        String fingerprint = storage.getIdSetFingerprint();
+        boolean sameRecordIds = fingerprint.equals(getFingerprint());
+        if (sameRecordIds && topRecordUnchanged()) {
+            return;
+        }
+        if (!sameRecordIds) {
+            // Most changes are resources being added, so try to just read in the new records
+            readRecords(maxRecordId);
+            if (fingerprint.equals(getFingerprint())) {
+                return;
+            }
+        }
+        clear();
+        readRecords(-1);
+    }
+
+    /**
+     * Removing the newest record and then writing another one reuses its id, which the
+     * fingerprint alone can't tell apart from the table being untouched
+     */
+    private boolean topRecordUnchanged() {
+        if (recordCount == 0) {
+            return true;
+        }
+        try {
+            String resourceId = storage.getMetaDataFieldForRecord(maxRecordId, Resource.META_INDEX_RESOURCE_ID);
+            return resourceId != null && resourceId.equals(maxRecordResourceId);
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    private void readRecords(int afterId) {
+        SqlStorageIterator<Resource> iterator = storage.iterate(false, INDEXED_METADATA, afterId);
+        while (iterator.hasMore()) {
+            String resourceId = iterator.peekIncludedMetadata(Resource.META_INDEX_RESOURCE_ID);
+            String parent = iterator.peekIncludedMetadata(Resource.META_INDEX_PARENT_GUID);
+            addRecord(iterator.nextID(), resourceId, parent);
+        }
+    }
+
+    private void addRecord(int recordId, String resourceId, String parent) {
+        recordsByResourceId.put(resourceId, recordId);
+        if (parent != null) {
+            Set<Integer> children = recordsByParent.get(parent);
+            if (children == null) {
+                children = new HashSet<>();
+                recordsByParent.put(parent, children);
+            }
+            children.add(recordId);
+        }
+        recordCount++;
+        if (recordId > maxRecordId) {
+            maxRecordId = recordId;
+            maxRecordResourceId = resourceId;
+        }
+        recordIdTotal += recordId;
+    }
+
+    private void clear() {
+        recordsByResourceId.clear();
+        recordsByParent.clear();
+        recordCount = 0;
+        maxRecordId = 0;
+        recordIdTotal = 0;
+        maxRecordResourceId = null;
+    }
+
+    private String getFingerprint() {
+        return recordCount + ":" + maxRecordId + ":" + recordIdTotal;
+    }
+
+    synchronized boolean isEmpty() {
+        sync();
+        return recordCount == 0;
+    }
+
+    synchronized boolean containsResource(String resourceId) {
+        sync();
+        return recordsByResourceId.containsKey(resourceId);
+    }
+
+    /**
+     * @return The storage id of the record for the resource, or -1 if it isn't in the table
+     */
+    synchronized int getRecordId(String resourceId) {
+        sync();
+        Integer recordId = recordsByResourceId.get(resourceId);
+        return recordId == null ? -1 : recordId;
+    }
+
+    /**
+     * @return The storage ids, in order, of the records whose parent is the provided resource guid
+     */
+    synchronized Set<Integer> getChildRecordIds(String parent) {
+        sync();
+        Set<Integer> children = recordsByParent.get(parent);
+        if (children == null) {
+            return Collections.emptySet();
+        }
+        return new TreeSet<>(children);
+    }
+}
@@ -14,13 +14,13 @@ import android.widget.TextView;
 
 import org.commcare.activities.CommCareWiFiDirectActivity;
 import org.commcare.dalvik.R;
-import org.commcare.utils.FileUtil;
+import org.commcare.utils.FormTransferProtocol;
 import org.javarosa.core.services.Logger;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 
@@ -37,7 +37,9 @@ public class FileServerFragment extends Fragment {
     private static TextView mStatusText;
     private View mView;
 
-    private static String receiveZipDirectory;
+    private static String receiveDirectory;
+    private static String pendingDirectory;
+    private static String legacyZipDirectory;
 
     private FileServerAsyncTask mFileServer;
 
@@ -65,10 +67,22 @@ public class FileServerFragment extends Fragment {
 
 
     public interface FileServerListener {
-        void onFormsCopied(String result);
+        void onFormsReceived(int formCount);
+
+        /**
+         * @param zipPath The zip of form records that was sent by an older version
+         */
+        void onFormsCopied(String zipPath);
     }
 
-    public void startServer(String mReceiveZipDirectory) {
+    /**
+     * @param mReceiveDirectory   Folder that received form records are placed in
+     * @param mPendingDirectory   Folder that form records are written to while they're being
+     *                            received, which must be outside of the receive directory
+     * @param mLegacyZipDirectory Folder that zips sent by older versions are saved to
+     */
+    public void startServer(String mReceiveDirectory, String mPendingDirectory,
+                            String mLegacyZipDirectory) {
         Logger.log(TAG, "File Server starting...");
 
         mStatusText.setText("Starting server");
@@ -79,7 +93,9 @@ public class FileServerFragment extends Fragment {
 
         mFileServer = new FileServerAsyncTask(this);
 
-        receiveZipDirectory = mReceiveZipDirectory;
+        receiveDirectory = mReceiveDirectory;
+        pendingDirectory = mPendingDirectory;
+        legacyZipDirectory = mLegacyZipDirectory;
 
         //Execute on a true multithreaded chain. We should probably replace all of our calls with this
         //but this is the big one for now.
@@ -91,13 +107,15 @@ public class FileServerFragment extends Fragment {
     }
 
     /**
-     * A simple server socket that accepts connection and writes some data on
-     * the stream.
+     * A simple server socket that accepts a connection and receives form records
+     * from it until the sender is done.
      */
-    static class FileServerAsyncTask extends AsyncTask<Void, String, String> {
+    static class FileServerAsyncTask extends AsyncTask<Void, String, Integer> {
 
         private final FileServerFragment mListener;
         private boolean socketOccupied;
+        private int formsReceived;
+        private String legacyZipPath;
 
         FileServerAsyncTask(FileServerFragment mListener) {
             this.mListener = mListener;
@@ -105,41 +123,44 @@ public class FileServerFragment extends Fragment {
         }
 
         @Override
-        protected String doInBackground(Void... params) {
+        protected Integer doInBackground(Void... params) {
 
             Logger.log(TAG, "Executing FileServerAsyncTask");
             socketOccupied = false;
+            formsReceived = 0;
+            legacyZipPath = null;
 
             try {
                 ServerSocket serverSocket = new ServerSocket(8988);
-                long time = System.currentTimeMillis();
-                String finalFileName = receiveZipDirectory + time + ".zip";
 
                 try {
-                    publishProgress("Ready to accept new file transfer.", null);
+                    publishProgress("Ready to accept new file transfer.");
                     Socket client = serverSocket.accept();
                     Logger.log(TAG, "Ready in wi-fi direct file server receive loop");
 
-                    final File f = new File(finalFileName);
-
-                    File dirs = new File(f.getParent());
-
-                    dirs.mkdirs();
-
-                    f.createNewFile();
-
-                    Log.d(TAG, "server: copying files " + f.toString());
-                    InputStream inputstream = client.getInputStream();
-                    CommCareWiFiDirectActivity.copyFile(inputstream, new FileOutputStream(f));
-                    publishProgress("copied files: " + f.getAbsolutePath(), f.getAbsolutePath());
-                    publishProgress("File Server Resetting", null);
-                    return f.getAbsolutePath();
+                    Log.d(TAG, "server: receiving forms into " + receiveDirectory);
+                    FormTransferProtocol.Receiver receiver = new FormTransferProtocol.Receiver(
+                            new BufferedInputStream(client.getInputStream()),
+                            new BufferedOutputStream(client.getOutputStream()));
+                    receiver.receiveRecords(new File(receiveDirectory), new File(pendingDirectory),
+                            new File(legacyZipDirectory), (recordKey, recordsReceived) -> {
+                                formsReceived = recordsReceived;
+                                publishProgress("received forms: " + recordsReceived);
+                            });
+                    if (receiver.getLegacyZip() != null) {
+                        legacyZipPath = receiver.getLegacyZip().getAbsolutePath();
+                        publishProgress("copied files: " + legacyZipPath);
+                    }
+                    publishProgress("File Server Resetting");
+                    return formsReceived;
 
                 } catch (IOException e) {
-                    String errorMessage = "File Server crashed after transfer with IO Exception: " + e.getMessage();
+                    String errorMessage = "File Server crashed after " + formsReceived +
+                            " forms with IO Exception: " + e.getMessage();
                     Logger.exception(errorMessage, e);
                     publishProgress(errorMessage);
-                    return null;
+                    // Forms that were fully received before the failure are kept
+                    return formsReceived;
                 } finally {
                     try {
                         serverSocket.close();
@@ -149,7 +170,7 @@ public class FileServerFragment extends Fragment {
                     }
                 }
             } catch (IOException ioe) {
-                publishProgress("Ready to accept new file transfer.", null);
+                publishProgress("Ready to accept new file transfer.");
                 Logger.log(TAG, "couldn't open socket!");
                 socketOccupied = true;
                 return null;
@@ -157,7 +178,7 @@ public class FileServerFragment extends Fragment {
         }
 
         @Override
-        protected void onPostExecute(String result) {
+        protected void onPostExecute(Integer result) {
             Log.e(TAG, "file server task post execute");
 
             if (socketOccupied) {
@@ -165,11 +186,14 @@ public class FileServerFragment extends Fragment {
                 return;
             }
 
-            if (result != null) {
-                mActivity.onFormsCopied(result);
+            if (result != null && result > 0) {
+                mActivity.onFormsReceived(result);
+            }
+            if (legacyZipPath != null) {
+                mActivity.onFormsCopied(legacyZipPath);
             }
             Logger.log(TAG, "file server post-execute, relaunching server");
-            mListener.startServer(receiveZipDirectory);
+            mListener.startServer(receiveDirectory, pendingDirectory, legacyZipDirectory);
         }
 
         @Override
@@ -33,5 +33,14 @@ public interface CommcareRequestEndpoints {
      */
     Response<ResponseBody> simpleGet(String uri, Map<String, String> httpParams) throws IOException;
 
+    /**
+     * Synchronous GET request
+     *
+     * @param httpParams non URL-Encoded parameters to include in the HTTP request with the URL
+     * @param headers    headers to send in addition to the standard ones
+     */
+    Response<ResponseBody> simpleGet(String uri, Map<String, String> httpParams,
+                                     Map<String, String> headers) throws IOException;
+
     void abortCurrentRequest();
 }
@@ -2,12 +2,12 @@ package org.commcare.logging;
 
 import org.commcare.android.javarosa.AndroidLogEntry;
 import org.commcare.models.database.SqlStorage;
-import org.javarosa.core.log.LogEntry;
 import org.javarosa.core.log.StreamLogSerializer;
-import org.javarosa.core.services.storage.EntityFilter;
 import org.javarosa.core.util.SortedIntSet;
 
-import java.util.Hashtable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Implementation of a log purger shared by all Android log serializers
@@ -16,24 +16,43 @@ import java.util.Hashtable;
  */
 public class AndroidLogPurger<T extends AndroidLogEntry> implements StreamLogSerializer.Purger {
 
+    /**
+     * Number of log rows read from storage at a time when serializing in id order
+     */
+    private static final int READ_CHUNK_SIZE = 500;
+
     private final SqlStorage<T> logStorage;
 
     public AndroidLogPurger(SqlStorage<T> logStorage) {
         this.logStorage = logStorage;
     }
 
-    @Override
-    public void purge(final SortedIntSet IDs) {
-        logStorage.removeAll(new EntityFilter<LogEntry>() {
-            @Override
-            public int preFilter(int id, Hashtable<String, Object> metaData) {
-                return IDs.contains(id) ? PREFILTER_INCLUDE : PREFILTER_EXCLUDE;
+    /**
+     * Walks every log entry in storage in id order, a chunk of rows at a time, passing each
+     * one to the serializer
+     */
+    public void serializeAllInIdOrder(StreamLogSerializer serializer) throws IOException {
+        int lastReadId = -1;
+        List<T> chunk;
+        do {
+            chunk = logStorage.readRecordsAfterId(lastReadId, READ_CHUNK_SIZE);
+            for (T entry : chunk) {
+                serializer.serializeLog(entry.getID(), entry);
+                lastReadId = entry.getID();
             }
+        } while (chunk.size() == READ_CHUNK_SIZE);
+    }
 
-            @Override
-            public boolean matches(LogEntry e) {
-                throw new RuntimeException("can't happen");
-            }
-        });
+    /**
+     * Removes exactly the entries with the given ids, in batched deletes, without walking the
+     * rest of the log storage
+     */
+    @Override
+    public void purge(final SortedIntSet IDs) {
+        List<Integer> idsToRemove = new ArrayList<>(IDs.size());
+        for (int i = 0; i < IDs.size(); i++) {
+            idsToRemove.add(IDs.get(i));
+        }
+        logStorage.remove(idsToRemove);
     }
 }
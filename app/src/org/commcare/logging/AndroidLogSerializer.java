@@ -18,15 +18,15 @@ public class AndroidLogSerializer <T extends AndroidLogEntry>
     private XmlSerializer serializer;
 
     private AndroidLogEntry singleEntry;
-    private SqlStorage<T> logStorage;
+    private AndroidLogPurger<T> purger;
 
     public AndroidLogSerializer(AndroidLogEntry entry) {
         this.singleEntry = entry;
     }
 
     public AndroidLogSerializer(final SqlStorage<T> logStorage) {
-        this.logStorage = logStorage;
-        this.setPurger(new AndroidLogPurger<>(logStorage));
+        this.purger = new AndroidLogPurger<>(logStorage);
+        this.setPurger(purger);
     }
 
     @Override
@@ -68,9 +68,7 @@ public class AndroidLogSerializer <T extends AndroidLogEntry>
                 serializeLog(singleEntry.getID(), singleEntry);
             }
             else {
-                for (AndroidLogEntry entry : logStorage) {
-                    serializeLog(entry.getID(), entry);
-                }
+                purger.serializeAllInIdOrder(this);
             }
         } finally {
             serializer.endTag(DeviceReportWriter.XMLNS, "log_subreport");
@@ -1,83 +1,271 @@
-package org.commcare.logging;
-
-import org.commcare.android.javarosa.AndroidLogEntry;
-import org.commcare.models.database.SqlStorage;
-import org.javarosa.core.api.ILogger;
-import org.javarosa.core.log.IFullLogSerializer;
-import org.javarosa.core.log.LogEntry;
-import org.javarosa.core.log.StreamLogSerializer;
-
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Date;
-
-/**
- * Logging engine for CommCare ODK Environments.
- *
- * @author ctsims
- */
-public class AndroidLogger implements ILogger {
-
-    //TODO: Currently assumes that it gets back iterated records in RecordID order.
-    //when serializing a limited number of records then clearing
-
-    private final SqlStorage<AndroidLogEntry> storage;
-
-
-    public AndroidLogger(SqlStorage<AndroidLogEntry> storage) {
-        this.storage = storage;
-    }
-
-    @Override
-    public void log(String type, String message, Date logDate) {
-        storage.write(new AndroidLogEntry(type, message, logDate));
-    }
-
-    @Override
-    public void clearLogs() {
-        storage.removeAll();
-    }
-
-    @Override
-    public <T> T serializeLogs(IFullLogSerializer<T> serializer) {
-        ArrayList<LogEntry> logs = new ArrayList<>();
-        for (AndroidLogEntry entry : storage) {
-            logs.add(entry);
-        }
-        return serializer.serializeLogs(logs.toArray(new LogEntry[logs.size()]));
-    }
-
-    @Override
-    public void serializeLogs(StreamLogSerializer serializer) throws IOException {
-        for (AndroidLogEntry entry : storage) {
-            serializer.serializeLog(entry.getID(), entry);
-        }
-    }
-
-    @Override
-    public void serializeLogs(StreamLogSerializer serializer, int limit) throws IOException {
-        int count = 0;
-        for (AndroidLogEntry entry : storage) {
-            serializer.serializeLog(entry.getID(), entry);
-            count++;
-            if (count > limit) {
-                break;
-            }
-        }
-    }
-
-    @Override
-    public void panic() {
-        //Unclear
-    }
-
-    @Override
-    public int logSize() {
-        return storage.getNumRecords();
-    }
-
-    @Override
-    public void halt() {
-        //Meh.
-    }
-}
+package org.commcare.logging;
+
+import android.util.Log;
+
+import org.commcare.android.javarosa.AndroidLogEntry;
+import org.commcare.models.database.SqlStorage;
+import org.commcare.util.LogTypes;
+import org.javarosa.core.api.ILogger;
+import org.javarosa.core.log.IFullLogSerializer;
+import org.javarosa.core.log.LogEntry;
+import org.javarosa.core.log.StreamLogSerializer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Logging engine for CommCare ODK Environments.
+ *
+ * In async mode log entries are buffered in a bounded in-memory queue and written to storage
+ * in batched transactions on a background thread, rather than each log call running its own
+ * transaction on the calling thread. Entries that arrive while the buffer is full are dropped
+ * and counted. Async mode is opt-in, and only one async logger is active at a time; creating
+ * a new one halts the previous one.
+ *
+ * @author ctsims
+ */
+public class AndroidLogger implements ILogger {
+    private static final String TAG = AndroidLogger.class.getSimpleName();
+
+    private static final int ASYNC_BUFFER_CAPACITY = 1000;
+    private static final long ASYNC_FLUSH_DELAY_MS = 1000;
+    private static final int SERIALIZE_CHUNK_SIZE = 500;
+
+    /**
+     * The most recently created async logger, which needs to be flushed before the process
+     * dies or its storage goes away
+     */
+    private static volatile AndroidLogger asyncLogger;
+
+    //TODO: Currently assumes that it gets back iterated records in RecordID order.
+    //when serializing a limited number of records then clearing
+
+    private final SqlStorage<AndroidLogEntry> storage;
+
+    private final boolean isAsync;
+    private final ConcurrentLinkedQueue<AndroidLogEntry> pendingEntries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicInteger droppedCount = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Object flushLock = new Object();
+    private volatile ScheduledExecutorService flushExecutor;
+
+    public AndroidLogger(SqlStorage<AndroidLogEntry> storage) {
+        this(storage, false);
+    }
+
+    /**
+     * @param isAsync Buffer log entries and write them in batches on a background thread
+     */
+    public AndroidLogger(SqlStorage<AndroidLogEntry> storage, boolean isAsync) {
+        this.storage = storage;
+        this.isAsync = isAsync;
+        if (isAsync) {
+            flushExecutor = Executors.newSingleThreadScheduledExecutor();
+            AndroidLogger previous = asyncLogger;
+            asyncLogger = this;
+            if (previous != null) {
+                previous.halt();
+            }
+        }
+    }
+
+    /**
+     * Synchronously writes out any entries buffered by the current async logger. Should be
+     * called when the process is about to die.
+     */
+    public static void flushPendingLogs() {
+        AndroidLogger logger = asyncLogger;
+        if (logger != null) {
+            logger.flush();
+        }
+    }
+
+    /**
+     * Writes out any entries buffered by the current async logger and stops its background
+     * thread, so that it writes any further entries synchronously. Must be called before the
+     * logger's storage is closed.
+     */
+    public static void haltAsyncLogger() {
+        AndroidLogger logger = asyncLogger;
+        if (logger != null) {
+            logger.halt();
+        }
+    }
+
+    @Override
+    public void log(String type, String message, Date logDate) {
+        AndroidLogEntry entry = new AndroidLogEntry(type, message, logDate);
+        if (!isAsync || flushExecutor == null) {
+            storage.write(entry);
+            return;
+        }
+
+        if (pendingCount.incrementAndGet() > ASYNC_BUFFER_CAPACITY) {
+            pendingCount.decrementAndGet();
+            droppedCount.incrementAndGet();
+        } else {
+            pendingEntries.offer(entry);
+        }
+        if (flushExecutor == null) {
+            // Halted after this entry was checked above, and the halt's own flush may already
+            // have run, so the entry has to be written out here
+            flush();
+        } else {
+            scheduleFlush();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            ScheduledExecutorService executor = flushExecutor;
+            if (executor == null) {
+                flushScheduled.set(false);
+                return;
+            }
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushScheduled.set(false);
+                    flush();
+                }
+            }, ASYNC_FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes all buffered entries to storage in a single transaction
+     */
+    public void flush() {
+        if (!isAsync) {
+            return;
+        }
+        synchronized (flushLock) {
+            List<AndroidLogEntry> batch = new ArrayList<>();
+            AndroidLogEntry entry;
+            while ((entry = pendingEntries.poll()) != null) {
+                pendingCount.decrementAndGet();
+                batch.add(entry);
+            }
+            int dropped = droppedCount.getAndSet(0);
+            if (dropped > 0) {
+                batch.add(new AndroidLogEntry(LogTypes.TYPE_MAINTENANCE,
+                        "Dropped " + dropped + " log entries because the log buffer was full",
+                        new Date()));
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                storage.writeAll(batch);
+            } catch (Exception e) {
+                // Logging must never take down the caller; the storage is most likely closed
+                Log.e(TAG, "Unable to write " + batch.size() + " buffered log entries", e);
+            }
+        }
+    }
+
+    /**
+     * @return The number of entries dropped because the buffer was full, since the last flush
+     */
+    public int getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public void clearLogs() {
+        flush();
+        storage.removeAll();
+    }
+
+    @Override
+    public <T> T serializeLogs(IFullLogSerializer<T> serializer) {
+        flush();
+        // The serializer takes every entry in a single array, so that array is filled straight
+        // from chunked reads rather than copied over from a list of every entry
+        LogEntry[] logs = new LogEntry[storage.getNumRecords()];
+        int count = 0;
+        int lastReadId = -1;
+        List<AndroidLogEntry> chunk;
+        while (count < logs.length
+                && !(chunk = storage.readRecordsAfterId(lastReadId,
+                Math.min(logs.length - count, SERIALIZE_CHUNK_SIZE))).isEmpty()) {
+            for (AndroidLogEntry entry : chunk) {
+                logs[count++] = entry;
+                lastReadId = entry.getID();
+            }
+        }
+        if (count < logs.length) {
+            // Entries were removed since they were counted
+            logs = Arrays.copyOf(logs, count);
+        }
+        return serializer.serializeLogs(logs);
+    }
+
+    @Override
+    public void serializeLogs(StreamLogSerializer serializer) throws IOException {
+        flush();
+        int lastReadId = -1;
+        List<AndroidLogEntry> chunk;
+        while (!(chunk = storage.readRecordsAfterId(lastReadId, SERIALIZE_CHUNK_SIZE)).isEmpty()) {
+            for (AndroidLogEntry entry : chunk) {
+                serializer.serializeLog(entry.getID(), entry);
+                lastReadId = entry.getID();
+            }
+        }
+    }
+
+    @Override
+    public void serializeLogs(StreamLogSerializer serializer, int limit) throws IOException {
+        flush();
+        int count = 0;
+        int lastReadId = -1;
+        List<AndroidLogEntry> chunk;
+        do {
+            // Only read as many rows as the limit could still use
+            chunk = storage.readRecordsAfterId(lastReadId, Math.min(limit - count, SERIALIZE_CHUNK_SIZE - 1) + 1);
+            for (AndroidLogEntry entry : chunk) {
+                serializer.serializeLog(entry.getID(), entry);
+                lastReadId = entry.getID();
+                count++;
+                if (count > limit) {
+                    return;
+                }
+            }
+        } while (!chunk.isEmpty());
+    }
+
+    @Override
+    public void panic() {
+        flush();
+    }
+
+    @Override
+    public int logSize() {
+        flush();
+        return storage.getNumRecords();
+    }
+
+    @Override
+    public void halt() {
+        // Stop accepting buffered entries before the final flush, so nothing is left behind
+        ScheduledExecutorService executor = flushExecutor;
+        flushExecutor = null;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        flush();
+        if (asyncLogger == this) {
+            asyncLogger = null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.commcare.logging;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.commcare.util.LogTypes;
+import org.javarosa.core.services.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records how long each phase of application startup takes, so that slow cold starts on
+ * devices in the field can be broken down after the fact.
+ *
+ * Phases can be timed from any thread; those that ran off the main thread are marked as such
+ * in the report, since they overlap with the main thread's work rather than adding to it.
+ */
+public class StartupTrace {
+    private static final String TAG = StartupTrace.class.getSimpleName();
+
+    private final long startTime;
+    private final List<String> phases = new ArrayList<>();
+    private long endTime = -1;
+
+    public StartupTrace() {
+        this.startTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return The start time to pass to {@link #endPhase} once the phase is done
+     */
+    public long beginPhase() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    public void endPhase(String phaseName, long phaseStart) {
+        long duration = SystemClock.elapsedRealtime() - phaseStart;
+        boolean onMainThread = Looper.myLooper() == Looper.getMainLooper();
+        synchronized (phases) {
+            phases.add(phaseName + "=" + duration + "ms" + (onMainThread ? "" : " (background)"));
+        }
+    }
+
+    public void runPhase(String phaseName, Runnable phase) {
+        long phaseStart = beginPhase();
+        phase.run();
+        endPhase(phaseName, phaseStart);
+    }
+
+    /**
+     * Mark the point at which the main thread finished its part of startup
+     */
+    public void markMainThreadDone() {
+        endTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Write the phase timings to the device logs
+     */
+    public void report() {
+        String summary = getSummary();
+        Log.i(TAG, summary);
+        Logger.log(LogTypes.TYPE_MAINTENANCE, summary);
+    }
+
+    String getSummary() {
+        synchronized (phases) {
+            long mainThreadTime = (endTime == -1 ? SystemClock.elapsedRealtime() : endTime) - startTime;
+            return "Application startup took " + mainThreadTime + "ms on the main thread: " +
+                    phases.toString();
+        }
+    }
+}
@@ -16,7 +16,7 @@ import java.io.IOException;
 public class XPathErrorSerializer
         extends StreamLogSerializer
         implements DeviceReportElement {
-    private final SqlStorage<XPathErrorEntry> errorLogStorage;
+    private final AndroidLogPurger<XPathErrorEntry> purger;
     private XmlSerializer serializer;
 
     /**
@@ -25,8 +25,8 @@ public class XPathErrorSerializer
     private static final int ERROR_FORMAT_VERSION = 1;
 
     public XPathErrorSerializer(final SqlStorage<XPathErrorEntry> logStorage) {
-        errorLogStorage = logStorage;
-        this.setPurger(new AndroidLogPurger<>(errorLogStorage));
+        purger = new AndroidLogPurger<>(logStorage);
+        this.setPurger(purger);
     }
 
     @Override
@@ -37,9 +37,7 @@ public class XPathErrorSerializer
         serializer.attribute(null, "version", ERROR_FORMAT_VERSION + "");
 
         try {
-            for (XPathErrorEntry entry : errorLogStorage) {
-                serializeLog(entry.getID(), entry);
-            }
+            purger.serializeAllInIdOrder(this);
         } finally {
             serializer.endTag(DeviceReportWriter.XMLNS, "user_error_subreport");
         }
@@ -0,0 +1,205 @@
+package org.commcare.logic;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+
+import org.commcare.CommCareApplication;
+import org.commcare.android.logging.ForceCloseLogger;
+import org.commcare.preferences.DeveloperPreferences;
+import org.commcare.util.LogTypes;
+import org.commcare.utils.FileUtil;
+import org.commcare.utils.GlobalConstants;
+import org.javarosa.core.io.StreamsUtil;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.services.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Caches compiled form definitions so that opening a form doesn't require parsing its xml.
+ *
+ * Serialized forms live in the app's cache directory, keyed by the md5 of the form's xml as
+ * recorded in its FormDefRecord. On top of that, a small in-memory LRU holds deserialized
+ * FormDefs for the forms opened more than once during the current session. Initializing a
+ * FormDef mutates it, so an in-memory entry is handed out at most once and then rebuilt on a
+ * background thread. In-memory entries are keyed by whether expression caching was enabled
+ * when they were deserialized, so changing that setting takes effect on the next open.
+ */
+public class FormDefCache {
+    private static final String TAG = FormDefCache.class.getSimpleName();
+
+    private static final int MAX_IN_MEMORY_FORMS = 4;
+
+    private static final LruCache<String, FormDef> uninitializedForms =
+            new LruCache<>(MAX_IN_MEMORY_FORMS);
+    /**
+     * Forms opened during the current session. A spare in-memory copy is only built for forms
+     * opened again, so that a form opened once is only ever deserialized once.
+     */
+    private static final LruCache<String, Boolean> openedForms =
+            new LruCache<>(MAX_IN_MEMORY_FORMS);
+
+    private static final ExecutorService warmingExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * @return An uninitialized FormDef for the form with the given hash, if one is in memory.
+     * The FormDef is removed from the cache, so the caller owns it.
+     */
+    public static FormDef takeFormDef(String formHash) {
+        return uninitializedForms.remove(getMemoryKey(formHash,
+                DeveloperPreferences.useExpressionCachingInForms()));
+    }
+
+    /**
+     * Should be called once a form has been loaded. If the form was already opened earlier in
+     * this session, the in-memory copy it just consumed is replaced on a background thread, so
+     * that the next open of the form doesn't need to read it from disk.
+     */
+    public static void onFormOpened(String formHash) {
+        if (openedForms.put(formHash, Boolean.TRUE) != null) {
+            warmInBackground(formHash);
+        }
+    }
+
+    private static void warmInBackground(final String formHash) {
+        final boolean expressionCaching = DeveloperPreferences.useExpressionCachingInForms();
+        final String memoryKey = getMemoryKey(formHash, expressionCaching);
+        warmingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (uninitializedForms.get(memoryKey) != null) {
+                    return;
+                }
+                try {
+                    File formBin = getCachedFormFile(formHash);
+                    if (formBin.exists()) {
+                        FormDef fd = deserializeFormDef(CommCareApplication.instance(), formBin,
+                                expressionCaching);
+                        if (fd != null) {
+                            uninitializedForms.put(memoryKey, fd);
+                        }
+                    }
+                } catch (Exception e) {
+                    // The app may have been closed out from under us; the form will just be
+                    // read from disk next time
+                    Log.w(TAG, "Unable to warm form " + formHash, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drop all in-memory forms, e.g. when the user session that opened them ends
+     */
+    public static void clear() {
+        uninitializedForms.evictAll();
+        openedForms.evictAll();
+    }
+
+    private static String getMemoryKey(String formHash, boolean expressionCaching) {
+        return expressionCaching ? formHash + "+expression-caching" : formHash;
+    }
+
+    /**
+     * Write the binary for a freshly parsed form so that it never needs to be parsed from xml
+     * on open. Failures are logged, since the cache is only an optimization.
+     */
+    public static void precompile(FormDef fd, File formXml) {
+        try {
+            String formHash = FileUtil.getMd5Hash(formXml);
+            if (formHash != null) {
+                serializeFormDef(fd, formHash);
+            }
+        } catch (Exception e) {
+            Logger.log(LogTypes.TYPE_RESOURCES, "XForm " + formXml.getName() +
+                    " could not be precompiled. Error trace:\n" + ForceCloseLogger.getStackTrace(e));
+        }
+    }
+
+    /**
+     * Read serialized {@link FormDef} from file and recreate as object.
+     */
+    public static FormDef deserializeFormDef(Context context, File formDefFile) {
+        return deserializeFormDef(context, formDefFile,
+                DeveloperPreferences.useExpressionCachingInForms());
+    }
+
+    private static FormDef deserializeFormDef(Context context, File formDefFile,
+                                              boolean expressionCaching) {
+        FileInputStream fis = null;
+        DataInputStream dis = null;
+        FormDef fd;
+        try {
+            // create new form def
+            fd = new FormDef(expressionCaching);
+            fis = new FileInputStream(formDefFile);
+            dis = new DataInputStream(new BufferedInputStream(fis));
+
+            // read serialized formdef into new formdef
+            fd.readExternal(dis, CommCareApplication.instance().getPrototypeFactory(context));
+        } catch (Throwable e) {
+            Log.e(TAG, "Unable to deserialize " + formDefFile.getAbsolutePath(), e);
+            fd = null;
+        } finally {
+            StreamsUtil.closeStream(fis);
+            StreamsUtil.closeStream(dis);
+        }
+
+        return fd;
+    }
+
+    /**
+     * Write the FormDef to the file system as a binary blob, unless one already exists for
+     * the given hash.
+     */
+    public static void serializeFormDef(FormDef fd, String formHash) throws IOException {
+        File formDef = getCachedFormFile(formHash);
+
+        // create a serialized form file if there isn't already one at this hash
+        if (!formDef.exists()) {
+            // write to a temp file first so a partial write never looks like a valid cache entry
+            File tempFile = new File(formDef.getAbsolutePath() + ".tmp");
+            DataOutputStream dos = null;
+            boolean written = false;
+            try {
+                dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+                fd.writeExternal(dos);
+                dos.flush();
+                written = true;
+            } finally {
+                //make sure we clean up the stream
+                if (dos != null) {
+                    try {
+                        dos.close();
+                    } catch (IOException e) {
+                        // Swallow this. If we threw an exception from inside the
+                        // try, this close exception will trump it on the return
+                        // path, and we care a lot more about that exception
+                        // than this one.
+                    }
+                }
+                if (!written) {
+                    tempFile.delete();
+                }
+            }
+            if (!tempFile.renameTo(formDef)) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    public static File getCachedFormFile(String formHash) {
+        return new File(CommCareApplication.instance().getCurrentApp().
+                fsPath(GlobalConstants.FILE_CC_CACHE) + "/" + formHash + ".formdef");
+    }
+}
@@ -0,0 +1,133 @@
+package org.commcare.logic;
+
+import android.util.Log;
+
+import org.commcare.CommCareApp;
+import org.commcare.CommCareApplication;
+import org.commcare.android.logging.ForceCloseLogger;
+import org.commcare.dalvik.BuildConfig;
+import org.commcare.suite.model.Suite;
+import org.commcare.util.LogTypes;
+import org.commcare.utils.FileUtil;
+import org.commcare.utils.GlobalConstants;
+import org.javarosa.core.io.StreamsUtil;
+import org.javarosa.core.services.Logger;
+import org.javarosa.core.util.externalizable.ExtUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Caches parsed suites so that initializing an installed app doesn't require re-parsing the
+ * suite xml on every start.
+ *
+ * Serialized suites live in the app's cache directory, keyed by the md5 of the suite's xml.
+ * Each snapshot also records the format version and the CommCare build that wrote it, since
+ * the serialized form of the suite models can change between builds. A snapshot that doesn't
+ * match on all of those is ignored and the suite is parsed from xml instead.
+ */
+public class SuiteCache {
+    private static final String TAG = SuiteCache.class.getSimpleName();
+
+    private static final int SNAPSHOT_FORMAT_VERSION = 1;
+
+    /**
+     * @return The suite stored for the provided suite xml, or null if there is no valid
+     * snapshot for it
+     */
+    public static Suite loadSuite(CommCareApp app, File suiteXml) {
+        String suiteHash = FileUtil.getMd5Hash(suiteXml);
+        if (suiteHash == null) {
+            return null;
+        }
+        File snapshot = getSnapshotFile(app, suiteHash);
+        if (!snapshot.exists()) {
+            return null;
+        }
+
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+            if (ExtUtil.readInt(dis) != SNAPSHOT_FORMAT_VERSION ||
+                    ExtUtil.readInt(dis) != BuildConfig.VERSION_CODE ||
+                    !suiteHash.equals(ExtUtil.readString(dis))) {
+                Log.d(TAG, "Discarding out of date suite snapshot " + snapshot.getName());
+                snapshot.delete();
+                return null;
+            }
+            Suite suite = new Suite();
+            suite.readExternal(dis, CommCareApplication.instance().getPrototypeFactory(CommCareApplication.instance()));
+            return suite;
+        } catch (Throwable e) {
+            // A damaged snapshot just means paying for the xml parse this once
+            Log.e(TAG, "Unable to deserialize suite snapshot " + snapshot.getAbsolutePath(), e);
+            snapshot.delete();
+            return null;
+        } finally {
+            StreamsUtil.closeStream(dis);
+        }
+    }
+
+    /**
+     * Write the binary for a freshly parsed suite so that it doesn't need to be parsed from
+     * xml on the next start. Failures are logged, since the cache is only an optimization.
+     */
+    public static void storeSuite(CommCareApp app, Suite suite, File suiteXml) {
+        try {
+            String suiteHash = FileUtil.getMd5Hash(suiteXml);
+            if (suiteHash != null) {
+                serializeSuite(getSnapshotFile(app, suiteHash), suite, suiteHash);
+            }
+        } catch (Exception e) {
+            Logger.log(LogTypes.TYPE_RESOURCES, "Suite " + suiteXml.getName() +
+                    " could not be cached. Error trace:\n" + ForceCloseLogger.getStackTrace(e));
+        }
+    }
+
+    /**
+     * Remove the snapshot for the provided suite xml, if there is one
+     */
+    public static void removeSuite(CommCareApp app, File suiteXml) {
+        if (!suiteXml.exists()) {
+            return;
+        }
+        String suiteHash = FileUtil.getMd5Hash(suiteXml);
+        if (suiteHash != null) {
+            getSnapshotFile(app, suiteHash).delete();
+        }
+    }
+
+    private static void serializeSuite(File snapshot, Suite suite, String suiteHash) throws IOException {
+        // write to a temp file first so a partial write never looks like a valid snapshot
+        File tempFile = new File(snapshot.getAbsolutePath() + ".tmp");
+        DataOutputStream dos = null;
+        boolean written = false;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            ExtUtil.writeNumeric(dos, SNAPSHOT_FORMAT_VERSION);
+            ExtUtil.writeNumeric(dos, BuildConfig.VERSION_CODE);
+            ExtUtil.writeString(dos, suiteHash);
+            suite.writeExternal(dos);
+            dos.flush();
+            written = true;
+        } finally {
+            StreamsUtil.closeStream(dos);
+            if (!written) {
+                tempFile.delete();
+            }
+        }
+        if (!tempFile.renameTo(snapshot)) {
+            tempFile.delete();
+        }
+    }
+
+    private static File getSnapshotFile(CommCareApp app, String suiteHash) {
+        return new File(app.fsPath(GlobalConstants.FILE_CC_CACHE) + "/" + suiteHash + ".suite");
+    }
+}
@@ -21,11 +21,14 @@ import org.javarosa.xml.util.UnfullfilledRequirementsException;
 import org.kxml2.io.KXmlParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
@@ -48,6 +51,8 @@ public class FormRecordProcessor {
 
     private boolean isPurgePending = false;
 
+    private final Set<String> casesPendingPurge = new HashSet<>();
+
     public FormRecordProcessor(Context c) {
         this.c = c;
         storage = CommCareApplication.instance().getUserStorage(FormRecord.class);
@@ -60,13 +65,28 @@ public class FormRecordProcessor {
     public FormRecord process(FormRecord record)
             throws InvalidStructureException, IOException, XmlPullParserException,
             UnfullfilledRequirementsException {
-        String form = record.getFilePath();
+        return process(record, null);
+    }
+
+    /**
+     * @param instanceXml The plain contents of the full form instance, if they're already in
+     *                    memory, or null to read the record's encrypted file
+     */
+    public FormRecord process(FormRecord record, byte[] instanceXml)
+            throws InvalidStructureException, IOException, XmlPullParserException,
+            UnfullfilledRequirementsException {
+        InputStream is;
+        if (instanceXml != null) {
+            is = new ByteArrayInputStream(instanceXml);
+        } else {
+            String form = record.getFilePath();
 
-        final File f = new File(form);
+            final File f = new File(form);
 
-        final Cipher decrypter =
-                FormUploadUtil.getDecryptCipher((new SecretKeySpec(record.getAesKey(), "AES")));
-        InputStream is = new CipherInputStream(new FileInputStream(f), decrypter);
+            final Cipher decrypter =
+                    FormUploadUtil.getDecryptCipher((new SecretKeySpec(record.getAesKey(), "AES")));
+            is = new CipherInputStream(new FileInputStream(f), decrypter);
+        }
 
         AndroidTransactionParserFactory factory = new AndroidTransactionParserFactory(c, null) {
             @Override
@@ -93,6 +113,7 @@ public class FormRecordProcessor {
         FormRecord updatedRecord =  updateRecordStatus(record, FormRecord.STATUS_UNSENT);
 
         if(factory.wereCaseIndexesDisrupted()) {
+            casesPendingPurge.addAll(factory.getDisruptedCases());
             if(isBulkProcessing) {
                 isPurgePending = true;
             } else {
@@ -127,8 +148,9 @@ public class FormRecordProcessor {
 
     private void performPurge() {
         if(DeveloperPreferences.isAutoPurgeEnabled()) {
-            CaseUtils.purgeCases();
+            CaseUtils.purgeCases(casesPendingPurge);
         }
+        casesPendingPurge.clear();
     }
 
     public void beginBulkSubmit() {
@@ -5,6 +5,7 @@ import android.content.Context;
 import android.util.Log;
 
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
 
 import org.commcare.CommCareApplication;
 import org.commcare.modern.database.DatabaseHelper;
@@ -16,6 +17,7 @@ import org.javarosa.core.util.externalizable.Externalizable;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -37,6 +39,14 @@ public abstract class AndroidDbHelper extends DatabaseHelper {
 
     public abstract SQLiteDatabase getHandle();
 
+    /**
+     * @return A handle for queries that don't write, which may be a separate read-only
+     * connection to the same database
+     */
+    public SQLiteDatabase getReadHandle() {
+        return getHandle();
+    }
+
     public ContentValues getContentValues(Externalizable e) {
         ContentValues contentValues = new ContentValues();
         HashMap<String, Object> metaFieldsAndValues = DatabaseHelper.getMetaFieldsAndValues(e);
@@ -83,6 +93,43 @@ public abstract class AndroidDbHelper extends DatabaseHelper {
         }
     }
 
+    /**
+     * Collects the metadata and serialized data of an object into a column/value map that only
+     * contains values which can be bound directly onto a compiled statement.
+     */
+    public HashMap<String, Object> getBindableValues(Externalizable e) {
+        HashMap<String, Object> metaFieldsAndValues = DatabaseHelper.getMetaFieldsAndValues(e);
+        Iterator<Map.Entry<String, Object>> entries = metaFieldsAndValues.entrySet().iterator();
+        while (entries.hasNext()) {
+            Object obj = entries.next().getValue();
+            if (obj instanceof byte[]) {
+                checkBlobSize((byte[])obj);
+            } else if (!(obj instanceof String || obj instanceof Integer || obj instanceof Long)) {
+                Log.w(TAG, "Couldn't determine type of object: " + obj);
+                entries.remove();
+            }
+        }
+        return metaFieldsAndValues;
+    }
+
+    /**
+     * Binds a value produced by getBindableValues onto the (1-based) argument index of the
+     * provided statement
+     */
+    public static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value instanceof String) {
+            statement.bindString(index, (String)value);
+        } else if (value instanceof Integer) {
+            statement.bindLong(index, (Integer)value);
+        } else if (value instanceof Long) {
+            statement.bindLong(index, (Long)value);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[])value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
     private static void checkBlobSize(byte[] blob) {
         int blobSize = blob.length;
         if (blobSize > HybridFileBackedSqlStorage.ONE_MB_DB_SIZE_LIMIT) {
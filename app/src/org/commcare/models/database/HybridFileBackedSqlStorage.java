@@ -26,7 +26,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Vector;
@@ -304,6 +306,7 @@ public class HybridFileBackedSqlStorage<T extends Persistable> extends SqlStorag
         } finally {
             if (startedTransaction) {
                 db.endTransaction();
+                recordSetChanged();
             }
         }
     }
@@ -351,6 +354,32 @@ public class HybridFileBackedSqlStorage<T extends Persistable> extends SqlStorag
         return new DataOutputStream(EncryptionIO.createFileOutputStream(filename, aesKey));
     }
 
+    /**
+     * Records may need to be stored on the filesystem, so batch writes can't share compiled
+     * statements; write each record individually inside of a single transaction instead.
+     */
+    @Override
+    public List<Integer> writeAll(Collection<? extends Persistable> records) {
+        List<Integer> ids = new ArrayList<>(records.size());
+        List<Integer> updatedIds = new ArrayList<>();
+        SQLiteDatabase db = getDbOrThrow();
+        db.beginTransaction();
+        try {
+            for (Persistable persistable : records) {
+                if (persistable.getID() != -1) {
+                    updatedIds.add(persistable.getID());
+                }
+                write(persistable);
+                ids.add(persistable.getID());
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            invalidateCachedRecords(updatedIds);
+        }
+        return ids;
+    }
+
     @Override
     public int add(Externalizable externalizable) {
         throw new UnsupportedOperationException("Use 'SqlFileBackedStorage.write'");
@@ -401,6 +430,7 @@ public class HybridFileBackedSqlStorage<T extends Persistable> extends SqlStorag
             if(startedTransaction) {
                 db.endTransaction();
             }
+            invalidateCachedRecord(id);
         }
     }
 
@@ -458,6 +488,8 @@ public class HybridFileBackedSqlStorage<T extends Persistable> extends SqlStorag
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
+            invalidateCachedRecord(id);
+            recordSetChanged();
         }
 
         if (filename != null) {
@@ -482,6 +514,8 @@ public class HybridFileBackedSqlStorage<T extends Persistable> extends SqlStorag
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
+                invalidateCachedRecords(ids);
+                recordSetChanged();
             }
 
             HybridFileBackedSqlHelpers.removeFiles(filesToRemove);
@@ -490,7 +524,12 @@ public class HybridFileBackedSqlStorage<T extends Persistable> extends SqlStorag
 
     @Override
     public void removeAll() {
-        wipeTable(getDbOrThrow(), table);
+        try {
+            wipeTable(getDbOrThrow(), table);
+        } finally {
+            invalidateRecordCache();
+            recordSetChanged();
+        }
         FileUtil.deleteFileOrDir(dbDir);
     }
 
@@ -530,6 +569,8 @@ public class HybridFileBackedSqlStorage<T extends Persistable> extends SqlStorag
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
+                invalidateCachedRecords(removed);
+                recordSetChanged();
             }
 
             HybridFileBackedSqlHelpers.removeFiles(filesToRemove);
@@ -16,6 +16,10 @@ import org.javarosa.core.services.storage.Persistable;
  * <p/>
  * which is notable less verbose for densely packed datasets.
  * <p/>
+ * The gaps can also be provided as inclusive ranges, one [start, end] row per run of missing
+ * ids, in which case the same ID set would be produced from the return set
+ * [(4, 4), (8, 9), (12, 12)]
+ * <p/>
  * This cursor is not threadsafe.
  *
  * @author ctsims
@@ -46,6 +50,17 @@ public class IndexSpanningIterator<T extends Persistable> extends SqlStorageIter
      */
     private int nextGap;
 
+    /**
+     * The last integer of the gap starting at nextGap which will _not_ be included in the
+     * result set
+     */
+    private int nextGapEnd;
+
+    /**
+     * Whether each cursor row is an inclusive [start, end] range of gaps rather than a single gap
+     */
+    private final boolean cursorHasGapRanges;
+
     /**
      * Create an iterator that will walk and return Id's between minValue (inclusive) and max value (exclusive)
      * <p/>
@@ -60,24 +75,39 @@ public class IndexSpanningIterator<T extends Persistable> extends SqlStorageIter
      * @param countValue - The number of ID's in the set
      */
     public IndexSpanningIterator(Cursor c, SqlStorage<T> storage, int minValue, int maxValue, int countValue) {
+        this(c, storage, minValue, maxValue, countValue, false);
+    }
+
+    /**
+     * @param cursorHasGapRanges - Whether the cursor has two columns, holding the first and last
+     *                           id (inclusive) of each run of gaps, rather than one row per gap
+     */
+    public IndexSpanningIterator(Cursor c, SqlStorage<T> storage, int minValue, int maxValue,
+                                 int countValue, boolean cursorHasGapRanges) {
         super(c);
         current = minValue;
 
         end = maxValue;
         count = countValue;
         this.storage = storage;
+        this.cursorHasGapRanges = cursorHasGapRanges;
 
         //If there's no input, there's no values to iterate over
         if (!c.moveToNext()) {
-            current = end = nextGap = -1;
+            current = end = nextGap = nextGapEnd = -1;
             isClosedByProgress = true;
             c.close();
         } else {
             //Otherwise our next gap is the first cursor record
             nextGap = c.getInt(0);
+            nextGapEnd = readGapEnd();
         }
     }
 
+    private int readGapEnd() {
+        return cursorHasGapRanges ? c.getInt(1) : c.getInt(0);
+    }
+
     @Override
     public boolean hasMore() {
         //See whether we're ahead of the next gap. If we are, there are valid
@@ -112,10 +142,12 @@ public class IndexSpanningIterator<T extends Persistable> extends SqlStorageIter
         //state or the iterator needs to close
         while (c.moveToNext()) {
             int upcomingGap = c.getInt(0);
-            if (nextGap + 1 == upcomingGap) {
+            int upcomingGapEnd = readGapEnd();
+            if (nextGapEnd + 1 == upcomingGap) {
                 //Adjacent gaps with no valid records, we just 
                 //want to keep going
                 nextGap = upcomingGap;
+                nextGapEnd = upcomingGapEnd;
             } else {
                 //Otherwise we know that the next record must be valid unless
                 //the next gap is larger than the end
@@ -126,10 +158,11 @@ public class IndexSpanningIterator<T extends Persistable> extends SqlStorageIter
 
                 //the step after next gap isn't the upcoming gap so it
                 //must be valid
-                current = nextGap + 1;
+                current = nextGapEnd + 1;
 
                 //Set the next gap to be the upcoming one (after current)
                 nextGap = upcomingGap;
+                nextGapEnd = upcomingGapEnd;
 
                 //Mark the iterator's progress as valid, since we know the current
                 //record exists and there is a gap set
@@ -0,0 +1,15 @@
+package org.commcare.models.database;
+
+/**
+ * Receives values as they are read off of a storage cursor, allowing callers to process bulk
+ * reads without the storage materializing the full result set first.
+ *
+ * @param <V> The type of value being read for each record
+ */
+public interface SqlRecordConsumer<V> {
+    /**
+     * @param recordId The storage id of the record that was read
+     * @param value    The value read for that record
+     */
+    void consume(int recordId, V value);
+}
@@ -1,6 +1,7 @@
 package org.commcare.models.database;
 
 import android.database.Cursor;
+import android.util.LruCache;
 
 import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteQueryBuilder;
@@ -36,6 +37,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author ctsims
@@ -54,6 +56,23 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
     protected final EncryptedModel em;
     protected final AndroidDbHelper helper;
 
+    /**
+     * Opt-in cache of inflated records, keyed by record id. Null when caching is disabled.
+     */
+    private LruCache<Integer, T> recordCache;
+    private final Object recordCacheLock = new Object();
+    /**
+     * Bumped by every invalidation, so that a read which started before a write was committed
+     * doesn't put the record it read back into the cache after the write invalidated it
+     */
+    private int recordCacheGeneration;
+
+    /**
+     * Bumped after every insert or removal made through this storage object, so that views of
+     * the table's record set can tell when they need to be brought up to date without a query
+     */
+    private final AtomicInteger recordSetChangeCount = new AtomicInteger();
+
     protected SqlStorage() {
         em = null;
         helper = null;
@@ -81,6 +100,86 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
         }
     }
 
+    /**
+     * Keep up to maxRecords inflated records from this storage in memory, so that repeated
+     * calls to read(id) for the same record skip the query and deserialization. Bulk reads and
+     * iterators always inflate fresh objects and don't go through the cache.
+     *
+     * The cache hands the same object to every caller of read(id) rather than a copy, so
+     * records read from a caching storage must never be mutated; callers that need to modify
+     * and write back a record should inflate their own copy with newObject(readBytes(id), id).
+     *
+     * Only writes and removals made through this storage object invalidate the cache, once
+     * their transaction has ended, so it should only be enabled on storage objects that are the
+     * sole writer for their lifetime. Writes nested in a caller's transaction are invalidated
+     * when the storage call returns rather than when the outer transaction commits.
+     */
+    public void enableRecordCache(int maxRecords) {
+        recordCache = new LruCache<>(maxRecords);
+    }
+
+    public void disableRecordCache() {
+        recordCache = null;
+    }
+
+    public int getRecordCacheHitCount() {
+        LruCache<Integer, T> cache = recordCache;
+        return cache == null ? 0 : cache.hitCount();
+    }
+
+    public int getRecordCacheMissCount() {
+        LruCache<Integer, T> cache = recordCache;
+        return cache == null ? 0 : cache.missCount();
+    }
+
+    /**
+     * Drops a record from the cache. Must be called after the transaction that changed the
+     * record has ended, so that concurrent reads can't re-cache the old version.
+     */
+    protected void invalidateCachedRecord(int id) {
+        LruCache<Integer, T> cache = recordCache;
+        if (cache != null) {
+            synchronized (recordCacheLock) {
+                recordCacheGeneration++;
+                cache.remove(id);
+            }
+        }
+    }
+
+    protected void invalidateCachedRecords(Collection<Integer> ids) {
+        LruCache<Integer, T> cache = recordCache;
+        if (cache != null) {
+            synchronized (recordCacheLock) {
+                recordCacheGeneration++;
+                for (Integer id : ids) {
+                    cache.remove(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return A count that changes whenever records have been inserted into or removed from
+     * the table through this storage object. Updates to existing records don't change it.
+     */
+    public int getRecordSetChangeCount() {
+        return recordSetChangeCount.get();
+    }
+
+    protected void recordSetChanged() {
+        recordSetChangeCount.incrementAndGet();
+    }
+
+    protected void invalidateRecordCache() {
+        LruCache<Integer, T> cache = recordCache;
+        if (cache != null) {
+            synchronized (recordCacheLock) {
+                recordCacheGeneration++;
+                cache.evictAll();
+            }
+        }
+    }
+
     @Override
     public Vector<Integer> getIDsForValue(String fieldName, Object value) {
         return getIDsForValues(new String[]{fieldName}, new Object[]{value});
@@ -93,7 +192,7 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
 
     @Override
     public Vector<Integer> getIDsForValues(String[] fieldNames, Object[] values, LinkedHashSet returnSet) {
-        SQLiteDatabase db = helper.getHandle();
+        SQLiteDatabase db = helper.getReadHandle();
 
         Pair<String, String[]> whereClause = helper.createWhereAndroid(fieldNames, values, em, null);
 
@@ -139,7 +238,7 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
     public Vector<T> getRecordsForValues(String[] fieldNames, Object[] values) {
         Pair<String, String[]> whereClause = helper.createWhereAndroid(fieldNames, values, em, null);
 
-        Cursor c = helper.getHandle().query(table, new String[]{DatabaseHelper.ID_COL, DatabaseHelper.DATA_COL}, whereClause.first, whereClause.second, null, null, null);
+        Cursor c = helper.getReadHandle().query(table, new String[]{DatabaseHelper.ID_COL, DatabaseHelper.DATA_COL}, whereClause.first, whereClause.second, null, null, null);
         try {
             if (c.getCount() == 0) {
                 return new Vector<>();
@@ -162,7 +261,7 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
     public String getMetaDataFieldForRecord(int recordId, String rawFieldName) {
         String rid = String.valueOf(recordId);
         String scrubbedName = TableBuilder.scrubName(rawFieldName);
-        Cursor c = helper.getHandle().query(table, new String[]{scrubbedName}, DatabaseHelper.ID_COL + "=?", new String[]{rid}, null, null, null);
+        Cursor c = helper.getReadHandle().query(table, new String[]{scrubbedName}, DatabaseHelper.ID_COL + "=?", new String[]{rid}, null, null, null);
         try {
             if (c.getCount() == 0) {
                 throw new NoSuchElementException("No record in table " + table + " for ID " + recordId);
@@ -179,7 +278,7 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
         String rid = String.valueOf(recordId);
         String[] scrubbedNames = scrubMetadataNames(metaDataNames);
         String[] projection = getProjectedFieldsWithId(false, scrubbedNames);
-        Cursor c = helper.getHandle().query(table, projection, DatabaseHelper.ID_COL + "=?", new String[]{rid}, null, null, null);
+        Cursor c = helper.getReadHandle().query(table, projection, DatabaseHelper.ID_COL + "=?", new String[]{rid}, null, null, null);
         try {
             if (c.getCount() == 0) {
                 throw new NoSuchElementException("No record in table " + table + " for ID " + recordId);
@@ -194,7 +293,7 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
 
 
     public T getRecordForValues(String[] rawFieldNames, Object[] values) throws NoSuchElementException, InvalidIndexException {
-        SQLiteDatabase appDb = helper.getHandle();
+        SQLiteDatabase appDb = helper.getReadHandle();
 
         Pair<String, String[]> whereClause = helper.createWhereAndroid(rawFieldNames, values, em, null);
         Cursor c = appDb.query(table, new String[]{DatabaseHelper.ID_COL, DatabaseHelper.DATA_COL}, whereClause.first, whereClause.second, null, null, null);
@@ -275,6 +374,7 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
+            recordSetChanged();
         }
 
         return i;
@@ -291,7 +391,7 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
 
     @Override
     public boolean exists(int id) {
-        Cursor c = helper.getHandle().query(table, new String[]{DatabaseHelper.ID_COL}, DatabaseHelper.ID_COL + "= ? ", new String[]{String.valueOf(id)}, null, null, null);
+        Cursor c = helper.getReadHandle().query(table, new String[]{DatabaseHelper.ID_COL}, DatabaseHelper.ID_COL + "= ? ", new String[]{String.valueOf(id)}, null, null, null);
 
         try {
             int queryCount = c.getCount();
@@ -313,7 +413,7 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
 
     @Override
     public int getNumRecords() {
-        Cursor c = helper.getHandle().query(table, new String[]{DatabaseHelper.ID_COL}, null, null, null, null, null);
+        Cursor c = helper.getReadHandle().query(table, new String[]{DatabaseHelper.ID_COL}, null, null, null, null, null);
         try {
             int records = c.getCount();
             return records;
@@ -322,6 +422,22 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
         }
     }
 
+    /**
+     * @return A summary of the set of record ids in this table, which stays the same as long
+     * as no records are added or removed. Only touches the primary key, so it's much cheaper
+     * than walking the ids themselves.
+     */
+    public String getIdSetFingerprint() {
+        Cursor c = helper.getReadHandle().rawQuery("SELECT COUNT(" + DatabaseHelper.ID_COL + "), MAX(" +
+                DatabaseHelper.ID_COL + "), TOTAL(" + DatabaseHelper.ID_COL + ") FROM " + table, null);
+        try {
+            c.moveToFirst();
+            return c.getLong(0) + ":" + c.getLong(1) + ":" + c.getDouble(2);
+        } finally {
+            c.close();
+        }
+    }
+
     @Override
     public boolean isEmpty() {
         return (getNumRecords() == 0);
@@ -342,7 +458,7 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
      */
     @Override
     public SqlStorageIterator<T> iterate(boolean includeData) {
-        SQLiteDatabase db = helper.getHandle();
+        SQLiteDatabase db = helper.getReadHandle();
 
         SqlStorageIterator<T> spanningIterator = getIndexSpanningIteratorOrNull(db, includeData);
         if (spanningIterator != null) {
@@ -377,10 +493,8 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
 
             //Ok, so basic metrics:
             //1) Only use a covering iterator if the number of records is > 1k
-            //2) Only use a covering iterator if the number of records is less than 100k (vital, hard limit)
-            //3) Only use a covering iterator if the record density is 50% or more
+            //2) Only use a covering iterator if the record density is 50% or more
             if (countValue > 1000 &&
-                    countValue < 100000 &&
                     density >= 0.5) {
                 return getCoveringIndexIterator(db, minValue, maxValue, countValue);
             }
@@ -409,9 +523,18 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
      *                          independently of any other data.
      */
     public SqlStorageIterator<T> iterate(boolean includeData, String[] metaDataToInclude) {
+        return iterate(includeData, metaDataToInclude, -1);
+    }
+
+    /**
+     * Same as {@link #iterate(boolean, String[])}, but only covers the records whose id is
+     * greater than the one provided, i.e. the records written since that one.
+     */
+    public SqlStorageIterator<T> iterate(boolean includeData, String[] metaDataToInclude, int afterId) {
         String[] projection = getProjectedFieldsWithId(includeData, scrubMetadataNames(metaDataToInclude));
 
-        Cursor c = helper.getHandle().query(table, projection, null, null, null, null, DatabaseHelper.ID_COL);
+        Cursor c = helper.getReadHandle().query(table, projection, DatabaseHelper.ID_COL + ">?",
+                new String[]{String.valueOf(afterId)}, null, null, DatabaseHelper.ID_COL);
         return new SqlStorageIterator<>(c, this, metaDataToInclude);
     }
 
@@ -444,14 +567,37 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
         return iterate();
     }
 
+    /**
+     * When the record cache is enabled the returned record may be shared with other callers,
+     * see enableRecordCache
+     */
     @Override
     public T read(int id) {
-        return newObject(readBytes(id), id);
+        LruCache<Integer, T> cache = recordCache;
+        if (cache == null) {
+            return newObject(readBytes(id), id);
+        }
+
+        int generation;
+        synchronized (recordCacheLock) {
+            generation = recordCacheGeneration;
+        }
+        T cached = cache.get(id);
+        if (cached != null) {
+            return cached;
+        }
+        T record = newObject(readBytes(id), id);
+        synchronized (recordCacheLock) {
+            if (generation == recordCacheGeneration) {
+                cache.put(id, record);
+            }
+        }
+        return record;
     }
 
     @Override
     public byte[] readBytes(int id) {
-        Cursor c = helper.getHandle().query(table, new String[]{DatabaseHelper.ID_COL, DatabaseHelper.DATA_COL}, DatabaseHelper.ID_COL + "=?", new String[]{String.valueOf(id)}, null, null, null);
+        Cursor c = helper.getReadHandle().query(table, new String[]{DatabaseHelper.ID_COL, DatabaseHelper.DATA_COL}, DatabaseHelper.ID_COL + "=?", new String[]{String.valueOf(id)}, null, null, null);
 
         try {
             if (!c.moveToFirst()) {
@@ -472,6 +618,8 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
+            invalidateCachedRecord(id);
+            recordSetChanged();
         }
     }
 
@@ -489,6 +637,8 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
+            invalidateCachedRecords(ids);
+            recordSetChanged();
         }
     }
 
@@ -499,7 +649,12 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
 
     @Override
     public void removeAll() {
-        wipeTable(helper.getHandle(), table);
+        try {
+            wipeTable(helper.getHandle(), table);
+        } finally {
+            invalidateRecordCache();
+            recordSetChanged();
+        }
     }
 
     public static void wipeTableWithoutCommit(SQLiteDatabase db, String table) {
@@ -532,6 +687,8 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
+            invalidateCachedRecords(toRemove);
+            recordSetChanged();
         }
 
         return toRemove;
@@ -566,6 +723,7 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
+            invalidateCachedRecord(id);
         }
     }
 
@@ -590,86 +748,193 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
+            recordSetChanged();
         }
     }
 
     /**
-     * @return An iterator which can provide a list of all of the indices in this table.
+     * Writes (inserts or updates) a batch of records inside of a single transaction.
+     *
+     * Rather than building ContentValues and running a separate transaction for every
+     * record, the insert and update statements are compiled once per distinct column set and
+     * re-bound for each record directly from its metadata fields.
+     *
+     * @return The ids of the written records, in the iteration order of the provided collection
      */
-    private SqlStorageIterator<T> getCoveringIndexIterator(SQLiteDatabase db, int minValue, int maxValue, int countValue) {
-        //So here's what we're doing:
-        //Build a select statement that has all of the numbers from 1 to 100k
-        //Filter it to contain our real boundaries
-        //Select all id's from our table's index
-        //Except those ids from the virtual table
-        //
-        //This returns what is essentially a set of spans from min -> max where ID's do _not_
-        //exist in this table.
-        String vals = "select 10000 * tenthousands.i + 1000 * thousands.i + 100*hundreds.i + 10*tens.i + units.i as " + DatabaseHelper.ID_COL +
-                " from integers tenthousands " +
-                ", integers thousands " +
-                ", integers hundreds  " +
-                ", integers tens " +
-                ", integers units " +
-                " WHERE " + DatabaseHelper.ID_COL + " >= CAST(? AS INTEGER) AND " + DatabaseHelper.ID_COL + "  <= CAST(? AS INTEGER)";
+    public List<Integer> writeAll(Collection<? extends Persistable> records) {
+        List<Integer> ids = new ArrayList<>(records.size());
+        // Updated records are only invalidated once the whole batch's transaction has ended
+        List<Integer> updatedIds = new ArrayList<>();
+        SQLiteDatabase db = helper.getHandle();
+        if (!STORAGE_OPTIMIZATIONS_ACTIVE) {
+            db.beginTransaction();
+            try {
+                for (Persistable p : records) {
+                    if (p.getID() != -1) {
+                        updatedIds.add(p.getID());
+                    }
+                    write(p);
+                    ids.add(p.getID());
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                invalidateCachedRecords(updatedIds);
+            }
+            return ids;
+        }
 
+        HashMap<String, SQLiteStatement> statementCache = new HashMap<>();
+        db.beginTransaction();
+        try {
+            for (Persistable p : records) {
+                HashMap<String, Object> values = helper.getBindableValues(p);
+                String[] columns = values.keySet().toArray(new String[values.size()]);
+                Arrays.sort(columns);
+
+                boolean isUpdate = p.getID() != -1;
+                SQLiteStatement statement =
+                        getBulkWriteStatement(db, statementCache, columns, isUpdate);
+                statement.clearBindings();
+                for (int i = 0; i < columns.length; i++) {
+                    AndroidDbHelper.bindValue(statement, i + 1, values.get(columns[i]));
+                }
 
-        String[] args = new String[]{String.valueOf(minValue), String.valueOf(maxValue)};
+                if (isUpdate) {
+                    updatedIds.add(p.getID());
+                    statement.bindLong(columns.length + 1, p.getID());
+                    statement.execute();
+                } else {
+                    long ret = statement.executeInsert();
+                    if (ret > Integer.MAX_VALUE) {
+                        throw new RuntimeException("Waaaaaaaaaay too many values");
+                    }
+                    p.setID((int)ret);
+                }
+                ids.add(p.getID());
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            invalidateCachedRecords(updatedIds);
+            if (updatedIds.size() < records.size()) {
+                recordSetChanged();
+            }
+            for (SQLiteStatement statement : statementCache.values()) {
+                statement.close();
+            }
+        }
+        return ids;
+    }
 
-        String stmt = vals + " EXCEPT SELECT " + DatabaseHelper.ID_COL + " FROM " + table;
+    private SQLiteStatement getBulkWriteStatement(SQLiteDatabase db,
+                                                  HashMap<String, SQLiteStatement> statementCache,
+                                                  String[] columns, boolean isUpdate) {
+        // Records with the same column set share one compiled statement
+        String sql = getBulkWriteSql(table, columns, isUpdate);
+        SQLiteStatement statement = statementCache.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            statementCache.put(sql, statement);
+        }
+        return statement;
+    }
 
-        Cursor c = db.rawQuery(stmt, args);
+    /**
+     * @param columns The columns being written, which are bound in order. For updates the
+     *                record id is bound after them.
+     */
+    static String getBulkWriteSql(String table, String[] columns, boolean isUpdate) {
+        StringBuilder sql = new StringBuilder();
+        if (isUpdate) {
+            sql.append("UPDATE ").append(table).append(" SET ");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i == 0 ? "" : ", ").append(columns[i]).append(" = ?");
+            }
+            sql.append(" WHERE ").append(DatabaseHelper.ID_COL).append(" = ?");
+        } else {
+            sql.append("INSERT INTO ").append(table).append(" (");
+            StringBuilder args = new StringBuilder();
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i == 0 ? "" : ", ").append(columns[i]);
+                args.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(") VALUES (").append(args).append(")");
+        }
+        return sql.toString();
+    }
 
-        //Return a covering iterator 
-        return new IndexSpanningIterator<>(c, this, minValue, maxValue, countValue);
+    /**
+     * @return An iterator which can provide a list of all of the indices in this table.
+     */
+    private SqlStorageIterator<T> getCoveringIndexIterator(SQLiteDatabase db, int minValue, int maxValue, int countValue) {
+        //So here's what we're doing:
+        //Select every id in the table whose successor doesn't exist, since each of those ends
+        //a run of ids and starts a run of gaps
+        //For each of them, look up the next id that does exist, which ends that run of gaps
+        //
+        //Both lookups are against the table's primary key, so this returns one row per span
+        //of missing ids between min -> max without needing a table of every possible id.
+        //The last id has no successor, so its row (max + 1, max + 1) closes off the walk.
+        String id = DatabaseHelper.ID_COL;
+        String stmt = "SELECT present." + id + " + 1 AS gap_start, " +
+                "COALESCE((SELECT following." + id + " FROM " + table + " following" +
+                " WHERE following." + id + " > present." + id +
+                " ORDER BY following." + id + " LIMIT 1) - 1, present." + id + " + 1) AS gap_end" +
+                " FROM " + table + " present" +
+                " WHERE NOT EXISTS (SELECT 1 FROM " + table + " successor" +
+                " WHERE successor." + id + " = present." + id + " + 1)" +
+                " ORDER BY present." + id;
+
+        Cursor c = db.rawQuery(stmt, null);
+
+        //Return a covering iterator
+        return new IndexSpanningIterator<>(c, this, minValue, maxValue, countValue, true);
     }
 
     @Override
     public void bulkRead(LinkedHashSet cuedCases, HashMap recordMap) throws RequestAbandonedException {
-        List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(cuedCases);
+        streamBulkRead(cuedCases, (recordId, record) -> recordMap.put(recordId, record));
+    }
+
+    /**
+     * Reads the records with the provided ids, handing each one to the consumer as soon as it
+     * is inflated rather than collecting them first, so callers which don't need the full
+     * result set at once only keep the current cursor window of records alive.
+     *
+     * @throws RequestAbandonedException If the current thread is interrupted during the read
+     */
+    public void streamBulkRead(Collection<Integer> recordIds, SqlRecordConsumer<T> consumer)
+            throws RequestAbandonedException {
+        List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(recordIds);
         for (Pair<String, String[]> querySet : whereParamList) {
-            Cursor c = helper.getHandle().query(table, new String[]{DatabaseHelper.ID_COL, DatabaseHelper.DATA_COL}, DatabaseHelper.ID_COL + " IN " + querySet.first, querySet.second, null, null, null);
-            try {
-                if (c.getCount() == 0) {
-                    return;
-                } else {
-                    c.moveToFirst();
-                    int index = c.getColumnIndexOrThrow(DatabaseHelper.DATA_COL);
-                    while (!c.isAfterLast()) {
-                        if(Thread.interrupted()) {
-                            throw new RequestAbandonedException();
-                        }
-                        byte[] data = c.getBlob(index);
-                        recordMap.put(c.getInt(c.getColumnIndexOrThrow(DatabaseHelper.ID_COL)),
-                                newObject(data, c.getInt(c.getColumnIndexOrThrow(DatabaseHelper.ID_COL))));
-                        c.moveToNext();
-                    }
-                }
-            } finally {
-                c.close();
-            }
+            Cursor c = helper.getReadHandle().query(table, new String[]{DatabaseHelper.ID_COL, DatabaseHelper.DATA_COL}, DatabaseHelper.ID_COL + " IN " + querySet.first, querySet.second, null, null, null);
+            streamRecordsFromCursor(c, consumer, true);
         }
     }
 
     @Override
     public void bulkReadMetadata(LinkedHashSet cuedCases, String[] metaDataIds, HashMap metadataMap) {
-        List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(cuedCases);
-        String [] scrubbedNames = scrubMetadataNames(metaDataIds);
+        streamBulkReadMetadata(cuedCases, metaDataIds, (recordId, metaData) -> metadataMap.put(recordId, metaData));
+    }
+
+    /**
+     * Reads the provided metadata fields for the records with the provided ids, handing each
+     * record's values to the consumer as they are read.
+     */
+    public void streamBulkReadMetadata(Collection<Integer> recordIds, String[] metaDataIds,
+                                       SqlRecordConsumer<String[]> consumer) {
+        List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(recordIds);
+        String[] scrubbedNames = scrubMetadataNames(metaDataIds);
         String[] projection = getProjectedFieldsWithId(false, scrubbedNames);
 
         for (Pair<String, String[]> querySet : whereParamList) {
-            Cursor c = helper.getHandle().query(table, projection, DatabaseHelper.ID_COL + " IN " + querySet.first, querySet.second, null, null, null);
+            Cursor c = helper.getReadHandle().query(table, projection, DatabaseHelper.ID_COL + " IN " + querySet.first, querySet.second, null, null, null);
             try {
-                if (c.getCount() == 0) {
-                    return;
-                } else {
-                    c.moveToFirst();
-                    int idIndex = c.getColumnIndexOrThrow(DatabaseHelper.ID_COL);
-                    while (!c.isAfterLast()) {
-                        String[] metaRead = readMetaDataFromCursor(c, scrubbedNames);
-                        metadataMap.put(c.getInt(idIndex), metaRead);
-                        c.moveToNext();
-                    }
+                int idIndex = c.getColumnIndexOrThrow(DatabaseHelper.ID_COL);
+                int[] columnIndices = getColumnIndices(c, scrubbedNames);
+                while (c.moveToNext()) {
+                    consumer.consume(c.getInt(idIndex), readMetaDataFromCursor(c, columnIndices));
                 }
             } finally {
                 c.close();
@@ -683,43 +948,96 @@ public class SqlStorage<T extends Persistable> implements IStorageUtilityIndexed
      * NOTE: The column names _must be scrubbed here_ before the method is called
      */
     private String[] readMetaDataFromCursor(Cursor c, String[] columnNames) {
-        String[] results = new String[columnNames.length];
-        int i = 0;
-        for(String columnName : columnNames) {
-            results[i] = c.getString(c.getColumnIndexOrThrow(columnName));
-            i++;
+        return readMetaDataFromCursor(c, getColumnIndices(c, columnNames));
+    }
+
+    private static String[] readMetaDataFromCursor(Cursor c, int[] columnIndices) {
+        String[] results = new String[columnIndices.length];
+        for (int i = 0; i < columnIndices.length; i++) {
+            results[i] = c.getString(columnIndices[i]);
         }
         return results;
     }
 
+    private static int[] getColumnIndices(Cursor c, String[] columnNames) {
+        int[] columnIndices = new int[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            columnIndices[i] = c.getColumnIndexOrThrow(columnNames[i]);
+        }
+        return columnIndices;
+    }
+
+    /**
+     * Reads up to limit records whose ids are greater than afterId, in id order. Allows large
+     * tables to be walked in bounded chunks rather than through one cursor over all of it.
+     */
+    public List<T> readRecordsAfterId(int afterId, int limit) {
+        List<T> records = new ArrayList<>();
+        Cursor c = helper.getReadHandle().query(table, new String[]{DatabaseHelper.ID_COL, DatabaseHelper.DATA_COL},
+                DatabaseHelper.ID_COL + " > CAST(? AS INTEGER)", new String[]{String.valueOf(afterId)},
+                null, null, DatabaseHelper.ID_COL, String.valueOf(limit));
+        streamRecordsFromCursor(c, (recordId, record) -> records.add(record), false);
+        return records;
+    }
+
     /**
      * Retrieves a set of the models in storage based on a list of values matching one of the
      * indexes of this storage
      */
     public List<T> getBulkRecordsForIndex(String indexName, Collection<String> matchingValues) {
         List<T> returnSet = new ArrayList<>();
+        streamBulkRecordsForIndex(indexName, matchingValues, (recordId, record) -> returnSet.add(record));
+        return returnSet;
+    }
+
+    /**
+     * Retrieves the ids of the models in storage whose value for the provided index matches one
+     * of a list of values
+     */
+    public LinkedHashSet<Integer> getBulkIdsForIndex(String indexName, Collection<String> matchingValues) {
+        LinkedHashSet<Integer> ids = new LinkedHashSet<>();
         String fieldName = TableBuilder.scrubName(indexName);
         List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(matchingValues, "?");
         for (Pair<String, String[]> querySet : whereParamList) {
-            Cursor c = helper.getHandle().query(table, new String[]{DatabaseHelper.ID_COL, DatabaseHelper.DATA_COL, fieldName}, fieldName + " IN " + querySet.first, querySet.second, null, null, null);
-            try {
-                if (c.getCount() == 0) {
-                    return returnSet;
-                } else {
-                    c.moveToFirst();
-                    int index = c.getColumnIndexOrThrow(DatabaseHelper.DATA_COL);
-                    while (!c.isAfterLast()) {
-                        byte[] data = c.getBlob(index);
+            Cursor c = helper.getReadHandle().query(table, new String[]{DatabaseHelper.ID_COL}, fieldName + " IN " + querySet.first, querySet.second, null, null, null);
+            fillIdWindow(c, DatabaseHelper.ID_COL, ids);
+        }
+        return ids;
+    }
 
-                        returnSet.add(newObject(data, c.getInt(c.getColumnIndexOrThrow(DatabaseHelper.ID_COL))));
-                        c.moveToNext();
-                    }
+    /**
+     * Streaming variant of getBulkRecordsForIndex which hands each matching model to the
+     * consumer as soon as it is inflated instead of collecting the full result set.
+     */
+    public void streamBulkRecordsForIndex(String indexName, Collection<String> matchingValues,
+                                          SqlRecordConsumer<T> consumer) {
+        String fieldName = TableBuilder.scrubName(indexName);
+        List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(matchingValues, "?");
+        for (Pair<String, String[]> querySet : whereParamList) {
+            Cursor c = helper.getReadHandle().query(table, new String[]{DatabaseHelper.ID_COL, DatabaseHelper.DATA_COL}, fieldName + " IN " + querySet.first, querySet.second, null, null, null);
+            streamRecordsFromCursor(c, consumer, false);
+        }
+    }
+
+    /**
+     * Inflates each (id, data) row of the cursor and passes it along to the consumer, resolving
+     * the column indices once for the whole cursor. Closes the cursor when finished.
+     */
+    private void streamRecordsFromCursor(Cursor c, SqlRecordConsumer<T> consumer,
+                                         boolean abandonOnInterrupt) {
+        try {
+            int idIndex = c.getColumnIndexOrThrow(DatabaseHelper.ID_COL);
+            int dataIndex = c.getColumnIndexOrThrow(DatabaseHelper.DATA_COL);
+            while (c.moveToNext()) {
+                if (abandonOnInterrupt && Thread.interrupted()) {
+                    throw new RequestAbandonedException();
                 }
-            } finally {
-                c.close();
+                int recordId = c.getInt(idIndex);
+                consumer.consume(recordId, newObject(c.getBlob(dataIndex), recordId));
             }
+        } finally {
+            c.close();
         }
-        return returnSet;
     }
 
 }
@@ -10,6 +10,7 @@ import net.sqlcipher.database.SQLiteDatabase;
 
 import org.apache.commons.lang3.StringUtils;
 import org.commcare.android.database.app.models.FormDefRecord;
+import org.commcare.android.database.app.models.FormDefRecordV12;
 import org.commcare.android.database.app.models.UserKeyRecord;
 import org.commcare.android.database.app.models.UserKeyRecordV1;
 import org.commcare.android.resource.installers.XFormAndroidInstaller;
@@ -120,6 +121,12 @@ class AppDatabaseUpgrader {
             }
         }
 
+        if (oldVersion == 12) {
+            if (upgradeTwelveThirteen(db)) {
+                oldVersion = 13;
+            }
+        }
+
         //NOTE: If metadata changes are made to the Resource model, they need to be
         //managed by changing the TwoThree updater to maintain that metadata.
     }
@@ -255,7 +262,7 @@ class AppDatabaseUpgrader {
             upgradeXFormAndroidInstallerV1(RECOVERY_RESOURCE_TABLE_NAME, db);
 
             // Create FormDef table
-            TableBuilder builder = new TableBuilder(FormDefRecord.class);
+            TableBuilder builder = new TableBuilder(FormDefRecordV12.class);
             db.execSQL(builder.getTableCreateString());
 
             migrateFormProvider(db);
@@ -297,11 +304,11 @@ class AppDatabaseUpgrader {
     private boolean upgradeTenEleven(SQLiteDatabase db) {
         db.beginTransaction();
         try {
-            SqlStorage<FormDefRecord> formDefRecordStorage = new SqlStorage<>(
+            SqlStorage<FormDefRecordV12> formDefRecordStorage = new SqlStorage<>(
                     FormDefRecord.STORAGE_KEY,
-                    FormDefRecord.class,
+                    FormDefRecordV12.class,
                     new ConcreteAndroidDbHelper(context, db));
-            for (FormDefRecord formDefRecord : formDefRecordStorage) {
+            for (FormDefRecordV12 formDefRecord : formDefRecordStorage) {
                 String filePath = formDefRecord.getFilePath();
                 File formFile = new File(filePath);
 
@@ -325,7 +332,53 @@ class AppDatabaseUpgrader {
     private boolean upgradeElevenTwelve(SQLiteDatabase db) {
         db.beginTransaction();
         try {
-            db.execSQL(new TableBuilder(RecoveryMeasure.class).getTableCreateString());
+            // Apps installed while the db was still on v11 already got this table from onCreate
+            if (!doesTableExist(db, RecoveryMeasure.STORAGE_KEY)) {
+                db.execSQL(new TableBuilder(RecoveryMeasure.class).getTableCreateString());
+            }
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static boolean doesTableExist(SQLiteDatabase db, String tableName) {
+        Cursor cursor = db.query("sqlite_master", new String[]{"name"},
+                "type = ? AND name = ?", new String[]{"table", tableName}, null, null, null);
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Records the md5 of each form's xml so that opening a form doesn't need to re-hash it
+    private boolean upgradeTwelveThirteen(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            SqlStorage<FormDefRecordV12> oldStorage = new SqlStorage<>(
+                    FormDefRecord.STORAGE_KEY,
+                    FormDefRecordV12.class,
+                    new ConcreteAndroidDbHelper(context, db));
+
+            Vector<FormDefRecord> upgradedRecords = new Vector<>();
+            for (FormDefRecordV12 oldRecord : oldStorage) {
+                upgradedRecords.add(FormDefRecord.fromOldVersion(oldRecord));
+            }
+
+            db.execSQL(DbUtil.addColumnToTable(
+                    FormDefRecord.STORAGE_KEY,
+                    FormDefRecord.META_FORM_HASH,
+                    "TEXT"));
+
+            SqlStorage<FormDefRecord> newStorage = new SqlStorage<>(
+                    FormDefRecord.STORAGE_KEY,
+                    FormDefRecord.class,
+                    new ConcreteAndroidDbHelper(context, db));
+            for (FormDefRecord record : upgradedRecords) {
+                newStorage.write(record);
+            }
             db.setTransactionSuccessful();
             return true;
         } finally {
@@ -339,12 +392,12 @@ class AppDatabaseUpgrader {
         try {
             cursor = context.getContentResolver().query(FormsProviderAPI.FormsColumns.CONTENT_URI, null, null, null, null);
             if (cursor != null && cursor.getCount() > 0) {
-                SqlStorage<FormDefRecord> formDefRecordStorage = new SqlStorage<>(
+                SqlStorage<FormDefRecordV12> formDefRecordStorage = new SqlStorage<>(
                         FormDefRecord.STORAGE_KEY,
-                        FormDefRecord.class,
+                        FormDefRecordV12.class,
                         new ConcreteAndroidDbHelper(context, db));
                 while (cursor.moveToNext()) {
-                    FormDefRecord formDefRecord = new FormDefRecord(cursor);
+                    FormDefRecordV12 formDefRecord = new FormDefRecordV12(cursor);
                     formDefRecord.save(formDefRecordStorage);
                 }
             }
@@ -20,7 +20,10 @@ import org.commcare.models.database.DbUtil;
 import org.commcare.models.database.IndexedFixturePathUtils;
 import org.commcare.android.database.user.models.ACase;
 import org.commcare.models.database.user.models.AndroidCaseIndexTable;
+import org.commcare.models.database.user.models.AndroidCasePropertyTable;
+import org.commcare.models.database.user.models.CaseIndexQueryCache;
 import org.commcare.models.database.user.models.EntityStorageCache;
+import org.commcare.models.database.user.models.FormRecordTitleIndex;
 import org.commcare.android.database.user.models.FormRecord;
 import org.commcare.android.database.user.models.SessionStateDescriptor;
 import org.commcare.modern.database.DatabaseIndexingUtils;
@@ -63,9 +66,12 @@ public class DatabaseUserOpenHelper extends SQLiteOpenHelper {
      * V.23 - Merges InstanceProvider to FormRecord (delete instanceUri, add displayName, filePath and canEditWhenComplete)
      * v.24 - Adds and indexes column for Case external_id
      * v.25 - No DB changes, validates SessionStateDescriptor records corrupted due to an earlier bug in v23 migration (In 2.44 and 2.44.1)
+     * v.26 - Add table of projected case properties for querying cases by property value
+     * v.27 - Add table of form record titles for the saved forms list
+     * v.28 - Add target -> id index for case index storage
      */
 
-    private static final int USER_DB_VERSION = 25;
+    private static final int USER_DB_VERSION = 28;
 
     private static final String USER_DB_LOCATOR = "database_sandbox_";
 
@@ -160,6 +166,13 @@ public class DatabaseUserOpenHelper extends SQLiteOpenHelper {
 
             database.execSQL(AndroidCaseIndexTable.getTableDefinition());
             AndroidCaseIndexTable.createIndexes(database);
+            // Nothing cached against an earlier database at this path can still apply
+            CaseIndexQueryCache.getCache(database).invalidateAll();
+
+            AndroidCasePropertyTable.createTables(database);
+            AndroidCasePropertyTable.createIndexes(database);
+
+            database.execSQL(FormRecordTitleIndex.getTableDefinition());
 
             database.setVersion(USER_DB_VERSION);
 
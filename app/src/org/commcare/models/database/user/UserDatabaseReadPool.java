@@ -0,0 +1,59 @@
+package org.commcare.models.database.user;
+
+import android.content.Context;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+/**
+ * A small set of read-only connections to a user database that is in write-ahead-log mode.
+ *
+ * With WAL journaling readers see the last committed state of the database without waiting
+ * on the writer, so reads made through these connections don't stall behind a long write
+ * transaction (like a sync) on the main user db handle.
+ *
+ * Each thread is pinned to one connection so that its reads are served in a consistent order.
+ * Connections may be shared between threads; SQLCipher serializes access to each one.
+ */
+public class UserDatabaseReadPool {
+    private static final int POOL_SIZE = 3;
+
+    private final SQLiteDatabase[] connections = new SQLiteDatabase[POOL_SIZE];
+
+    /**
+     * @param userKeyRecordId Sandbox id of the user database to open
+     * @param encodedKey      SQLCipher encoded key for the database
+     */
+    public UserDatabaseReadPool(Context context, String userKeyRecordId, String encodedKey) {
+        String path = context.getDatabasePath(DatabaseUserOpenHelper.getDbName(userKeyRecordId)).getAbsolutePath();
+        try {
+            for (int i = 0; i < POOL_SIZE; i++) {
+                connections[i] = SQLiteDatabase.openDatabase(path, encodedKey, null,
+                        SQLiteDatabase.OPEN_READONLY);
+            }
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Switch the writable user database over to write-ahead-logging, which needs to happen
+     * before any read connections are opened. The setting persists in the database file.
+     */
+    public static void enableWriteAheadLogging(SQLiteDatabase userDatabase) {
+        userDatabase.rawExecSQL("PRAGMA journal_mode = WAL;");
+    }
+
+    public SQLiteDatabase getReadHandle() {
+        return connections[(int)(Thread.currentThread().getId() % POOL_SIZE)];
+    }
+
+    public void close() {
+        for (int i = 0; i < POOL_SIZE; i++) {
+            if (connections[i] != null && connections[i].isOpen()) {
+                connections[i].close();
+            }
+            connections[i] = null;
+        }
+    }
+}
@@ -28,7 +28,9 @@ import org.commcare.android.database.user.models.ACase;
 import org.commcare.android.database.user.models.ACasePreV6Model;
 import org.commcare.android.database.user.models.AUser;
 import org.commcare.models.database.user.models.AndroidCaseIndexTable;
+import org.commcare.models.database.user.models.AndroidCasePropertyTable;
 import org.commcare.models.database.user.models.EntityStorageCache;
+import org.commcare.models.database.user.models.FormRecordTitleIndex;
 import org.commcare.android.database.user.models.FormRecord;
 import org.commcare.android.database.user.models.FormRecordV1;
 import org.commcare.android.database.user.models.GeocodeCacheModel;
@@ -207,6 +209,24 @@ class UserDatabaseUpgrader {
                 oldVersion = 25;
             }
         }
+
+        if (oldVersion == 25) {
+            if (upgradeTwentyFiveTwentySix(db)) {
+                oldVersion = 26;
+            }
+        }
+
+        if (oldVersion == 26) {
+            if (upgradeTwentySixTwentySeven(db)) {
+                oldVersion = 27;
+            }
+        }
+
+        if (oldVersion == 27) {
+            if (upgradeTwentySevenTwentyEight(db)) {
+                oldVersion = 28;
+            }
+        }
     }
 
     private boolean upgradeOneTwo(final SQLiteDatabase db) {
@@ -707,6 +727,47 @@ class UserDatabaseUpgrader {
         }
     }
 
+    /**
+     * Add the case property table. It starts out without any projected properties, which get
+     * populated once the app's configuration is read on login.
+     */
+    private boolean upgradeTwentyFiveTwentySix(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            AndroidCasePropertyTable.createTables(db);
+            AndroidCasePropertyTable.createIndexes(db);
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private boolean upgradeTwentySixTwentySeven(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL(FormRecordTitleIndex.getTableDefinition());
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private boolean upgradeTwentySevenTwentyEight(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            String targetFirstIndexId = "TARGET_RECORD";
+            String targetFirstIndex = "target" + ", " + "case_rec_id";
+            db.execSQL(DatabaseIndexingUtils.indexOnTableCommand(targetFirstIndexId, "case_index_storage", targetFirstIndex));
+
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     private void migrateV2FormRecordsForSingleApp(String appId,
                                                   SqlStorage<FormRecordV2> oldStorage,
                                                   Vector<FormRecordV3> upgradedRecords) {
@@ -4,6 +4,7 @@ import android.content.ContentValues;
 
 import net.sqlcipher.Cursor;
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
 
 import org.commcare.CommCareApplication;
 import org.commcare.android.database.user.models.ACase;
@@ -36,17 +37,26 @@ public class AndroidCaseIndexTable implements CaseIndexTable {
     private static final String COL_INDEX_TARGET = "target";
     private static final String COL_INDEX_RELATIONSHIP = "relationship";
 
+    private static final String RECORD_FIRST_INDEX_ID = "RECORD_NAME_ID_TARGET";
+    private static final String TYPE_FIRST_INDEX_ID = "NAME_TARGET_RECORD";
+    private static final String TARGET_FIRST_INDEX_ID = "TARGET_RECORD";
+
+    private static final String[] CASE_INDEX_MAP_PROJECTION =
+            new String[]{COL_CASE_RECORD_ID, COL_INDEX_TARGET, COL_INDEX_RELATIONSHIP};
+
     private final SQLiteDatabase db;
+    private final CaseIndexQueryCache queryCache;
 
     //TODO: We should do some synchronization to make it the case that nothing can hold
     //an object for the same cache at once and let us manage the lifecycle
 
     public AndroidCaseIndexTable() {
-        this.db = CommCareApplication.instance().getUserDbHandle();
+        this(CommCareApplication.instance().getUserDbHandle());
     }
 
     public AndroidCaseIndexTable(SQLiteDatabase dbHandle) {
         this.db = dbHandle;
+        this.queryCache = CaseIndexQueryCache.getCache(dbHandle);
     }
 
     public static String getTableDefinition() {
@@ -61,13 +71,20 @@ public class AndroidCaseIndexTable implements CaseIndexTable {
     }
 
     public static void createIndexes(SQLiteDatabase db) {
-        String recordFirstIndexId = "RECORD_NAME_ID_TARGET";
         String recordFirstIndex = COL_CASE_RECORD_ID + ", " + COL_INDEX_NAME + ", " + COL_INDEX_TARGET;
-        db.execSQL(DatabaseIndexingUtils.indexOnTableCommand(recordFirstIndexId, TABLE_NAME, recordFirstIndex));
+        db.execSQL(DatabaseIndexingUtils.indexOnTableCommand(RECORD_FIRST_INDEX_ID, TABLE_NAME, recordFirstIndex));
 
-        String typeFirstIndexId = "NAME_TARGET_RECORD";
         String typeFirstIndex = COL_INDEX_NAME + ", " + COL_CASE_RECORD_ID + ", " + COL_INDEX_TARGET;
-        db.execSQL(DatabaseIndexingUtils.indexOnTableCommand(typeFirstIndexId, TABLE_NAME, typeFirstIndex));
+        db.execSQL(DatabaseIndexingUtils.indexOnTableCommand(TYPE_FIRST_INDEX_ID, TABLE_NAME, typeFirstIndex));
+
+        String targetFirstIndex = COL_INDEX_TARGET + ", " + COL_CASE_RECORD_ID;
+        db.execSQL(DatabaseIndexingUtils.indexOnTableCommand(TARGET_FIRST_INDEX_ID, TABLE_NAME, targetFirstIndex));
+    }
+
+    private static void dropIndexes(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS " + RECORD_FIRST_INDEX_ID);
+        db.execSQL("DROP INDEX IF EXISTS " + TYPE_FIRST_INDEX_ID);
+        db.execSQL("DROP INDEX IF EXISTS " + TARGET_FIRST_INDEX_ID);
     }
 
     /**
@@ -78,25 +95,133 @@ public class AndroidCaseIndexTable implements CaseIndexTable {
         db.beginTransaction();
         try {
             for (CaseIndex ci : c.getIndices()) {
-                ContentValues cv = new ContentValues();
-                cv.put(COL_CASE_RECORD_ID, c.getID());
-                cv.put(COL_INDEX_NAME, ci.getName());
-                cv.put(COL_INDEX_TYPE, ci.getTargetType());
-                cv.put(COL_INDEX_TARGET, ci.getTarget());
-                cv.put(COL_INDEX_RELATIONSHIP, ci.getRelationship());
-                db.insert(TABLE_NAME, null, cv);
+                db.insert(TABLE_NAME, null, getIndexContentValues(c, ci));
             }
+            invalidateCachedQueries(c);
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
     }
 
+    /**
+     * Creates all indexes for a batch of cases in one transaction, using a single compiled
+     * insert statement for all of the index rows. Like indexCase, rows are only ever added, so
+     * any existing index rows for these cases need to be cleared with clearCaseIndices first.
+     */
+    public void indexCases(Iterable<? extends Case> cases) {
+        db.beginTransaction();
+        try {
+            insertIndexRows(cases);
+            for (Case c : cases) {
+                invalidateCachedQueries(c);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void invalidateCachedQueries(Case c) {
+        for (CaseIndex ci : c.getIndices()) {
+            queryCache.invalidate(ci.getName(), ci.getTarget());
+        }
+    }
+
+    /**
+     * Invalidate the cached queries that the existing index rows of the given records
+     * contribute to, before those rows are removed
+     */
+    private void invalidateCachedQueriesForRecords(String whereClause, String[] whereArgs) {
+        if (queryCache.isEmpty()) {
+            return;
+        }
+        Cursor c = db.query(TABLE_NAME, new String[]{COL_INDEX_NAME, COL_INDEX_TARGET},
+                whereClause, whereArgs, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                queryCache.invalidate(c.getString(0), c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private void insertIndexRows(Iterable<? extends Case> cases) {
+        if (!SqlStorage.STORAGE_OPTIMIZATIONS_ACTIVE) {
+            for (Case c : cases) {
+                for (CaseIndex ci : c.getIndices()) {
+                    db.insert(TABLE_NAME, null, getIndexContentValues(c, ci));
+                }
+            }
+            return;
+        }
+
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_NAME + " (" +
+                COL_CASE_RECORD_ID + ", " +
+                COL_INDEX_NAME + ", " +
+                COL_INDEX_TYPE + ", " +
+                COL_INDEX_TARGET + ", " +
+                COL_INDEX_RELATIONSHIP +
+                ") VALUES (?, ?, ?, ?, ?)");
+        try {
+            for (Case c : cases) {
+                for (CaseIndex ci : c.getIndices()) {
+                    insert.clearBindings();
+                    insert.bindLong(1, c.getID());
+                    bindStringOrNull(insert, 2, ci.getName());
+                    bindStringOrNull(insert, 3, ci.getTargetType());
+                    bindStringOrNull(insert, 4, ci.getTarget());
+                    bindStringOrNull(insert, 5, ci.getRelationship());
+                    insert.executeInsert();
+                }
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static ContentValues getIndexContentValues(Case c, CaseIndex ci) {
+        ContentValues cv = new ContentValues();
+        cv.put(COL_CASE_RECORD_ID, c.getID());
+        cv.put(COL_INDEX_NAME, ci.getName());
+        cv.put(COL_INDEX_TYPE, ci.getTargetType());
+        cv.put(COL_INDEX_TARGET, ci.getTarget());
+        cv.put(COL_INDEX_RELATIONSHIP, ci.getRelationship());
+        return cv;
+    }
+
     public HashMap<Integer,Vector<Pair<String, String>>> getCaseIndexMap() {
-        String[] projection = new String[] {COL_CASE_RECORD_ID, COL_INDEX_TARGET, COL_INDEX_RELATIONSHIP};
         HashMap<Integer,Vector<Pair<String, String>>> caseIndexMap = new HashMap<>();
-        Cursor c = db.query(TABLE_NAME, projection, null ,null, null, null, null);
+        Cursor c = db.query(TABLE_NAME, CASE_INDEX_MAP_PROJECTION, null ,null, null, null, null);
+        readCaseIndexMap(c, caseIndexMap);
+        return caseIndexMap;
+    }
+
+    /**
+     * Get the indices of only the provided case records, in the same form as getCaseIndexMap
+     */
+    public HashMap<Integer,Vector<Pair<String, String>>> getCaseIndexMap(Collection<Integer> recordIds) {
+        HashMap<Integer,Vector<Pair<String, String>>> caseIndexMap = new HashMap<>();
+        //NOTE: The record ids need the cast, since arguments can only be provided as strings
+        List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(recordIds, "CAST(? as INT)");
+        for (Pair<String, String[]> whereParams : whereParamList) {
+            Cursor c = db.query(TABLE_NAME, CASE_INDEX_MAP_PROJECTION,
+                    COL_CASE_RECORD_ID + " IN " + whereParams.first, whereParams.second, null, null, null);
+            readCaseIndexMap(c, caseIndexMap);
+        }
+        return caseIndexMap;
+    }
 
+    private static void readCaseIndexMap(Cursor c, HashMap<Integer,Vector<Pair<String, String>>> caseIndexMap) {
         int recordColumn = c.getColumnIndexOrThrow(COL_CASE_RECORD_ID);
         int targetColumn = c.getColumnIndexOrThrow(COL_INDEX_TARGET);
         int relationshipColumn = c.getColumnIndexOrThrow(COL_INDEX_RELATIONSHIP);
@@ -121,13 +246,27 @@ public class AndroidCaseIndexTable implements CaseIndexTable {
                 indexList.add(index);
                 caseIndexMap.put(caseRecordId, indexList);
             }
-
-            return caseIndexMap;
         } finally {
             c.close();
         }
     }
 
+    /**
+     * Get the record ids of the cases with an index of any kind into one of the provided cases
+     *
+     * @param targetCaseIds The case ids of the cases targeted by the indices
+     */
+    public LinkedHashSet<Integer> getCasesIndexing(Collection<String> targetCaseIds) {
+        LinkedHashSet<Integer> ret = new LinkedHashSet<>();
+        List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(targetCaseIds, "?");
+        for (Pair<String, String[]> whereParams : whereParamList) {
+            Cursor c = db.query(TABLE_NAME, new String[]{COL_CASE_RECORD_ID},
+                    COL_INDEX_TARGET + " IN " + whereParams.first, whereParams.second, null, null, null);
+            SqlStorage.fillIdWindow(c, COL_CASE_RECORD_ID, ret);
+        }
+        return ret;
+    }
+
 
     public void clearCaseIndices(Case c) {
         clearCaseIndices(c.getID());
@@ -143,6 +282,7 @@ public class AndroidCaseIndexTable implements CaseIndexTable {
             }
             //NOTE: The cast is very necessary, SQLite's type coercion has problems here because
             //we can't provide arguments in any format other than a string
+            invalidateCachedQueriesForRecords(COL_CASE_RECORD_ID + "= CAST(? as INT)", new String[]{recordIdString});
             db.delete(TABLE_NAME, COL_CASE_RECORD_ID + "= CAST(? as INT)", new String[]{recordIdString});
             db.setTransactionSuccessful();
         } finally {
@@ -158,6 +298,7 @@ public class AndroidCaseIndexTable implements CaseIndexTable {
         try {
             List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(idsToClear);
             for (Pair<String, String[]> whereParams : whereParamList) {
+                invalidateCachedQueriesForRecords(COL_CASE_RECORD_ID + " IN " + whereParams.first, whereParams.second);
                 db.delete(TABLE_NAME, COL_CASE_RECORD_ID + " IN " + whereParams.first, whereParams.second);
             }
             db.setTransactionSuccessful();
@@ -171,6 +312,7 @@ public class AndroidCaseIndexTable implements CaseIndexTable {
      */
     public void wipeTable() {
         SqlStorage.wipeTable(db, TABLE_NAME);
+        queryCache.invalidateAll();
     }
 
     /**
@@ -181,6 +323,13 @@ public class AndroidCaseIndexTable implements CaseIndexTable {
      * @return An integer array of indexed case record ids
      */
     public LinkedHashSet<Integer> getCasesMatchingIndex(String indexName, String targetValue) {
+        String[] targets = new String[]{targetValue};
+        LinkedHashSet<Integer> cached = queryCache.get(indexName, targets);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = queryCache.getGeneration();
+
         String[] args = new String[]{indexName, targetValue};
         if (SqlStorage.STORAGE_OUTPUT_DEBUG) {
             String query = String.format("SELECT %s FROM %s WHERE %s = ? AND %s = ?", COL_CASE_RECORD_ID, TABLE_NAME, COL_INDEX_NAME, COL_INDEX_TARGET);
@@ -189,6 +338,7 @@ public class AndroidCaseIndexTable implements CaseIndexTable {
         Cursor c = db.query(TABLE_NAME, new String[]{COL_CASE_RECORD_ID}, COL_INDEX_NAME + " = ? AND " + COL_INDEX_TARGET + " =  ?", args, null, null, null);
         LinkedHashSet<Integer> ret = new LinkedHashSet<>();
         SqlStorage.fillIdWindow(c, COL_CASE_RECORD_ID, ret);
+        queryCache.put(generation, indexName, targets, ret);
         return ret;
     }
 
@@ -200,6 +350,12 @@ public class AndroidCaseIndexTable implements CaseIndexTable {
      * @return An integer array of indexed case record ids
      */
     public LinkedHashSet<Integer> getCasesMatchingValueSet(String indexName, String[] targetValueSet) {
+        LinkedHashSet<Integer> cached = queryCache.get(indexName, targetValueSet);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = queryCache.getGeneration();
+
         String[] args = new String[1 + targetValueSet.length];
         args[0] = indexName;
         for (int i = 0; i < targetValueSet.length; ++i) {
@@ -218,6 +374,7 @@ public class AndroidCaseIndexTable implements CaseIndexTable {
         LinkedHashSet<Integer> ret = new LinkedHashSet<>();
 
         SqlStorage.fillIdWindow(c, COL_CASE_RECORD_ID, ret);
+        queryCache.put(generation, indexName, targetValueSet, ret);
         return ret;
     }
 
@@ -327,13 +484,19 @@ public class AndroidCaseIndexTable implements CaseIndexTable {
         return sb.toString();
     }
 
+    /**
+     * Rebuilds the index table from scratch for every case in storage. The table's secondary
+     * indexes are dropped while the rows are bulk loaded and recreated afterwards, which is
+     * much cheaper than maintaining them through every insert.
+     */
     public void reIndexAllCases(SqlStorage<ACase> caseStorage) {
         db.beginTransaction();
         try {
+            dropIndexes(db);
             wipeTable();
-            for (ACase c : caseStorage) {
-                indexCase(c);
-            }
+            insertIndexRows(caseStorage);
+            createIndexes(db);
+            queryCache.invalidateAll();
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
@@ -0,0 +1,343 @@
+package org.commcare.models.database.user.models;
+
+import android.content.ContentValues;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.commcare.CommCareApplication;
+import org.commcare.android.database.user.models.ACase;
+import org.commcare.cases.model.Case;
+import org.commcare.modern.database.DatabaseHelper;
+import org.commcare.modern.database.DatabaseIndexingUtils;
+import org.commcare.modern.database.TableBuilder;
+import org.commcare.modern.util.Pair;
+import org.commcare.models.database.DbUtil;
+import org.commcare.models.database.SqlStorage;
+import org.javarosa.xpath.expr.FunctionUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Projects a configured set of case properties out of the serialized case records into a
+ * queryable side table, so that predicates on those properties can be answered in SQL
+ * rather than by deserializing every candidate case.
+ *
+ * Every projected property gets one row per case. Cases that don't have the property are
+ * stored with an empty value, which matches how XPath sees a missing case property. Each
+ * value is also stored in numeric form, converted the same way an XPath comparison would
+ * convert it, so that range predicates can be evaluated against the numeric column.
+ *
+ * The set of properties the table was built for is recorded alongside it and is the only
+ * set that gets written or queried. Reserved case fields are never projected: the casedb
+ * instance serves them from the case's own members rather than from its property table,
+ * so a projection of the property table could disagree with what XPath sees.
+ */
+public class AndroidCasePropertyTable {
+    public static final String TABLE_NAME = "case_property_index";
+    public static final String PROPERTY_NAMES_TABLE_NAME = "case_property_index_names";
+
+    private static final String COL_CASE_RECORD_ID = "case_rec_id";
+    private static final String COL_PROPERTY_NAME = "name";
+    private static final String COL_PROPERTY_VALUE = "value";
+    private static final String COL_NUMERIC_VALUE = "num_value";
+
+    private static final String NAME_VALUE_INDEX_ID = "PROPERTY_NAME_VALUE_RECORD";
+    private static final String NAME_NUMERIC_INDEX_ID = "PROPERTY_NAME_NUMERIC_RECORD";
+    private static final String RECORD_INDEX_ID = "PROPERTY_RECORD";
+
+    private static final Set<String> RESERVED_CASE_FIELDS = new HashSet<>(Arrays.asList(
+            "case_id", "case_type", "owner_id", "status", "case_name", "date_opened",
+            "last_modified", "external_id", "category", "state", "index", "attachment"));
+
+    private final SQLiteDatabase db;
+    private Set<String> indexedProperties;
+
+    public AndroidCasePropertyTable() {
+        this(CommCareApplication.instance().getUserDbHandle());
+    }
+
+    public AndroidCasePropertyTable(SQLiteDatabase dbHandle) {
+        this.db = dbHandle;
+    }
+
+    public static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NAME + "(" +
+                DatabaseHelper.ID_COL + " INTEGER PRIMARY KEY, " +
+                COL_CASE_RECORD_ID + " INTEGER, " +
+                COL_PROPERTY_NAME + ", " +
+                COL_PROPERTY_VALUE + ", " +
+                COL_NUMERIC_VALUE + " REAL" +
+                ")");
+        db.execSQL("CREATE TABLE " + PROPERTY_NAMES_TABLE_NAME + "(" +
+                COL_PROPERTY_NAME + " TEXT PRIMARY KEY" +
+                ")");
+    }
+
+    public static void createIndexes(SQLiteDatabase db) {
+        db.execSQL(DatabaseIndexingUtils.indexOnTableCommand(NAME_VALUE_INDEX_ID, TABLE_NAME,
+                COL_PROPERTY_NAME + ", " + COL_PROPERTY_VALUE + ", " + COL_CASE_RECORD_ID));
+        db.execSQL(DatabaseIndexingUtils.indexOnTableCommand(NAME_NUMERIC_INDEX_ID, TABLE_NAME,
+                COL_PROPERTY_NAME + ", " + COL_NUMERIC_VALUE + ", " + COL_CASE_RECORD_ID));
+        db.execSQL(DatabaseIndexingUtils.indexOnTableCommand(RECORD_INDEX_ID, TABLE_NAME,
+                COL_CASE_RECORD_ID));
+    }
+
+    private static void dropIndexes(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS " + NAME_VALUE_INDEX_ID);
+        db.execSQL("DROP INDEX IF EXISTS " + NAME_NUMERIC_INDEX_ID);
+        db.execSQL("DROP INDEX IF EXISTS " + RECORD_INDEX_ID);
+    }
+
+    /**
+     * @return The case properties that this table holds values for
+     */
+    public synchronized Set<String> getIndexedProperties() {
+        if (indexedProperties == null) {
+            Set<String> properties = new HashSet<>();
+            Cursor c = db.query(PROPERTY_NAMES_TABLE_NAME, new String[]{COL_PROPERTY_NAME},
+                    null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    properties.add(c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+            indexedProperties = Collections.unmodifiableSet(properties);
+        }
+        return indexedProperties;
+    }
+
+    /**
+     * @return Whether the casedb instance serves this field from a dedicated case member or
+     * attribute, in which case it can't be projected out of the case properties
+     */
+    public static boolean isReservedCaseField(String name) {
+        return RESERVED_CASE_FIELDS.contains(name);
+    }
+
+    /**
+     * Make sure that the table holds exactly the provided set of properties, rebuilding it
+     * from case storage if the set has changed since it was last built. Reserved case fields
+     * in the set are skipped.
+     *
+     * @return Whether the table needed to be rebuilt
+     */
+    public boolean syncIndexedProperties(Set<String> requestedProperties,
+                                         SqlStorage<ACase> caseStorage) {
+        Set<String> properties = new HashSet<>();
+        for (String property : requestedProperties) {
+            if (!isReservedCaseField(property)) {
+                properties.add(property);
+            }
+        }
+        if (getIndexedProperties().equals(properties)) {
+            return false;
+        }
+        db.beginTransaction();
+        try {
+            SqlStorage.wipeTableWithoutCommit(db, PROPERTY_NAMES_TABLE_NAME);
+            for (String property : properties) {
+                ContentValues cv = new ContentValues();
+                cv.put(COL_PROPERTY_NAME, property);
+                db.insert(PROPERTY_NAMES_TABLE_NAME, null, cv);
+            }
+            synchronized (this) {
+                indexedProperties = Collections.unmodifiableSet(new HashSet<>(properties));
+            }
+            reIndexAllCases(caseStorage);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return true;
+    }
+
+    /**
+     * Writes the projected properties for the provided case.
+     * NOTE: doesn't clear any existing rows for the case, so its values should be wiped first
+     */
+    public void indexCase(Case c) {
+        if (getIndexedProperties().isEmpty()) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            insertPropertyRows(c);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Writes the projected properties for a batch of cases in one transaction.
+     * NOTE: doesn't clear any existing rows for the cases, so their values should be wiped first
+     */
+    public void indexCases(Iterable<? extends Case> cases) {
+        if (getIndexedProperties().isEmpty()) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            for (Case c : cases) {
+                insertPropertyRows(c);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void insertPropertyRows(Case c) {
+        for (String property : getIndexedProperties()) {
+            String value = c.getProperty(property) == null ? "" : c.getPropertyString(property);
+            ContentValues cv = new ContentValues();
+            cv.put(COL_CASE_RECORD_ID, c.getID());
+            cv.put(COL_PROPERTY_NAME, property);
+            cv.put(COL_PROPERTY_VALUE, value);
+            double numericValue = FunctionUtils.toNumeric(value);
+            if (Double.isNaN(numericValue)) {
+                cv.putNull(COL_NUMERIC_VALUE);
+            } else {
+                cv.put(COL_NUMERIC_VALUE, numericValue);
+            }
+            db.insert(TABLE_NAME, null, cv);
+        }
+    }
+
+    public void clearCaseProperties(int recordId) {
+        if (getIndexedProperties().isEmpty()) {
+            return;
+        }
+        db.delete(TABLE_NAME, COL_CASE_RECORD_ID + " = CAST(? as INT)",
+                new String[]{String.valueOf(recordId)});
+    }
+
+    public void clearCaseProperties(Collection<Integer> idsToClear) {
+        if (idsToClear.size() == 0 || getIndexedProperties().isEmpty()) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            List<Pair<String, String[]>> whereParamList = TableBuilder.sqlList(idsToClear);
+            for (Pair<String, String[]> whereParams : whereParamList) {
+                db.delete(TABLE_NAME, COL_CASE_RECORD_ID + " IN " + whereParams.first, whereParams.second);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Removes all property values, leaving the set of projected properties in place
+     */
+    public void wipeTable() {
+        SqlStorage.wipeTable(db, TABLE_NAME);
+    }
+
+    /**
+     * Rebuilds the table from scratch for every case in storage, loading the rows before the
+     * secondary indexes are recreated.
+     */
+    public void reIndexAllCases(SqlStorage<ACase> caseStorage) {
+        db.beginTransaction();
+        try {
+            dropIndexes(db);
+            SqlStorage.wipeTableWithoutCommit(db, TABLE_NAME);
+            if (!getIndexedProperties().isEmpty()) {
+                for (ACase c : caseStorage) {
+                    insertPropertyRows(c);
+                }
+            }
+            createIndexes(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Get the record ids of the cases which match all of the provided property conditions
+     */
+    public LinkedHashSet<Integer> getCasesMatching(List<CasePropertyCondition> conditions) {
+        List<String> args = new ArrayList<>();
+        StringBuilder query = new StringBuilder();
+        for (CasePropertyCondition condition : conditions) {
+            if (condition.isNumeric() && Double.isNaN(condition.numericValue)) {
+                // XPath comparisons against NaN are always false
+                return new LinkedHashSet<>();
+            }
+            if (query.length() > 0) {
+                query.append(" INTERSECT ");
+            }
+            query.append("SELECT ").append(COL_CASE_RECORD_ID).append(" FROM ").append(TABLE_NAME)
+                    .append(" WHERE ").append(COL_PROPERTY_NAME).append(" = ? AND ");
+            args.add(condition.propertyName);
+            if (condition.isNumeric()) {
+                query.append(COL_NUMERIC_VALUE).append(" ").append(condition.operator).append(" CAST(? as REAL)");
+                args.add(String.valueOf(condition.numericValue));
+            } else {
+                query.append(COL_PROPERTY_VALUE).append(" = ?");
+                args.add(condition.stringValue);
+            }
+        }
+        // Keep results in storage order, which is the order the cases would otherwise be walked
+        query.append(" ORDER BY ").append(COL_CASE_RECORD_ID);
+        String[] argArray = args.toArray(new String[args.size()]);
+        if (SqlStorage.STORAGE_OUTPUT_DEBUG) {
+            DbUtil.explainSql(db, query.toString(), argArray);
+        }
+
+        LinkedHashSet<Integer> ret = new LinkedHashSet<>();
+        SqlStorage.fillIdWindow(db.rawQuery(query.toString(), argArray), COL_CASE_RECORD_ID, ret);
+        return ret;
+    }
+
+    /**
+     * A single condition on a projected case property, either a string equality match or a
+     * numeric comparison.
+     */
+    public static class CasePropertyCondition {
+        private final String propertyName;
+        private final String operator;
+        private final String stringValue;
+        private final double numericValue;
+
+        private CasePropertyCondition(String propertyName, String operator,
+                                      String stringValue, double numericValue) {
+            this.propertyName = propertyName;
+            this.operator = operator;
+            this.stringValue = stringValue;
+            this.numericValue = numericValue;
+        }
+
+        public static CasePropertyCondition stringEquals(String propertyName, String value) {
+            return new CasePropertyCondition(propertyName, null, value, Double.NaN);
+        }
+
+        /**
+         * @param operator One of =, <, <=, >, >=, applied as (property operator value)
+         */
+        public static CasePropertyCondition numericCompare(String propertyName, String operator, double value) {
+            return new CasePropertyCondition(propertyName, operator, null, value);
+        }
+
+        public String getPropertyName() {
+            return propertyName;
+        }
+
+        private boolean isNumeric() {
+            return operator != null;
+        }
+    }
+}
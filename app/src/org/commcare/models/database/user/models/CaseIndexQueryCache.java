@@ -0,0 +1,177 @@
+package org.commcare.models.database.user.models;
+
+import android.util.LruCache;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Caches the results of case index queries, keyed by the index name and the set of target
+ * values being matched, for all case index tables opened against the same user database.
+ *
+ * The cache is bounded by the approximate memory used by its results and evicts the least
+ * recently used queries first. Writes to the case index table invalidate exactly the queries
+ * whose results could have changed: the ones on the same index name that match the target of
+ * an index row being added or removed.
+ */
+public class CaseIndexQueryCache {
+    private static final int MAX_CACHE_BYTES = 2 * 1024 * 1024;
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    private static CaseIndexQueryCache instance;
+    private static String instanceDbPath;
+
+    private final LruCache<String, CachedQuery> queries;
+    private final HashMap<String, Set<String>> queriesByTarget = new HashMap<>();
+
+    /**
+     * Bumped on every invalidation so that a query which ran concurrently with a write
+     * doesn't store a result that the write has already made stale
+     */
+    private long generation = 0;
+
+    private CaseIndexQueryCache() {
+        queries = new LruCache<String, CachedQuery>(MAX_CACHE_BYTES) {
+            @Override
+            protected int sizeOf(String key, CachedQuery query) {
+                return ENTRY_OVERHEAD_BYTES + key.length() * 2 + query.recordIds.length * 4;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, CachedQuery oldQuery, CachedQuery newQuery) {
+                for (String target : oldQuery.targets) {
+                    String targetKey = getTargetKey(oldQuery.indexName, target);
+                    Set<String> keys = queriesByTarget.get(targetKey);
+                    if (keys != null) {
+                        keys.remove(key);
+                        if (keys.isEmpty()) {
+                            queriesByTarget.remove(targetKey);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * @return The query cache for the provided user database
+     */
+    public static synchronized CaseIndexQueryCache getCache(SQLiteDatabase db) {
+        String dbPath = db.getPath();
+        if (instance == null || !instanceDbPath.equals(dbPath)) {
+            instance = new CaseIndexQueryCache();
+            instanceDbPath = dbPath;
+        }
+        return instance;
+    }
+
+    /**
+     * Drop all cached queries, e.g. when the user session that owns the database ends
+     */
+    public static synchronized void clearAll() {
+        instance = null;
+        instanceDbPath = null;
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    public synchronized boolean isEmpty() {
+        return queries.size() == 0;
+    }
+
+    /**
+     * @return A copy of the cached result for the query, or null if it isn't cached
+     */
+    public synchronized LinkedHashSet<Integer> get(String indexName, String[] targets) {
+        CachedQuery query = queries.get(getQueryKey(indexName, targets));
+        if (query == null) {
+            return null;
+        }
+        LinkedHashSet<Integer> result = new LinkedHashSet<>(query.recordIds.length);
+        for (int recordId : query.recordIds) {
+            result.add(recordId);
+        }
+        return result;
+    }
+
+    /**
+     * Cache the result of a query, unless the cache has been invalidated since the
+     * provided generation
+     */
+    public synchronized void put(long queryGeneration, String indexName, String[] targets,
+                                 Collection<Integer> recordIds) {
+        if (queryGeneration != generation) {
+            return;
+        }
+        String key = getQueryKey(indexName, targets);
+        int[] ids = new int[recordIds.size()];
+        int i = 0;
+        for (Integer recordId : recordIds) {
+            ids[i++] = recordId;
+        }
+        queries.put(key, new CachedQuery(indexName, targets, ids));
+        for (String target : targets) {
+            String targetKey = getTargetKey(indexName, target);
+            Set<String> keys = queriesByTarget.get(targetKey);
+            if (keys == null) {
+                keys = new HashSet<>();
+                queriesByTarget.put(targetKey, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    /**
+     * Drop every cached query that matches the given target on the given index
+     */
+    public synchronized void invalidate(String indexName, String target) {
+        generation++;
+        Set<String> keys = queriesByTarget.get(getTargetKey(indexName, target));
+        if (keys != null) {
+            // removing entries updates the target map, so work from a copy
+            for (String key : new ArrayList<>(keys)) {
+                queries.remove(key);
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        queries.evictAll();
+    }
+
+    private static String getQueryKey(String indexName, String[] targets) {
+        String[] sortedTargets = targets.clone();
+        Arrays.sort(sortedTargets);
+        StringBuilder key = new StringBuilder(indexName);
+        for (String target : sortedTargets) {
+            key.append('\u0000').append(target);
+        }
+        return key.toString();
+    }
+
+    private static String getTargetKey(String indexName, String target) {
+        return indexName + '\u0000' + target;
+    }
+
+    private static class CachedQuery {
+        final String indexName;
+        final String[] targets;
+        final int[] recordIds;
+
+        CachedQuery(String indexName, String[] targets, int[] recordIds) {
+            this.indexName = indexName;
+            this.targets = targets;
+            this.recordIds = recordIds;
+        }
+    }
+}
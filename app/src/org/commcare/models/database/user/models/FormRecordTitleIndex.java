@@ -0,0 +1,119 @@
+package org.commcare.models.database.user.models;
+
+import android.content.ContentValues;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.commcare.CommCareApplication;
+import org.commcare.android.database.user.models.FormRecord;
+import org.commcare.models.AndroidSessionWrapper;
+import org.commcare.models.database.AndroidSandbox;
+import org.commcare.modern.database.DatabaseHelper;
+import org.commcare.util.FormDataUtil;
+
+import java.util.HashMap;
+
+/**
+ * Side table holding the title shown for each saved form record in the form record list.
+ *
+ * Computing a title means rebuilding the session the form was started from and evaluating
+ * its detail title against the case data, which is far too slow to repeat for every record
+ * each time the list is opened. Titles are instead stored when a form is first saved, or the
+ * first time the list needs one that is missing, and then read back for all records at once.
+ *
+ * Titles are kept as they were when computed; a later change to the case data a title was
+ * drawn from isn't reflected until the record's session is rewritten. A title that couldn't
+ * be computed is never stored, so it's tried again the next time the list is loaded.
+ */
+public class FormRecordTitleIndex {
+    public static final String TABLE_NAME = "form_record_titles";
+
+    private static final String COL_FORM_RECORD_ID = "form_record_id";
+    private static final String COL_TITLE = "title";
+
+    /**
+     * Shown in place of a title that couldn't be computed
+     */
+    public static final String UNAVAILABLE_TITLE = "[Unavailable]";
+
+    private final SQLiteDatabase db;
+
+    public FormRecordTitleIndex() {
+        this(CommCareApplication.instance().getUserDbHandle());
+    }
+
+    public FormRecordTitleIndex(SQLiteDatabase db) {
+        this.db = db;
+    }
+
+    public static String getTableDefinition() {
+        return "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + "(" +
+                COL_FORM_RECORD_ID + " INTEGER PRIMARY KEY, " +
+                COL_TITLE + " TEXT" +
+                ")";
+    }
+
+    /**
+     * @return The title for the form started from the provided session, which is blank if the
+     * session doesn't define one, or null if it couldn't be computed
+     */
+    public static String computeTitle(AndroidSessionWrapper asw) {
+        String title;
+        try {
+            title = FormDataUtil.getTitleFromSession(new AndroidSandbox(CommCareApplication.instance()),
+                    asw.getSession(), asw.getEvaluationContext());
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return title == null ? "" : title;
+    }
+
+    /**
+     * Store the title computed for a form record, or drop any stored one if it couldn't be
+     * computed, so that it's recomputed rather than shown stale
+     */
+    public void storeComputedTitle(int formRecordId, String computedTitle) {
+        if (computedTitle == null) {
+            removeTitle(formRecordId);
+        } else {
+            setTitle(formRecordId, computedTitle);
+        }
+    }
+
+    public void setTitle(int formRecordId, String title) {
+        ContentValues cv = new ContentValues();
+        cv.put(COL_FORM_RECORD_ID, formRecordId);
+        cv.put(COL_TITLE, title);
+        db.insertWithOnConflict(TABLE_NAME, null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    public void removeTitle(int formRecordId) {
+        db.delete(TABLE_NAME, COL_FORM_RECORD_ID + " = ?", new String[]{String.valueOf(formRecordId)});
+    }
+
+    /**
+     * @return The stored titles, keyed by form record id
+     */
+    public HashMap<Integer, String> getTitles() {
+        HashMap<Integer, String> titles = new HashMap<>();
+        Cursor c = db.query(TABLE_NAME, new String[]{COL_FORM_RECORD_ID, COL_TITLE},
+                null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                titles.put(c.getInt(0), c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+        return titles;
+    }
+
+    /**
+     * Drop the titles of form records that no longer exist
+     */
+    public void removeOrphanedTitles() {
+        db.delete(TABLE_NAME, COL_FORM_RECORD_ID + " NOT IN (SELECT " + DatabaseHelper.ID_COL +
+                " FROM " + FormRecord.STORAGE_KEY + ")", null);
+    }
+}
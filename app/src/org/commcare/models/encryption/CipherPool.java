@@ -2,12 +2,25 @@ package org.commcare.models.encryption;
 
 import android.util.Log;
 
-import java.util.HashSet;
-import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.Cipher;
 
 /**
+ * Pool of ciphers which can be borrowed and remitted from any thread without contending on a
+ * shared lock.
+ *
+ * Each thread keeps the last cipher it remitted for itself, so a thread which repeatedly
+ * borrows and remits never touches shared state beyond the issued set. Ciphers which don't
+ * fit in a thread's slot go to a bounded, lock-free overflow queue shared by all threads.
+ *
+ * Every cipher is tagged with the pool generation it was created or issued in, and expire()
+ * starts a new generation. Ciphers from an earlier generation are discarded wherever they turn
+ * up, whether in a thread's slot, in the shared queue, or when remitted, so a borrow which
+ * starts after expire() returns is never handed a cipher from before it.
+ *
  * @author ctsims
  */
 public abstract class CipherPool {
@@ -15,8 +28,28 @@ public abstract class CipherPool {
 
     private static final int GROWTH_FACTOR = 5;
 
-    private final HashSet<Cipher> issued = new HashSet<>();
-    private final Stack<Cipher> free = new Stack<>();
+    /**
+     * Maximum number of idle ciphers retained in the shared overflow queue
+     */
+    private static final int MAX_SHARED_CIPHERS = GROWTH_FACTOR * 2;
+
+    /**
+     * Ciphers currently lent out, mapped to the generation they were issued in
+     */
+    private final ConcurrentHashMap<Cipher, Integer> issued = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<PooledCipher> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+
+    /**
+     * Bumped on every expiration, so that ciphers from an earlier generation are discarded
+     * rather than re-issued
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+    private final ThreadLocal<PooledCipher> threadCipher = new ThreadLocal<>();
+
+    private final AtomicInteger poolSize = new AtomicInteger();
+    private final AtomicInteger growthCount = new AtomicInteger();
+    private volatile CipherPoolMonitor monitor;
 
     //TODO: Pass in factory and finalize all API's rather than
     //leaving the class to be anonymous?
@@ -24,36 +57,145 @@ public abstract class CipherPool {
 
     }
 
-    public synchronized final void init() {
-        grow();
+    public final void init() {
+        offerFree(grow(generation.get()));
     }
 
-    public synchronized final Cipher borrow() {
-        if (free.isEmpty()) {
-            grow();
-            Log.d(TAG, "Growing cipher pool. Current size is: " + free.size() + issued.size());
+    public final Cipher borrow() {
+        long start = System.nanoTime();
+        while (true) {
+            int currentGeneration = generation.get();
+            PooledCipher toLend = takeThreadCipher();
+            if (toLend == null) {
+                toLend = pollFree();
+            }
+            if (toLend == null) {
+                toLend = grow(currentGeneration);
+                Log.d(TAG, "Growing cipher pool. Current size is: " + poolSize.get());
+            }
+            if (toLend.generation != currentGeneration) {
+                // Left over from before the pool last expired
+                continue;
+            }
+
+            issued.put(toLend.cipher, currentGeneration);
+            if (generation.get() != currentGeneration) {
+                // The pool expired while this cipher was being issued
+                issued.remove(toLend.cipher);
+                continue;
+            }
+
+            CipherPoolMonitor currentMonitor = monitor;
+            if (currentMonitor != null) {
+                currentMonitor.onCipherBorrowed(System.nanoTime() - start, poolSize.get());
+            }
+            return toLend.cipher;
         }
-        Cipher toLend = free.pop();
-        issued.add(toLend);
-        return toLend;
     }
 
-    public synchronized final void remit(Cipher cipher) {
-        issued.remove(cipher);
-        free.push(cipher);
+    public final void remit(Cipher cipher) {
+        Integer issuedGeneration = issued.remove(cipher);
+        if (issuedGeneration == null || issuedGeneration != generation.get()) {
+            // Issued before the pool last expired, so it shouldn't be handed out again
+            return;
+        }
+        PooledCipher remitted = new PooledCipher(cipher, issuedGeneration);
+        PooledCipher cached = threadCipher.get();
+        if (cached == null || cached.generation != issuedGeneration) {
+            threadCipher.set(remitted);
+        } else if (!offerFree(remitted)) {
+            poolSize.decrementAndGet();
+        }
     }
 
-    private synchronized void grow() {
-        for (int i = 0; i < GROWTH_FACTOR; ++i) {
-            free.push(generateNewCipher());
+    private PooledCipher takeThreadCipher() {
+        PooledCipher cached = threadCipher.get();
+        if (cached != null) {
+            threadCipher.set(null);
         }
+        return cached;
+    }
+
+    /**
+     * @return Whether the shared queue had room for the cipher
+     */
+    private boolean offerFree(PooledCipher cipher) {
+        if (freeCount.incrementAndGet() <= MAX_SHARED_CIPHERS) {
+            free.offer(cipher);
+            return true;
+        }
+        freeCount.decrementAndGet();
+        return false;
+    }
+
+    private PooledCipher pollFree() {
+        PooledCipher cipher = free.poll();
+        if (cipher != null) {
+            freeCount.decrementAndGet();
+        }
+        return cipher;
+    }
+
+    /**
+     * Creates a new batch of ciphers for the given generation, placing all but one of them in
+     * the shared queue
+     *
+     * @return The cipher that was not placed in the shared queue
+     */
+    private PooledCipher grow(int cipherGeneration) {
+        PooledCipher first = new PooledCipher(generateNewCipher(), cipherGeneration);
+        int created = 1;
+        for (int i = 1; i < GROWTH_FACTOR; ++i) {
+            if (offerFree(new PooledCipher(generateNewCipher(), cipherGeneration))) {
+                created++;
+            }
+        }
+        int size = poolSize.addAndGet(created);
+        int growths = growthCount.incrementAndGet();
+
+        CipherPoolMonitor currentMonitor = monitor;
+        if (currentMonitor != null) {
+            currentMonitor.onPoolGrown(size, growths);
+        }
+        return first;
     }
 
     protected abstract Cipher generateNewCipher();
 
-    public synchronized final void expire() {
+    public final void expire() {
         //do we want to try to destroy the final object here?
+        generation.incrementAndGet();
         issued.clear();
-        free.clear();
+        while (pollFree() != null) {
+            // Drained one at a time so that freeCount stays in step with concurrent remits
+        }
+        poolSize.set(0);
+        threadCipher.remove();
+    }
+
+    public void setMonitor(CipherPoolMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    /**
+     * @return The number of ciphers created by this pool that are still in circulation. Only
+     * approximate while ciphers are being borrowed during an expiration.
+     */
+    public int getPoolSize() {
+        return poolSize.get();
+    }
+
+    public int getGrowthCount() {
+        return growthCount.get();
+    }
+
+    private static class PooledCipher {
+        final Cipher cipher;
+        final int generation;
+
+        PooledCipher(Cipher cipher, int generation) {
+            this.cipher = cipher;
+            this.generation = generation;
+        }
     }
 }
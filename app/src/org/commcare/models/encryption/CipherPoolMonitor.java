@@ -0,0 +1,24 @@
+package org.commcare.models.encryption;
+
+/**
+ * Receives instrumentation events from a CipherPool, so that pool sizing and the cost of
+ * borrowing can be measured when ciphers are being used from multiple threads.
+ *
+ * Callbacks are made on the thread using the pool and should return quickly.
+ */
+public interface CipherPoolMonitor {
+    /**
+     * Borrowing never blocks on other threads, so the time reported is spent in the pool
+     * itself, mostly generating new ciphers when the pool has to grow.
+     *
+     * @param borrowTimeNanos How long the call to borrow() took
+     * @param poolSize        The number of ciphers created by the pool so far
+     */
+    void onCipherBorrowed(long borrowTimeNanos, int poolSize);
+
+    /**
+     * @param poolSize    The number of ciphers created by the pool after growing
+     * @param growthCount The number of times the pool has grown
+     */
+    void onPoolGrown(int poolSize, int growthCount);
+}
@@ -83,6 +83,12 @@ public class CommcareRequestEndpointsMock implements CommcareRequestEndpoints {
         throw new RuntimeException("Not yet mocked");
     }
 
+    @Override
+    public Response<ResponseBody> simpleGet(String uri, Map<String, String> params,
+                                            Map<String, String> headers) throws IOException {
+        throw new RuntimeException("Not yet mocked");
+    }
+
     @Override
     public void abortCurrentRequest() {
         throw new RuntimeException("Not yet mocked");
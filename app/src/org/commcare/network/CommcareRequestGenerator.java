@@ -223,12 +223,20 @@ public class CommcareRequestGenerator implements CommcareRequestEndpoints {
 
     @Override
     public Response<ResponseBody> simpleGet(String uri, Map<String, String> httpParams) throws IOException {
+        return simpleGet(uri, httpParams, new HashMap<String, String>());
+    }
+
+    @Override
+    public Response<ResponseBody> simpleGet(String uri, Map<String, String> httpParams,
+                                            Map<String, String> headers) throws IOException {
+        HashMap<String, String> requestHeaders = getHeaders("");
+        requestHeaders.putAll(headers);
 
         ModernHttpRequester requester = CommCareApplication.instance().createGetRequester(
                 CommCareApplication.instance(),
                 uri,
                 httpParams,
-                getHeaders(""),
+                requestHeaders,
                 new AuthInfo.ProvidedAuth(username, password),
                 null);
 
@@ -42,7 +42,7 @@ public class DeveloperPreferences extends CommCarePreferenceFragment {
     private static final String ACTION_BAR_ENABLED = "cc-action-nav-enabled";
     private static final String LIST_REFRESH_ENABLED = "cc-list-refresh";
     private static final String HOME_REPORT_ENABLED = "cc-home-report";
-    private static final String AUTO_PURGE_ENABLED = "cc-auto-purge";
+    public static final String AUTO_PURGE_ENABLED = "cc-auto-purge";
     private static final String LOAD_FORM_PAYLOAD_AS = "cc-form-payload-status";
     private static final String DETAIL_TAB_SWIPE_ACTION_ENABLED = "cc-detail-final-swipe-enabled";
     private static final String USE_ROOT_MENU_AS_HOME_SCREEN = "cc-use-root-menu-as-home-screen";
@@ -56,6 +56,8 @@ public class DeveloperPreferences extends CommCarePreferenceFragment {
     private final static String ENFORCE_SECURE_ENDPOINT = "cc-enforce-secure-endpoint";
     private final static String ALLOW_SPACE_IN_SELECT_CHOICES = "cc-allow-space-in-select-choices";
     private final static String USE_EXPRESSION_CACHING_IN_FORMS = "use-expression-caching-in-forms";
+    public final static String BACKGROUND_FORM_RELEVANCIES = "cc-background-form-relevancies";
+    public final static String ASYNC_LOGGING = "cc-async-logging";
 
     public final static String PROJECT_SET_ACCESS_CODE = "cc-dev-prefs-access-code";
     public final static String USER_ENTERED_ACCESS_CODE = "cc-dev-prefs-user-entered-code";
@@ -413,6 +415,22 @@ public class DeveloperPreferences extends CommCarePreferenceFragment {
         return doesPropertyMatch(USE_EXPRESSION_CACHING_IN_FORMS, PrefValues.NO, PrefValues.YES);
     }
 
+    /**
+     * Whether form relevancies should be updated on a background thread after answers settle,
+     * rather than on the UI thread after every change
+     */
+    public static boolean evaluateFormRelevanciesInBackground() {
+        return doesPropertyMatch(BACKGROUND_FORM_RELEVANCIES, PrefValues.NO, PrefValues.YES);
+    }
+
+    /**
+     * Whether log entries should be buffered and written in batches on a background thread,
+     * rather than written one at a time by the thread logging them
+     */
+    public static boolean useAsyncLogging() {
+        return doesPropertyMatch(ASYNC_LOGGING, PrefValues.NO, PrefValues.YES);
+    }
+
     private void hideOrShowDangerousSettings() {
         Preference[] onScreenPrefs = getOnScreenPrefs();
         if (!GlobalPrivilegesManager.isAdvancedSettingsAccessEnabled() && !BuildConfig.DEBUG) {
@@ -9,6 +9,8 @@ import org.commcare.CommCareApplication;
 import org.commcare.activities.GeoPointActivity;
 import org.commcare.utils.GeoUtils;
 
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -54,6 +56,9 @@ public class HiddenPreferences {
     public static final String DUMP_FOLDER_PATH = "dump-folder-path";
     private final static String RESIZING_METHOD = "cc-resize-images";
     private static final String KEY_TARGET_DENSITY = "cc-inflation-target-density";
+    public final static String FORM_SUBMISSION_CONCURRENCY = "cc-form-submission-concurrency";
+    public final static String USER_DB_READ_POOL_ENABLED = "cc-user-db-read-pool";
+    private final static String INDEXED_CASE_PROPERTIES = "cc-indexed-case-properties";
     // Used to make it so that CommCare will not conduct a multimedia validation check
     public final static String MM_VALIDATED_FROM_HQ = "cc-content-valid";
     private static final String USER_DOMAIN_SUFFIX = "cc_user_domain";
@@ -83,6 +88,26 @@ public class HiddenPreferences {
         }
     }
 
+    /**
+     * @return How many forms may be uploaded to the server at once. Forms touching the same
+     * case are always sent one after another, regardless of this setting.
+     */
+    public static int getFormSubmissionConcurrency() {
+        final int maxConcurrency = 4;
+
+        CommCareApp app = CommCareApplication.instance().getCurrentApp();
+        if (app == null) {
+            return 1;
+        }
+        try {
+            int concurrency = Integer.parseInt(
+                    app.getAppPreferences().getString(FORM_SUBMISSION_CONCURRENCY, "1"));
+            return Math.max(1, Math.min(concurrency, maxConcurrency));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
     /**
      * @return Accuracy needed for GPS auto-capture to stop polling during form entry
      */
@@ -178,6 +203,38 @@ public class HiddenPreferences {
         return Integer.parseInt(properties.getString(KEY_TARGET_DENSITY, PrefValues.DEFAULT_TARGET_DENSITY));
     }
 
+    /**
+     * @return Whether the user database should be run in write-ahead-log mode with a pool of
+     * read-only connections, so that reads aren't blocked by a sync writing in the background
+     */
+    public static boolean isUserDbReadPoolEnabled() {
+        CommCareApp app = CommCareApplication.instance().getCurrentApp();
+        if (app == null) {
+            return false;
+        }
+        return app.getAppPreferences().getString(USER_DB_READ_POOL_ENABLED, PrefValues.NO)
+                .equals(PrefValues.YES);
+    }
+
+    /**
+     * @return The case properties that should be projected into their own table so that case
+     * queries can filter on them in SQL, as configured by a comma separated list in the profile
+     */
+    public static Set<String> getIndexedCaseProperties() {
+        Set<String> properties = new HashSet<>();
+        CommCareApp app = CommCareApplication.instance().getCurrentApp();
+        if (app == null) {
+            return properties;
+        }
+        String propertyList = app.getAppPreferences().getString(INDEXED_CASE_PROPERTIES, "");
+        for (String property : propertyList.split(",")) {
+            if (!"".equals(property.trim())) {
+                properties.add(property.trim());
+            }
+        }
+        return properties;
+    }
+
     public static boolean isEntityDetailLoggingEnabled() {
         SharedPreferences properties = CommCareApplication.instance().getCurrentApp().getAppPreferences();
         return properties.getString(LOG_ENTITY_DETAIL, PrefValues.FALSE).equals(PrefValues.TRUE);
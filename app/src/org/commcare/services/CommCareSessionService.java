@@ -25,8 +25,13 @@ import org.commcare.core.encryption.CryptUtil;
 import org.commcare.dalvik.R;
 import org.commcare.heartbeat.HeartbeatLifecycleManager;
 import org.commcare.interfaces.FormSaveCallback;
+import org.commcare.android.database.user.models.ACase;
+import org.commcare.models.database.ConcreteAndroidDbHelper;
+import org.commcare.models.database.SqlStorage;
 import org.commcare.models.database.user.DatabaseUserOpenHelper;
+import org.commcare.models.database.user.UserDatabaseReadPool;
 import org.commcare.models.database.user.UserSandboxUtils;
+import org.commcare.models.database.user.models.AndroidCasePropertyTable;
 import org.commcare.models.encryption.CipherPool;
 import org.commcare.preferences.HiddenPreferences;
 import org.commcare.tasks.DataSubmissionListener;
@@ -91,7 +96,11 @@ public class CommCareSessionService extends Service {
     private String userKeyRecordUUID;
     private int userKeyRecordID;
 
-    private SQLiteDatabase userDatabase;
+    // Volatile so that reads through the pool don't need to take the session lock
+    private volatile SQLiteDatabase userDatabase;
+
+    // Read-only connections to the user database, if it is being run in WAL mode
+    private volatile UserDatabaseReadPool userDatabaseReadPool;
 
     // unique id for logged in notification
     private final static int NOTIFICATION = org.commcare.dalvik.R.string.notificationtitle;
@@ -257,6 +266,24 @@ public class CommCareSessionService extends Service {
         }
     }
 
+    /**
+     * @return A handle to use for queries that don't write. This is a pooled read-only
+     * connection if the user database is in WAL mode, unless the calling thread is in the
+     * middle of a transaction on the main handle and so needs to see its own writes.
+     */
+    public SQLiteDatabase getUserDbReadHandle() {
+        SQLiteDatabase database = userDatabase;
+        UserDatabaseReadPool readPool = userDatabaseReadPool;
+        if (readPool == null || database == null || database.isDbLockedByCurrentThread()) {
+            return database;
+        }
+        return readPool.getReadHandle();
+    }
+
+    public boolean hasUserDbReadPool() {
+        return userDatabaseReadPool != null;
+    }
+
     /**
      * (Re-)open user database
      */
@@ -265,12 +292,56 @@ public class CommCareSessionService extends Service {
             this.userKeyRecordUUID = record.getUuid();
             this.key = symetricKey;
             pool.init();
-            if (userDatabase != null && userDatabase.isOpen()) {
-                userDatabase.close();
-            }
+            closeUserDatabase();
 
+            String encodedKey = UserSandboxUtils.getSqlCipherEncodedKey(key);
             userDatabase = new DatabaseUserOpenHelper(CommCareApplication.instance(), userKeyRecordUUID)
-                    .getWritableDatabase(UserSandboxUtils.getSqlCipherEncodedKey(key));
+                    .getWritableDatabase(encodedKey);
+
+            if (HiddenPreferences.isUserDbReadPoolEnabled()) {
+                try {
+                    UserDatabaseReadPool.enableWriteAheadLogging(userDatabase);
+                    userDatabaseReadPool = new UserDatabaseReadPool(CommCareApplication.instance(),
+                            userKeyRecordUUID, encodedKey);
+                } catch (Exception e) {
+                    // Everything still works through the main handle, just without concurrent reads
+                    Logger.exception("Unable to open read connections to the user database", e);
+                    userDatabaseReadPool = null;
+                }
+            }
+
+            syncCasePropertyTable();
+        }
+    }
+
+    /**
+     * Bring the projected case property table in line with the properties the app is
+     * currently configured to index. Only does real work when that configuration changes.
+     */
+    private void syncCasePropertyTable() {
+        try {
+            SqlStorage<ACase> caseStorage = new SqlStorage<>(ACase.STORAGE_KEY, ACase.class,
+                    new ConcreteAndroidDbHelper(CommCareApplication.instance(), userDatabase));
+            if (new AndroidCasePropertyTable(userDatabase).syncIndexedProperties(
+                    HiddenPreferences.getIndexedCaseProperties(), caseStorage)) {
+                Logger.log(LogTypes.TYPE_MAINTENANCE, "Rebuilt case property table for new property set");
+            }
+        } catch (Exception e) {
+            // Property predicates will fall back to being evaluated against each case
+            Logger.exception("Unable to update case property table", e);
+        }
+    }
+
+    private void closeUserDatabase() {
+        if (userDatabaseReadPool != null) {
+            userDatabaseReadPool.close();
+            userDatabaseReadPool = null;
+        }
+        if (userDatabase != null) {
+            if (userDatabase.isOpen()) {
+                userDatabase.close();
+            }
+            userDatabase = null;
         }
     }
 
@@ -423,12 +494,7 @@ public class CommCareSessionService extends Service {
             key = null;
             user = null;
 
-            if (userDatabase != null) {
-                if (userDatabase.isOpen()) {
-                    userDatabase.close();
-                }
-                userDatabase = null;
-            }
+            closeUserDatabase();
 
             // timer is null if we aren't actually in the foreground
             if (maintenanceTimer != null) {
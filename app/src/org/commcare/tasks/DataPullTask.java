@@ -21,6 +21,8 @@ import org.commcare.google.services.analytics.AnalyticsParamValue;
 import org.commcare.interfaces.CommcareRequestEndpoints;
 import org.commcare.models.database.SqlStorage;
 import org.commcare.models.database.user.models.AndroidCaseIndexTable;
+import org.commcare.models.database.user.models.AndroidCasePropertyTable;
+import org.commcare.models.database.user.models.CaseIndexQueryCache;
 import org.commcare.models.database.user.models.EntityStorageCache;
 import org.commcare.models.encryption.ByteEncrypter;
 import org.commcare.modern.models.RecordTooLargeException;
@@ -554,6 +556,8 @@ public abstract class DataPullTask<R>
         SqlStorage.wipeTableWithoutCommit(userDb, ACase.STORAGE_KEY);
         SqlStorage.wipeTableWithoutCommit(userDb, Ledger.STORAGE_KEY);
         SqlStorage.wipeTableWithoutCommit(userDb, AndroidCaseIndexTable.TABLE_NAME);
+        CaseIndexQueryCache.getCache(userDb).invalidateAll();
+        SqlStorage.wipeTableWithoutCommit(userDb, AndroidCasePropertyTable.TABLE_NAME);
         EntityStorageCache.wipeCacheForCurrentAppWithoutCommit(userDb);
     }
 
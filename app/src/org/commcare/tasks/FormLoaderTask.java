@@ -15,13 +15,12 @@ import org.commcare.logging.UserCausedRuntimeException;
 import org.commcare.logging.XPathErrorLogger;
 import org.commcare.logic.AndroidFormController;
 import org.commcare.logic.FileReferenceFactory;
+import org.commcare.logic.FormDefCache;
+import org.commcare.models.database.SqlStorage;
 import org.commcare.models.encryption.EncryptionIO;
 import org.commcare.preferences.DeveloperPreferences;
 import org.commcare.tasks.templates.CommCareTask;
 import org.commcare.util.LogTypes;
-import org.commcare.utils.FileUtil;
-import org.commcare.utils.GlobalConstants;
-import org.javarosa.core.io.StreamsUtil;
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.instance.InstanceInitializationFactory;
 import org.javarosa.core.model.instance.TreeElement;
@@ -41,16 +40,11 @@ import org.javarosa.xform.parse.XFormParseException;
 import org.javarosa.xform.parse.XFormParser;
 import org.javarosa.xpath.XPathException;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 
 import javax.crypto.spec.SecretKeySpec;
 
@@ -73,6 +67,12 @@ public abstract class FormLoaderTask<R> extends CommCareTask<Integer, String, Fo
 
     private FECWrapper data;
 
+    // Set when the loaded form's hash had to be computed, so that it can be stored once the
+    // load has finished rather than written to app storage from the loader thread
+    private int unrecordedHashFormDefId = -1;
+    private String unrecordedHashFormPath;
+    private String unrecordedFormHash;
+
     public static final int FORM_LOADER_TASK_ID = 16;
 
     public FormLoaderTask(SecretKeySpec symetricKey, boolean readOnly,
@@ -92,46 +92,47 @@ public abstract class FormLoaderTask<R> extends CommCareTask<Integer, String, Fo
      */
     @Override
     protected FECWrapper doTaskBackground(Integer... formDefId) {
-        FormDef fd = null;
-
-        FormDefRecord formDefRecord = FormDefRecord.getFormDef(
-                CommCareApplication.instance().getAppStorage(FormDefRecord.class),
-                formDefId[0]);
+        SqlStorage<FormDefRecord> formDefStorage =
+                CommCareApplication.instance().getAppStorage(FormDefRecord.class);
+        FormDefRecord formDefRecord = FormDefRecord.getFormDef(formDefStorage, formDefId[0]);
 
         File formXml = new File(formDefRecord.getFilePath());
-        String formHash = FileUtil.getMd5Hash(formXml);
-        File formBin = getCachedForm(formHash);
+        // Recorded at install, so we don't need to read through the whole xml to find the cache
+        String formHash = formDefRecord.getFormHash();
+        if (formHash != null && !formDefRecord.isFormHashRecorded()) {
+            unrecordedHashFormDefId = formDefRecord.getID();
+            unrecordedHashFormPath = formDefRecord.getFilePath();
+            unrecordedFormHash = formHash;
+        }
 
-        if (formBin.exists()) {
-            // if we have binary, deserialize binary
-            Log.i(TAG, "Attempting to load " + formXml.getName() +
-                    " from cached file: " + formBin.getAbsolutePath());
-            fd = deserializeFormDef((Context)activity, formBin);
-            if (fd == null) {
-                Logger.log(LogTypes.TYPE_RESOURCES,
-                        "Deserialization of " + formXml.getName() + " form failed.");
-                // Remove the file, and make a new .formdef from xml
-                formBin.delete();
-            }
+        FormDef fd = null;
+        if (formHash != null) {
+            fd = loadCachedForm(formXml, formHash);
         }
 
         // If we couldn't find a cached version, load the form from the XML
         if (fd == null) {
             fd = loadFormFromFile(formXml);
-        }
 
-        // Try to write the form definition to a cached location
-        try {
-            serializeFormDef(fd, formDefRecord.getFilePath());
-        } catch (Exception e) {
-            // The cache is a bonus, so if we can't write it, don't crash, but log 
-            // it so we can clean up whatever is preventing the cached version from
-            // working
-            Logger.log(LogTypes.TYPE_RESOURCES, "XForm could not be serialized. Error trace:\n" + ForceCloseLogger.getStackTrace(e));
+            if (formHash != null) {
+                // Try to write the form definition to a cached location
+                try {
+                    FormDefCache.serializeFormDef(fd, formHash);
+                } catch (Exception e) {
+                    // The cache is a bonus, so if we can't write it, don't crash, but log
+                    // it so we can clean up whatever is preventing the cached version from
+                    // working
+                    Logger.log(LogTypes.TYPE_RESOURCES, "XForm could not be serialized. Error trace:\n" + ForceCloseLogger.getStackTrace(e));
+                }
+            }
         }
 
         FormEntryController fec = initFormDef(fd);
 
+        if (formHash != null) {
+            FormDefCache.onFormOpened(formHash);
+        }
+
         // Remove previous forms
         ReferenceManager.instance().clearSession();
 
@@ -143,6 +144,53 @@ public abstract class FormLoaderTask<R> extends CommCareTask<Integer, String, Fo
         return data;
     }
 
+    @Override
+    protected void onPostExecute(FECWrapper result) {
+        if (unrecordedFormHash != null) {
+            recordFormHash();
+        }
+        super.onPostExecute(result);
+    }
+
+    private void recordFormHash() {
+        try {
+            SqlStorage<FormDefRecord> formDefStorage =
+                    CommCareApplication.instance().getAppStorage(FormDefRecord.class);
+            FormDefRecord formDefRecord = FormDefRecord.getFormDef(formDefStorage, unrecordedHashFormDefId);
+            // The record may have been pointed at a new file by an update during the load
+            if (!formDefRecord.isFormHashRecorded() &&
+                    unrecordedHashFormPath.equals(formDefRecord.getFilePath())) {
+                formDefRecord.recordFormHash(formDefStorage, unrecordedFormHash);
+            }
+        } catch (Exception e) {
+            // Only an optimization; the hash will be computed again on the next open
+            Log.w(TAG, "Unable to record form hash", e);
+        }
+    }
+
+    private FormDef loadCachedForm(File formXml, String formHash) {
+        FormDef fd = FormDefCache.takeFormDef(formHash);
+        if (fd != null) {
+            Log.i(TAG, "Loaded " + formXml.getName() + " from memory");
+            return fd;
+        }
+
+        File formBin = FormDefCache.getCachedFormFile(formHash);
+        if (formBin.exists()) {
+            // if we have binary, deserialize binary
+            Log.i(TAG, "Attempting to load " + formXml.getName() +
+                    " from cached file: " + formBin.getAbsolutePath());
+            fd = FormDefCache.deserializeFormDef((Context)activity, formBin);
+            if (fd == null) {
+                Logger.log(LogTypes.TYPE_RESOURCES,
+                        "Deserialization of " + formXml.getName() + " form failed.");
+                // Remove the file, and make a new .formdef from xml
+                formBin.delete();
+            }
+        }
+        return fd;
+    }
+
     private FormDef loadFormFromFile(File formXmlFile) {
         FileInputStream fis;
         // no binary, read from xml
@@ -291,70 +339,6 @@ public abstract class FormLoaderTask<R> extends CommCareTask<Integer, String, Fo
         }
     }
 
-    /**
-     * Read serialized {@link FormDef} from file and recreate as object.
-     */
-    private static FormDef deserializeFormDef(Context context, File formDefFile) {
-        FileInputStream fis = null;
-        DataInputStream dis = null;
-        FormDef fd;
-        try {
-            // create new form def
-            fd = new FormDef(DeveloperPreferences.useExpressionCachingInForms());
-            fis = new FileInputStream(formDefFile);
-            dis = new DataInputStream(new BufferedInputStream(fis));
-
-            // read serialized formdef into new formdef
-            fd.readExternal(dis, CommCareApplication.instance().getPrototypeFactory(context));
-        } catch (Throwable e) {
-            e.printStackTrace();
-            fd = null;
-        } finally {
-            StreamsUtil.closeStream(fis);
-            StreamsUtil.closeStream(dis);
-        }
-
-        return fd;
-    }
-
-    /**
-     * Write the FormDef to the file system as a binary blob.
-     */
-    private void serializeFormDef(FormDef fd, String formFilePath) throws IOException {
-        // calculate unique md5 identifier for this form
-        String hash = FileUtil.getMd5Hash(new File(formFilePath));
-        File formDef = getCachedForm(hash);
-
-        // create a serialized form file if there isn't already one at this hash
-        if (!formDef.exists()) {
-            OutputStream outputStream = null;
-            try {
-                outputStream = new FileOutputStream(formDef);
-                DataOutputStream dos;
-                outputStream = dos = new DataOutputStream(outputStream);
-                fd.writeExternal(dos);
-                dos.flush();
-            } finally {
-                //make sure we clean up the stream
-                if (outputStream != null) {
-                    try {
-                        outputStream.close();
-                    } catch (IOException e) {
-                        // Swallow this. If we threw an exception from inside the 
-                        // try, this close exception will trump it on the return 
-                        // path, and we care a lot more about that exception
-                        // than this one.
-                    }
-                }
-            }
-        }
-    }
-
-    private File getCachedForm(String hash) {
-        return new File(CommCareApplication.instance().getCurrentApp().
-                fsPath(GlobalConstants.FILE_CC_CACHE) + "/" + hash + ".formdef");
-    }
-
     public void destroy() {
         if (data != null) {
             data.free();
@@ -14,6 +14,7 @@ import org.commcare.data.xml.TransactionParser;
 import org.commcare.data.xml.TransactionParserFactory;
 import org.commcare.models.AndroidSessionWrapper;
 import org.commcare.models.database.SqlStorage;
+import org.commcare.models.database.user.models.FormRecordTitleIndex;
 import org.commcare.tasks.templates.CommCareTask;
 import org.commcare.util.CommCarePlatform;
 import org.commcare.util.LogTypes;
@@ -29,6 +30,7 @@ import org.javarosa.xml.util.UnfullfilledRequirementsException;
 import org.kxml2.io.KXmlParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -138,11 +140,12 @@ public abstract class FormRecordCleanupTask<R> extends CommCareTask<Void, Intege
      */
     public static FormRecord updateAndWriteRecord(Context context,
                                                   FormRecord oldRecord,
-                                                  SqlStorage<FormRecord> storage)
+                                                  SqlStorage<FormRecord> storage,
+                                                  byte[] instanceXml)
             throws InvalidStructureException, IOException,
             XmlPullParserException, UnfullfilledRequirementsException {
 
-        Pair<FormRecord, String> recordUpdates = reparseRecord(context, oldRecord);
+        Pair<FormRecord, String> recordUpdates = reparseRecord(context, oldRecord, instanceXml);
 
         FormRecord updated = recordUpdates.first;
         String caseId = recordUpdates.second;
@@ -185,7 +188,7 @@ public abstract class FormRecordCleanupTask<R> extends CommCareTask<Void, Intege
             throws InvalidStructureException, IOException,
             XmlPullParserException, UnfullfilledRequirementsException {
 
-        Pair<FormRecord, String> recordUpdates = reparseRecord(context, oldRecord);
+        Pair<FormRecord, String> recordUpdates = reparseRecord(context, oldRecord, null);
 
         FormRecord updated = recordUpdates.first;
         updated = updated.updateStatus(saveStatus);
@@ -205,6 +208,10 @@ public abstract class FormRecordCleanupTask<R> extends CommCareTask<Void, Intege
                     CommCareApplication.instance().getUserStorage(SessionStateDescriptor.class);
 
             ssdStorage.write(SessionStateDescriptor.buildFromSessionWrapper(asw));
+            new FormRecordTitleIndex().storeComputedTitle(updated.getID(), FormRecordTitleIndex.computeTitle(asw));
+        } else if (FormRecord.STATUS_UNINDEXED.equals(oldRecord.getStatus())) {
+            // the record may have taken over the id of a deleted one
+            new FormRecordTitleIndex().removeTitle(updated.getID());
         }
 
         storage.write(updated);
@@ -228,7 +235,8 @@ public abstract class FormRecordCleanupTask<R> extends CommCareTask<Void, Intege
      *                                           versioning problem
      */
     private static Pair<FormRecord, String> reparseRecord(Context context,
-                                                          FormRecord r)
+                                                          FormRecord r,
+                                                          byte[] instanceXml)
             throws IOException, InvalidStructureException,
             XmlPullParserException, UnfullfilledRequirementsException {
         final String[] caseIDs = new String[1];
@@ -247,6 +255,12 @@ public abstract class FormRecordCleanupTask<R> extends CommCareTask<Void, Intege
             return null;
         };
 
+        if (instanceXml != null) {
+            // The plain instance is already in memory, so there's no need to decrypt the file
+            new DataModelPullParser(new ByteArrayInputStream(instanceXml), factory).parse();
+            return buildParsedRecord(r, uuid[0], modified[0], caseIDs[0]);
+        }
+
         String path = r.getFilePath();
         InputStream is = null;
         FileInputStream fis = new FileInputStream(path);
@@ -276,12 +290,17 @@ public abstract class FormRecordCleanupTask<R> extends CommCareTask<Void, Intege
             }
         }
 
+        return buildParsedRecord(r, uuid[0], modified[0], caseIDs[0]);
+    }
+
+    private static Pair<FormRecord, String> buildParsedRecord(FormRecord r, String uuid,
+                                                              Date modified, String caseId) {
         // TODO: We should be committing all changes to form record models via the ASW objects,
         // not manually.
         FormRecord parsed = new FormRecord(r);
-        parsed.setUuid(uuid[0]);
-        parsed.setLastModified(modified[0]);
-        return new Pair<>(parsed, caseIDs[0]);
+        parsed.setUuid(uuid);
+        parsed.setLastModified(modified);
+        return new Pair<>(parsed, caseId);
     }
 
     public static void wipeRecord(SessionStateDescriptor existing) {
@@ -4,18 +4,17 @@ import android.content.Context;
 import android.text.format.DateUtils;
 import android.util.Pair;
 
-import org.commcare.CommCareApplication;
 import org.commcare.models.AndroidSessionWrapper;
-import org.commcare.models.database.AndroidSandbox;
 import org.commcare.models.database.SqlStorage;
 import org.commcare.android.database.user.models.FormRecord;
 import org.commcare.android.database.user.models.SessionStateDescriptor;
+import org.commcare.models.database.user.models.FormRecordTitleIndex;
 import org.commcare.suite.model.Text;
 import org.commcare.tasks.templates.ManagedAsyncTask;
-import org.commcare.util.FormDataUtil;
 import org.commcare.utils.AndroidCommCarePlatform;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.LinkedList;
@@ -34,6 +33,11 @@ import java.util.Set;
 public class FormRecordLoaderTask extends ManagedAsyncTask<FormRecord, Pair<FormRecord, ArrayList<String>>, Integer> {
 
     private Hashtable<String, String> descriptorCache;
+    private FormRecordTitleIndex titleIndex;
+    // Titles already computed for earlier loads, keyed by form record id
+    private HashMap<Integer, String> storedTitles;
+    // Session descriptors whose title couldn't be computed during this load
+    private final Set<String> unavailableDescriptors = new HashSet<>();
     private final SqlStorage<SessionStateDescriptor> descriptorStorage;
     private final AndroidCommCarePlatform platform;
     private Hashtable<Integer, String[]> searchCache;
@@ -117,6 +121,10 @@ public class FormRecordLoaderTask extends ManagedAsyncTask<FormRecord, Pair<Form
 
     @Override
     protected Integer doInBackground(FormRecord... params) {
+        titleIndex = new FormRecordTitleIndex();
+        titleIndex.removeOrphanedTitles();
+        storedTitles = titleIndex.getTitles();
+
         // Load text information for every FormRecord passed in, unless task is
         // cancelled before that.
         FormRecord current;
@@ -161,6 +169,11 @@ public class FormRecordLoaderTask extends ManagedAsyncTask<FormRecord, Pair<Form
     }
 
     private String loadDataTitle(int formRecordId) {
+        String storedTitle = storedTitles.get(formRecordId);
+        if (storedTitle != null) {
+            return storedTitle;
+        }
+
         // Grab our record hash
         SessionStateDescriptor ssd = null;
         try {
@@ -171,25 +184,25 @@ public class FormRecordLoaderTask extends ManagedAsyncTask<FormRecord, Pair<Form
         String dataTitle = "";
         if (ssd != null) {
             String descriptor = ssd.getSessionDescriptor();
+            if (unavailableDescriptors.contains(descriptor)) {
+                return FormRecordTitleIndex.UNAVAILABLE_TITLE;
+            }
             if (!descriptorCache.containsKey(descriptor)) {
                 AndroidSessionWrapper asw = new AndroidSessionWrapper(platform);
                 asw.loadFromStateDescription(ssd);
-                try {
-                    dataTitle =
-                            FormDataUtil.getTitleFromSession(new AndroidSandbox(CommCareApplication.instance()),
-                                    asw.getSession(), asw.getEvaluationContext());
-                } catch (RuntimeException e) {
-                    dataTitle = "[Unavailable]";
-                }
-
+                dataTitle = FormRecordTitleIndex.computeTitle(asw);
                 if (dataTitle == null) {
-                    dataTitle = "";
+                    // Only shown for this load; the next one tries to compute it again
+                    unavailableDescriptors.add(descriptor);
+                    return FormRecordTitleIndex.UNAVAILABLE_TITLE;
                 }
 
                 descriptorCache.put(descriptor, dataTitle);
             } else {
-                return descriptorCache.get(descriptor);
+                dataTitle = descriptorCache.get(descriptor);
             }
+            // so the session doesn't need to be rebuilt the next time the list is opened
+            titleIndex.setTitle(formRecordId, dataTitle);
         }
         return dataTitle;
     }
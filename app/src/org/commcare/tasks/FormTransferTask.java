@@ -1,78 +1,187 @@
-package org.commcare.tasks;
-
-import android.util.Log;
-
-import org.commcare.activities.CommCareWiFiDirectActivity;
-import org.commcare.tasks.templates.CommCareTask;
-import org.commcare.util.LogTypes;
-
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-
-public abstract class FormTransferTask extends CommCareTask<String, String, Boolean, CommCareWiFiDirectActivity> {
-    private static final int SOCKET_TIMEOUT = 50000;
-
-    public static final int BULK_TRANSFER_ID = 9575922;
-
-    private final String host;
-    private final String filepath;
-    private final int port;
-
-    public FormTransferTask(String host, String filepath, int port) {
-        this.taskId = BULK_TRANSFER_ID;
-        this.host = host;
-        this.filepath = filepath;
-        this.port = port;
-        TAG = LogTypes.TYPE_FORM_DUMP;
-    }
-
-    private InputStream getFormInputStream(String fPath) throws FileNotFoundException {
-        Log.d(TAG, "Getting form input stream");
-        InputStream is;
-        Log.d(TAG, " fileinptutstream  with filepath: " + fPath);
-        is = new FileInputStream(fPath);
-        return is;
-
-    }
-
-    @Override
-    protected Boolean doTaskBackground(String... params) {
-
-        Log.d(TAG, " in form transfer onHandle");
-
-        Socket socket = new Socket();
-        InputStream is;
-
-        try {
-            Log.d(TAG, "Opening client socket with host: " + host + " port, " + port);
-            socket.bind(null);
-            socket.connect((new InetSocketAddress(host, port)), SOCKET_TIMEOUT);
-
-            Log.d(TAG, "Client socket - " + socket.isConnected());
-            OutputStream stream = socket.getOutputStream();
-
-            is = getFormInputStream(filepath);
-            CommCareWiFiDirectActivity.copyFile(is, stream);
-            is.close();
-            return true;
-        } catch (IOException ioe) {
-            Log.e(TAG, ioe.getMessage());
-            publishProgress("Error opening input stream: " + ioe.getMessage());
-            return false;
-        } finally {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                // Give up
-                e.printStackTrace();
-            }
-        }
-    }
-
-}
-
+package org.commcare.tasks;
+
+import android.util.Log;
+import android.util.Pair;
+
+import org.commcare.CommCareApplication;
+import org.commcare.activities.CommCareWiFiDirectActivity;
+import org.commcare.android.database.user.models.FormRecord;
+import org.commcare.models.database.SqlStorage;
+import org.commcare.tasks.templates.CommCareTask;
+import org.commcare.util.LogTypes;
+import org.commcare.utils.FileUtil;
+import org.commcare.utils.FormTransferProtocol;
+import org.commcare.utils.FormUploadResult;
+import org.commcare.utils.FormUploadUtil;
+import org.commcare.utils.StorageUtils;
+import org.javarosa.core.services.Logger;
+import org.javarosa.core.services.locale.Localization;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Streams this device's unsent form records, along with any forms it received from other
+ * devices and hasn't submitted, to a peer over Wi-Fi Direct. Form instances are decrypted on
+ * the way out of storage, so nothing is staged on disk first.
+ *
+ * Returns the form records the peer acknowledged, which are the only ones safe to wipe, even if
+ * the transfer as a whole failed partway through. Each record is keyed by its form's instance
+ * id, so records from different devices never share a key on the receiving device.
+ */
+public abstract class FormTransferTask extends CommCareTask<String, String, Pair<FormUploadResult, FormRecord[]>, CommCareWiFiDirectActivity> {
+    private static final int SOCKET_TIMEOUT = 50000;
+
+    public static final int BULK_TRANSFER_ID = 9575922;
+
+    private final String host;
+    private final int port;
+    private final File receivedFormsDirectory;
+    private final String postUrl;
+
+    /**
+     * @param receivedFormsDirectory Folder holding forms received from other devices, which are
+     *                               passed along too and removed once the peer has them
+     * @param postUrl                Submission url the receiving device should use for this
+     *                               device's forms
+     */
+    public FormTransferTask(String host, int port, File receivedFormsDirectory, String postUrl) {
+        this.taskId = BULK_TRANSFER_ID;
+        this.host = host;
+        this.port = port;
+        this.receivedFormsDirectory = receivedFormsDirectory;
+        this.postUrl = postUrl;
+        TAG = LogTypes.TYPE_FORM_DUMP;
+    }
+
+    @Override
+    protected Pair<FormUploadResult, FormRecord[]> doTaskBackground(String... params) {
+        SqlStorage<FormRecord> storage = CommCareApplication.instance().getUserStorage(FormRecord.class);
+        List<FormRecord> records = new ArrayList<>();
+        for (int id : StorageUtils.getUnsentOrUnprocessedFormIdsForCurrentApp(storage)) {
+            FormRecord record = storage.read(id);
+            if (FormRecord.STATUS_UNSENT.equals(record.getStatus())) {
+                records.add(record);
+            }
+        }
+        File[] receivedForms = receivedFormsDirectory.listFiles(File::isDirectory);
+        if (receivedForms == null) {
+            receivedForms = new File[0];
+        }
+        int total = records.size() + receivedForms.length;
+
+        List<FormRecord> transferred = new ArrayList<>();
+        Socket socket = new Socket();
+        try {
+            Log.d(TAG, "Opening client socket with host: " + host + " port, " + port);
+            socket.bind(null);
+            socket.connect((new InetSocketAddress(host, port)), SOCKET_TIMEOUT);
+            // Older receivers never acknowledge a record, so don't wait on them forever
+            socket.setSoTimeout(SOCKET_TIMEOUT);
+
+            FormTransferProtocol.Sender sender = new FormTransferProtocol.Sender(
+                    new BufferedInputStream(socket.getInputStream()),
+                    new BufferedOutputStream(socket.getOutputStream()));
+            sender.writeHeader();
+
+            int sent = 0;
+            for (FormRecord record : records) {
+                File folder = new File(record.getFilePath()).getCanonicalFile().getParentFile();
+                sendRecord(sender, getRecordKey(record, folder), folder,
+                        new SecretKeySpec(record.getAesKey(), "AES"));
+                transferred.add(record);
+                publishProgress(Localization.get("wifi.direct.send.progress",
+                        new String[]{String.valueOf(++sent), String.valueOf(total)}));
+            }
+            for (File folder : receivedForms) {
+                // Already keyed by the device that first sent it
+                sendRecord(sender, folder.getName(), folder, null);
+                FileUtil.deleteFileOrDir(folder);
+                publishProgress(Localization.get("wifi.direct.send.progress",
+                        new String[]{String.valueOf(++sent), String.valueOf(total)}));
+            }
+            sender.finish();
+
+            Logger.log(TAG, "Transferred " + sent + " forms via Wi-fi direct");
+            return new Pair<>(FormUploadResult.FULL_SUCCESS, transferred.toArray(new FormRecord[0]));
+        } catch (IOException ioe) {
+            Logger.log(TAG, "Wi-fi direct transfer failed after " + transferred.size() +
+                    " forms: " + ioe.getMessage());
+            publishProgress("Error sending forms: " + ioe.getMessage());
+            return new Pair<>(FormUploadResult.FAILURE, transferred.toArray(new FormRecord[0]));
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Give up
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The record's folder is named after its form and when it was started, which can come up on
+     * more than one device, so the form's instance id keys it instead
+     */
+    private static String getRecordKey(FormRecord record, File folder) {
+        String instanceId = record.getInstanceID();
+        if (instanceId == null || instanceId.isEmpty()) {
+            return CommCareApplication.instance().getPhoneId() + "_" + folder.getName();
+        }
+        return instanceId;
+    }
+
+    /**
+     * @param decryptionKey The key for the record's form instance, or null if the folder holds
+     *                      a form that was received already decrypted
+     */
+    private void sendRecord(FormTransferProtocol.Sender sender, String recordKey, File folder,
+                            SecretKeySpec decryptionKey) throws IOException {
+        File[] files = folder.listFiles(File::isFile);
+        if (files == null) {
+            throw new IOException("Unable to read form folder " + folder);
+        }
+        boolean addProperties = decryptionKey != null;
+
+        sender.beginRecord(recordKey, files.length + (addProperties ? 1 : 0));
+        for (File file : files) {
+            InputStream contents = new FileInputStream(file);
+            // This is not the ideal long term solution for determining whether we need decryption, but works
+            if (decryptionKey != null && file.getName().endsWith(".xml")) {
+                contents = new CipherInputStream(contents, FormUploadUtil.getDecryptCipher(decryptionKey));
+            }
+            sender.sendFile(file.getName(), new BufferedInputStream(contents));
+        }
+        if (addProperties) {
+            sender.sendFile(FormTransferProtocol.FORM_PROPERTIES_FILE, getFormProperties());
+        }
+        sender.endRecord(recordKey);
+    }
+
+    /**
+     * Properties of this form/user the receiving tablet might want. Current properties:
+     * PostURL: The receiver will attempt to submit to this URL instead of its default URL.
+     * We do this because HQ uses the receiver URL to help display forms prettily.
+     */
+    private InputStream getFormProperties() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(FormTransferProtocol.FORM_PROPERTY_POST_URL, postUrl);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        properties.store(bos, null);
+        return new ByteArrayInputStream(bos.toByteArray());
+    }
+}
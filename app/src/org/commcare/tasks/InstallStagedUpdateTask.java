@@ -4,6 +4,7 @@ import org.commcare.CommCareApp;
 import org.commcare.CommCareApplication;
 import org.commcare.engine.resource.AndroidResourceManager;
 import org.commcare.engine.resource.AppInstallStatus;
+import org.commcare.engine.resource.MediaBlobStore;
 import org.commcare.engine.resource.ResourceInstallUtils;
 import org.commcare.resources.model.ResourceInitializationException;
 import org.commcare.resources.model.UnresolvedResourceException;
@@ -49,6 +50,9 @@ public abstract class InstallStagedUpdateTask<R>
         } catch (ResourceInitializationException e) {
             resourceManager.recordUpdateInstallFailure(e);
             return AppInstallStatus.UpdateFailedResourceInit;
+        } finally {
+            // drop media that only the replaced (or reverted) version was using
+            MediaBlobStore.collectGarbage(app);
         }
 
         ResourceInstallUtils.initAndCommitApp(app);
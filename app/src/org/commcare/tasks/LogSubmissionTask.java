@@ -9,6 +9,7 @@ import org.commcare.android.javarosa.DeviceReportRecord;
 import org.commcare.android.logging.ForceCloseLogEntry;
 import org.commcare.android.logging.ForceCloseLogSerializer;
 import org.commcare.logging.AndroidLogSerializer;
+import org.commcare.logging.AndroidLogger;
 import org.commcare.logging.DeviceReportWriter;
 import org.commcare.logging.XPathErrorEntry;
 import org.commcare.logging.XPathErrorSerializer;
@@ -153,6 +154,9 @@ public class LogSubmissionTask extends AsyncTask<Void, Long, LogSubmitOutcomes>
 
         DeviceReportRecord record = DeviceReportRecord.generateNewRecordStub();
 
+        // Make sure buffered log entries are in storage before serializing it
+        AndroidLogger.flushPendingLogs();
+
         //Ok, so first, we're going to write the logs to disk in an encrypted file
         try {
             DeviceReportWriter reporter;
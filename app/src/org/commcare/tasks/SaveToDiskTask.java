@@ -9,7 +9,9 @@ import org.commcare.android.database.user.models.FormRecord;
 import org.commcare.android.logging.ForceCloseLogger;
 import org.commcare.interfaces.FormSavedListener;
 import org.commcare.logging.XPathErrorLogger;
+import org.commcare.models.AndroidSessionWrapper;
 import org.commcare.models.database.SqlStorage;
+import org.commcare.models.database.user.models.FormRecordTitleIndex;
 import org.commcare.models.encryption.EncryptionIO;
 import org.commcare.tasks.templates.CommCareTask;
 import org.commcare.util.LogTypes;
@@ -28,7 +30,6 @@ import org.javarosa.xpath.XPathException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 
 import javax.crypto.spec.SecretKeySpec;
@@ -138,12 +139,14 @@ public class SaveToDiskTask extends
 
     /**
      * Update form Record with necessary params
+     *
+     * @param instanceXml The plain contents of the full form instance
      */
-    private void updateFormRecord(SqlStorage<FormRecord> formRecordStorage, boolean incomplete)
+    private void updateFormRecord(SqlStorage<FormRecord> formRecordStorage, byte[] instanceXml)
             throws FormInstanceTransactionException {
 
         String status;
-        if (incomplete || !mMarkCompleted) {
+        if (!mMarkCompleted) {
             status = FormRecord.STATUS_INCOMPLETE;
         } else {
             status = FormRecord.STATUS_COMPLETE;
@@ -169,18 +172,35 @@ public class SaveToDiskTask extends
         if (formRecord != null) {
             try {
                 formRecord.setDisplayName(recordName);
-                formRecord.updateStatus(formRecordStorage, status);
+                formRecord.updateStatus(formRecordStorage, status, instanceXml);
             } catch (IllegalStateException e) {
                 throw new FormInstanceTransactionException(e);
             }
         }
     }
 
+    /**
+     * Store the title the saved forms list shows for a record started from the current
+     * session, while that session is at hand and doesn't need to be rebuilt to compute it
+     */
+    private static void storeRecordTitle() {
+        AndroidSessionWrapper asw = CommCareApplication.instance().getCurrentSessionWrapper();
+        if (asw.getFormRecordId() != -1) {
+            new FormRecordTitleIndex().storeComputedTitle(asw.getFormRecordId(), FormRecordTitleIndex.computeTitle(asw));
+        }
+    }
+
     /**
      * Write's the data to the sdcard,
      * In theory we don't have to write to disk, and this is where
      * you'd add other methods.
      *
+     * A completed form is only ever stored as the data to actually submit, so that's the one
+     * thing encrypted for it. Case and ledger transactions have always been processed from the
+     * full instance, which only differs from the submission when the form's submission ref
+     * picks out part of it, so the full instance is kept in memory for updating and processing
+     * the record rather than being written out and read back.
+     *
      * @throws IOException                      Issue serializing form and
      *                                          storing to filesystem
      * @throws FormInstanceTransactionException Issue performing transactions
@@ -193,47 +213,49 @@ public class SaveToDiskTask extends
 
         FormInstance dataModel = FormEntryActivity.mFormController.getInstance();
         XFormSerializingVisitor serializer = new XFormSerializingVisitor(markCompleted);
-        ByteArrayPayload payload = (ByteArrayPayload)serializer.createSerializedPayload(dataModel);
-
-        writeXmlToStream(payload,
-                EncryptionIO.createFileOutputStream(mFormRecordPath, symetricKey));
-
-        SqlStorage<FormRecord> formRecordStorage = CommCareApplication.instance().getUserStorage(FormRecord.class);
-        updateFormRecord(formRecordStorage, true);
+        byte[] instanceXml = readPayload((ByteArrayPayload)serializer.createSerializedPayload(dataModel));
 
         if (markCompleted) {
-            payload = FormEntryActivity.mFormController.getSubmissionXml();
-            File instanceXml = new File(mFormRecordPath);
-            File submissionXml = new File(instanceXml.getParentFile(), "submission.xml");
-            // write out submission.xml -- the data to actually submit to aggregate
-            writeXmlToStream(payload,
-                    EncryptionIO.createFileOutputStream(submissionXml.getAbsolutePath(), symetricKey));
-
-            // Set this record's status to COMPLETE
-            updateFormRecord(formRecordStorage, false);
-
-            // delete the restore Xml file.
-            if (!instanceXml.delete()) {
-                Log.e(TAG,
-                        "Error deleting " + instanceXml.getAbsolutePath()
-                                + " prior to renaming submission.xml");
-                return;
-            }
+            writeInstanceFile(readPayload(FormEntryActivity.mFormController.getSubmissionXml()));
+        } else {
+            writeInstanceFile(instanceXml);
+        }
 
-            // rename the submission.xml to be the instanceXml
-            if (!submissionXml.renameTo(instanceXml)) {
-                Log.e(TAG, "Error renaming submission.xml to " + instanceXml.getAbsolutePath());
-            }
+        SqlStorage<FormRecord> formRecordStorage = CommCareApplication.instance().getUserStorage(FormRecord.class);
+        updateFormRecord(formRecordStorage, instanceXml);
+        if (mFormRecordId == -1 && mFormDefId != -1) {
+            storeRecordTitle();
         }
     }
 
-    private void writeXmlToStream(ByteArrayPayload payload, OutputStream output) throws IOException {
+    private static byte[] readPayload(ByteArrayPayload payload) throws IOException {
+        return StreamsUtil.inputStreamToByteArray(payload.getPayloadStream());
+    }
+
+    /**
+     * Write the instance out beside the record's file first and only then move it into place,
+     * so that a failed write leaves the previously saved instance intact
+     */
+    private void writeInstanceFile(byte[] instanceXml) throws IOException {
+        File instanceFile = new File(mFormRecordPath);
+        File pendingFile = new File(instanceFile.getParentFile(), "submission.xml");
+
+        OutputStream output = EncryptionIO.createFileOutputStream(pendingFile.getAbsolutePath(), symetricKey);
         try {
-            InputStream is = payload.getPayloadStream();
-            StreamsUtil.writeFromInputToOutput(is, output);
+            output.write(instanceXml);
         } finally {
             output.close();
         }
+
+        if (!pendingFile.renameTo(instanceFile)) {
+            if (instanceFile.exists() && !instanceFile.delete()) {
+                Log.e(TAG, "Error deleting " + instanceFile.getAbsolutePath()
+                        + " prior to renaming submission.xml");
+            }
+            if (!pendingFile.renameTo(instanceFile)) {
+                throw new IOException("Error renaming submission.xml to " + instanceFile.getAbsolutePath());
+            }
+        }
     }
 
     @Override
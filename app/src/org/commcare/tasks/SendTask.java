@@ -7,6 +7,7 @@ import org.commcare.logging.AndroidLogger;
 import org.commcare.tasks.templates.CommCareTask;
 import org.commcare.util.LogTypes;
 import org.commcare.utils.FileUtil;
+import org.commcare.utils.FormTransferProtocol;
 import org.commcare.utils.FormUploadResult;
 import org.commcare.utils.FormUploadUtil;
 import org.commcare.utils.SessionUnavailableException;
@@ -151,13 +152,13 @@ public abstract class SendTask<R> extends CommCareTask<Void, String, Boolean, R>
     protected void tryLoadPropertiesFile(File formFolder) throws IOException {
 
         // see if we have a form.properties file to load the PostURL from
-        FilenameFilter filter = (dir, filename) -> filename.equals(ZipTask.FORM_PROPERTIES_FILE);
+        FilenameFilter filter = (dir, filename) -> filename.equals(FormTransferProtocol.FORM_PROPERTIES_FILE);
         // there should only be one of these
         File[] formPropertiesFile = formFolder.listFiles(filter);
         if (formPropertiesFile != null && formPropertiesFile.length > 0) {
             Properties properties = FileUtil.loadProperties(formPropertiesFile[0]);
-            if (properties != null && properties.getProperty(ZipTask.FORM_PROPERTY_POST_URL) != null) {
-                postUrl = properties.getProperty(ZipTask.FORM_PROPERTY_POST_URL);
+            if (properties != null && properties.getProperty(FormTransferProtocol.FORM_PROPERTY_POST_URL) != null) {
+                postUrl = properties.getProperty(FormTransferProtocol.FORM_PROPERTY_POST_URL);
                 Logger.log(LogTypes.TYPE_FORM_DUMP, "Successfully got form.property PostURL: " + postUrl);
             }
             // don't submit this file
@@ -8,6 +8,7 @@ import org.commcare.CommCareApplication;
 import org.commcare.activities.CrashWarningActivity;
 import org.commcare.activities.SessionAwareCommCareActivity;
 import org.commcare.android.logging.ForceCloseLogger;
+import org.commcare.logging.AndroidLogger;
 import org.commcare.recovery.measures.ExecuteRecoveryMeasuresActivity;
 import org.commcare.recovery.measures.RecoveryMeasuresHelper;
 import org.javarosa.core.util.NoLocalizedTextException;
@@ -38,6 +39,9 @@ public class CommCareExceptionHandler implements UncaughtExceptionHandler {
         // Always report to HQ device logs
         ForceCloseLogger.reportExceptionInBg(ex);
 
+        // Don't lose log entries that are still buffered in memory
+        AndroidLogger.flushPendingLogs();
+
         if (RecoveryMeasuresHelper.recoveryMeasuresPending()) {
             startRecoveryMeasureActivity();
             CrashUtil.reportException(ex);
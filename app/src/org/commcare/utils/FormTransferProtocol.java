@@ -0,0 +1,296 @@
+package org.commcare.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Wire format for sending form record folders from one device to another over a socket.
+ *
+ * The sender streams each record's files straight out of storage in chunks, compressing those
+ * that come out smaller, and waits for the receiver to acknowledge each record once it has been
+ * fully written out. Only acknowledged records are safe for the sender to remove, so a transfer
+ * which was cut off leaves the rest of the records with the sender to go out on the next try.
+ *
+ * Records are keyed by an id that is unique across devices, like the form's instance id, and a
+ * receiver never replaces a record it already holds, so records from different devices can't
+ * clobber each other.
+ *
+ * Older versions sent a single zip of every record and nothing else. The receiver tells those
+ * apart from the start of the stream and saves them to be unzipped like before. Older receivers
+ * never acknowledge a record, so sending to them fails without anything being removed.
+ */
+public class FormTransferProtocol {
+    private static final int MAGIC = 0x43435746;
+    private static final int VERSION = 1;
+    // "PK\3\4", the start of the zip files sent by older versions
+    private static final int LEGACY_ZIP_SIGNATURE = 0x504B0304;
+
+    private static final byte TAG_RECORD = 1;
+    private static final byte TAG_END = 2;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    public static final String FORM_PROPERTIES_FILE = "form.properties";
+    public static final String FORM_PROPERTY_POST_URL = "PostURL";
+
+    public interface ReceiveListener {
+        void onRecordReceived(String recordKey, int recordsReceived);
+    }
+
+    /**
+     * Sending side of a transfer, which streams records one at a time
+     */
+    public static class Sender {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private final byte[] compressedChunk = new byte[CHUNK_SIZE];
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        public Sender(InputStream fromReceiver, OutputStream toReceiver) {
+            this.in = new DataInputStream(fromReceiver);
+            this.out = new DataOutputStream(toReceiver);
+        }
+
+        public void writeHeader() throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        /**
+         * @param recordKey Id of the record which is unique across devices
+         */
+        public void beginRecord(String recordKey, int fileCount) throws IOException {
+            out.writeByte(TAG_RECORD);
+            out.writeUTF(recordKey);
+            out.writeInt(fileCount);
+        }
+
+        public void sendFile(String fileName, InputStream contents) throws IOException {
+            out.writeUTF(fileName);
+            try {
+                int read;
+                while ((read = readChunk(contents)) > 0) {
+                    writeChunk(read);
+                }
+            } finally {
+                contents.close();
+            }
+            out.writeInt(0);
+        }
+
+        private int readChunk(InputStream contents) throws IOException {
+            int total = 0;
+            int read;
+            while (total < chunk.length &&
+                    (read = contents.read(chunk, total, chunk.length - total)) != -1) {
+                total += read;
+            }
+            return total;
+        }
+
+        private void writeChunk(int length) throws IOException {
+            deflater.reset();
+            deflater.setInput(chunk, 0, length);
+            deflater.finish();
+            int compressedLength = deflater.deflate(compressedChunk);
+
+            out.writeInt(length);
+            if (deflater.finished() && compressedLength < length) {
+                out.writeInt(compressedLength);
+                out.write(compressedChunk, 0, compressedLength);
+            } else {
+                // Already compressed media like photos only grows, so send it as it is
+                out.writeInt(length);
+                out.write(chunk, 0, length);
+            }
+        }
+
+        /**
+         * Wait for the receiver to confirm it has stored the record that was just sent
+         */
+        public void endRecord(String recordKey) throws IOException {
+            out.flush();
+            String acknowledged = in.readUTF();
+            if (!recordKey.equals(acknowledged)) {
+                throw new IOException("Receiving device acknowledged " + acknowledged +
+                        " instead of " + recordKey);
+            }
+        }
+
+        public void finish() throws IOException {
+            out.writeByte(TAG_END);
+            out.flush();
+            deflater.end();
+        }
+    }
+
+    /**
+     * Receiving side of a transfer, which writes each record straight into its own folder
+     */
+    public static class Receiver {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private final byte[] compressedChunk = new byte[CHUNK_SIZE];
+        private final Inflater inflater = new Inflater();
+        private File legacyZip;
+
+        public Receiver(InputStream fromSender, OutputStream toSender) {
+            this.in = new DataInputStream(fromSender);
+            this.out = new DataOutputStream(toSender);
+        }
+
+        /**
+         * Receive records until the sender is done. Each record is written out under the pending
+         * directory and only moved into the destination, then acknowledged, once complete.
+         *
+         * @param legacyZipDirectory Where the zip sent by an older version is saved
+         * @return The number of records received
+         */
+        public int receiveRecords(File destination, File pendingDirectory, File legacyZipDirectory,
+                                  ReceiveListener listener) throws IOException {
+            destination.mkdirs();
+            FileUtil.deleteFileOrDir(pendingDirectory);
+            pendingDirectory.mkdirs();
+
+            int received = 0;
+            try {
+                int magic = in.readInt();
+                if (magic == LEGACY_ZIP_SIGNATURE) {
+                    receiveLegacyZip(pendingDirectory, legacyZipDirectory);
+                    return 0;
+                }
+                if (magic != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Sending device doesn't support this transfer format");
+                }
+
+                byte tag;
+                while ((tag = in.readByte()) == TAG_RECORD) {
+                    String recordKey = checkName(in.readUTF());
+                    File pendingRecord = new File(pendingDirectory, recordKey);
+                    FileUtil.deleteFileOrDir(pendingRecord);
+                    pendingRecord.mkdirs();
+
+                    int fileCount = in.readInt();
+                    for (int i = 0; i < fileCount; i++) {
+                        receiveFile(new File(pendingRecord, checkName(in.readUTF())));
+                    }
+
+                    moveIntoPlace(pendingRecord, destination, recordKey);
+                    out.writeUTF(recordKey);
+                    out.flush();
+
+                    received++;
+                    listener.onRecordReceived(recordKey, received);
+                }
+                if (tag != TAG_END) {
+                    throw new IOException("Unexpected data in form transfer");
+                }
+            } finally {
+                inflater.end();
+                FileUtil.deleteFileOrDir(pendingDirectory);
+            }
+            return received;
+        }
+
+        /**
+         * @return The zip saved from an older version's transfer, or null if the sender used
+         * this format
+         */
+        public File getLegacyZip() {
+            return legacyZip;
+        }
+
+        /**
+         * Held records are never replaced. The same record only comes in twice when the sender
+         * lost track of an earlier acknowledgement, and the server recognizes the resubmitted
+         * instance as a duplicate, whereas replacing it could lose a different record that shares its key.
+         */
+        private static void moveIntoPlace(File pendingRecord, File destination, String recordKey)
+                throws IOException {
+            File record = new File(destination, recordKey);
+            for (int i = 1; record.exists(); i++) {
+                record = new File(destination, recordKey + "_" + i);
+            }
+            if (!pendingRecord.renameTo(record)) {
+                throw new IOException("Unable to move received record into " + record);
+            }
+        }
+
+        private void receiveLegacyZip(File pendingDirectory, File legacyZipDirectory)
+                throws IOException {
+            File pendingZip = new File(pendingDirectory, "legacy.zip");
+            DataOutputStream zipOut = new DataOutputStream(new FileOutputStream(pendingZip));
+            try {
+                zipOut.writeInt(LEGACY_ZIP_SIGNATURE);
+                int read;
+                while ((read = in.read(chunk)) != -1) {
+                    zipOut.write(chunk, 0, read);
+                }
+            } finally {
+                zipOut.close();
+            }
+
+            legacyZipDirectory.mkdirs();
+            File zip = new File(legacyZipDirectory, System.currentTimeMillis() + ".zip");
+            if (!pendingZip.renameTo(zip)) {
+                throw new IOException("Unable to move received zip into " + zip);
+            }
+            legacyZip = zip;
+        }
+
+        private void receiveFile(File file) throws IOException {
+            OutputStream fileOut = new FileOutputStream(file);
+            try {
+                int length;
+                while ((length = in.readInt()) > 0) {
+                    int encodedLength = in.readInt();
+                    if (length > CHUNK_SIZE || encodedLength > length) {
+                        throw new IOException("Invalid chunk in form transfer");
+                    }
+                    if (encodedLength == length) {
+                        in.readFully(chunk, 0, length);
+                    } else {
+                        in.readFully(compressedChunk, 0, encodedLength);
+                        inflateChunk(encodedLength, length);
+                    }
+                    fileOut.write(chunk, 0, length);
+                }
+            } finally {
+                fileOut.close();
+            }
+        }
+
+        private void inflateChunk(int encodedLength, int length) throws IOException {
+            inflater.reset();
+            inflater.setInput(compressedChunk, 0, encodedLength);
+            try {
+                if (inflater.inflate(chunk, 0, length) != length) {
+                    throw new IOException("Truncated chunk in form transfer");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt chunk in form transfer", e);
+            }
+        }
+
+        /**
+         * Names come off the network, so make sure they can't point outside of their folder
+         */
+        private static String checkName(String name) throws IOException {
+            if (name.isEmpty() || name.contains("/") || name.contains("\\") ||
+                    name.equals(".") || name.equals("..")) {
+                throw new IOException("Invalid name in form transfer: " + name);
+            }
+            return name;
+        }
+    }
+}
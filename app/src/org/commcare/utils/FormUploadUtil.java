@@ -21,10 +21,13 @@ import org.javarosa.xml.util.UnfullfilledRequirementsException;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -32,9 +35,12 @@ import java.net.UnknownHostException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -156,6 +162,178 @@ public class FormUploadUtil {
         return submitEntity(parts, url, generator);
     }
 
+    /**
+     * Do all of the local work needed to submit a form instance, decrypting its xml into memory
+     * and assembling the multipart entity, so that it can be posted later without waiting on
+     * storage.
+     *
+     * @param folder All supported files in this folder will be attached to the submission
+     * @param key    For decrypting xml files
+     * @throws FileNotFoundException Is raised if the folder or its xml file isn't found on the
+     *                               file-system
+     */
+    public static PreparedSubmission prepareInstance(File folder, SecretKeySpec key)
+            throws FileNotFoundException {
+        File[] files = folder.listFiles();
+
+        if (files == null) {
+            // make sure external storage is available to begin with.
+            String state = Environment.getExternalStorageState();
+            if (!Environment.MEDIA_MOUNTED.equals(state)) {
+                // If so, just bail as if the user had logged out.
+                throw new SessionUnavailableException("External Storage Removed");
+            } else {
+                throw new FileNotFoundException("No directory found at: " +
+                        folder.getAbsoluteFile());
+            }
+        }
+
+        if (files.length == 0) {
+            throw new FileNotFoundException("Folder at path " + folder.getAbsolutePath() + " had no files.");
+        }
+
+        long bytes = estimateUploadBytes(files);
+        List<MultipartBody.Part> parts = new ArrayList<>();
+        Set<String> caseIds = new HashSet<>();
+        boolean caseIdsKnown = true;
+        List<File> attachments = new ArrayList<>();
+        for (File f : files) {
+            if (!f.getName().endsWith(".xml")) {
+                attachments.add(f);
+                continue;
+            }
+            if (!validateSubmissionFile(f)) {
+                return new PreparedSubmission(null, bytes, null);
+            }
+            byte[] xml = f.length() <= MAX_BYTES ? decryptSubmissionFile(f, key) : null;
+            if (xml == null) {
+                // Too large to hold in memory, or unreadable; let the upload stream it and
+                // report any problem reading it
+                parts.add(createEncryptedFilePart("xml_submission_file", f, "text/xml", key));
+                caseIdsKnown = false;
+            } else {
+                parts.add(MultipartBody.Part.createFormData("xml_submission_file", f.getName(),
+                        RequestBody.create(MediaType.parse("text/xml"), xml)));
+                Set<String> xmlCaseIds = extractCaseIds(xml);
+                if (xmlCaseIds == null) {
+                    caseIdsKnown = false;
+                } else {
+                    caseIds.addAll(xmlCaseIds);
+                }
+            }
+        }
+
+        if (!buildMultipartEntity(parts, key, attachments.toArray(new File[attachments.size()]))) {
+            return new PreparedSubmission(null, bytes, null);
+        }
+        return new PreparedSubmission(parts, bytes, caseIdsKnown ? caseIds : null);
+    }
+
+    /**
+     * Post a form instance that was assembled by {@link #prepareInstance}.
+     *
+     * @param submissionNumber For progress reporting
+     * @param listener         Used to report progress to the calling task, may be null
+     * @return Submission status code
+     */
+    public static FormUploadResult submitPreparedInstance(int submissionNumber,
+                                                          PreparedSubmission submission,
+                                                          String url,
+                                                          DataSubmissionListener listener,
+                                                          User user) {
+        if (listener != null) {
+            listener.startSubmission(submissionNumber, submission.bytes);
+        }
+        if (submission.parts == null) {
+            return FormUploadResult.RECORD_FAILURE;
+        }
+        return submitEntity(submission.parts, url, new CommcareRequestGenerator(user));
+    }
+
+    private static byte[] decryptSubmissionFile(File f, SecretKeySpec key)
+            throws FileNotFoundException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream((int)f.length());
+        InputStream is = new CipherInputStream(new FileInputStream(f), getDecryptCipher(key));
+        try {
+            StreamsUtil.writeFromInputToOutputNew(is, bos);
+        } catch (IOException e) {
+            Logger.log(LogTypes.TYPE_ERROR_STORAGE,
+                    "Unable to decrypt submission file " + f.getName() + ": " + e.getMessage());
+            return null;
+        } finally {
+            StreamsUtil.closeStream(is);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * @return The ids of the cases that a form's case and ledger blocks create, update or
+     * index, or null if the xml couldn't be read
+     */
+    private static Set<String> extractCaseIds(byte[] xml) {
+        Set<String> caseIds = new HashSet<>();
+        try {
+            KXmlParser parser = new KXmlParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(new ByteArrayInputStream(xml), null);
+            int indexDepth = -1;
+            for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT;
+                 event = parser.next()) {
+                if (event == XmlPullParser.START_TAG) {
+                    String name = parser.getName();
+                    if ("case".equals(name)) {
+                        addIfPresent(caseIds, parser.getAttributeValue(null, "case_id"));
+                    } else if ("balance".equals(name)) {
+                        addIfPresent(caseIds, parser.getAttributeValue(null, "entity-id"));
+                    } else if ("transfer".equals(name)) {
+                        addIfPresent(caseIds, parser.getAttributeValue(null, "src"));
+                        addIfPresent(caseIds, parser.getAttributeValue(null, "dest"));
+                    } else if ("index".equals(name) && indexDepth == -1) {
+                        indexDepth = parser.getDepth();
+                    }
+                } else if (event == XmlPullParser.TEXT && indexDepth != -1) {
+                    // Text of an index's children is the id of the case being indexed
+                    addIfPresent(caseIds, parser.getText().trim());
+                } else if (event == XmlPullParser.END_TAG && parser.getDepth() == indexDepth) {
+                    indexDepth = -1;
+                }
+            }
+        } catch (XmlPullParserException | IOException e) {
+            return null;
+        }
+        return caseIds;
+    }
+
+    private static void addIfPresent(Set<String> caseIds, String caseId) {
+        if (caseId != null && !"".equals(caseId)) {
+            caseIds.add(caseId);
+        }
+    }
+
+    /**
+     * A form instance whose submission body has been assembled ahead of being posted
+     */
+    public static class PreparedSubmission {
+        private final List<MultipartBody.Part> parts;
+        private final long bytes;
+        private final Set<String> caseIds;
+
+        private PreparedSubmission(List<MultipartBody.Part> parts, long bytes,
+                                   Set<String> caseIds) {
+            this.parts = parts;
+            this.bytes = bytes;
+            this.caseIds = caseIds;
+        }
+
+        /**
+         * @return The ids of the cases this form touches, or null if they couldn't be
+         * determined, in which case the form has to be treated as touching every case
+         */
+        public Set<String> getCaseIds() {
+            return caseIds;
+        }
+    }
+
     /**
      * Submit multipart entity with plenty of logging
      *
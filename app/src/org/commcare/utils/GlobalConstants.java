@@ -7,6 +7,8 @@ public class GlobalConstants {
     public static final String FILE_CC_INSTALL = "commcare/install";
     public static final String FILE_CC_UPGRADE = "commcare/upgrade/sandbox/";
     public static final String FILE_CC_CACHE = "commcare/cache";
+    public static final String FILE_CC_DOWNLOADS = "commcare/downloads/";
+    public static final String FILE_CC_MEDIA_STORE = "commcare/media_store/";
     public static final String FILE_CC_MEDIA = "commcare/media/";
     public static final String FILE_CC_LOGS = "commcare/logs/";
 
@@ -7,6 +7,7 @@ import org.commcare.android.database.user.models.ACase;
 import org.commcare.cases.model.Case;
 import org.commcare.models.database.SqlStorage;
 import org.commcare.models.database.user.models.AndroidCaseIndexTable;
+import org.commcare.models.database.user.models.AndroidCasePropertyTable;
 import org.commcare.models.database.user.models.EntityStorageCache;
 import org.commcare.xml.bulk.BulkProcessingCaseXmlParser;
 import org.javarosa.xml.util.InvalidStructureException;
@@ -14,8 +15,8 @@ import org.kxml2.io.KXmlParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -28,6 +29,7 @@ import java.util.Set;
 public class AndroidBulkCaseXmlParser extends BulkProcessingCaseXmlParser {
     private final EntityStorageCache mEntityCache;
     private final AndroidCaseIndexTable mCaseIndexTable;
+    private AndroidCasePropertyTable mCasePropertyTable;
     private final SqlStorage<ACase> storage;
 
     public AndroidBulkCaseXmlParser(KXmlParser parser,
@@ -39,9 +41,22 @@ public class AndroidBulkCaseXmlParser extends BulkProcessingCaseXmlParser {
                                     SqlStorage<ACase> storage,
                                     EntityStorageCache entityStorageCache,
                                     AndroidCaseIndexTable indexTable) {
+        this(parser, storage, entityStorageCache, indexTable, null);
+    }
+
+    /**
+     * @param propertyTable Case property table to keep up to date. If null, one is opened
+     *                      against this parser's db handle when needed.
+     */
+    public AndroidBulkCaseXmlParser(KXmlParser parser,
+                                    SqlStorage<ACase> storage,
+                                    EntityStorageCache entityStorageCache,
+                                    AndroidCaseIndexTable indexTable,
+                                    AndroidCasePropertyTable propertyTable) {
         super(parser);
         mEntityCache = entityStorageCache;
         mCaseIndexTable = indexTable;
+        mCasePropertyTable = propertyTable;
         this.storage = storage;
     }
 
@@ -49,6 +64,13 @@ public class AndroidBulkCaseXmlParser extends BulkProcessingCaseXmlParser {
         return CommCareApplication.instance().getUserDbHandle();
     }
 
+    private AndroidCasePropertyTable getCasePropertyTable() {
+        if (mCasePropertyTable == null) {
+            mCasePropertyTable = new AndroidCasePropertyTable(getDbHandle());
+        }
+        return mCasePropertyTable;
+    }
+
     @Override
     protected Case buildCase(String name, String typeId) {
         return new ACase(name, typeId);
@@ -60,9 +82,8 @@ public class AndroidBulkCaseXmlParser extends BulkProcessingCaseXmlParser {
         db = getDbHandle();
         db.beginTransaction();
         try {
-            for (ACase c : storage.getBulkRecordsForIndex(Case.INDEX_CASE_ID, currentBulkReadSet)) {
-                currentOperatingSet.put(c.getCaseId(), c);
-            }
+            storage.streamBulkRecordsForIndex(Case.INDEX_CASE_ID, currentBulkReadSet,
+                    (recordId, c) -> currentOperatingSet.put(c.getCaseId(), c));
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
@@ -73,24 +94,17 @@ public class AndroidBulkCaseXmlParser extends BulkProcessingCaseXmlParser {
     protected void performBulkWrite(LinkedHashMap<String, Case> writeLog) throws IOException {
         SQLiteDatabase db;
         db = getDbHandle();
-        ArrayList<Integer> recordIdsToWipe = new ArrayList<>();
 
         db.beginTransaction();
         try {
-            for (String cid : writeLog.keySet()) {
-                Case c = writeLog.get(cid);
-                storage.write(c);
-                recordIdsToWipe.add(c.getID());
-            }
+            List<Integer> recordIdsToWipe = storage.writeAll(writeLog.values());
             if (mEntityCache != null) {
                 mEntityCache.invalidateCaches(recordIdsToWipe);
             }
             mCaseIndexTable.clearCaseIndices(recordIdsToWipe);
-
-            for (String cid : writeLog.keySet()) {
-                Case c = writeLog.get(cid);
-                mCaseIndexTable.indexCase(c);
-            }
+            mCaseIndexTable.indexCases(writeLog.values());
+            getCasePropertyTable().clearCaseProperties(recordIdsToWipe);
+            getCasePropertyTable().indexCases(writeLog.values());
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
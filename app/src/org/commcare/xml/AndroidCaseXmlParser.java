@@ -12,6 +12,7 @@ import org.commcare.cases.model.Case;
 import org.commcare.engine.references.JavaHttpReference;
 import org.commcare.interfaces.CommcareRequestEndpoints;
 import org.commcare.models.database.user.models.AndroidCaseIndexTable;
+import org.commcare.models.database.user.models.AndroidCasePropertyTable;
 import org.commcare.models.database.user.models.EntityStorageCache;
 import org.commcare.util.LogTypes;
 import org.commcare.utils.FileUtil;
@@ -41,12 +42,24 @@ public class AndroidCaseXmlParser extends CaseXmlParser {
     @Nullable
     private final EntityStorageCache mEntityCache;
     private final AndroidCaseIndexTable mCaseIndexTable;
+    private AndroidCasePropertyTable mCasePropertyTable;
 
     public AndroidCaseXmlParser(KXmlParser parser, IStorageUtilityIndexed storage,
                                 @Nullable EntityStorageCache entityCache, AndroidCaseIndexTable indexTable) {
+        this(parser, storage, entityCache, indexTable, null);
+    }
+
+    /**
+     * @param propertyTable Case property table to keep up to date. If null, one is opened
+     *                      against this parser's db handle when needed.
+     */
+    public AndroidCaseXmlParser(KXmlParser parser, IStorageUtilityIndexed storage,
+                                @Nullable EntityStorageCache entityCache, AndroidCaseIndexTable indexTable,
+                                @Nullable AndroidCasePropertyTable propertyTable) {
         super(parser, storage);
         mEntityCache = entityCache;
         mCaseIndexTable = indexTable;
+        mCasePropertyTable = propertyTable;
     }
 
     public AndroidCaseXmlParser(KXmlParser parser, IStorageUtilityIndexed storage) {
@@ -89,6 +102,13 @@ public class AndroidCaseXmlParser extends CaseXmlParser {
         return CommCareApplication.instance().getUserDbHandle();
     }
 
+    private AndroidCasePropertyTable getCasePropertyTable() {
+        if (mCasePropertyTable == null) {
+            mCasePropertyTable = new AndroidCasePropertyTable(getDbHandle());
+        }
+        return mCasePropertyTable;
+    }
+
     @Override
     public void commit(Case parsed) throws IOException {
         SQLiteDatabase db;
@@ -101,6 +121,8 @@ public class AndroidCaseXmlParser extends CaseXmlParser {
             }
             mCaseIndexTable.clearCaseIndices(parsed);
             mCaseIndexTable.indexCase(parsed);
+            getCasePropertyTable().clearCaseProperties(parsed.getID());
+            getCasePropertyTable().indexCase(parsed);
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
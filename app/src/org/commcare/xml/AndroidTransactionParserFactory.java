@@ -4,12 +4,15 @@ import android.content.Context;
 
 import org.commcare.CommCareApplication;
 import org.commcare.android.database.user.models.ACase;
+import org.commcare.cases.model.Case;
 import org.commcare.core.parse.CommCareTransactionParserFactory;
 import org.commcare.data.xml.TransactionParser;
 import org.commcare.data.xml.TransactionParserFactory;
 import org.commcare.interfaces.CommcareRequestEndpoints;
 import org.commcare.models.database.AndroidSandbox;
 import org.commcare.models.database.SqlStorage;
+import org.commcare.models.database.user.models.AndroidCaseIndexTable;
+import org.commcare.modern.util.Pair;
 import org.commcare.preferences.DeveloperPreferences;
 import org.commcare.utils.GlobalConstants;
 import org.kxml2.io.KXmlParser;
@@ -17,6 +20,9 @@ import org.kxml2.io.KXmlParser;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.Vector;
 
 /**
  * The CommCare Transaction Parser Factory wraps all of the current
@@ -42,6 +48,7 @@ public class AndroidTransactionParserFactory extends CommCareTransactionParserFa
 
     private TransactionParserFactory formInstanceParser;
     private boolean caseIndexesWereDisrupted = false;
+    final private LinkedHashSet<String> disruptedCases = new LinkedHashSet<>();
 
     /**
      * A mapping from an installed form's namespace its install path.
@@ -115,6 +122,29 @@ public class AndroidTransactionParserFactory extends CommCareTransactionParserFa
         return caseIndexesWereDisrupted;
     }
 
+    /**
+     * @return The cases whose indices were disrupted, along with the cases those indices pointed
+     * to before the disruption, which together seed an incremental case purge
+     */
+    public Set<String> getDisruptedCases() {
+        return disruptedCases;
+    }
+
+    private void onCaseIndexDisrupted(String caseId) {
+        caseIndexesWereDisrupted = true;
+        disruptedCases.add(caseId);
+        // The case's stored indices haven't been overwritten yet, and any case they point to
+        // may have just lost its only reason to stay on the device
+        Vector<Integer> recordIds = sandbox.getCaseStorage().getIDsForValue(Case.INDEX_CASE_ID, caseId);
+        if (!recordIds.isEmpty()) {
+            for (Vector<Pair<String, String>> indices : new AndroidCaseIndexTable().getCaseIndexMap(recordIds).values()) {
+                for (Pair<String, String> index : indices) {
+                    disruptedCases.add(index.first);
+                }
+            }
+        }
+    }
+
     @Override
     public TransactionParserFactory getNormalCaseParser() {
         return new TransactionParserFactory() {
@@ -127,7 +157,7 @@ public class AndroidTransactionParserFactory extends CommCareTransactionParserFa
 
                         @Override
                         public void onIndexDisrupted(String caseId) {
-                            caseIndexesWereDisrupted = true;
+                            onCaseIndexDisrupted(caseId);
                         }
 
                         @Override
@@ -154,7 +184,7 @@ public class AndroidTransactionParserFactory extends CommCareTransactionParserFa
 
                         @Override
                         public void onIndexDisrupted(String caseId) {
-                            caseIndexesWereDisrupted = true;
+                            onCaseIndexDisrupted(caseId);
                         }
 
                         @Override
@@ -0,0 +1,146 @@
+package org.commcare.adapters;
+
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.javarosa.core.model.ComboboxFilterRule;
+import org.javarosa.core.model.MultiWordFilterRule;
+import org.javarosa.core.model.StandardFilterRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that narrowing down combobox choices with the index shows exactly the choices that
+ * checking every choice against the real filter rules would
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class ComboboxAdapterTest {
+
+    private static final String[] CHOICES = new String[]{
+            "",
+            " ",
+            "Kampala Health Centre",
+            "Kamuli Hospital",
+            "Gulu Regional Referral Hospital",
+            "kampala  road clinic",
+            "Kampala\tRoad\tPharmacy",
+            "  Mbale Health Centre  ",
+            "St. Mary's Hospital, Lacor",
+            "O'Brien-Smith Clinic (North)",
+            "HEALTH post #3",
+            "health-post #12",
+            "Hospital",
+            "road",
+            "Caf\u00e9 Clinic",
+            "a b c",
+            "..."
+    };
+
+    private static final String[] ENTERED_TEXTS = new String[]{
+            "",
+            " ",
+            "   ",
+            "\t",
+            "k",
+            "KA",
+            "kAmPaLa",
+            "kampala ",
+            " kampala",
+            "kampala r",
+            "kampala  r",
+            "kampala\tr",
+            "kampala\troad",
+            "KAMPALA\tROAD\tP",
+            "road kampala",
+            "health cent",
+            "HEALTH  c",
+            "centre\tkamp",
+            "ampala",
+            "st.",
+            "st. m",
+            "ST. MARY'S",
+            "mary's hosp",
+            "hospital,",
+            "lacor",
+            "o'b",
+            "o'brien-s",
+            "smith",
+            "(north)",
+            "(n",
+            "#",
+            "#1",
+            "post #",
+            "health-",
+            "-",
+            ".",
+            "...",
+            "caf\u00e9",
+            "CAF\u00c9 c",
+            "a b",
+            "b a",
+            "a  c",
+            "c b a",
+            "x",
+            "hospital hospital"
+    };
+
+    @Test
+    public void testStandardFilterRuleMatchesFullScan() {
+        assertIndexedMatchesFullScan(new StandardFilterRule());
+    }
+
+    @Test
+    public void testMultiWordFilterRuleMatchesFullScan() {
+        assertIndexedMatchesFullScan(new MultiWordFilterRule());
+    }
+
+    private static void assertIndexedMatchesFullScan(ComboboxFilterRule rule) {
+        ComboboxAdapter adapter = new ComboboxAdapter(RuntimeEnvironment.application, CHOICES, rule);
+        for (String enteredText : getEnteredTexts()) {
+            int[] expected = fullScan(rule, enteredText);
+            String message = "Entered text \"" + enteredText + "\"";
+
+            assertArrayEquals(message, expected, adapter.getMatchingChoices(enteredText));
+            assertEquals(message, expected.length > 0, adapter.isValidUserEntry(enteredText));
+        }
+    }
+
+    /**
+     * The fixed entered texts, along with every prefix of every choice as it would be typed
+     */
+    private static Set<String> getEnteredTexts() {
+        Set<String> enteredTexts = new LinkedHashSet<>(Arrays.asList(ENTERED_TEXTS));
+        for (String choice : CHOICES) {
+            for (int i = 1; i <= choice.length(); i++) {
+                enteredTexts.add(choice.substring(0, i));
+                enteredTexts.add(choice.substring(0, i).toUpperCase());
+            }
+        }
+        return enteredTexts;
+    }
+
+    private static int[] fullScan(ComboboxFilterRule rule, String enteredText) {
+        List<Integer> matched = new ArrayList<>();
+        for (int i = 0; i < CHOICES.length; i++) {
+            if (rule.choiceShouldBeShown(CHOICES[i], enteredText)) {
+                matched.add(i);
+            }
+        }
+        int[] positions = new int[matched.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = matched.get(i);
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,42 @@
+package org.commcare.adapters;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for narrowing down combobox choices by the words entered
+ */
+public class ComboboxChoiceIndexTest {
+
+    private static final String[] CHOICES = new String[]{
+            "",
+            "Kampala Health Centre",
+            "Kamuli Hospital",
+            "Gulu Regional Referral Hospital",
+            "kampala  road clinic",
+            "Mbale Health Centre"
+    };
+
+    @Test
+    public void testWordPrefixes() {
+        ComboboxChoiceIndex index = new ComboboxChoiceIndex(CHOICES);
+
+        assertArrayEquals(new int[]{1, 2, 4}, index.getCandidates("ka"));
+        assertArrayEquals(new int[]{1, 4}, index.getCandidates("KAMPALA"));
+        assertArrayEquals(new int[]{2, 3}, index.getCandidates("hosp"));
+        assertArrayEquals(new int[]{1, 5}, index.getCandidates("health cent"));
+        assertArrayEquals(new int[]{1}, index.getCandidates("centre  kamp"));
+        assertArrayEquals(new int[]{}, index.getCandidates("kampala hospital"));
+        assertArrayEquals(new int[]{}, index.getCandidates("ampala"));
+    }
+
+    @Test
+    public void testNoEnteredWords() {
+        ComboboxChoiceIndex index = new ComboboxChoiceIndex(CHOICES);
+
+        assertNull(index.getCandidates(""));
+        assertNull(index.getCandidates("   "));
+    }
+}
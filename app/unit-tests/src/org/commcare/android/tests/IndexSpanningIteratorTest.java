@@ -51,6 +51,34 @@ public class IndexSpanningIteratorTest {
         testSpans(i(4, 8, 9, 12), i(1, 2, 3, 5, 6, 7, 10, 11));
     }
 
+    @Test
+    public void testGapRangeWalking() {
+        //Single trailing gap, as returned for a table with no missing ids
+        testRangeSpans(new int[][]{{5, 5}}, i(1, 2, 3, 4));
+
+        //From the iterator documentation
+        testRangeSpans(new int[][]{{4, 4}, {8, 9}, {12, 12}}, i(1, 2, 3, 5, 6, 7, 10, 11));
+
+        //Long gap runs
+        testRangeSpans(new int[][]{{3, 100}, {103, 200}, {202, 202}}, i(1, 2, 101, 102, 201));
+
+        //Adjacent gap runs
+        testRangeSpans(new int[][]{{3, 4}, {5, 6}, {8, 8}}, i(1, 2, 7));
+    }
+
+    private void testRangeSpans(int[][] inputs, int[] expected) {
+        Integer[][] master = new Integer[inputs.length][2];
+        for (int i = 0; i < inputs.length; ++i) {
+            master[i] = new Integer[]{inputs[i][0], inputs[i][1]};
+        }
+        ExtendedTestCursor c = new ExtendedTestCursor();
+        c.setResults(master);
+
+        IndexSpanningIterator iterator = new IndexSpanningIterator(c, null, expected[0],
+                inputs[inputs.length - 1][0], expected.length, true);
+        assertIteratorOutput(iterator, expected);
+    }
+
     private void testSpans(int[] inputs, int[] expected) {
         testSpans(inputs, expected, expected[0], inputs[inputs.length - 1], expected.length);
     }
@@ -63,10 +91,12 @@ public class IndexSpanningIteratorTest {
         ExtendedTestCursor c = new ExtendedTestCursor();
         c.setResults(master);
 
-        Vector<Integer> vals = new Vector<>();
-
         IndexSpanningIterator iterator = new IndexSpanningIterator(c, null, min, max, count);
+        assertIteratorOutput(iterator, expected);
+    }
 
+    private void assertIteratorOutput(IndexSpanningIterator iterator, int[] expected) {
+        Vector<Integer> vals = new Vector<>();
         while (iterator.hasMore()) {
             vals.add(iterator.nextID());
         }
@@ -4,6 +4,7 @@ import android.content.Intent;
 import android.os.Environment;
 import android.widget.ListView;
 
+import org.commcare.CommCareApplication;
 import org.commcare.CommCareTestApplication;
 import org.commcare.activities.StandardHomeActivity;
 import org.commcare.activities.FormEntryActivity;
@@ -11,9 +12,12 @@ import org.commcare.activities.FormRecordListActivity;
 import org.commcare.adapters.IncompleteFormListAdapter;
 import org.commcare.android.CommCareTestRunner;
 import org.commcare.android.database.user.models.FormRecord;
+import org.commcare.android.database.user.models.SessionStateDescriptor;
 import org.commcare.android.util.SavedFormLoader;
 import org.commcare.android.util.TestAppInstaller;
 import org.commcare.dalvik.R;
+import org.commcare.models.database.SqlStorage;
+import org.commcare.models.database.user.models.FormRecordTitleIndex;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -25,6 +29,8 @@ import org.robolectric.shadows.ShadowActivity;
 import org.robolectric.shadows.ShadowEnvironment;
 import org.robolectric.shadows.ShadowListView;
 
+import java.util.HashMap;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
@@ -52,6 +58,28 @@ public class FormRecordListActivityTest {
         openASavedForm(2, 0);
     }
 
+    /**
+     * Loading the saved form list should store the title of every record with a session, so
+     * that the list doesn't need to rebuild sessions the next time it is opened
+     */
+    @Test
+    public void savedFormTitlesStoredTest() {
+        openASavedForm(2, 0);
+
+        HashMap<Integer, String> titles = new FormRecordTitleIndex().getTitles();
+        SqlStorage<SessionStateDescriptor> ssdStorage =
+                CommCareApplication.instance().getUserStorage(SessionStateDescriptor.class);
+        assertEquals(ssdStorage.getNumRecords(), titles.size());
+        for (SessionStateDescriptor ssd : ssdStorage) {
+            assertNotNull(titles.get(ssd.getFormRecordId()));
+        }
+
+        // titles for records that have since been removed are dropped on the next load
+        CommCareApplication.instance().getUserStorage(FormRecord.class).removeAll();
+        new FormRecordTitleIndex().removeOrphanedTitles();
+        assertEquals(0, new FormRecordTitleIndex().getTitles().size());
+    }
+
     public static void openASavedForm(int expectedFormCount, int formIndexToSelect) {
         Intent savedFormsIntent =
                 new Intent(RuntimeEnvironment.application, FormRecordListActivity.class);
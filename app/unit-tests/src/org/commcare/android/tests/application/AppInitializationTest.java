@@ -1,10 +1,20 @@
 package org.commcare.android.tests.application;
 
+import org.commcare.CommCareApp;
 import org.commcare.CommCareApplication;
 import org.commcare.CommCareTestApplication;
 import org.commcare.android.CommCareTestRunner;
 import org.commcare.android.util.TestAppInstaller;
+import org.commcare.engine.resource.AndroidResourceTable;
+import org.commcare.models.database.SqlStorage;
+import org.commcare.resources.model.Resource;
+import org.commcare.resources.model.ResourceTable;
+import org.commcare.suite.model.Menu;
 import org.commcare.suite.model.Profile;
+import org.commcare.suite.model.Suite;
+import org.commcare.utils.AndroidCommCarePlatform;
+import org.commcare.utils.AndroidResourceInstallerFactory;
+import org.commcare.utils.GlobalConstants;
 import org.commcare.utils.PendingCalcs;
 import org.junit.Assert;
 import org.junit.Before;
@@ -12,6 +22,14 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.annotation.Config;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+
 /**
  * Tests that use the ability to install a CommCare app and login as a test
  * user.
@@ -37,4 +55,92 @@ public class AppInitializationTest {
         Profile p = CommCareApplication.instance().getCommCarePlatform().getCurrentProfile();
         Assert.assertTrue(p.getVersion() == 8);
     }
+
+    /**
+     * Make sure that restarting an installed app loads its suites from the binary snapshots
+     * written at install, and falls back to parsing the xml when a snapshot is unusable
+     */
+    @Test
+    public void testSuiteSnapshotInit() throws IOException {
+        CommCareApp app = CommCareApplication.instance().getCurrentApp();
+        List<String> expectedSuiteContents = getSuiteContents();
+
+        File[] snapshots = getSuiteSnapshots(app);
+        Assert.assertEquals(CommCareApplication.instance().getCommCarePlatform().getInstalledSuites().size(),
+                snapshots.length);
+
+        Assert.assertTrue(app.initializeApplication());
+        Assert.assertEquals(expectedSuiteContents, getSuiteContents());
+
+        for (File snapshot : snapshots) {
+            FileOutputStream fos = new FileOutputStream(snapshot);
+            fos.write(new byte[]{1, 2, 3});
+            fos.close();
+        }
+        Assert.assertTrue(app.initializeApplication());
+        Assert.assertEquals(expectedSuiteContents, getSuiteContents());
+
+        // The damaged snapshots should have been rewritten from the parsed xml
+        for (File snapshot : getSuiteSnapshots(app)) {
+            Assert.assertTrue(snapshot.length() > 3);
+        }
+    }
+
+    /**
+     * Make sure lookups answered from the resource id index agree with the table's records,
+     * including after records are removed from and added to the table's storage
+     */
+    @Test
+    public void testResourceIdIndex() {
+        CommCareApp app = CommCareApplication.instance().getCurrentApp();
+        AndroidCommCarePlatform platform = app.getCommCarePlatform();
+        SqlStorage<Resource> storage =
+                app.getStorage(AndroidCommCarePlatform.GLOBAL_RESOURCE_TABLE_NAME, Resource.class);
+        ResourceTable global = new AndroidResourceTable(storage, new AndroidResourceInstallerFactory());
+
+        Assert.assertFalse(global.isEmpty());
+        Assert.assertEquals(ResourceTable.RESOURCE_TABLE_EMPTY,
+                platform.getUpgradeResourceTable().getTableReadiness());
+
+        Resource removed = null;
+        for (Resource resource : storage) {
+            Assert.assertEquals(resource.getID(), global.getResourceWithId(resource.getResourceId()).getID());
+            Assert.assertEquals(getChildIds(storage.getRecordsForValue(Resource.META_INDEX_PARENT_GUID, resource.getRecordGuid())),
+                    getChildIds(global.getResourcesForParent(resource.getRecordGuid())));
+            removed = resource;
+        }
+
+        storage.remove(removed);
+        Assert.assertNull(global.getResourceWithId(removed.getResourceId()));
+
+        removed.setID(-1);
+        storage.write(removed);
+        Assert.assertEquals(removed.getID(), global.getResourceWithId(removed.getResourceId()).getID());
+    }
+
+    private static List<Integer> getChildIds(Vector<Resource> children) {
+        List<Integer> ids = new ArrayList<>();
+        for (Resource child : children) {
+            ids.add(child.getID());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static File[] getSuiteSnapshots(CommCareApp app) {
+        File cacheDir = new File(app.fsPath(GlobalConstants.FILE_CC_CACHE));
+        return cacheDir.listFiles((dir, name) -> name.endsWith(".suite"));
+    }
+
+    private static List<String> getSuiteContents() {
+        List<String> contents = new ArrayList<>();
+        for (Suite suite : CommCareApplication.instance().getCommCarePlatform().getInstalledSuites()) {
+            contents.addAll(suite.getEntries().keySet());
+            for (Menu menu : suite.getMenus()) {
+                contents.add(menu.getId());
+            }
+        }
+        Collections.sort(contents);
+        return contents;
+    }
 }
@@ -0,0 +1,219 @@
+package org.commcare.android.tests.application;
+
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.engine.references.JavaHttpReference;
+import org.commcare.engine.resource.ResourceDownloadScheduler;
+import org.javarosa.core.io.StreamsUtil;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.Okio;
+import retrofit2.Response;
+
+/**
+ * Tests for fetching app resources through the download scheduler, in particular resuming
+ * downloads that were cut off partway through.
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class ResourceDownloadSchedulerTest {
+    private static final String URL = "https://www.commcarehq.org/media/image.png";
+    private static final String ETAG = "\"abc123\"";
+
+    private File downloadDir;
+    private byte[] fileContents;
+
+    @Before
+    public void setup() {
+        downloadDir = new File(RuntimeEnvironment.application.getFilesDir(), "downloads");
+        fileContents = new byte[10000];
+        for (int i = 0; i < fileContents.length; i++) {
+            fileContents[i] = (byte)i;
+        }
+    }
+
+    @Test
+    public void testInterruptedDownloadResumes() throws IOException {
+        FakeHttpReference ref = new FakeHttpReference(ETAG);
+        ref.failAfterBytes = 4000;
+
+        ResourceDownloadScheduler scheduler = new ResourceDownloadScheduler(downloadDir);
+        try {
+            scheduler.fetch(ref, false);
+            Assert.fail("Download should have been cut off");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // A fresh scheduler, as if the app had been restarted, should pick up at the cut off
+        ref.failAfterBytes = -1;
+        scheduler = new ResourceDownloadScheduler(downloadDir);
+        File downloaded = scheduler.fetch(ref, false);
+        Assert.assertArrayEquals(fileContents, readFile(downloaded));
+        Assert.assertEquals(Arrays.asList(0L, 4000L), ref.requestedOffsets);
+
+        scheduler.release(ref);
+        Assert.assertEquals(0, downloadDir.listFiles().length);
+    }
+
+    @Test
+    public void testDownloadRestartsWithoutValidator() throws IOException {
+        FakeHttpReference ref = new FakeHttpReference(null);
+        ref.failAfterBytes = 4000;
+
+        ResourceDownloadScheduler scheduler = new ResourceDownloadScheduler(downloadDir);
+        try {
+            scheduler.fetch(ref, false);
+            Assert.fail("Download should have been cut off");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // Without a way to tell whether the file changed, the download has to start over
+        ref.failAfterBytes = -1;
+        File downloaded = scheduler.fetch(ref, false);
+        Assert.assertArrayEquals(fileContents, readFile(downloaded));
+        Assert.assertEquals(Arrays.asList(0L, 0L), ref.requestedOffsets);
+    }
+
+    @Test
+    public void testChangedFileRestartsDownload() throws IOException {
+        FakeHttpReference ref = new FakeHttpReference(ETAG);
+        ref.failAfterBytes = 4000;
+
+        ResourceDownloadScheduler scheduler = new ResourceDownloadScheduler(downloadDir);
+        try {
+            scheduler.fetch(ref, false);
+            Assert.fail("Download should have been cut off");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // The server's copy changed, so it ignores the range and sends the whole file
+        ref.failAfterBytes = -1;
+        ref.etag = "\"def456\"";
+        fileContents[0] = 42;
+        File downloaded = scheduler.fetch(ref, false);
+        Assert.assertArrayEquals(fileContents, readFile(downloaded));
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return StreamsUtil.inputStreamToByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Serves the test file, honoring range requests when the If-Range validator matches
+     */
+    private class FakeHttpReference extends JavaHttpReference {
+        String etag;
+        int failAfterBytes = -1;
+        final List<Long> requestedOffsets = new ArrayList<>();
+
+        FakeHttpReference(String etag) {
+            super(URL, null);
+            this.etag = etag;
+        }
+
+        @Override
+        public Response<ResponseBody> getRangeResponse(long offset, @Nullable String validator) {
+            requestedOffsets.add(offset);
+            Headers.Builder headers = new Headers.Builder();
+            if (etag != null) {
+                headers.add("ETag", etag);
+            }
+            int start = 0;
+            int code = 200;
+            if (offset > 0 && etag != null && etag.equals(validator)) {
+                start = (int)offset;
+                code = 206;
+                headers.add("Content-Range", "bytes " + start + "-" +
+                        (fileContents.length - 1) + "/" + fileContents.length);
+            }
+            okhttp3.Response rawResponse = new okhttp3.Response.Builder()
+                    .code(code)
+                    .message("OK")
+                    .protocol(Protocol.HTTP_1_1)
+                    .request(new Request.Builder().url(URL).build())
+                    .headers(headers.build())
+                    .build();
+            return Response.success(new FakeBody(start), rawResponse);
+        }
+
+        private class FakeBody extends ResponseBody {
+            private final int start;
+
+            FakeBody(int start) {
+                this.start = start;
+            }
+
+            @Override
+            public MediaType contentType() {
+                return null;
+            }
+
+            @Override
+            public long contentLength() {
+                return fileContents.length - start;
+            }
+
+            @Override
+            public BufferedSource source() {
+                final int failAt = failAfterBytes;
+                final InputStream contents =
+                        new ByteArrayInputStream(fileContents, start, fileContents.length - start);
+                InputStream in = new InputStream() {
+                    private int bytesRead = 0;
+
+                    @Override
+                    public int read() throws IOException {
+                        byte[] b = new byte[1];
+                        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        if (failAt >= 0) {
+                            if (bytesRead >= failAt) {
+                                throw new IOException("Connection reset");
+                            }
+                            len = Math.min(len, failAt - bytesRead);
+                        }
+                        int count = contents.read(b, off, len);
+                        if (count > 0) {
+                            bytesRead += count;
+                        }
+                        return count;
+                    }
+                };
+                return Okio.buffer(Okio.source(in));
+            }
+        }
+    }
+}
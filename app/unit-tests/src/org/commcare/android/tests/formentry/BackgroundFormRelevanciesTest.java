@@ -0,0 +1,113 @@
+package org.commcare.android.tests.formentry;
+
+import android.content.Intent;
+import android.widget.ImageButton;
+
+import org.commcare.CommCareApplication;
+import org.commcare.CommCareTestApplication;
+import org.commcare.activities.FormEntryActivity;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.util.ActivityLaunchUtils;
+import org.commcare.android.util.TestAppInstaller;
+import org.commcare.dalvik.R;
+import org.commcare.preferences.DeveloperPreferences;
+import org.commcare.preferences.PrefValues;
+import org.commcare.views.QuestionsView;
+import org.commcare.views.widgets.IntegerWidget;
+import org.commcare.views.widgets.QuestionWidget;
+import org.commcare.views.widgets.StringWidget;
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.data.IAnswerData;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowActivity;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for updating the relevancies of a field list in the background as answers change
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class BackgroundFormRelevanciesTest {
+
+    @Before
+    public void setup() {
+        TestAppInstaller.installAppAndLogin(
+                "jr://resource/commcare-apps/form_entry_tests/profile.ccpr",
+                "test", "123");
+        CommCareApplication.instance().getCurrentApp().getAppPreferences().edit()
+                .putString(DeveloperPreferences.BACKGROUND_FORM_RELEVANCIES, PrefValues.YES)
+                .commit();
+    }
+
+    @Test
+    public void testRelevanciesAreAppliedOnceAnswersSettle() {
+        FormEntryActivity formEntryActivity = launchFormEntry();
+        assertEquals(1, formEntryActivity.getODKView().getWidgets().size());
+
+        ((IntegerWidget)formEntryActivity.getODKView().getWidgets().get(0)).setAnswer("12");
+        // Nothing changes until the answers have settled
+        assertEquals(1, formEntryActivity.getODKView().getWidgets().size());
+        runPendingUpdates();
+
+        ArrayList<QuestionWidget> widgets = formEntryActivity.getODKView().getWidgets();
+        assertEquals(2, widgets.size());
+        assertTrue(widgets.get(1) instanceof StringWidget);
+        assertAnswerSaved(widgets.get(0).getFormId(), "12");
+    }
+
+    /**
+     * Navigating while an update is still waiting on answers to settle applies it first, rather
+     * than ignoring the navigation
+     */
+    @Test
+    public void testNavigationAppliesPendingUpdate() {
+        FormEntryActivity formEntryActivity = launchFormEntry();
+        QuestionsView firstView = formEntryActivity.getODKView();
+
+        ((IntegerWidget)firstView.getWidgets().get(0)).setAnswer("12");
+        runPendingUpdates();
+        FormIndex ageIndex = firstView.getWidgets().get(0).getFormId();
+        StringWidget guardian = (StringWidget)firstView.getWidgets().get(1);
+
+        guardian.setAnswer("Sam");
+        ImageButton nextButton = formEntryActivity.findViewById(R.id.nav_btn_next);
+        nextButton.performClick();
+
+        QuestionsView secondView = formEntryActivity.getODKView();
+        assertNotSame("Navigation was ignored", firstView, secondView);
+        assertEquals(1, secondView.getWidgets().size());
+        assertEquals("Notes", secondView.getWidgets().get(0).getPrompt().getLongText());
+        assertAnswerSaved(ageIndex, "12");
+        assertAnswerSaved(guardian.getFormId(), "Sam");
+    }
+
+    private static FormEntryActivity launchFormEntry() {
+        ShadowActivity shadowActivity =
+                ActivityLaunchUtils.buildHomeActivityForFormEntryLaunch("m0-f1");
+        Intent formEntryIntent = shadowActivity.getNextStartedActivity();
+        return Robolectric.buildActivity(FormEntryActivity.class).withIntent(formEntryIntent)
+                .create().start().resume().get();
+    }
+
+    private static void runPendingUpdates() {
+        Robolectric.flushForegroundThreadScheduler();
+        Robolectric.flushBackgroundThreadScheduler();
+        Robolectric.flushForegroundThreadScheduler();
+    }
+
+    private static void assertAnswerSaved(FormIndex index, String answer) {
+        IAnswerData saved = FormEntryActivity.mFormController.getQuestionPrompt(index).getAnswerValue();
+        assertNotNull(saved);
+        assertEquals(answer, saved.getDisplayText());
+    }
+}
@@ -39,11 +39,13 @@ import org.robolectric.shadows.ShadowEnvironment;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Date;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
@@ -170,6 +172,13 @@ public class FormRecordProcessingTest {
                 FormRecord.STATUS_INCOMPLETE).size();
         assertEquals("There should be a single form waiting to be sent", 1, unsentForms);
         assertEquals("There shouldn't be any forms saved as incomplete", 0, incompleteForms);
+
+        FormRecord unsentRecord = formsStorage.getRecordForValue(FormRecord.META_STATUS,
+                FormRecord.STATUS_UNSENT);
+        File instanceFile = new File(unsentRecord.getFilePath());
+        assertTrue("The completed form should be stored at the record's path", instanceFile.exists());
+        assertFalse("No partially written instance should be left behind",
+                new File(instanceFile.getParentFile(), "submission.xml").exists());
     }
 
     private static final String reasonForFailure = "SOME REASON FOR FAILURE";
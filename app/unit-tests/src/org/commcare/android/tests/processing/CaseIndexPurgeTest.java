@@ -0,0 +1,130 @@
+package org.commcare.android.tests.processing;
+
+import org.commcare.CommCareApplication;
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.database.user.models.ACase;
+import org.commcare.android.database.user.models.FormRecord;
+import org.commcare.android.util.TestAppInstaller;
+import org.commcare.cases.model.Case;
+import org.commcare.core.process.XmlFormRecordProcessor;
+import org.commcare.models.FormRecordProcessor;
+import org.commcare.models.database.SqlStorage;
+import org.commcare.preferences.DeveloperPreferences;
+import org.commcare.preferences.PrefValues;
+import org.commcare.xml.AndroidTransactionParserFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that the purge run after processing a form catches cases that lost the last index
+ * keeping them on the device
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class CaseIndexPurgeTest {
+    private static final String OTHER_OWNER = "other_owner_id";
+
+    private SqlStorage<ACase> caseStorage;
+    private String userId;
+
+    @Before
+    public void setup() throws Exception {
+        TestAppInstaller.installAppAndLogin(
+                "jr://resource/commcare-apps/form_save_regressions/profile.ccpr",
+                "test", "123");
+        CommCareApplication.instance().getCurrentApp().getAppPreferences().edit()
+                .putString(DeveloperPreferences.AUTO_PURGE_ENABLED, PrefValues.YES).commit();
+        caseStorage = CommCareApplication.instance().getUserStorage(ACase.STORAGE_KEY, ACase.class);
+        userId = CommCareApplication.instance().getSession().getLoggedInUser().getUniqueId();
+
+        // The old parent belongs to someone else and is only on the device for the child's sake
+        processForm(createCase("old_parent", OTHER_OWNER, null) +
+                createCase("new_parent", userId, null) +
+                createCase("child", userId, "old_parent"));
+        assertCaseExists("old_parent");
+    }
+
+    @Test
+    public void testDisruptedIndexRecordsOldTarget() throws Exception {
+        AndroidTransactionParserFactory factory =
+                new AndroidTransactionParserFactory(RuntimeEnvironment.application, null);
+        XmlFormRecordProcessor.process(toStream(formXml(repointIndex("child", "new_parent"))), factory);
+
+        assertTrue(factory.wereCaseIndexesDisrupted());
+        Set<String> disrupted = factory.getDisruptedCases();
+        assertTrue(disrupted.toString(), disrupted.contains("child"));
+        assertTrue(disrupted.toString(), disrupted.contains("old_parent"));
+    }
+
+    @Test
+    public void testRepointedIndexPurgesOldTarget() throws Exception {
+        processForm(repointIndex("child", "new_parent"));
+
+        assertCaseRemoved("old_parent");
+        assertCaseExists("new_parent");
+        ACase child = assertCaseExists("child");
+        assertEquals(1, child.getIndices().size());
+        assertEquals("new_parent", child.getIndices().elementAt(0).getTarget());
+    }
+
+    private void processForm(String caseBlocks) throws Exception {
+        FormRecord record = new FormRecord(FormRecord.STATUS_COMPLETE, "http://test/form", new byte[0],
+                UUID.randomUUID().toString(), new Date(),
+                CommCareApplication.instance().getCurrentApp().getUniqueId());
+        CommCareApplication.instance().getUserStorage(FormRecord.class).write(record);
+        new FormRecordProcessor(RuntimeEnvironment.application)
+                .process(record, formXml(caseBlocks).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String formXml(String caseBlocks) {
+        return "<data xmlns=\"http://test/form\">" + caseBlocks + "</data>";
+    }
+
+    private static ByteArrayInputStream toStream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String createCase(String caseId, String ownerId, String parentId) {
+        String index = parentId == null ? "" :
+                "<index><parent case_type=\"parent\">" + parentId + "</parent></index>";
+        return "<case xmlns=\"http://commcarehq.org/case/transaction/v2\" case_id=\"" + caseId +
+                "\" date_modified=\"2017-01-01T00:00:00.000\" user_id=\"" + userId + "\">" +
+                "<create><case_type>" + (parentId == null ? "parent" : "child") + "</case_type>" +
+                "<case_name>" + caseId + "</case_name><owner_id>" + ownerId + "</owner_id></create>" +
+                index + "</case>";
+    }
+
+    private String repointIndex(String caseId, String parentId) {
+        return "<case xmlns=\"http://commcarehq.org/case/transaction/v2\" case_id=\"" + caseId +
+                "\" date_modified=\"2017-01-02T00:00:00.000\" user_id=\"" + userId + "\">" +
+                "<index><parent case_type=\"parent\">" + parentId + "</parent></index></case>";
+    }
+
+    private ACase assertCaseExists(String caseId) {
+        return caseStorage.getRecordForValue(Case.INDEX_CASE_ID, caseId);
+    }
+
+    private void assertCaseRemoved(String caseId) {
+        try {
+            caseStorage.getRecordForValue(Case.INDEX_CASE_ID, caseId);
+            fail("Case " + caseId + " should have been purged");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+}
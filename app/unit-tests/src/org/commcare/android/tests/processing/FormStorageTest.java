@@ -317,6 +317,7 @@ public class FormStorageTest {
             // Added in 2.45
             , "org.commcare.recovery.measures.RecoveryMeasure"
             , "org.javarosa.xpath.expr.CacheableExprState"
+            , "org.commcare.android.database.app.models.FormDefRecordV12"
     );
 
 
@@ -5,12 +5,20 @@ import org.commcare.android.CommCareTestRunner;
 import org.commcare.android.util.TestUtils;
 import org.commcare.cases.model.Case;
 import org.commcare.android.database.user.models.ACase;
+import org.commcare.engine.cases.CaseUtils;
+import org.commcare.models.database.SqlStorage;
+import org.commcare.models.database.user.models.AndroidCaseIndexTable;
+import org.javarosa.core.util.DAG;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.annotation.Config;
 
+import java.util.Collections;
+
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
 
 /**
  * @author ctsims
@@ -44,6 +52,31 @@ public class ProcessingTest {
         assertEquals("Removed Index Count", 0, c4.getIndices().size());
     }
 
+    @Test
+    public void testCaseSubgraph() {
+        TestUtils.processResourceTransaction("/inputs/case_create.xml");
+        TestUtils.processResourceTransaction("/inputs/case_create_and_index.xml");
+
+        SqlStorage<ACase> storage = TestUtils.getCaseStorage();
+        AndroidCaseIndexTable indexTable = new AndroidCaseIndexTable(storage.getAccessLock());
+
+        // Reached from the parent as well as the child, but not the other case pair
+        for (String caseId : new String[]{"test_case_id", "test_case_id_child"}) {
+            DAG<String, int[], String> subgraph =
+                    CaseUtils.getCaseSubgraph(storage, indexTable, null, Collections.singletonList(caseId));
+            assertNotNull(subgraph.getNode("test_case_id"));
+            assertNotNull(subgraph.getNode("test_case_id_child"));
+            assertNull(subgraph.getNode("test_case_id_2"));
+            assertNull(subgraph.getNode("test_case_id_child_2"));
+        }
+
+        TestUtils.processResourceTransaction("/inputs/case_break_index.xml");
+        DAG<String, int[], String> subgraph = CaseUtils.getCaseSubgraph(storage, indexTable, null,
+                Collections.singletonList("test_case_id_child"));
+        assertNotNull(subgraph.getNode("test_case_id_child"));
+        assertNull(subgraph.getNode("test_case_id"));
+    }
+
     @Test
     public void testTypeChange() {
         TestUtils.processResourceTransaction("/inputs/case_create.xml");
@@ -4,6 +4,7 @@ import org.commcare.CommCareApplication;
 import org.commcare.android.CommCareTestRunner;
 import org.commcare.android.util.TestUtils;
 import org.commcare.cases.query.QueryContext;
+import org.commcare.engine.cases.CaseIdMapping;
 import org.commcare.cases.query.queryset.CurrentModelQuerySet;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.instance.TreeReference;
@@ -24,6 +25,8 @@ import org.robolectric.annotation.Config;
 import java.util.Collection;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
 
 /**
  * General case query tests
@@ -83,6 +86,24 @@ public class CaseDbQueryTest {
                 "test_case_id_child_2", ec);
     }
 
+    /**
+     * Cached case index queries should be dropped when the index rows they match change
+     */
+    @Test
+    public void testCaseIndexQueryCacheInvalidation() {
+        TestUtils.processResourceTransaction("/inputs/case_create.xml");
+        TestUtils.processResourceTransaction("/inputs/case_create_and_index.xml");
+
+        String childQuery = "join(',',instance('casedb')/casedb/case[index/parent = 'test_case_id']/@case_id)";
+        String childSetQuery = "join(',',instance('casedb')/casedb/case[selected('test_case_id test_case_id_2', index/parent)]/@case_id)";
+        evaluate(childQuery, "test_case_id_child", TestUtils.getEvaluationContextWithoutSession());
+        evaluate(childSetQuery, "test_case_id_child,test_case_id_child_2", TestUtils.getEvaluationContextWithoutSession());
+
+        TestUtils.processResourceTransaction("/inputs/case_break_index.xml");
+        evaluate(childQuery, "", TestUtils.getEvaluationContextWithoutSession());
+        evaluate(childSetQuery, "test_case_id_child_2", TestUtils.getEvaluationContextWithoutSession());
+    }
+
     @Test
     public void testCaseOptimizationTriggers() {
         TestUtils.processResourceTransaction("/inputs/case_test_db_optimizations.xml");
@@ -106,6 +127,84 @@ public class CaseDbQueryTest {
         evaluate("join(',',instance('casedb')/casedb/case[selected('', index/parent)]/@case_id)", "", ec);
     }
 
+    /**
+     * The case id mapping should be shared while the set of cases is unchanged, and rebuilt
+     * once cases are added
+     */
+    @Test
+    public void testCaseIdMappingReuse() {
+        TestUtils.processResourceTransaction("/inputs/case_create.xml");
+        CaseIdMapping mapping = CaseIdMapping.getMapping(TestUtils.getCaseStorage());
+        assertEquals(2, mapping.size());
+
+        TestUtils.processResourceTransaction("/inputs/case_update.xml");
+        assertSame(mapping, CaseIdMapping.getMapping(TestUtils.getCaseStorage()));
+        evaluate("count(instance('casedb')/casedb/case)", "2", TestUtils.getEvaluationContextWithoutSession());
+        evaluate("instance('casedb')/casedb/case[@case_id = 'test_case_id']/test_value", "changed",
+                TestUtils.getEvaluationContextWithoutSession());
+
+        TestUtils.processResourceTransaction("/inputs/case_create_and_index.xml");
+        CaseIdMapping updatedMapping = CaseIdMapping.getMapping(TestUtils.getCaseStorage());
+        assertNotSame(mapping, updatedMapping);
+        assertEquals(mapping.getRecordId(1), updatedMapping.getRecordId(1));
+        assertEquals(1, updatedMapping.getMultiplicity(updatedMapping.getRecordId(1)));
+        evaluate("count(instance('casedb')/casedb/case)", String.valueOf(updatedMapping.size()),
+                TestUtils.getEvaluationContextWithoutSession());
+    }
+
+    /**
+     * Predicates on projected case properties should return the same results whether the
+     * properties are indexed before or after the cases are written
+     */
+    @Test
+    public void testCasePropertyQueries() {
+        TestUtils.setIndexedCaseProperties("village", "age");
+        TestUtils.processResourceTransaction("/inputs/case_test_property_queries.xml");
+        assertCasePropertyQueries(TestUtils.getEvaluationContextWithoutSession());
+    }
+
+    @Test
+    public void testCasePropertyQueriesAfterReindex() {
+        TestUtils.processResourceTransaction("/inputs/case_test_property_queries.xml", true);
+        TestUtils.setIndexedCaseProperties("village", "age");
+        assertCasePropertyQueries(TestUtils.getEvaluationContextWithoutSession());
+    }
+
+    /**
+     * Reserved case fields aren't read from the case properties, so asking to index them
+     * must leave predicates on them returning what they would without the index
+     */
+    @Test
+    public void testReservedCaseFieldsAreNotProjected() {
+        TestUtils.processResourceTransaction("/inputs/case_test_property_queries.xml");
+        String[] queries = new String[]{
+                "join(',',instance('casedb')/casedb/case[case_name = 'Patient Two']/@case_id)",
+                "join(',',instance('casedb')/casedb/case[owner_id = 'test_user_id'][village = 'north']/@case_id)",
+                "count(instance('casedb')/casedb/case[date_opened = ''])"};
+        String[] unindexedResults = new String[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            unindexedResults[i] = evaluateToString(queries[i], TestUtils.getEvaluationContextWithoutSession());
+        }
+
+        TestUtils.setIndexedCaseProperties("case_name", "owner_id", "date_opened", "village");
+        EvaluationContext ec = TestUtils.getEvaluationContextWithoutSession();
+        for (int i = 0; i < queries.length; i++) {
+            evaluate(queries[i], unindexedResults[i], ec);
+        }
+        evaluate("join(',',instance('casedb')/casedb/case[case_name = 'Patient Two']/@case_id)", "patient_two", ec);
+    }
+
+    private static void assertCasePropertyQueries(EvaluationContext ec) {
+        evaluate("join(',',instance('casedb')/casedb/case[village = 'north']/@case_id)", "patient_one,patient_three,household_one", ec);
+        evaluate("join(',',instance('casedb')/casedb/case[@case_type='patient'][village = 'north']/@case_id)", "patient_one,patient_three", ec);
+        evaluate("join(',',instance('casedb')/casedb/case[@case_type='patient'][age > 10]/@case_id)", "patient_two,patient_three", ec);
+        evaluate("join(',',instance('casedb')/casedb/case[@case_type='patient'][5 >= age]/@case_id)", "patient_one", ec);
+        evaluate("join(',',instance('casedb')/casedb/case[village = 'north'][age >= 4][age < 30]/@case_id)", "patient_one", ec);
+        evaluate("join(',',instance('casedb')/casedb/case[age = 12]/@case_id)", "patient_two", ec);
+        evaluate("join(',',instance('casedb')/casedb/case[age = '']/@case_id)", "household_one", ec);
+        evaluate("join(',',instance('casedb')/casedb/case[age > 'old']/@case_id)", "", ec);
+    }
+
     @Test
     public void testModelQueryLookupDerivations() {
         TestUtils.processResourceTransaction("/inputs/case_test_model_query_lookups.xml");
@@ -170,13 +269,15 @@ public class CaseDbQueryTest {
 
 
     public static void evaluate(String xpath, String expectedValue, EvaluationContext ec) {
-        XPathExpression expr;
+        assertEquals("XPath: " + xpath, expectedValue, evaluateToString(xpath, ec));
+    }
+
+    private static String evaluateToString(String xpath, EvaluationContext ec) {
         try {
-            expr = XPathParseTool.parseXPath(xpath);
-            String result = FunctionUtils.toString(expr.eval(ec));
-            assertEquals("XPath: " + xpath, expectedValue, result);
+            XPathExpression expr = XPathParseTool.parseXPath(xpath);
+            return FunctionUtils.toString(expr.eval(ec));
         } catch (XPathSyntaxException e) {
-            TestUtils.wrapError(e, "XPath: " + xpath);
+            throw TestUtils.wrapError(e, "XPath: " + xpath);
         }
     }
 
@@ -19,6 +19,7 @@ import org.commcare.models.database.SqlStorage;
 import org.commcare.models.database.user.DatabaseUserOpenHelper;
 import org.commcare.android.database.user.models.ACase;
 import org.commcare.models.database.user.models.AndroidCaseIndexTable;
+import org.commcare.models.database.user.models.AndroidCasePropertyTable;
 import org.commcare.models.database.user.models.EntityStorageCache;
 import org.commcare.modern.database.TableBuilder;
 import org.commcare.test.utilities.CaseTestUtils;
@@ -46,7 +47,9 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Hashtable;
 
 /**
@@ -109,7 +112,8 @@ public class TestUtils {
                 }
 
                 if (bulkProcessingEnabled) {
-                    return new AndroidBulkCaseXmlParser(parser, getCaseStorage(db), entityStorageCache, new AndroidCaseIndexTable(db)) {
+                    return new AndroidBulkCaseXmlParser(parser, getCaseStorage(db), entityStorageCache,
+                            new AndroidCaseIndexTable(db), new AndroidCasePropertyTable(db)) {
                         @Override
                         protected SQLiteDatabase getDbHandle() {
                             return db;
@@ -117,7 +121,8 @@ public class TestUtils {
                     };
 
                 } else {
-                    return new AndroidCaseXmlParser(parser, getCaseStorage(db), entityStorageCache, new AndroidCaseIndexTable(db)) {
+                    return new AndroidCaseXmlParser(parser, getCaseStorage(db), entityStorageCache,
+                            new AndroidCaseIndexTable(db), new AndroidCasePropertyTable(db)) {
                         @Override
                         protected SQLiteDatabase getDbHandle() {
                             return db;
@@ -167,6 +172,15 @@ public class TestUtils {
         }
     }
 
+    /**
+     * Project the provided case properties into the test db's case property table
+     */
+    public static void setIndexedCaseProperties(String... properties) {
+        SQLiteDatabase db = getTestDb();
+        new AndroidCasePropertyTable(db).syncIndexedProperties(
+                new HashSet<>(Arrays.asList(properties)), getCaseStorage(db));
+    }
+
     public static void processResourceTransactionIntoAppDb(String resourcePath) {
         DataModelPullParser parser;
 
@@ -287,7 +301,8 @@ public class TestUtils {
             @Override
             public AbstractTreeElement setupCaseData(ExternalDataInstance instance) {
                 SqlStorage<ACase> storage = getCaseStorage(db);
-                AndroidCaseInstanceTreeElement casebase = new AndroidCaseInstanceTreeElement(instance.getBase(), storage, new AndroidCaseIndexTable(db));
+                AndroidCaseInstanceTreeElement casebase = new AndroidCaseInstanceTreeElement(instance.getBase(), storage,
+                        new AndroidCaseIndexTable(db), new AndroidCasePropertyTable(db));
                 instance.setCacheHost(casebase);
                 return casebase;
             }
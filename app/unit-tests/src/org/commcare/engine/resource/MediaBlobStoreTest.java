@@ -0,0 +1,251 @@
+package org.commcare.engine.resource;
+
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.engine.references.JavaHttpReference;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import retrofit2.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for sharing media files across app versions through the media store, with hard links
+ * made through java.nio since android.system.Os isn't available to unit tests
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class MediaBlobStoreTest {
+    private static final String URL = "https://www.commcarehq.org/media/image.png";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MediaBlobStore.FileLinker linker = new NioFileLinker();
+    private MediaBlobStore store;
+
+    @Before
+    public void setup() throws IOException {
+        store = new MediaBlobStore(folder.newFolder("media_store"), linker);
+        assertTrue(store.probeLinks());
+    }
+
+    @Test
+    public void testIdenticalFilesShareOneBlob() throws IOException {
+        File first = writeFile("v1/image.png", "image contents");
+        File second = writeFile("v2/image.png", "image contents");
+        File other = writeFile("v2/other.png", "other contents");
+
+        String hash = store.addBlob(first);
+        assertNotNull(hash);
+        assertEquals(hash, store.addBlob(second));
+        assertFalse(hash.equals(store.addBlob(other)));
+
+        // Both versions' files and the blob are one file on disk
+        assertEquals(3, linker.getLinkCount(first));
+        assertEquals(3, linker.getLinkCount(second));
+        assertEquals("image contents", readFile(second));
+        assertTrue(store.isStored(second));
+        assertFalse(store.isStored(writeFile("unstored.png", "image contents")));
+    }
+
+    @Test
+    public void testGarbageCollectionKeepsOnlyLinkedBlobs() throws IOException {
+        File kept = writeFile("v2/kept.png", "kept contents");
+        File removed = writeFile("v1/removed.png", "removed contents");
+        String keptHash = store.addBlob(kept);
+        String removedHash = store.addBlob(removed);
+        store.recordUrl(URL, "\"etag\"", removedHash);
+        assertNotNull(store.getUrlRecord(URL));
+
+        // As when the app version holding the file is uninstalled
+        assertTrue(removed.delete());
+        store.collectGarbage();
+
+        assertNull(store.getUrlRecord(URL));
+        assertFalse(store.linkBlob(removedHash, new File(folder.getRoot(), "relinked.png")));
+        assertTrue(store.linkBlob(keptHash, new File(folder.getRoot(), "relinked.png")));
+        assertEquals("kept contents", readFile(kept));
+    }
+
+    @Test
+    public void testUnchangedMediaIsReusedOnNotModified() throws IOException {
+        FakeHttpReference ref = new FakeHttpReference("\"v1\"", "image contents");
+        File installed = installThroughScheduler(ref, "v1/image.png");
+        assertEquals("image contents", readFile(installed));
+        assertEquals(1, ref.fullRequests);
+
+        // The next app version asks for the same url, which the server reports as unchanged
+        File reinstalled = installThroughScheduler(ref, "v2/image.png");
+
+        assertEquals(1, ref.fullRequests);
+        assertEquals(1, ref.conditionalRequests.size());
+        assertEquals("\"v1\"", ref.conditionalRequests.get(0));
+        assertEquals("image contents", readFile(reinstalled));
+        assertEquals(linker.getLinkCount(installed), linker.getLinkCount(reinstalled));
+        assertTrue(store.isStored(reinstalled));
+    }
+
+    @Test
+    public void testChangedMediaIsDownloadedWithoutTouchingStoredCopy() throws IOException {
+        FakeHttpReference ref = new FakeHttpReference("\"v1\"", "image contents");
+        File installed = installThroughScheduler(ref, "v1/image.png");
+
+        ref.etag = "\"v2\"";
+        ref.contents = "new image contents";
+        File reinstalled = installThroughScheduler(ref, "v2/image.png");
+
+        assertEquals(2, ref.fullRequests);
+        assertEquals("new image contents", readFile(reinstalled));
+        assertEquals("image contents", readFile(installed));
+    }
+
+    /**
+     * A finished download is linked into the store before the installer moves it into place.
+     * If the install stops in between, the next attempt must leave that file as it is, rather
+     * than writing over the blob every other version's copy shares.
+     */
+    @Test
+    public void testStoredDownloadIsNeverWrittenTo() throws IOException {
+        FakeHttpReference ref = new FakeHttpReference("\"v1\"", "image contents");
+        // Without a known length, the next attempt can't tell the download was finished
+        ref.lengthKnown = false;
+        File downloadDir = new File(folder.getRoot(), "downloads");
+        File downloaded = new ResourceDownloadScheduler(downloadDir, store).fetch(ref, true);
+        File otherVersion = new File(folder.getRoot(), "v1/image.png");
+        otherVersion.getParentFile().mkdirs();
+        linker.link(downloaded, otherVersion);
+
+        ref.etag = "\"v2\"";
+        ref.contents = "new image contents";
+        File refetched = new ResourceDownloadScheduler(downloadDir, store).fetch(ref, true);
+
+        assertEquals(1, ref.fullRequests);
+        assertEquals("image contents", readFile(refetched));
+        assertEquals("image contents", readFile(otherVersion));
+    }
+
+    private File installThroughScheduler(FakeHttpReference ref, String path) throws IOException {
+        ResourceDownloadScheduler scheduler =
+                new ResourceDownloadScheduler(new File(folder.getRoot(), "downloads"), store);
+        File downloaded = scheduler.fetch(ref, true);
+        File installed = new File(folder.getRoot(), path);
+        installed.getParentFile().mkdirs();
+        assertTrue(downloaded.renameTo(installed));
+        scheduler.release(ref);
+        return installed;
+    }
+
+    private File writeFile(String path, String contents) throws IOException {
+        File file = new File(folder.getRoot(), path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String readFile(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static class NioFileLinker implements MediaBlobStore.FileLinker {
+        @Override
+        public void link(File existing, File newLink) throws IOException {
+            Files.createLink(newLink.toPath(), existing.toPath());
+        }
+
+        @Override
+        public long getLinkCount(File file) throws IOException {
+            return ((Number)Files.getAttribute(file.toPath(), "unix:nlink")).longValue();
+        }
+    }
+
+    /**
+     * Serves a file with an ETag, answering conditional requests with 304 Not Modified while
+     * the ETag still matches
+     */
+    private static class FakeHttpReference extends JavaHttpReference {
+        String etag;
+        String contents;
+        boolean lengthKnown = true;
+        int fullRequests = 0;
+        final List<String> conditionalRequests = new ArrayList<>();
+
+        FakeHttpReference(String etag, String contents) {
+            super(URL, null);
+            this.etag = etag;
+            this.contents = contents;
+        }
+
+        @Override
+        public Response<ResponseBody> getRangeResponse(long offset, @Nullable String validator) {
+            fullRequests++;
+            return Response.success(buildBody(), buildRawResponse(200));
+        }
+
+        @Override
+        public Response<ResponseBody> getConditionalResponse(String validator) {
+            conditionalRequests.add(validator);
+            if (etag.equals(validator)) {
+                return Response.error(ResponseBody.create(null, ""), buildRawResponse(304));
+            }
+            fullRequests++;
+            return Response.success(buildBody(), buildRawResponse(200));
+        }
+
+        private ResponseBody buildBody() {
+            final Buffer buffer = new Buffer().writeUtf8(contents);
+            final long length = lengthKnown ? buffer.size() : -1;
+            return new ResponseBody() {
+                @Override
+                public MediaType contentType() {
+                    return MediaType.parse("image/png");
+                }
+
+                @Override
+                public long contentLength() {
+                    return length;
+                }
+
+                @Override
+                public BufferedSource source() {
+                    return buffer;
+                }
+            };
+        }
+
+        private okhttp3.Response buildRawResponse(int code) {
+            return new okhttp3.Response.Builder()
+                    .code(code)
+                    .message(code == 304 ? "Not Modified" : "OK")
+                    .protocol(Protocol.HTTP_1_1)
+                    .request(new Request.Builder().url(URL).build())
+                    .headers(new Headers.Builder().add("ETag", etag).build())
+                    .build();
+        }
+    }
+}
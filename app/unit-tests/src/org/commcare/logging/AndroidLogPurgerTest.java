@@ -0,0 +1,75 @@
+package org.commcare.logging;
+
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.javarosa.AndroidLogEntry;
+import org.commcare.android.util.TestUtils;
+import org.commcare.models.database.SqlStorage;
+import org.javarosa.core.util.SortedIntSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that purging serialized logs removes only the entries that were serialized
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class AndroidLogPurgerTest {
+
+    private SqlStorage<AndroidLogEntry> storage;
+
+    @Before
+    public void setupTests() {
+        TestUtils.initializeStaticTestStorage();
+        storage = TestUtils.getStorage(AndroidLogEntry.STORAGE_KEY, AndroidLogEntry.class);
+    }
+
+    @Test
+    public void testPurgeRemovesExactlyTheGivenIds() {
+        // Enough entries that the purged ids are removed in more than one batch
+        List<Integer> ids = writeEntries(1200);
+        SortedIntSet purged = new SortedIntSet();
+        List<Integer> kept = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            // Leaves gaps inside of the purged span, like entries skipped during serialization
+            if (i % 3 == 0) {
+                kept.add(ids.get(i));
+            } else {
+                purged.add(ids.get(i));
+            }
+        }
+
+        new AndroidLogPurger<>(storage).purge(purged);
+
+        List<Integer> remaining = new ArrayList<>();
+        for (AndroidLogEntry entry : storage) {
+            remaining.add(entry.getID());
+        }
+        assertEquals(kept, remaining);
+    }
+
+    @Test
+    public void testPurgeWithNoIds() {
+        writeEntries(3);
+
+        new AndroidLogPurger<>(storage).purge(new SortedIntSet());
+
+        assertEquals(3, storage.getNumRecords());
+    }
+
+    private List<Integer> writeEntries(int count) {
+        List<AndroidLogEntry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            entries.add(new AndroidLogEntry("test", "entry " + i, new Date()));
+        }
+        return storage.writeAll(entries);
+    }
+}
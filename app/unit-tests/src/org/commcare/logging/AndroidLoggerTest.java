@@ -0,0 +1,127 @@
+package org.commcare.logging;
+
+import org.commcare.CommCareApplication;
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.javarosa.AndroidLogEntry;
+import org.commcare.android.util.TestAppInstaller;
+import org.commcare.android.util.TestUtils;
+import org.commcare.models.database.SqlStorage;
+import org.commcare.preferences.DeveloperPreferences;
+import org.commcare.preferences.PrefValues;
+import org.javarosa.core.log.LogEntry;
+import org.javarosa.core.log.StreamLogSerializer;
+import org.javarosa.core.services.Logger;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that buffered log entries make it into storage, and that stored entries are serialized
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class AndroidLoggerTest {
+    private static final String USERNAME = "test";
+    private static final String PASSWORD = "123";
+
+    @Before
+    public void setupTests() {
+        TestUtils.initializeStaticTestStorage();
+    }
+
+    @Test
+    public void testLogBeforeLogoutIsPersisted() {
+        TestAppInstaller.installAppAndUser("jr://resource/commcare-apps/form_nav_tests/profile.ccpr",
+                USERNAME, PASSWORD);
+        CommCareApplication.instance().getCurrentApp().getAppPreferences().edit()
+                .putString(DeveloperPreferences.ASYNC_LOGGING, PrefValues.YES).commit();
+        TestAppInstaller.login(USERNAME, PASSWORD);
+
+        String message = "written just before logout";
+        Logger.log("test", message);
+        CommCareApplication.instance().closeUserSession();
+
+        TestAppInstaller.login(USERNAME, PASSWORD);
+        SqlStorage<AndroidLogEntry> logStorage = CommCareApplication.instance()
+                .getUserStorage(AndroidLogEntry.STORAGE_KEY, AndroidLogEntry.class);
+        assertTrue("Log entry from before logout was lost", containsMessage(logStorage, message));
+    }
+
+    @Test
+    public void testHaltedLoggerWritesSynchronously() {
+        SqlStorage<AndroidLogEntry> storage =
+                TestUtils.getStorage(AndroidLogEntry.STORAGE_KEY, AndroidLogEntry.class);
+        AndroidLogger logger = new AndroidLogger(storage, true);
+
+        logger.log("test", "buffered", new Date());
+        assertEquals(0, storage.getNumRecords());
+
+        AndroidLogger.haltAsyncLogger();
+        assertEquals(1, storage.getNumRecords());
+
+        logger.log("test", "after halt", new Date());
+        assertEquals(2, storage.getNumRecords());
+        assertTrue(containsMessage(storage, "after halt"));
+    }
+
+    @Test
+    public void testLoggersAreSynchronousByDefault() {
+        SqlStorage<AndroidLogEntry> storage =
+                TestUtils.getStorage(AndroidLogEntry.STORAGE_KEY, AndroidLogEntry.class);
+        AndroidLogger logger = new AndroidLogger(storage);
+
+        logger.log("test", "unbuffered", new Date());
+        assertEquals(1, storage.getNumRecords());
+        assertFalse(DeveloperPreferences.useAsyncLogging());
+    }
+
+    /**
+     * Enough entries that they are read out of storage in more than one chunk
+     */
+    @Test
+    public void testSerializingReadsEveryEntryInOrder() throws Exception {
+        SqlStorage<AndroidLogEntry> storage =
+                TestUtils.getStorage(AndroidLogEntry.STORAGE_KEY, AndroidLogEntry.class);
+        AndroidLogger logger = new AndroidLogger(storage);
+        int entryCount = 1200;
+        for (int i = 0; i < entryCount; i++) {
+            logger.log("test", "entry " + i, new Date());
+        }
+
+        LogEntry[] fullLogs = logger.serializeLogs(logs -> logs);
+        assertEquals(entryCount, fullLogs.length);
+
+        List<String> streamed = new ArrayList<>();
+        logger.serializeLogs(new StreamLogSerializer() {
+            @Override
+            protected void serializeLog(LogEntry entry) {
+                streamed.add(entry.getMessage());
+            }
+        });
+        assertEquals(entryCount, streamed.size());
+
+        for (int i = 0; i < entryCount; i++) {
+            assertEquals("entry " + i, fullLogs[i].getMessage());
+            assertEquals("entry " + i, streamed.get(i));
+        }
+    }
+
+    private static boolean containsMessage(SqlStorage<AndroidLogEntry> storage, String message) {
+        for (AndroidLogEntry entry : storage) {
+            if (message.equals(entry.getMessage())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
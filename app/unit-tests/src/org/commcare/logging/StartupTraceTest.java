@@ -0,0 +1,53 @@
+package org.commcare.logging;
+
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the breakdown of application startup phases that is written to the device logs
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class StartupTraceTest {
+
+    @Test
+    public void testPhasesAreRecordedWithTheirThread() throws InterruptedException {
+        StartupTrace trace = new StartupTrace();
+        trace.runPhase("main_phase", () -> {
+        });
+        Thread background = new Thread(() -> trace.runPhase("background_phase", () -> {
+        }));
+        background.start();
+        background.join();
+        long phaseStart = trace.beginPhase();
+        trace.endPhase("split_phase", phaseStart);
+        trace.markMainThreadDone();
+
+        String summary = trace.getSummary();
+        assertTrue(summary, summary.matches("Application startup took \\d+ms on the main thread: " +
+                "\\[main_phase=\\d+ms, background_phase=\\d+ms \\(background\\), split_phase=\\d+ms\\]"));
+    }
+
+    @Test
+    public void testPhaseIsOnlyRecordedOnceItFinishes() {
+        StartupTrace trace = new StartupTrace();
+        try {
+            trace.runPhase("failed_phase", () -> {
+                throw new IllegalStateException();
+            });
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        String summary = trace.getSummary();
+        assertFalse(summary, summary.contains("failed_phase"));
+        // Reporting before the main thread is done still gives a usable summary
+        trace.report();
+    }
+}
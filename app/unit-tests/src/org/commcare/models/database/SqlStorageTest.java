@@ -0,0 +1,276 @@
+package org.commcare.models.database;
+
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.database.user.models.ACase;
+import org.commcare.android.util.TestUtils;
+import org.commcare.cases.model.Case;
+import org.commcare.modern.database.DatabaseHelper;
+import org.javarosa.core.model.condition.RequestAbandonedException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the bulk read and write paths and the record cache of SqlStorage
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class SqlStorageTest {
+
+    private SqlStorage<ACase> storage;
+
+    @Before
+    public void setup() {
+        TestUtils.initializeStaticTestStorage();
+        storage = TestUtils.getCaseStorage();
+    }
+
+    @Test
+    public void testWriteAllReturnsIdsInOrder() {
+        List<ACase> cases = buildCases(0, 5);
+        List<Integer> ids = storage.writeAll(cases);
+
+        assertEquals(5, ids.size());
+        for (int i = 0; i < cases.size(); i++) {
+            assertEquals(cases.get(i).getID(), (int)ids.get(i));
+            assertEquals("case_" + i, storage.read(ids.get(i)).getCaseId());
+        }
+    }
+
+    @Test
+    public void testWriteAllMixesInsertsAndUpdates() {
+        List<ACase> cases = buildCases(0, 3);
+        List<Integer> firstIds = storage.writeAll(cases);
+
+        ACase updated = cases.get(1);
+        updated.setProperty("color", "blue");
+        ACase inserted = buildCases(3, 1).get(0);
+        List<Integer> secondIds = storage.writeAll(Arrays.asList(updated, inserted));
+
+        assertEquals(firstIds.get(1), secondIds.get(0));
+        assertEquals(inserted.getID(), (int)secondIds.get(1));
+        assertEquals(4, storage.getNumRecords());
+        assertEquals("blue", storage.read(firstIds.get(1)).getPropertyString("color"));
+        assertEquals("case_3", storage.read(secondIds.get(1)).getCaseId());
+    }
+
+    /**
+     * Records are grouped onto compiled statements by their SQL, so the statement for a column
+     * set has to bind the columns in the order given, with the id of updates last
+     */
+    @Test
+    public void testBulkWriteSql() {
+        String[] columns = new String[]{"case_id", "commcare_sql_record"};
+
+        assertEquals("INSERT INTO AndroidCase (case_id, commcare_sql_record) VALUES (?, ?)",
+                SqlStorage.getBulkWriteSql("AndroidCase", columns, false));
+        assertEquals("UPDATE AndroidCase SET case_id = ?, commcare_sql_record = ? WHERE " +
+                        DatabaseHelper.ID_COL + " = ?",
+                SqlStorage.getBulkWriteSql("AndroidCase", columns, true));
+        assertEquals(SqlStorage.getBulkWriteSql("AndroidCase", columns.clone(), false),
+                SqlStorage.getBulkWriteSql("AndroidCase", columns, false));
+    }
+
+    /**
+     * Enough records that the id and value lists are split across more than one IN query
+     */
+    private static final int MULTI_QUERY_RECORD_COUNT = 1200;
+
+    @Test
+    public void testStreamBulkReadSpansQueries() {
+        List<Integer> ids = storage.writeAll(buildCases(0, MULTI_QUERY_RECORD_COUNT));
+        List<Integer> requested = new ArrayList<>(ids);
+        // Ids with no record behind them are skipped rather than failing the read
+        requested.add(-1);
+        requested.add(ids.get(ids.size() - 1) + 1000);
+
+        Map<Integer, ACase> streamed = new HashMap<>();
+        storage.streamBulkRead(requested, (recordId, record) -> {
+            assertFalse("Record " + recordId + " was streamed twice", streamed.containsKey(recordId));
+            streamed.put(recordId, record);
+        });
+
+        assertEquals(ids.size(), streamed.size());
+        for (int i = 0; i < ids.size(); i++) {
+            ACase record = streamed.get(ids.get(i));
+            assertEquals("case_" + i, record.getCaseId());
+            assertEquals((int)ids.get(i), record.getID());
+        }
+    }
+
+    @Test
+    public void testStreamBulkRecordsForIndexSpansQueries() {
+        storage.writeAll(buildCases(0, MULTI_QUERY_RECORD_COUNT));
+        List<String> caseIds = new ArrayList<>();
+        for (int i = 0; i < MULTI_QUERY_RECORD_COUNT; i += 2) {
+            caseIds.add("case_" + i);
+        }
+        caseIds.add("missing_case");
+
+        List<String> streamed = new ArrayList<>();
+        storage.streamBulkRecordsForIndex(Case.INDEX_CASE_ID, caseIds,
+                (recordId, record) -> streamed.add(record.getCaseId()));
+
+        assertEquals(MULTI_QUERY_RECORD_COUNT / 2, streamed.size());
+        assertTrue(caseIds.containsAll(streamed));
+        List<String> collected = new ArrayList<>();
+        for (ACase record : storage.getBulkRecordsForIndex(Case.INDEX_CASE_ID, caseIds)) {
+            collected.add(record.getCaseId());
+        }
+        assertEquals(streamed, collected);
+    }
+
+    @Test
+    public void testStreamBulkReadMetadata() {
+        List<Integer> ids = storage.writeAll(buildCases(0, MULTI_QUERY_RECORD_COUNT));
+
+        Map<Integer, String> streamed = new HashMap<>();
+        storage.streamBulkReadMetadata(ids, new String[]{Case.INDEX_CASE_ID},
+                (recordId, metaData) -> streamed.put(recordId, metaData[0]));
+
+        assertEquals(ids.size(), streamed.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals("case_" + i, streamed.get(ids.get(i)));
+        }
+    }
+
+    @Test
+    public void testReadRecordsAfterIdWalksTableInChunks() {
+        List<Integer> ids = storage.writeAll(buildCases(0, 25));
+
+        List<Integer> walked = new ArrayList<>();
+        int lastId = -1;
+        List<ACase> chunk;
+        while (!(chunk = storage.readRecordsAfterId(lastId, 10)).isEmpty()) {
+            assertTrue(chunk.size() <= 10);
+            for (ACase record : chunk) {
+                walked.add(record.getID());
+                lastId = record.getID();
+            }
+        }
+
+        assertEquals(ids, walked);
+    }
+
+    @Test
+    public void testStreamBulkReadIsAbandonedOnInterrupt() {
+        List<Integer> ids = storage.writeAll(buildCases(0, 10));
+
+        List<Integer> streamed = new ArrayList<>();
+        try {
+            storage.streamBulkRead(ids, (recordId, record) -> {
+                streamed.add(recordId);
+                Thread.currentThread().interrupt();
+            });
+            fail("Interrupted read should have been abandoned");
+        } catch (RequestAbandonedException e) {
+            // expected
+        } finally {
+            Thread.interrupted();
+        }
+
+        assertEquals(1, streamed.size());
+    }
+
+    @Test
+    public void testRecordCacheCountsEachReadOnce() {
+        storage.enableRecordCache(10);
+        int id = storage.writeAll(buildCases(0, 1)).get(0);
+
+        ACase first = storage.read(id);
+        assertEquals(0, storage.getRecordCacheHitCount());
+        assertEquals(1, storage.getRecordCacheMissCount());
+
+        assertSame(first, storage.read(id));
+        assertEquals(1, storage.getRecordCacheHitCount());
+        assertEquals(1, storage.getRecordCacheMissCount());
+    }
+
+    @Test
+    public void testRecordCacheIsOptIn() {
+        int id = storage.writeAll(buildCases(0, 1)).get(0);
+
+        assertNotSame(storage.read(id), storage.read(id));
+        assertEquals(0, storage.getRecordCacheHitCount());
+        assertEquals(0, storage.getRecordCacheMissCount());
+    }
+
+    @Test
+    public void testBulkReadsBypassRecordCache() {
+        storage.enableRecordCache(10);
+        List<Integer> ids = storage.writeAll(buildCases(0, 3));
+        ACase cached = storage.read(ids.get(0));
+
+        List<ACase> streamed = new ArrayList<>();
+        storage.streamBulkRead(ids, (recordId, record) -> streamed.add(record));
+
+        assertEquals(3, streamed.size());
+        assertFalse(streamed.contains(cached));
+        assertEquals(0, storage.getRecordCacheHitCount());
+        assertEquals(1, storage.getRecordCacheMissCount());
+    }
+
+    @Test
+    public void testWritesInvalidateRecordCache() {
+        storage.enableRecordCache(10);
+        List<Integer> ids = storage.writeAll(buildCases(0, 3));
+
+        // Updates through write
+        ACase updated = storage.newObject(storage.readBytes(ids.get(0)), ids.get(0));
+        storage.read(ids.get(0));
+        updated.setProperty("color", "red");
+        storage.write(updated);
+        assertEquals("red", storage.read(ids.get(0)).getPropertyString("color"));
+
+        // Updates through writeAll
+        updated = storage.newObject(storage.readBytes(ids.get(0)), ids.get(0));
+        updated.setProperty("color", "green");
+        storage.writeAll(Arrays.asList(updated));
+        assertEquals("green", storage.read(ids.get(0)).getPropertyString("color"));
+
+        // Removals
+        storage.read(ids.get(1));
+        storage.remove(ids.get(1));
+        assertRecordRemoved(ids.get(1));
+
+        storage.read(ids.get(2));
+        storage.removeAll();
+        assertRecordRemoved(ids.get(2));
+        assertRecordRemoved(ids.get(0));
+    }
+
+    private void assertRecordRemoved(int id) {
+        try {
+            storage.read(id);
+            fail("Record " + id + " should have been removed");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+
+    private static List<ACase> buildCases(int firstIndex, int count) {
+        List<ACase> cases = new ArrayList<>();
+        for (int i = firstIndex; i < firstIndex + count; i++) {
+            ACase c = new ACase("Case " + i, "test_type");
+            c.setCaseId("case_" + i);
+            cases.add(c);
+        }
+        return cases;
+    }
+}
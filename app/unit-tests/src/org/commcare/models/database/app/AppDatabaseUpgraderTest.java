@@ -0,0 +1,125 @@
+package org.commcare.models.database.app;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.database.app.models.FormDefRecord;
+import org.commcare.android.database.app.models.FormDefRecordV12;
+import org.commcare.models.database.ConcreteAndroidDbHelper;
+import org.commcare.models.database.SqlStorage;
+import org.commcare.modern.database.TableBuilder;
+import org.commcare.provider.FormsProviderAPI;
+import org.commcare.recovery.measures.RecoveryMeasure;
+import org.commcare.utils.FileUtil;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for upgrading app dbs created at version 11 to the current version
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class AppDatabaseUpgraderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SQLiteDatabase db;
+
+    @Before
+    public void setup() {
+        db = new DatabaseAppOpenHelper(RuntimeEnvironment.application, "upgrade_test")
+                .getWritableDatabase("upgrade_test");
+        // Put the form table back to how it was before form hashes were recorded
+        db.execSQL("DROP TABLE IF EXISTS " + FormDefRecord.STORAGE_KEY);
+        db.execSQL(new TableBuilder(FormDefRecordV12.class).getTableCreateString());
+    }
+
+    /**
+     * Apps installed on a v11 db got the recovery measure table from onCreate
+     */
+    @Test
+    public void testUpgradeElevenThirteenWithRecoveryMeasureTable() throws IOException {
+        File formFile = writeFormFile();
+        saveV12Record(formFile);
+
+        new AppDatabaseUpgrader(RuntimeEnvironment.application).upgrade(db, 11, 13);
+
+        assertTableExists(RecoveryMeasure.STORAGE_KEY);
+        assertFormHashRecorded(formFile);
+    }
+
+    @Test
+    public void testUpgradeElevenThirteenWithoutRecoveryMeasureTable() throws IOException {
+        db.execSQL("DROP TABLE IF EXISTS " + RecoveryMeasure.STORAGE_KEY);
+        File formFile = writeFormFile();
+        saveV12Record(formFile);
+
+        new AppDatabaseUpgrader(RuntimeEnvironment.application).upgrade(db, 11, 13);
+
+        assertTableExists(RecoveryMeasure.STORAGE_KEY);
+        assertFormHashRecorded(formFile);
+    }
+
+    private File writeFormFile() throws IOException {
+        File formFile = folder.newFile("form.xml");
+        try (OutputStream out = new FileOutputStream(formFile)) {
+            out.write("<h:html><h:head><h:title>Form</h:title></h:head></h:html>"
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        return formFile;
+    }
+
+    private void saveV12Record(File formFile) {
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                FormsProviderAPI.FormsColumns.DISPLAY_NAME,
+                FormsProviderAPI.FormsColumns.JR_FORM_ID,
+                FormsProviderAPI.FormsColumns.MODEL_VERSION,
+                FormsProviderAPI.FormsColumns.UI_VERSION,
+                FormsProviderAPI.FormsColumns.FORM_MEDIA_PATH,
+                FormsProviderAPI.FormsColumns.FORM_FILE_PATH});
+        cursor.addRow(new Object[]{"Form", "http://test/form", 1, 1,
+                folder.getRoot().getAbsolutePath() + "/form-media/", formFile.getAbsolutePath()});
+        cursor.moveToFirst();
+
+        new FormDefRecordV12(cursor).save(new SqlStorage<>(FormDefRecord.STORAGE_KEY,
+                FormDefRecordV12.class, new ConcreteAndroidDbHelper(RuntimeEnvironment.application, db)));
+    }
+
+    private void assertTableExists(String tableName) {
+        Cursor cursor = db.query("sqlite_master", new String[]{"name"},
+                "type = ? AND name = ?", new String[]{"table", tableName}, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void assertFormHashRecorded(File formFile) {
+        SqlStorage<FormDefRecord> storage = new SqlStorage<>(FormDefRecord.STORAGE_KEY,
+                FormDefRecord.class, new ConcreteAndroidDbHelper(RuntimeEnvironment.application, db));
+        assertEquals(1, storage.getNumRecords());
+        FormDefRecord record = storage.iterate().nextRecord();
+        assertTrue(record.isFormHashRecorded());
+        assertEquals(FileUtil.getMd5Hash(formFile), record.getFormHash());
+    }
+}
@@ -0,0 +1,113 @@
+package org.commcare.models.database.user;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.commcare.CommCareApplication;
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.database.user.models.ACase;
+import org.commcare.android.util.TestAppInstaller;
+import org.commcare.cases.model.Case;
+import org.commcare.models.database.SqlStorage;
+import org.commcare.preferences.HiddenPreferences;
+import org.commcare.preferences.PrefValues;
+import org.commcare.services.CommCareSessionService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for serving user db reads from pooled read-only connections
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class UserDatabaseReadPoolTest {
+
+    @Before
+    public void setup() {
+        TestAppInstaller.installAppAndUser(
+                "jr://resource/commcare-apps/form_nav_tests/profile.ccpr",
+                "test", "123");
+    }
+
+    @Test
+    public void testReadsUsePoolWhenEnabled() {
+        CommCareSessionService session = loginWithReadPool(true);
+
+        SQLiteDatabase readHandle = session.getUserDbReadHandle();
+        assertTrue(session.hasUserDbReadPool());
+        assertNotSame(session.getUserDbHandle(), readHandle);
+        assertTrue(readHandle.isReadOnly());
+        // A thread keeps reading through the same connection
+        assertSame(readHandle, session.getUserDbReadHandle());
+
+        // Committed writes through the main handle are visible to the pooled connections
+        SqlStorage<ACase> caseStorage = getCaseStorage();
+        caseStorage.write(buildCase("pooled_case"));
+        assertEquals(1, caseStorage.getIDsForValue(Case.INDEX_CASE_ID, "pooled_case").size());
+    }
+
+    @Test
+    public void testReadsInTransactionSeeUncommittedWrites() {
+        CommCareSessionService session = loginWithReadPool(true);
+        SQLiteDatabase userDb = session.getUserDbHandle();
+        SqlStorage<ACase> caseStorage = getCaseStorage();
+
+        userDb.beginTransaction();
+        try {
+            assertSame(userDb, session.getUserDbReadHandle());
+            caseStorage.write(buildCase("uncommitted_case"));
+            assertEquals(1, caseStorage.getIDsForValue(Case.INDEX_CASE_ID, "uncommitted_case").size());
+        } finally {
+            userDb.endTransaction();
+        }
+
+        assertNotSame(userDb, session.getUserDbReadHandle());
+        assertEquals(0, caseStorage.getIDsForValue(Case.INDEX_CASE_ID, "uncommitted_case").size());
+    }
+
+    @Test
+    public void testPoolIsOffByDefault() {
+        CommCareSessionService session = loginWithReadPool(false);
+
+        assertFalse(session.hasUserDbReadPool());
+        assertSame(session.getUserDbHandle(), session.getUserDbReadHandle());
+    }
+
+    @Test
+    public void testPoolIsClosedAtLogout() {
+        CommCareSessionService session = loginWithReadPool(true);
+        SQLiteDatabase readHandle = session.getUserDbReadHandle();
+
+        CommCareApplication.instance().closeUserSession();
+
+        assertFalse(readHandle.isOpen());
+        assertFalse(session.hasUserDbReadPool());
+    }
+
+    private static CommCareSessionService loginWithReadPool(boolean enabled) {
+        CommCareApplication.instance().getCurrentApp().getAppPreferences().edit()
+                .putString(HiddenPreferences.USER_DB_READ_POOL_ENABLED,
+                        enabled ? PrefValues.YES : PrefValues.NO)
+                .commit();
+        TestAppInstaller.login("test", "123");
+        return CommCareApplication.instance().getSession();
+    }
+
+    private static SqlStorage<ACase> getCaseStorage() {
+        return CommCareApplication.instance().getUserStorage(ACase.STORAGE_KEY, ACase.class);
+    }
+
+    private static ACase buildCase(String caseId) {
+        ACase c = new ACase("Case " + caseId, "test_type");
+        c.setCaseId(caseId);
+        return c;
+    }
+}
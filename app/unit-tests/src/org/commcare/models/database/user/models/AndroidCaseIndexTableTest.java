@@ -0,0 +1,120 @@
+package org.commcare.models.database.user.models;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.commcare.CommCareApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.database.user.models.ACase;
+import org.commcare.android.util.TestUtils;
+import org.commcare.models.database.SqlStorage;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for building the case index table in bulk
+ */
+@Config(application = CommCareApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class AndroidCaseIndexTableTest {
+
+    private SqlStorage<ACase> storage;
+    private AndroidCaseIndexTable indexTable;
+
+    @Before
+    public void setup() {
+        TestUtils.initializeStaticTestStorage();
+        TestUtils.processResourceTransaction("/inputs/case_create.xml");
+        TestUtils.processResourceTransaction("/inputs/case_create_and_index.xml");
+        storage = TestUtils.getCaseStorage();
+        indexTable = new AndroidCaseIndexTable(storage.getAccessLock());
+    }
+
+    @Test
+    public void testReIndexAllCasesRebuildsRows() {
+        int childId = getRecordId("test_case_id_child");
+        int secondChildId = getRecordId("test_case_id_child_2");
+        Set<String> sqlIndexes = getSqlIndexNames();
+        int rowCount = getRowCount();
+
+        indexTable.wipeTable();
+        assertTrue(indexTable.getCasesMatchingIndex("parent", "test_case_id").isEmpty());
+
+        indexTable.reIndexAllCases(storage);
+        assertParentIndices(childId, secondChildId);
+        assertEquals(rowCount, getRowCount());
+        // The secondary indexes dropped for the bulk load are all back in place
+        assertEquals(sqlIndexes, getSqlIndexNames());
+
+        // Re-indexing starts over rather than adding to the existing rows
+        indexTable.reIndexAllCases(storage);
+        assertParentIndices(childId, secondChildId);
+        assertEquals(rowCount, getRowCount());
+    }
+
+    @Test
+    public void testIndexCasesMatchesIndexingOneAtATime() {
+        int childId = getRecordId("test_case_id_child");
+        int secondChildId = getRecordId("test_case_id_child_2");
+        int rowCount = getRowCount();
+        List<ACase> cases = new ArrayList<>();
+        for (ACase c : storage) {
+            cases.add(c);
+        }
+
+        indexTable.wipeTable();
+        // Cache an empty result, which indexing the cases has to invalidate
+        assertTrue(indexTable.getCasesMatchingIndex("parent", "test_case_id").isEmpty());
+
+        indexTable.indexCases(cases);
+        assertParentIndices(childId, secondChildId);
+        assertEquals(rowCount, getRowCount());
+    }
+
+    private void assertParentIndices(int childId, int secondChildId) {
+        assertEquals(new HashSet<>(Arrays.asList(childId)),
+                indexTable.getCasesMatchingIndex("parent", "test_case_id"));
+        assertEquals(new HashSet<>(Arrays.asList(secondChildId)),
+                indexTable.getCasesMatchingIndex("parent", "test_case_id_2"));
+    }
+
+    private int getRecordId(String caseId) {
+        return storage.getRecordForValue(ACase.INDEX_CASE_ID, caseId).getID();
+    }
+
+    private int getRowCount() {
+        Cursor c = storage.getAccessLock().rawQuery("SELECT COUNT(*) FROM " + AndroidCaseIndexTable.TABLE_NAME, null);
+        try {
+            c.moveToFirst();
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private Set<String> getSqlIndexNames() {
+        SQLiteDatabase db = storage.getAccessLock();
+        Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND tbl_name = ?",
+                new String[]{AndroidCaseIndexTable.TABLE_NAME});
+        Set<String> names = new HashSet<>();
+        try {
+            while (c.moveToNext()) {
+                names.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return names;
+    }
+}
@@ -0,0 +1,178 @@
+package org.commcare.models.encryption;
+
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for borrowing ciphers from a CipherPool while it is being expired
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class CipherPoolTest {
+
+    /**
+     * Stands in for the session key, which changes whenever the pool is expired
+     */
+    private final AtomicInteger keyVersion = new AtomicInteger();
+    /**
+     * The key version each cipher was created with
+     */
+    private final ConcurrentHashMap<Cipher, Integer> cipherKeyVersions = new ConcurrentHashMap<>();
+    private CipherPool pool;
+
+    @Before
+    public void setup() {
+        pool = new CipherPool() {
+            @Override
+            protected Cipher generateNewCipher() {
+                int version = keyVersion.get();
+                try {
+                    Cipher cipher = Cipher.getInstance("AES");
+                    byte[] key = new byte[16];
+                    key[0] = (byte)version;
+                    cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"));
+                    cipherKeyVersions.put(cipher, version);
+                    return cipher;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        pool.init();
+    }
+
+    @Test
+    public void testThreadReusesRemittedCipher() {
+        Cipher cipher = pool.borrow();
+        pool.remit(cipher);
+
+        assertSame(cipher, pool.borrow());
+        assertEquals(1, pool.getGrowthCount());
+    }
+
+    @Test
+    public void testCiphersFromBeforeExpirationAreNotReissued() {
+        Cipher remittedBefore = pool.borrow();
+        Cipher outstanding = pool.borrow();
+        pool.remit(remittedBefore);
+
+        expire();
+        pool.remit(outstanding);
+
+        List<Cipher> borrowed = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            borrowed.add(pool.borrow());
+        }
+        for (Cipher cipher : borrowed) {
+            assertNotSame(remittedBefore, cipher);
+            assertNotSame(outstanding, cipher);
+            assertEquals(keyVersion.get(), (int)cipherKeyVersions.get(cipher));
+        }
+    }
+
+    @Test
+    public void testConcurrentBorrowsDuringExpiration() throws Exception {
+        // Raised only once an expiration has fully completed, so any borrow which reads it
+        // started after the expiration and must get a cipher made with the new key
+        AtomicInteger expiredThroughVersion = new AtomicInteger();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<String> failure = new AtomicReference<>();
+
+        int threadCount = 4;
+        CountDownLatch finished = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            new Thread(() -> {
+                try {
+                    List<Cipher> held = new ArrayList<>();
+                    while (running.get() && failure.get() == null) {
+                        int requiredVersion = expiredThroughVersion.get();
+                        Cipher cipher = pool.borrow();
+                        int version = cipherKeyVersions.get(cipher);
+                        if (version < requiredVersion) {
+                            failure.set("Borrowed a cipher for key " + version +
+                                    " after key " + requiredVersion + " was in place");
+                        }
+                        held.add(cipher);
+                        // Hold a few ciphers at a time so that the pool grows and the shared
+                        // queue is used, not just each thread's own slot
+                        if (held.size() > 3) {
+                            for (Cipher heldCipher : held) {
+                                pool.remit(heldCipher);
+                            }
+                            held.clear();
+                        }
+                    }
+                    for (Cipher heldCipher : held) {
+                        pool.remit(heldCipher);
+                    }
+                } finally {
+                    finished.countDown();
+                }
+            }).start();
+        }
+
+        for (int i = 0; i < 200 && failure.get() == null; i++) {
+            expire();
+            expiredThroughVersion.set(keyVersion.get());
+            Thread.sleep(1);
+        }
+        running.set(false);
+        finished.await();
+
+        assertNull(failure.get(), failure.get());
+    }
+
+    @Test
+    public void testMonitorIsNotified() {
+        List<Integer> borrowPoolSizes = new ArrayList<>();
+        List<Integer> growthCounts = new ArrayList<>();
+        pool.setMonitor(new CipherPoolMonitor() {
+            @Override
+            public void onCipherBorrowed(long borrowTimeNanos, int poolSize) {
+                assertTrue(borrowTimeNanos >= 0);
+                borrowPoolSizes.add(poolSize);
+            }
+
+            @Override
+            public void onPoolGrown(int poolSize, int growthCount) {
+                growthCounts.add(growthCount);
+            }
+        });
+
+        List<Cipher> borrowed = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            borrowed.add(pool.borrow());
+        }
+
+        assertEquals(6, borrowPoolSizes.size());
+        assertEquals(1, growthCounts.size());
+        assertEquals(2, (int)growthCounts.get(0));
+        assertEquals(pool.getPoolSize(), (int)borrowPoolSizes.get(5));
+    }
+
+    private void expire() {
+        keyVersion.incrementAndGet();
+        pool.expire();
+    }
+}
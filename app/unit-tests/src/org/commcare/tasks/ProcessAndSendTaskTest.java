@@ -0,0 +1,280 @@
+package org.commcare.tasks;
+
+import org.commcare.CommCareApplication;
+import org.commcare.CommCareTestApplication;
+import org.commcare.android.CommCareTestRunner;
+import org.commcare.android.database.user.models.FormRecord;
+import org.commcare.android.util.TestAppInstaller;
+import org.commcare.models.database.SqlStorage;
+import org.commcare.preferences.HiddenPreferences;
+import org.commcare.utils.FormUploadResult;
+import org.commcare.utils.FormUploadUtil.PreparedSubmission;
+import org.javarosa.core.model.User;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the scheduling of form uploads by ProcessAndSendTask, with the network replaced
+ * by a scripted fake
+ */
+@Config(application = CommCareTestApplication.class)
+@RunWith(CommCareTestRunner.class)
+public class ProcessAndSendTaskTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SqlStorage<FormRecord> formRecordStorage;
+
+    @Before
+    public void setup() {
+        TestAppInstaller.installAppAndLogin(
+                "jr://resource/commcare-apps/form_save_regressions/profile.ccpr",
+                "test", "123");
+        formRecordStorage = CommCareApplication.instance().getUserStorage(FormRecord.class);
+    }
+
+    /**
+     * A form waits for the upload of an earlier form touching the same case, even with a free
+     * upload slot, while forms touching other cases are uploaded alongside
+     */
+    @Test
+    public void testFormsOfACaseAreUploadedInOrder() throws Exception {
+        setSubmissionConcurrency(3);
+        FormRecord[] records = new FormRecord[]{
+                writeUnsentRecord("case_one"),
+                writeUnsentRecord("case_two"),
+                writeUnsentRecord("case_one")};
+
+        CountDownLatch otherCaseStarted = new CountDownLatch(1);
+        FakeUploadTask task = new FakeUploadTask((i, attempt) -> {
+            if (i == 0) {
+                // Only finishes once the upload for the other case is running alongside it
+                assertTrue(otherCaseStarted.await(5, TimeUnit.SECONDS));
+            } else if (i == 1) {
+                otherCaseStarted.countDown();
+            }
+            return FormUploadResult.FULL_SUCCESS;
+        });
+
+        assertEquals(FormUploadResult.FULL_SUCCESS, task.doTaskBackground(records));
+
+        assertTrue(task.events.indexOf("start 1") < task.events.indexOf("end 0"));
+        assertTrue(task.events.indexOf("end 0") < task.events.indexOf("start 2"));
+        for (FormRecord record : records) {
+            assertWiped(record);
+        }
+    }
+
+    /**
+     * The next form is decrypted and assembled while the one before it uploads, even when only
+     * one upload runs at a time
+     */
+    @Test
+    public void testNextFormIsPreparedDuringUpload() throws Exception {
+        setSubmissionConcurrency(1);
+        FormRecord[] records = new FormRecord[]{
+                writeUnsentRecord("case_one"),
+                writeUnsentRecord("case_two")};
+
+        CountDownLatch secondPrepared = new CountDownLatch(1);
+        FakeUploadTask task = new FakeUploadTask((i, attempt) -> {
+            if (i == 0) {
+                // Only finishes once the next form is being prepared alongside it
+                assertTrue(secondPrepared.await(5, TimeUnit.SECONDS));
+            }
+            return FormUploadResult.FULL_SUCCESS;
+        });
+        task.onPrepare = record -> {
+            if (record.getID() == records[1].getID()) {
+                secondPrepared.countDown();
+            }
+        };
+
+        assertEquals(FormUploadResult.FULL_SUCCESS, task.doTaskBackground(records));
+
+        assertTrue(task.events.indexOf("prepare " + records[1].getID()) < task.events.indexOf("end 0"));
+        for (FormRecord record : records) {
+            assertWiped(record);
+        }
+    }
+
+    /**
+     * A failure specific to one form doesn't stop the others from being sent, but one that
+     * looks like a network problem stops the forms after it
+     */
+    @Test
+    public void testNetworkFailureStopsLaterUploads() throws Exception {
+        setSubmissionConcurrency(1);
+        FormRecord[] records = new FormRecord[]{
+                writeUnsentRecord("case_one"),
+                writeUnsentRecord("case_two"),
+                writeUnsentRecord("case_three")};
+
+        FakeUploadTask task = new FakeUploadTask((i, attempt) ->
+                i == 0 ? FormUploadResult.PROCESSING_FAILURE : FormUploadResult.TRANSPORT_FAILURE);
+
+        assertFalse(FormUploadResult.FULL_SUCCESS.equals(task.doTaskBackground(records)));
+
+        // The failed form is retried, but no later form is attempted
+        assertEquals(1, (int)task.attempts.get(0));
+        assertEquals(2, (int)task.attempts.get(1));
+        assertFalse(task.attempts.containsKey(2));
+        assertEquals(FormRecord.STATUS_QUARANTINED, readStatus(records[0]));
+        assertEquals(FormRecord.STATUS_UNSENT, readStatus(records[1]));
+        assertEquals(FormRecord.STATUS_UNSENT, readStatus(records[2]));
+    }
+
+    /**
+     * Cancelling lets the upload in flight finish and be recorded, but starts no others
+     */
+    @Test
+    public void testCancelLetsInFlightUploadsFinish() throws Exception {
+        setSubmissionConcurrency(1);
+        FormRecord[] records = new FormRecord[]{
+                writeUnsentRecord("case_one"),
+                writeUnsentRecord("case_two")};
+
+        FakeUploadTask[] task = new FakeUploadTask[1];
+        task[0] = new FakeUploadTask((i, attempt) -> {
+            task[0].cancel(false);
+            return FormUploadResult.FULL_SUCCESS;
+        });
+
+        assertEquals(FormUploadResult.FAILURE, task[0].doTaskBackground(records));
+
+        assertEquals(Collections.singleton(0), task[0].attempts.keySet());
+        assertWiped(records[0]);
+        assertEquals(FormRecord.STATUS_UNSENT, readStatus(records[1]));
+    }
+
+    private static void setSubmissionConcurrency(int concurrency) {
+        CommCareApplication.instance().getCurrentApp().getAppPreferences().edit()
+                .putString(HiddenPreferences.FORM_SUBMISSION_CONCURRENCY, String.valueOf(concurrency))
+                .commit();
+    }
+
+    /**
+     * @return An unsent form record whose encrypted submission updates the given case
+     */
+    private FormRecord writeUnsentRecord(String caseId) throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        byte[] key = generator.generateKey().getEncoded();
+
+        File instanceFolder = folder.newFolder();
+        File instance = new File(instanceFolder, "form.xml");
+        String xml = "<data xmlns=\"http://test/form\"><case xmlns=\"http://commcarehq.org/case/transaction/v2\" " +
+                "case_id=\"" + caseId + "\"><update><color>red</color></update></case></data>";
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+        try (OutputStream out = new FileOutputStream(instance)) {
+            out.write(cipher.doFinal(xml.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        FormRecord record = new FormRecord(FormRecord.STATUS_UNSENT, "http://test/form", key,
+                UUID.randomUUID().toString(), new Date(),
+                CommCareApplication.instance().getCurrentApp().getUniqueId());
+        record.setFilePath(instance.getAbsolutePath());
+        formRecordStorage.write(record);
+        return record;
+    }
+
+    private String readStatus(FormRecord record) {
+        return formRecordStorage.read(record.getID()).getStatus();
+    }
+
+    private void assertWiped(FormRecord record) {
+        try {
+            formRecordStorage.read(record.getID());
+            fail("Sent form record " + record.getID() + " should have been removed");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+
+    private interface UploadScript {
+        FormUploadResult upload(int i, int attempt) throws Exception;
+    }
+
+    private static class FakeUploadTask extends ProcessAndSendTask<Object> {
+        final List<String> events = Collections.synchronizedList(new ArrayList<>());
+        final Map<Integer, Integer> attempts = new ConcurrentHashMap<>();
+        volatile Consumer<FormRecord> onPrepare;
+        private final UploadScript script;
+
+        FakeUploadTask(UploadScript script) {
+            super(RuntimeEnvironment.application, "https://www.example.com/submit", false);
+            this.script = script;
+        }
+
+        @Override
+        PreparedSubmission prepareSubmission(FormRecord record) throws FileNotFoundException {
+            events.add("prepare " + record.getID());
+            if (onPrepare != null) {
+                onPrepare.accept(record);
+            }
+            return super.prepareSubmission(record);
+        }
+
+        @Override
+        FormUploadResult submitPreparedInstance(int i, PreparedSubmission submission,
+                                                DataSubmissionListener progressListener, User user) {
+            Set<String> caseIds = submission.getCaseIds();
+            assertEquals(1, caseIds.size());
+            int attempt = attempts.merge(i, 1, Integer::sum);
+            events.add("start " + i);
+            try {
+                return script.upload(i, attempt);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            } finally {
+                events.add("end " + i);
+            }
+        }
+
+        @Override
+        protected void deliverResult(Object receiver, FormUploadResult result) {
+        }
+
+        @Override
+        protected void deliverUpdate(Object receiver, Long... update) {
+        }
+
+        @Override
+        protected void deliverError(Object receiver, Exception e) {
+        }
+    }
+}
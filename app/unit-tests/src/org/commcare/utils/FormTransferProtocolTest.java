@@ -0,0 +1,206 @@
+package org.commcare.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for streaming form records between devices
+ */
+public class FormTransferProtocolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordsAreReceivedIntact() throws Exception {
+        File destination = folder.newFolder("submit");
+        File pending = new File(folder.getRoot(), "pending");
+
+        byte[] formXml = repeat("<data><question>answer</question></data>", 5000);
+        // Large enough to span chunks, and random so it doesn't compress
+        byte[] photo = new byte[150 * 1024];
+        new Random(0).nextBytes(photo);
+
+        List<String> acknowledged = new ArrayList<>();
+        int received = transfer(destination, pending, sender -> {
+            sender.writeHeader();
+            sender.beginRecord("record1", 2);
+            sender.sendFile("form.xml", new ByteArrayInputStream(formXml));
+            sender.sendFile("photo.jpg", new ByteArrayInputStream(photo));
+            sender.endRecord("record1");
+            sender.beginRecord("record2", 1);
+            sender.sendFile("form.xml", new ByteArrayInputStream(new byte[0]));
+            sender.endRecord("record2");
+            sender.finish();
+        }, acknowledged);
+
+        assertEquals(2, received);
+        assertEquals(2, acknowledged.size());
+        assertArrayEquals(formXml, Files.readAllBytes(new File(destination, "record1/form.xml").toPath()));
+        assertArrayEquals(photo, Files.readAllBytes(new File(destination, "record1/photo.jpg").toPath()));
+        assertEquals(0, new File(destination, "record2/form.xml").length());
+        assertFalse(pending.exists());
+    }
+
+    /**
+     * Two devices can hold records under the same name. The one received second is kept
+     * alongside the one already held, and both senders' records are acknowledged.
+     */
+    @Test
+    public void testCollidingRecordsAreBothKept() throws Exception {
+        File destination = folder.newFolder("submit");
+        File pending = new File(folder.getRoot(), "pending");
+        byte[] firstForm = "<data>first device</data>".getBytes(StandardCharsets.UTF_8);
+        byte[] secondForm = "<data>second device</data>".getBytes(StandardCharsets.UTF_8);
+
+        List<String> acknowledged = new ArrayList<>();
+        assertEquals(1, transfer(destination, pending,
+                sender -> sendSingleRecord(sender, "record1", firstForm), acknowledged));
+        assertEquals(1, transfer(destination, pending,
+                sender -> sendSingleRecord(sender, "record1", secondForm), acknowledged));
+
+        assertEquals(2, acknowledged.size());
+        assertEquals("record1", acknowledged.get(0));
+        assertEquals("record1", acknowledged.get(1));
+        assertArrayEquals(firstForm, Files.readAllBytes(new File(destination, "record1/form.xml").toPath()));
+        assertArrayEquals(secondForm, Files.readAllBytes(new File(destination, "record1_1/form.xml").toPath()));
+    }
+
+    /**
+     * Older versions send a zip of every record without a header
+     */
+    @Test
+    public void testLegacyZipIsSaved() throws Exception {
+        File destination = folder.newFolder("submit");
+        File legacyDirectory = new File(folder.getRoot(), "receive");
+        byte[] zip = new byte[10 * 1024];
+        new Random(0).nextBytes(zip);
+        zip[0] = 'P';
+        zip[1] = 'K';
+        zip[2] = 3;
+        zip[3] = 4;
+
+        FormTransferProtocol.Receiver receiver = new FormTransferProtocol.Receiver(
+                new ByteArrayInputStream(zip), new DiscardingOutputStream());
+        int received = receiver.receiveRecords(destination, new File(folder.getRoot(), "pending"),
+                legacyDirectory, (recordKey, recordsReceived) -> {
+                });
+
+        assertEquals(0, received);
+        File savedZip = receiver.getLegacyZip();
+        assertNotNull(savedZip);
+        assertEquals(legacyDirectory, savedZip.getParentFile());
+        assertArrayEquals(zip, Files.readAllBytes(savedZip.toPath()));
+        assertEquals(0, destination.list().length);
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownFormatIsRejected() throws Exception {
+        FormTransferProtocol.Receiver receiver = new FormTransferProtocol.Receiver(
+                new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}),
+                new DiscardingOutputStream());
+        try {
+            receiver.receiveRecords(folder.newFolder("submit"), new File(folder.getRoot(), "pending"),
+                    new File(folder.getRoot(), "receive"), (recordKey, recordsReceived) -> {
+                    });
+        } finally {
+            assertNull(receiver.getLegacyZip());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNamesOutsideOfRecordAreRejected() throws Exception {
+        File destination = folder.newFolder("submit");
+
+        transfer(destination, new File(folder.getRoot(), "pending"), sender -> {
+            sender.writeHeader();
+            sender.beginRecord("..", 0);
+            sender.finish();
+        }, new ArrayList<>());
+    }
+
+    private static void sendSingleRecord(FormTransferProtocol.Sender sender, String recordKey,
+                                         byte[] formXml) throws IOException {
+        sender.writeHeader();
+        sender.beginRecord(recordKey, 1);
+        sender.sendFile("form.xml", new ByteArrayInputStream(formXml));
+        sender.endRecord(recordKey);
+        sender.finish();
+    }
+
+    private interface SendScript {
+        void run(FormTransferProtocol.Sender sender) throws IOException;
+    }
+
+    private int transfer(File destination, File pending, SendScript script,
+                                List<String> acknowledged) throws Exception {
+        PipedInputStream fromSender = new PipedInputStream(64 * 1024);
+        PipedOutputStream toReceiver = new PipedOutputStream(fromSender);
+        PipedInputStream fromReceiver = new PipedInputStream(64 * 1024);
+        PipedOutputStream toSender = new PipedOutputStream(fromReceiver);
+
+        AssertionError[] senderFailure = new AssertionError[1];
+        Thread senderThread = new Thread(() -> {
+            try {
+                script.run(new FormTransferProtocol.Sender(fromReceiver, toReceiver));
+            } catch (IOException e) {
+                // The receiver reports the failure
+            } catch (AssertionError e) {
+                senderFailure[0] = e;
+            } finally {
+                try {
+                    toReceiver.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        senderThread.start();
+        int received;
+        try {
+            received = new FormTransferProtocol.Receiver(fromSender, toSender)
+                    .receiveRecords(destination, pending, new File(folder.getRoot(), "receive"),
+                            (recordKey, recordsReceived) -> acknowledged.add(recordKey));
+        } finally {
+            toSender.close();
+            senderThread.join();
+        }
+        if (senderFailure[0] != null) {
+            throw senderFailure[0];
+        }
+        return received;
+    }
+
+    private static class DiscardingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+    }
+
+    private static byte[] repeat(String s, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(s);
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}